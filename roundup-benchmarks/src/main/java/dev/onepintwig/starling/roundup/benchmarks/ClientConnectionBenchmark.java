@@ -0,0 +1,119 @@
+package dev.onepintwig.starling.roundup.benchmarks;
+
+import dev.onepintwig.starling.roundup.client.ClientSettings;
+import dev.onepintwig.starling.roundup.client.ReactiveStarlingClient;
+import dev.onepintwig.starling.roundup.client.StarlingCodec;
+import dev.onepintwig.starling.roundup.model.AccountList;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import org.openjdk.jmh.annotations.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.NettyPipeline;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent GETs against a [[FakeStarlingServer]], counting the connections it had to accept along the way.
+ * <p>
+ * - perCall: how the client used to build requests, with the auth headers and the header stripping handler set on a
+ * new client configuration for every call. The pool is keyed on that handler callback, so every call got a fresh pool
+ * - shared: [[ReactiveStarlingClient]] as it is now, one configuration with the auth added to each request
+ * - sharedH2c: the same, multiplexed over HTTP/2
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ClientConnectionBenchmark {
+
+    @Param({"perCall", "shared", "sharedH2c"})
+    public String client;
+
+    @Param({"64"})
+    public int concurrency;
+
+    private FakeStarlingServer server;
+    private ConnectionProvider perCallProvider;
+    private HttpClient perCallClient;
+
+    /**
+     * Reported next to the score, as totals for each iteration. perCall leaks a pool (and its open connection) per call,
+     * so give it its own fork
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long requests;
+        public long connectionsOpened;
+    }
+
+    @Setup
+    public void setUp() {
+        server = new FakeStarlingServer(FakeStarlingServer.account(), List.of());
+        perCallProvider = ConnectionProvider.builder("per-call").maxConnections(500).pendingAcquireMaxCount(1000).build();
+        perCallClient = HttpClient.create(perCallProvider).baseUrl(server.baseUrl());
+        ReactiveStarlingClient.configure(ClientSettings.fromSystemProperties()
+                .withBaseUrl(server.baseUrl())
+                .withProtocol(client.equals("sharedH2c"), false));
+    }
+
+    @TearDown
+    public void tearDown() {
+        perCallProvider.dispose();
+        server.close();
+    }
+
+    @Benchmark
+    public List<AccountList> getAccounts(Counters counters) {
+        long opened = server.connectionsOpened();
+        List<AccountList> accounts = Flux.range(0, concurrency)
+                .flatMap(_ -> client.equals("perCall")
+                        ? perCallGet("Bearer benchmark")
+                        : ReactiveStarlingClient.get("Bearer benchmark", "/accounts", AccountList.class), concurrency)
+                .collectList()
+                .block();
+        counters.requests += concurrency;
+        counters.connectionsOpened += server.connectionsOpened() - opened;
+        return accounts;
+    }
+
+    //The request building the client had before it shared its configuration
+    private Mono<AccountList> perCallGet(String authToken) {
+        return perCallClient
+                .headers(h -> h.add(HttpHeaderNames.AUTHORIZATION, authToken)
+                        .add(HttpHeaderNames.ACCEPT, "application/json")
+                        .add(HttpHeaderNames.CONTENT_TYPE, "application/json"))
+                .doOnChannelInit((_, ch, _) ->
+                        ch.pipeline().addAfter(NettyPipeline.HttpCodec, "strip-get-content-length",
+                                new ChannelOutboundHandlerAdapter() {
+                                    @Override
+                                    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                                        if (msg instanceof HttpRequest request && request.method() == HttpMethod.GET) {
+                                            request.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+                                        }
+                                        ctx.write(msg, promise);
+                                    }
+                                }))
+                .get()
+                .uri("/accounts")
+                .responseSingle((_, body) -> body.asByteArray())
+                .handle((json, sink) -> {
+                    try {
+                        sink.next(StarlingCodec.read(json, AccountList.class));
+                    } catch (IOException e) {
+                        sink.error(e);
+                    }
+                });
+    }
+}
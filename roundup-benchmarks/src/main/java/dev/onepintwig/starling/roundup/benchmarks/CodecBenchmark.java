@@ -0,0 +1,70 @@
+package dev.onepintwig.starling.roundup.benchmarks;
+
+import dev.onepintwig.starling.roundup.client.FeedItemStreamParser;
+import dev.onepintwig.starling.roundup.client.StarlingCodec;
+import dev.onepintwig.starling.roundup.model.*;
+import dev.onepintwig.starling.roundup.service.RoundUpAccumulator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON encoding and decoding of the Starling api models, through the same [[StarlingCodec]] the client uses
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"10", "1000"})
+    public int items;
+
+    private byte[] feedItemList;
+    private byte[] accountList;
+    private TopUpRequest topUpRequest;
+    private final RoundUpAccumulator accumulator = new RoundUpAccumulator();
+
+    @Setup
+    public void setUp() throws IOException {
+        feedItemList = StarlingCodec.write(new FeedItemList(FeedItems.generate(items, 4)));
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < Math.min(items, 10); i++) {
+            accounts.add(new Account(UUID.randomUUID(), UUID.randomUUID()));
+        }
+        accountList = StarlingCodec.write(new AccountList(accounts));
+        topUpRequest = new TopUpRequest(new CurrencyAmount("GBP", 1234));
+    }
+
+    @Benchmark
+    public FeedItemList readFeedItemList() throws IOException {
+        return StarlingCodec.read(feedItemList, FeedItemList.class);
+    }
+
+    //The streaming path the feed actually takes, for comparison with full deserialization
+    @Benchmark
+    public List<CurrencyAmount> streamFeedItemList() {
+        accumulator.reset();
+        FeedItemStreamParser parser = new FeedItemStreamParser(StarlingCodec.jsonFactory(), accumulator);
+        parser.feed(ByteBuffer.wrap(feedItemList));
+        parser.endOfInput();
+        return accumulator.roundUps();
+    }
+
+    @Benchmark
+    public AccountList readAccountList() throws IOException {
+        return StarlingCodec.read(accountList, AccountList.class);
+    }
+
+    @Benchmark
+    public byte[] writeTopUpRequest() throws IOException {
+        return StarlingCodec.write(topUpRequest);
+    }
+}
@@ -0,0 +1,87 @@
+package dev.onepintwig.starling.roundup.benchmarks;
+
+import dev.onepintwig.starling.roundup.client.StarlingCodec;
+import dev.onepintwig.starling.roundup.model.*;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.server.HttpServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process stand in for the Starling api. Serves canned, pre-encoded responses so the benchmarks
+ * measure our side of the pipeline rather than the network or the sandbox
+ */
+final class FakeStarlingServer implements AutoCloseable {
+
+    static final String BASE_PATH = "/api/v2";
+
+    private final DisposableServer server;
+    private final LongAdder connectionsOpened = new LongAdder();
+
+    /**
+     * @param account   The one account the fake customer has
+     * @param feedItems The feed returned for every feed query
+     */
+    FakeStarlingServer(Account account, List<FeedItem> feedItems) {
+        byte[] accounts = encode(new AccountList(List.of(account)));
+        byte[] feed = encode(new FeedItemList(feedItems));
+        server = HttpServer.create()
+                .host("localhost")
+                .port(0)
+                //h2c for clients that ask for it with prior knowledge
+                .protocol(HttpProtocol.HTTP11, HttpProtocol.H2C)
+                .doOnChannelInit((_, _, _) -> connectionsOpened.increment())
+                .route(routes -> routes
+                        .get(BASE_PATH + "/accounts", (request, response) ->
+                                response.header(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                                        .sendByteArray(Mono.just(accounts)))
+                        .get(BASE_PATH + "/feed/account/{accountUid}/settled-transactions-between", (request, response) ->
+                                response.header(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                                        .sendByteArray(Mono.just(feed)))
+                        .put(BASE_PATH + "/account/{accountUid}/savings-goals/{savingsGoalUid}/add-money/{transferUid}", (request, response) ->
+                                response.header(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                                        .sendString(request.receive().aggregate().asString().map(_ ->
+                                                "{\"transferUid\":\"" + request.param("transferUid") + "\",\"success\":true}"),
+                                                StandardCharsets.UTF_8)))
+                .bindNow();
+    }
+
+    /**
+     * @return The base url to point the client at
+     */
+    String baseUrl() {
+        return "http://localhost:" + server.port() + BASE_PATH;
+    }
+
+    /**
+     * @return Connections accepted since starting
+     */
+    long connectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+
+    static Account account() {
+        return new Account(UUID.fromString("b8b7c4b1-7d2e-4f8a-9c3e-1a2b3c4d5e6f"), UUID.fromString("c0ffee00-1234-4cde-8f00-123456789abc"));
+    }
+
+    private static byte[] encode(Object value) {
+        try {
+            return StarlingCodec.write(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
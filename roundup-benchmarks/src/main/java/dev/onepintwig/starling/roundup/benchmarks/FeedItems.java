@@ -0,0 +1,55 @@
+package dev.onepintwig.starling.roundup.benchmarks;
+
+import dev.onepintwig.starling.roundup.model.CurrencyAmount;
+import dev.onepintwig.starling.roundup.model.FeedItem;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+/**
+ * Synthetic feed data shared by the benchmarks. Seeded, so every run sees the same feed
+ */
+final class FeedItems {
+
+    static final String[] CURRENCIES = {
+            "GBP", "USD", "EUR", "JPY", "CHF", "AUD", "CAD", "NZD", "SEK", "NOK",
+            "DKK", "PLN", "CZK", "HUF", "SGD", "HKD", "ZAR", "MXN", "TRY", "AED"
+    };
+
+    private FeedItems() {
+    }
+
+    /**
+     * @param items      How many feed items to make
+     * @param currencies How many distinct currencies to spread them over. At most 20
+     * @return A mix of inbound and outbound feed items, from the last day
+     */
+    static List<FeedItem> generate(int items, int currencies) {
+        Instant now = Instant.now();
+        return generate(items, currencies, now.minus(1, ChronoUnit.DAYS), now);
+    }
+
+    /**
+     * @param items      How many feed items to make
+     * @param currencies How many distinct currencies to spread them over. At most 20
+     * @param from       The earliest transaction time, inclusive
+     * @param to         The latest transaction time, exclusive
+     * @return A mix of inbound and outbound feed items, spread over the window
+     */
+    static List<FeedItem> generate(int items, int currencies, Instant from, Instant to) {
+        Random random = new Random(42);
+        long window = to.toEpochMilli() - from.toEpochMilli();
+        List<FeedItem> feedItems = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            feedItems.add(new FeedItem(
+                    new CurrencyAmount(CURRENCIES[i % currencies], random.nextInt(100_000)),
+                    random.nextBoolean() ? FeedItem.TransactionDirection.OUT : FeedItem.TransactionDirection.IN,
+                    FeedItem.Status.SETTLED,
+                    new UUID(random.nextLong(), random.nextLong()),
+                    new Date(from.toEpochMilli() + (long) (random.nextDouble() * window))
+            ));
+        }
+        return feedItems;
+    }
+}
@@ -0,0 +1,49 @@
+package dev.onepintwig.starling.roundup.benchmarks;
+
+import dev.onepintwig.starling.roundup.model.CurrencyAmount;
+import dev.onepintwig.starling.roundup.model.FeedItem;
+import dev.onepintwig.starling.roundup.service.RoundUpAccumulator;
+import dev.onepintwig.starling.roundup.service.RoundUpCalculator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Side-by-side of the two [[RoundUpCalculator]] engines over the same feed, across feed sizes and currency mixes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundUpCalculatorBenchmark {
+
+    @Param({"10", "1000", "1000000"})
+    public int items;
+
+    @Param({"1", "20"})
+    public int currencies;
+
+    //The two calculator engines, plus the primitive engine reusing one accumulator between runs like the streaming feed path does
+    @Param({"COLLECTOR", "PRIMITIVE", "PRIMITIVE_REUSED"})
+    public String engine;
+
+    private List<FeedItem> feedItems;
+    private final RoundUpAccumulator accumulator = new RoundUpAccumulator();
+
+    @Setup
+    public void setUp() {
+        feedItems = FeedItems.generate(items, currencies);
+    }
+
+    @Benchmark
+    public List<CurrencyAmount> roundUpsForFeedItems() {
+        if (engine.equals("PRIMITIVE_REUSED")) {
+            accumulator.reset();
+            return RoundUpCalculator.accumulate(feedItems, accumulator).roundUps();
+        }
+        return RoundUpCalculator.roundUpsForFeedItems(feedItems, RoundUpCalculator.Engine.valueOf(engine));
+    }
+}
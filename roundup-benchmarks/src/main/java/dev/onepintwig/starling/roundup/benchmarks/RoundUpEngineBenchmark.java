@@ -0,0 +1,83 @@
+package dev.onepintwig.starling.roundup.benchmarks;
+
+import dev.onepintwig.starling.roundup.model.RoundUpResponse;
+import dev.onepintwig.starling.roundup.service.RoundUpService;
+import dev.onepintwig.starling.roundup.service.RoundUpWeeks;
+import dev.onepintwig.starling.roundup.simulator.LatencyDistribution;
+import dev.onepintwig.starling.roundup.simulator.SimulatorSettings;
+import dev.onepintwig.starling.roundup.simulator.StarlingSimulator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The reactor and virtual thread engines head to head, doing the same round-ups against the same [[StarlingSimulator]].
+ * <p>
+ * 64 callers each run round-ups back to back, spread over many customers, so both engines have plenty in flight at
+ * once and every customer's accounts come from the cache after their first. The week is last week, the latest that can
+ * be rounded-up, and still inside the feed store's overlap, so the feed has to go upstream every time. Every round-up
+ * goes into a new savings goal, so its transfers are journaled and sent every time too. Throughput and the latency percentiles are per round-up, and gc.alloc.rate.norm (from the
+ * gc profiler the runner adds) is every thread's allocation per round-up, the netty event loops and virtual thread
+ * carriers included. Run with latency above zero to see how each copes with waiting on the upstream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(64)
+@Fork(1)
+public class RoundUpEngineBenchmark {
+
+    @Param({"REACTOR", "VIRTUAL_THREADS"})
+    public RoundUpService.Engine engine;
+
+    //How long every upstream call takes
+    @Param({"PT0S", "PT0.01S"})
+    public String latency;
+
+    @Param({"1000"})
+    public int items;
+
+    private static final int CUSTOMERS = 1000;
+
+    private StarlingSimulator simulator;
+    private final AtomicLong sequence = new AtomicLong();
+    private Date weekStart;
+
+    @Setup
+    public void setUp() throws IOException {
+        simulator = new StarlingSimulator(SimulatorSettings.fromSystemProperties()
+                .withFeed(items, Map.of("GBP", 0.8, "EUR", 0.2))
+                .withLatency(LatencyDistribution.constant(Duration.parse(latency))));
+        weekStart = new Date(RoundUpWeeks.weekStart(System.currentTimeMillis()) - RoundUpWeeks.WEEK_MILLIS);
+        //Must be set before the service is first touched. Each benchmark runs in its own fork, so this is the first time
+        System.setProperty("starling.api.base-url", simulator.baseUrl());
+        //Long enough that last week is never taken as settled, so the feed store fetches it again every time
+        System.setProperty("roundup.feed-store.overlap", "P14D");
+        //Every customer repeats the same round-up, so without this they would all be answered by the result cache
+        System.setProperty("roundup.result-cache.ttl", "PT0S");
+        System.setProperty("roundup.outbox.dir", Files.createTempDirectory("roundup-engine-benchmark").toString());
+        System.setProperty("roundup.outbox.retention", "PT0S");
+    }
+
+    @TearDown
+    public void tearDown() {
+        simulator.close();
+    }
+
+    @Benchmark
+    public RoundUpResponse doRoundUp() {
+        String token = "Bearer benchmark-" + sequence.getAndIncrement() % CUSTOMERS;
+        UUID accountUid = StarlingSimulator.customer(token).accountUid();
+        //A new goal each time, so the outbox journals and sends every transfer rather than answering it as a repeat
+        return RoundUpService.doRoundUp(token, accountUid, UUID.randomUUID(), weekStart, engine).block();
+    }
+}
@@ -0,0 +1,68 @@
+package dev.onepintwig.starling.roundup.benchmarks;
+
+import dev.onepintwig.starling.roundup.model.RoundUpResponse;
+import dev.onepintwig.starling.roundup.service.RoundUpService;
+import dev.onepintwig.starling.roundup.service.RoundUpWeeks;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole [[RoundUpService.doRoundUp]] chain (accounts, feed, calculator and transfers) against a [[FakeStarlingServer]].
+ * <p>
+ * Every call rounds-up into a new savings goal, so the transfer outbox journals and sends each one rather than answering
+ * it as a repeat.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RoundUpPipelineBenchmark {
+
+    @Param({"100", "10000"})
+    public int items;
+
+    @Param({"1", "4"})
+    public int currencies;
+
+    private FakeStarlingServer server;
+    private final UUID accountUid = FakeStarlingServer.account().accountUid();
+    private Date weekStart;
+
+    @Setup
+    public void setUp() throws IOException {
+        //Last week, the latest that can be rounded-up
+        long lastWeek = RoundUpWeeks.weekStart(System.currentTimeMillis()) - RoundUpWeeks.WEEK_MILLIS;
+        weekStart = new Date(lastWeek);
+        server = new FakeStarlingServer(FakeStarlingServer.account(), FeedItems.generate(items, currencies,
+                Instant.ofEpochMilli(lastWeek), Instant.ofEpochMilli(lastWeek + RoundUpWeeks.WEEK_MILLIS)));
+        //Must be set before the client is first touched. Each benchmark runs in its own fork, so this is the first time
+        System.setProperty("starling.api.base-url", server.baseUrl());
+        //Long enough that last week is never taken as settled, so the feed store has to go upstream for it every time
+        //rather than answer locally
+        System.setProperty("roundup.feed-store.overlap", "P14D");
+        //Every call is the same round-up, so without this they would all be answered by the result cache after the first
+        System.setProperty("roundup.result-cache.ttl", "PT0S");
+        //Likewise the outbox. A fresh journal each trial, rather than one left over from the last run, and nothing kept
+        //in memory for the millions of goals transferred into
+        System.setProperty("roundup.outbox.dir", Files.createTempDirectory("roundup-pipeline-benchmark").toString());
+        System.setProperty("roundup.outbox.retention", "PT0S");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public RoundUpResponse doRoundUp() {
+        return RoundUpService.doRoundUp("Bearer benchmark", accountUid, UUID.randomUUID(), weekStart).block();
+    }
+}
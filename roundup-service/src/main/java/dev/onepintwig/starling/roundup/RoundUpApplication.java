@@ -1,8 +1,29 @@
 package dev.onepintwig.starling.roundup;
 
+import dev.onepintwig.starling.roundup.schedule.RoundUpScheduler;
+import dev.onepintwig.starling.roundup.service.RoundUpScheduleService;
+import dev.onepintwig.starling.roundup.service.RoundUpService;
 import jakarta.ws.rs.ApplicationPath;
 import jakarta.ws.rs.core.Application;
 
 @ApplicationPath("/starling")
 public class RoundUpApplication extends Application {
+
+    public RoundUpApplication() {
+        System.Logger log = System.getLogger(RoundUpApplication.class.getName());
+        //Open the transfer outbox at deploy time rather than on the first request, so it is replayed straight away
+        long pending = RoundUpService.outbox().pending();
+        log.log(System.Logger.Level.INFO, "Recovered {0} unconfirmed savings goal transfers from the outbox", pending);
+        //Likewise the scheduler, so anything that came due while we were down runs without waiting for a request
+        if (Boolean.parseBoolean(System.getProperty("roundup.scheduler.enabled", "true"))) {
+            RoundUpScheduler scheduler = RoundUpScheduleService.scheduler();
+            scheduler.start();
+            log.log(System.Logger.Level.INFO, "Recovered {0} weekly round-up enrolments", scheduler.enrolments());
+            //Their tokens went with the last process, so not one of them will run until its customer enrols again
+            if (scheduler.enrolments() > 0 && !scheduler.tokensPersistent()) {
+                log.log(System.Logger.Level.WARNING, "roundup.scheduler.vault-key is not set, so the tokens for the {0} recovered enrolments"
+                        + " were not kept. Their round-ups will wait until each customer enrols again", scheduler.enrolments());
+            }
+        }
+    }
 }
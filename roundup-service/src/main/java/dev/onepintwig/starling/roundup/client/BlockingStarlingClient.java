@@ -0,0 +1,365 @@
+package dev.onepintwig.starling.roundup.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * The same calls as [[ReactiveStarlingClient]], but blocking, for the virtual thread round-up engine. Each call parks
+ * its thread until the response is in, rather than handing back a [[reactor.core.publisher.Mono]].
+ * <p>
+ * Built on the jdk's HttpClient, but configured from the reactive client's [[ClientSettings]], and sharing its circuit
+ * breaker and [[ClientMetrics]]. So the two look like one client to the upstream, and on /metrics. Calls are timed out,
+ * retried and counted against the breaker the same way. The differences:
+ * - Nothing is hedged, as that needs a second thread racing each call
+ * - Compression isn't asked for, as the jdk client won't decompress the response for us
+ * - The jdk client doesn't cap its connections, so calls in flight are capped at the pool's max connections instead
+ * <p>
+ * Only meant to be called from virtual threads. On a platform thread every call ties the thread up for its whole length.
+ */
+public final class BlockingStarlingClient {
+
+    //Feed bodies are read this much at a time, and each chunk parsed before the next is read
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private record Client(ClientSettings settings, HttpClient http, Semaphore connections) {
+    }
+
+    //Rebuilt whenever the reactive client is configured with new settings. Not synchronized, as that pins virtual threads
+    private static final ReentrantLock rebuild = new ReentrantLock();
+    private static volatile Client client;
+    //Times out feed bodies that stop coming part way
+    private static final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("starling-client-deadlines").daemon().factory());
+
+    @FunctionalInterface
+    private interface Call<T> {
+        T call(Client client, Duration timeout) throws Exception;
+    }
+
+    private BlockingStarlingClient() {
+    }
+
+    /**
+     * GETs are safe to repeat, so they are retried
+     *
+     * @param authToken The token to use for request authorization
+     * @param query     The starling endpoint to hit
+     * @param target    Class instance used for deserialization
+     * @return The response
+     * @param <T> The type of the expected result
+     */
+    public static <T> T get(String authToken, String query, Class<T> target) {
+        ClientMetrics.Endpoint metrics = ClientMetrics.endpoint("GET", query);
+        return retried(metrics, () -> guarded(metrics, (current, timeout) ->
+                exchange(metrics, current, request(current, query, authToken, timeout).GET().build(), timeout, target)), null);
+    }
+
+    /**
+     * @param authToken  The token to use for request authorization
+     * @param endpoint   The starling endpoint to hit
+     * @param payload    Payload for the put
+     * @param response   Class instance used for deserialization
+     * @param idempotent Whether sending the put again is safe, e.g. it carries a transferUid that Starling dedupes on. Only idempotent puts are retried
+     * @return The response
+     * @param <T>  The type of the payload
+     * @param <T2> The type of the expected result
+     */
+    public static <T, T2> T2 put(String authToken, String endpoint, T payload, Class<T2> response, boolean idempotent) {
+        ClientMetrics.Endpoint metrics = ClientMetrics.endpoint("PUT", endpoint);
+        Supplier<T2> attempt = () -> guarded(metrics, (current, timeout) -> exchange(metrics, current,
+                request(current, endpoint, authToken, timeout).PUT(HttpRequest.BodyPublishers.ofByteArray(StarlingCodec.write(payload))).build(),
+                timeout, response));
+        return idempotent ? retried(metrics, attempt, null) : attempt.get();
+    }
+
+    /**
+     * Streams the feed items for a feed query through a [[FeedItemStreamParser]], a chunk at a time as the body is read.
+     * <p>
+     * Retried like a GET, but only until the first item has been handed over, as with the reactive client
+     *
+     * @param authToken The token to use for request authorization
+     * @param query     The starling feed endpoint to hit
+     * @param handler   Called with each feed item as it is parsed, on the calling thread
+     */
+    public static void streamFeedItems(String authToken, String query, FeedItemHandler handler) {
+        ClientMetrics.Endpoint metrics = ClientMetrics.endpoint("GET", query);
+        boolean[] started = new boolean[1];
+        retried(metrics, () -> guarded(metrics, (current, timeout) -> {
+            stream(metrics, current, request(current, query, authToken, timeout).GET().build(), timeout, handler, started);
+            return null;
+        }), started);
+    }
+
+    private static Client client() {
+        ClientSettings settings = ReactiveStarlingClient.settings();
+        Client current = client;
+        if (current != null && current.settings() == settings) {
+            return current;
+        }
+        rebuild.lock();
+        try {
+            current = client;
+            if (current == null || current.settings() != settings) {
+                Client old = current;
+                current = new Client(settings, HttpClient.newBuilder()
+                        .connectTimeout(settings.connectTimeout())
+                        //Over plain http, h2 is an upgrade from HTTP/1.1 rather than prior knowledge. Either way it falls back
+                        .version(settings.http2() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                        //Only used for the client's own callbacks. The calls themselves run on the caller's thread
+                        .executor(Executors.newVirtualThreadPerTaskExecutor())
+                        .build(), new Semaphore(settings.pool().maxConnections(), true));
+                client = current;
+                if (old != null) {
+                    //Lets calls already in flight finish on the old settings, like the reactive client
+                    old.http().shutdown();
+                }
+            }
+            return current;
+        } finally {
+            rebuild.unlock();
+        }
+    }
+
+    //The jdk client leaves GETs without a Content-Length, so nothing to strip off for the load balancer here
+    private static HttpRequest.Builder request(Client client, String uri, String authToken, Duration timeout) {
+        return HttpRequest.newBuilder(URI.create(client.settings().baseUrl() + uri))
+                .timeout(timeout)
+                .header("Accept", "application/json")
+                .header("Content-Type", "application/json")
+                .header("Authorization", authToken);
+    }
+
+    //Deserialize if 200, else type the error by status. Timed until the body is read and deserialized
+    private static <T> T exchange(ClientMetrics.Endpoint metrics, Client client, HttpRequest request, Duration timeout, Class<T> target) throws Exception {
+        long start = System.nanoTime();
+        try {
+            HttpResponse<byte[]> response = await(client.http().sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()), timeout.toNanos());
+            metrics.status(response.statusCode());
+            metrics.responseSize(response.body().length);
+            if (response.statusCode() != 200) {
+                throw StarlingApiException.forStatus(metrics.method(), metrics.template(), response.statusCode(), new String(response.body(), StandardCharsets.UTF_8));
+            }
+            return StarlingCodec.read(response.body(), target);
+        } catch (Exception e) {
+            metrics.error();
+            throw e;
+        } finally {
+            metrics.latency(System.nanoTime() - start);
+        }
+    }
+
+    private static void stream(ClientMetrics.Endpoint metrics, Client client, HttpRequest request, Duration timeout,
+                               FeedItemHandler handler, boolean[] started) throws Exception {
+        long start = System.nanoTime();
+        long deadline = start + timeout.toNanos();
+        try {
+            HttpResponse<InputStream> response = await(client.http().sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()), timeout.toNanos());
+            metrics.status(response.statusCode());
+            //The request's timeout stops applying once the headers are in, so the body gets a watchdog of its own
+            Watchdog watchdog = new Watchdog(deadline - System.nanoTime());
+            try (InputStream body = response.body()) {
+                if (response.statusCode() != 200) {
+                    throw StarlingApiException.forStatus(metrics.method(), metrics.template(), response.statusCode(), new String(body.readAllBytes(), StandardCharsets.UTF_8));
+                }
+                FeedItemStreamParser parser = new FeedItemStreamParser(StarlingCodec.jsonFactory(), handler);
+                //The parser is done with each chunk by the time feed returns, so the one buffer does for the whole body
+                byte[] chunk = new byte[CHUNK_SIZE];
+                long bytes = 0;
+                int read;
+                while ((read = body.read(chunk)) != -1) {
+                    //Checked between chunks, so a feed that trickles in still times out. One that stops dead is the watchdog's
+                    if (System.nanoTime() - deadline > 0) {
+                        throw new TimeoutException();
+                    }
+                    bytes += read;
+                    started[0] = true;
+                    parser.feed(ByteBuffer.wrap(chunk, 0, read));
+                }
+                parser.endOfInput();
+                metrics.responseSize(bytes);
+            } catch (IOException e) {
+                //Closing the body on the way out cancels the response, and with it the connection
+                if (watchdog.done()) {
+                    throw new TimeoutException();
+                }
+                throw e;
+            } finally {
+                watchdog.done();
+            }
+        } catch (Exception e) {
+            metrics.error();
+            throw e;
+        } finally {
+            metrics.latency(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Interrupts the reading thread at the deadline. Nothing else wakes a read blocked on a body that has stopped coming,
+     * not even closing it, and until it wakes, the thread and its connection permit are tied up.
+     * <p>
+     * The interrupt is only ever sent before [[done]], and done clears it, so it can't leak into whatever the thread does next
+     */
+    private static final class Watchdog {
+        private final Thread reader = Thread.currentThread();
+        //Not synchronized, as that pins virtual threads
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ScheduledFuture<?> expiry;
+        //Guarded by lock
+        private boolean done;
+        private boolean expired;
+
+        private Watchdog(long delayNanos) {
+            this.expiry = deadlines.schedule(this::expire, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+        }
+
+        private void expire() {
+            lock.lock();
+            try {
+                if (!done) {
+                    expired = true;
+                    reader.interrupt();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return Whether the deadline passed first. Safe to call more than once
+         */
+        boolean done() {
+            lock.lock();
+            try {
+                if (!done) {
+                    done = true;
+                    expiry.cancel(false);
+                    if (expired) {
+                        Thread.interrupted();
+                    }
+                }
+                return expired;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //Rather than send, which only times out waiting for the headers, so a slow body could hold the caller forever
+    private static <T> T await(CompletableFuture<T> call, long timeoutNanos) throws Exception {
+        try {
+            return call.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            //The request's own timeout races ours. Either way it is a timeout, as it would be from the reactive client
+            if (e.getCause() instanceof HttpTimeoutException) {
+                throw new TimeoutException(e.getCause().getMessage());
+            }
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } catch (TimeoutException | InterruptedException e) {
+            call.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * One attempt at a call, behind the circuit breaker, a timeout and the connection cap. Every error comes out as a [[StarlingApiException]]
+     */
+    private static <T> T guarded(ClientMetrics.Endpoint metrics, Call<T> call) {
+        Client current = client();
+        //The connection cap before the breaker, so a call turned away here never holds a ticket, let alone the probe
+        try {
+            acquire(current);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw StarlingApiException.of(metrics.method(), metrics.template(), e);
+        }
+        try {
+            CircuitBreaker breaker = ReactiveStarlingClient.circuitBreaker();
+            long ticket = breaker.tryAcquire();
+            if (ticket == CircuitBreaker.REJECTED) {
+                throw new CircuitOpenException(metrics.method(), metrics.template());
+            }
+            try {
+                T result = call.call(current, current.settings().responseTimeout(metrics.template()));
+                breaker.onSuccess(ticket);
+                return result;
+            } catch (InterruptedException e) {
+                //Cancelled, say by a round-up whose other transfer failed. Says nothing about the upstream
+                breaker.onCancel(ticket);
+                Thread.currentThread().interrupt();
+                throw StarlingApiException.of(metrics.method(), metrics.template(), e);
+            } catch (Exception e) {
+                StarlingApiException error = StarlingApiException.of(metrics.method(), metrics.template(), e);
+                breaker.onError(ticket, error);
+                throw error;
+            }
+        } finally {
+            current.connections().release();
+        }
+    }
+
+    //The pool's pending acquire limit, applied to calls waiting for a slot instead
+    private static void acquire(Client client) throws InterruptedException {
+        int pendingLimit = client.settings().pool().pendingAcquireMaxCount();
+        if (!client.connections().tryAcquire()) {
+            if (pendingLimit >= 0 && client.connections().getQueueLength() >= pendingLimit) {
+                throw new StarlingApiException("Too many calls waiting for a connection to the Starling api", 0, false, null);
+            }
+            client.connections().acquire();
+        }
+    }
+
+    /**
+     * Retries retryable failures with jittered exponential backoff, the same as reactor's Retry.backoff does for the
+     * reactive client. Not once the breaker is open though
+     *
+     * @param started If not null, only retried while its flag is false
+     */
+    private static <T> T retried(ClientMetrics.Endpoint metrics, Supplier<T> attempt, boolean[] started) {
+        ClientSettings current = ReactiveStarlingClient.settings();
+        for (int retry = 0; ; retry++) {
+            try {
+                return attempt.get();
+            } catch (StarlingApiException error) {
+                if (retry >= current.maxRetries() || !error.retryable() || error instanceof CircuitOpenException
+                        || started != null && started[0]) {
+                    throw error;
+                }
+                metrics.retry();
+                try {
+                    Thread.sleep(Duration.ofNanos(backoffNanos(current, retry)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw error;
+                }
+            }
+        }
+    }
+
+    //Doubling from the retry backoff up to the max, then give or take half
+    private static long backoffNanos(ClientSettings settings, int retry) {
+        long max = settings.maxRetryBackoff().toNanos();
+        long backoff = retry >= 30 ? max : Math.min(max, settings.retryBackoff().toNanos() << retry);
+        long jitter = backoff / 2;
+        return backoff - jitter + ThreadLocalRandom.current().nextLong(2 * jitter + 1);
+    }
+}
@@ -0,0 +1,148 @@
+package dev.onepintwig.starling.roundup.client;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calling the Starling api for a while once it keeps failing, so we fail fast instead of piling up
+ * requests (and retries) against something that is down.
+ * <p>
+ * - Closed: everything goes through. Consecutive retryable failures are counted, and any success resets the count
+ * - Open: once the count hits the threshold, nothing goes through until the open period is up
+ * - Half open: then one probe call goes through. If it succeeds we close again, if it fails we open again
+ * <p>
+ * Only failures that say the upstream is in trouble (5xx, throttling, timeouts, connection errors) count. A 404 is our problem,
+ * but still an answer, so it counts as the upstream being alive. Errors that never got as far as the upstream (our own
+ * connection limits, say) say nothing either way.
+ * <p>
+ * Every permitted call gets a ticket to report back with. Outside a probe it is the generation, which moves on every time
+ * the breaker opens, so a call that started before it opened can't close it or count against the next closed period by
+ * finishing late. A probe's is its own id, so only the probe itself can close the breaker or free the probe.
+ * All atomics, as every call goes through here.
+ */
+final class CircuitBreaker {
+
+    /**
+     * The ticket for a call that may not go ahead
+     */
+    static final long REJECTED = -1;
+
+    private final int failureThreshold;
+    private final long openForNanos;
+    private final LongSupplier clock;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean open = new AtomicBoolean();
+    private final AtomicLong openedAt = new AtomicLong();
+    private final AtomicLong generation = new AtomicLong();
+    //The id of the single half open probe in flight, 0 if there isn't one
+    private final AtomicLong probe = new AtomicLong();
+    private final AtomicLong probes = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param failureThreshold Consecutive failures before opening. 0 turns the breaker off
+     * @param openForNanos     How long to stay open before probing
+     */
+    CircuitBreaker(int failureThreshold, long openForNanos, LongSupplier clock) {
+        this.failureThreshold = failureThreshold;
+        this.openForNanos = openForNanos;
+        this.clock = clock;
+    }
+
+    /**
+     * @return The call's ticket, or [[REJECTED]] if it may not go ahead. Every permitted call must report back with its
+     * ticket through one of the on methods
+     */
+    long tryAcquire() {
+        if (!open.get()) {
+            return generation.get() << 1;
+        }
+        if (clock.getAsLong() - openedAt.get() >= openForNanos) {
+            long id = probes.incrementAndGet();
+            if (probe.compareAndSet(0, id)) {
+                return id << 1 | 1;
+            }
+        }
+        rejected.increment();
+        return REJECTED;
+    }
+
+    /**
+     * The upstream answered
+     */
+    void onSuccess(long ticket) {
+        if (isProbe(ticket)) {
+            if (probe.compareAndSet(ticket >>> 1, 0)) {
+                consecutiveFailures.set(0);
+                open.set(false);
+            }
+        } else if (current(ticket)) {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    /**
+     * The call failed. Only upstream faults count towards opening, an error that is still an answer from the upstream
+     * counts as a success, and one that never reached it is as good as a cancel
+     */
+    void onError(long ticket, StarlingApiException error) {
+        if (error.retryable()) {
+            onFailure(ticket);
+        } else if (error.status() > 0) {
+            onSuccess(ticket);
+        } else {
+            onCancel(ticket);
+        }
+    }
+
+    /**
+     * The call was cancelled before it finished, e.g. it lost a hedge. Tells us nothing, but frees the probe if it was it
+     */
+    void onCancel(long ticket) {
+        if (isProbe(ticket)) {
+            probe.compareAndSet(ticket >>> 1, 0);
+        }
+    }
+
+    boolean isOpen() {
+        return open.get();
+    }
+
+    /**
+     * @return Calls failed fast without being made
+     */
+    long rejected() {
+        return rejected.sum();
+    }
+
+    //The upstream is in trouble
+    private void onFailure(long ticket) {
+        if (isProbe(ticket)) {
+            if (probe.get() == ticket >>> 1) {
+                //Open for another period. Set before the probe is freed, so no one probes again straight away
+                openedAt.set(clock.getAsLong());
+                generation.incrementAndGet();
+                probe.compareAndSet(ticket >>> 1, 0);
+            }
+        } else if (current(ticket) && failureThreshold > 0 && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            //Set before opening, so no one reads a stale time and probes straight away
+            openedAt.set(clock.getAsLong());
+            if (open.compareAndSet(false, true)) {
+                generation.incrementAndGet();
+            }
+        }
+    }
+
+    private static boolean isProbe(long ticket) {
+        return (ticket & 1) == 1;
+    }
+
+    //Started since the breaker last closed, and it hasn't opened again since
+    private boolean current(long ticket) {
+        return ticket >>> 1 == generation.get() && !open.get();
+    }
+}
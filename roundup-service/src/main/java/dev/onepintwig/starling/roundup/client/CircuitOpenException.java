@@ -0,0 +1,14 @@
+package dev.onepintwig.starling.roundup.client;
+
+/**
+ * The call wasn't made, because the [[CircuitBreaker]] is open after too many upstream failures. Worth trying again later,
+ * but not straight away
+ */
+public final class CircuitOpenException extends StarlingApiException {
+
+    private static final long serialVersionUID = 1L;
+
+    CircuitOpenException(String method, String endpoint) {
+        super("Not calling " + method + " " + endpoint + ", the Starling api is failing. Circuit breaker open", 0, true, null);
+    }
+}
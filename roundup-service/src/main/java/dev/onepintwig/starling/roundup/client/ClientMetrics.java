@@ -0,0 +1,170 @@
+package dev.onepintwig.starling.roundup.client;
+
+import dev.onepintwig.starling.roundup.metrics.Histogram;
+import dev.onepintwig.starling.roundup.metrics.Metrics;
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics for calls to the Starling api, per method and endpoint template, plus the connection pool gauges.
+ * <p>
+ * Uris have their uids swapped for `{uid}` and their query dropped, so every account shares one set of metrics
+ * per endpoint rather than getting its own.
+ */
+final class ClientMetrics {
+
+    private static final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * The metrics for one endpoint template. Everything is looked up once, so recording never allocates
+     */
+    static final class Endpoint {
+
+        private final String method;
+        private final String template;
+        private final Histogram latency;
+        private final Histogram responseSize;
+        private final LongAdder errors;
+        private final LongAdder retries;
+        private final LongAdder hedges;
+        //Indexed by status code, filled in the first time each code is seen
+        private final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(600);
+
+        private Endpoint(String method, String template) {
+            this.method = method;
+            this.template = template;
+            this.latency = Metrics.histogram("starling_client_request_seconds", "Starling api call latency, from subscribe until the body is read",
+                    Histogram.LATENCY_NANOS, 1e-9, "method", method, "endpoint", template);
+            this.responseSize = Metrics.histogram("starling_client_response_bytes", "Starling api response body sizes",
+                    Histogram.SIZE_BYTES, 1, "method", method, "endpoint", template);
+            this.errors = Metrics.counter("starling_client_errors_total", "Starling api calls that failed, for any reason",
+                    "method", method, "endpoint", template);
+            this.retries = Metrics.counter("starling_client_retries_total", "Starling api calls sent again after a retryable failure",
+                    "method", method, "endpoint", template);
+            this.hedges = Metrics.counter("starling_client_hedges_total", "Starling api calls raced by a second one, as the first was slow",
+                    "method", method, "endpoint", template);
+        }
+
+        void status(int code) {
+            if (code < 0 || code >= statuses.length()) {
+                return;
+            }
+            LongAdder counter = statuses.get(code);
+            if (counter == null) {
+                counter = Metrics.counter("starling_client_responses_total", "Starling api responses by status code",
+                        "method", method, "endpoint", template, "status", Integer.toString(code));
+                statuses.set(code, counter);
+            }
+            counter.increment();
+        }
+
+        void responseSize(long bytes) {
+            responseSize.record(bytes);
+        }
+
+        void latency(long nanos) {
+            latency.record(nanos);
+        }
+
+        void error() {
+            errors.increment();
+        }
+
+        void retry() {
+            retries.increment();
+        }
+
+        void hedge() {
+            hedges.increment();
+        }
+
+        String method() {
+            return method;
+        }
+
+        String template() {
+            return template;
+        }
+
+        Histogram latency() {
+            return latency;
+        }
+    }
+
+    private ClientMetrics() {
+    }
+
+    /**
+     * @param method The http method
+     * @param uri    The uri being called, relative to the base url
+     * @return The metrics for the uri's endpoint template
+     */
+    static Endpoint endpoint(String method, String uri) {
+        String template = template(uri);
+        return endpoints.computeIfAbsent(method + ' ' + template, _ -> new Endpoint(method, template));
+    }
+
+    /**
+     * Feeds reactor-netty's connection pool stats into [[Metrics]] gauges
+     */
+    static final ConnectionProvider.MeterRegistrar poolRegistrar = new ConnectionProvider.MeterRegistrar() {
+        @Override
+        public void registerMetrics(String poolName, String id, SocketAddress remoteAddress, ConnectionPoolMetrics metrics) {
+            String remote = String.valueOf(remoteAddress);
+            Metrics.gauge("starling_client_pool_acquired_connections", "Connections in use", metrics::acquiredSize, "pool", poolName, "remote", remote);
+            Metrics.gauge("starling_client_pool_idle_connections", "Connections open and idle", metrics::idleSize, "pool", poolName, "remote", remote);
+            Metrics.gauge("starling_client_pool_allocated_connections", "Connections open, in use or idle", metrics::allocatedSize, "pool", poolName, "remote", remote);
+            Metrics.gauge("starling_client_pool_pending_acquires", "Requests waiting for a connection", metrics::pendingAcquireSize, "pool", poolName, "remote", remote);
+            Metrics.gauge("starling_client_pool_max_connections", "Most connections the pool will open", metrics::maxAllocatedSize, "pool", poolName, "remote", remote);
+        }
+
+        @Override
+        public void deRegisterMetrics(String poolName, String id, SocketAddress remoteAddress) {
+            String remote = String.valueOf(remoteAddress);
+            for (String gauge : new String[]{"acquired_connections", "idle_connections", "allocated_connections", "pending_acquires", "max_connections"}) {
+                Metrics.removeGauge("starling_client_pool_" + gauge, "pool", poolName, "remote", remote);
+            }
+        }
+    };
+
+    /**
+     * @return The uri without its query, and with every uid segment replaced by `{uid}`
+     */
+    static String template(String uri) {
+        int query = uri.indexOf('?');
+        String path = query < 0 ? uri : uri.substring(0, query);
+        StringBuilder template = new StringBuilder(path.length());
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (start > 0) {
+                template.append('/');
+            }
+            template.append(isUid(path, start, end) ? "{uid}" : path.substring(start, end));
+            start = end + 1;
+        }
+        return template.toString();
+    }
+
+    private static boolean isUid(String path, int start, int end) {
+        if (end - start != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = path.charAt(start + i);
+            boolean dash = i == 8 || i == 13 || i == 18 || i == 23;
+            if (dash ? c != '-' : Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
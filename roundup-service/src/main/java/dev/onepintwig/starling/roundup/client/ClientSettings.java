@@ -0,0 +1,142 @@
+package dev.onepintwig.starling.roundup.client;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How the [[ReactiveStarlingClient]] talks to Starling: where, and how it copes when Starling is slow or failing.
+ * <p>
+ * Defaults come from system properties (see the README). Can be swapped at runtime with [[ReactiveStarlingClient.configure]].
+ *
+ * @param baseUrl                 The Starling api to call
+ * @param connectTimeout          How long to wait for a new connection
+ * @param responseTimeout         How long a call can take, from sending it to reading the whole body, unless overridden below
+ * @param responseTimeouts        Response timeouts for particular endpoint templates, e.g. `/accounts`
+ * @param maxRetries              How many times to retry a retryable failure. Only GETs and idempotent PUTs are retried
+ * @param retryBackoff            The first retry delay. Doubles each retry, with jitter
+ * @param maxRetryBackoff         The longest retry delay
+ * @param hedgePercentile         Send a second GET if the first hasn't answered by this latency percentile for the endpoint,
+ *                                e.g. 0.95. 0 turns hedging off
+ * @param hedgeMinDelay           Never hedge sooner than this, however quick the endpoint usually is
+ * @param breakerFailureThreshold Consecutive upstream failures before the circuit breaker opens. 0 turns it off
+ * @param breakerOpenFor          How long the circuit breaker stays open before letting a probe through
+ * @param pool                    The connection pool limits
+ * @param http2                   Multiplex calls over HTTP/2 connections (h2 over https, h2c over http), falling back to HTTP/1.1
+ * @param compress                Ask for gzipped responses, and decompress them
+ */
+public record ClientSettings(
+        String baseUrl,
+        Duration connectTimeout,
+        Duration responseTimeout,
+        Map<String, Duration> responseTimeouts,
+        int maxRetries,
+        Duration retryBackoff,
+        Duration maxRetryBackoff,
+        double hedgePercentile,
+        Duration hedgeMinDelay,
+        int breakerFailureThreshold,
+        Duration breakerOpenFor,
+        Pool pool,
+        boolean http2,
+        boolean compress
+) {
+
+    /**
+     * @param maxConnections         Most connections open to Starling at once. With HTTP/2 each can carry many calls
+     * @param pendingAcquireMaxCount Most calls waiting for a connection before they fail
+     * @param maxIdleTime            Close connections idle for longer than this. Keep it under the load balancer's idle timeout
+     * @param maxLifeTime            Close connections older than this, so we follow the load balancer as it scales
+     * @param evictInBackground      How often idle and expired connections are swept, rather than only on acquire
+     */
+    public record Pool(int maxConnections, int pendingAcquireMaxCount, Duration maxIdleTime, Duration maxLifeTime, Duration evictInBackground) {
+    }
+
+    public ClientSettings {
+        responseTimeouts = Map.copyOf(responseTimeouts);
+    }
+
+    /**
+     * @return The settings from system properties, falling back to the defaults
+     */
+    public static ClientSettings fromSystemProperties() {
+        return new ClientSettings(
+                System.getProperty("starling.api.base-url", "https://api-sandbox.starlingbank.com/api/v2"),
+                Duration.parse(System.getProperty("starling.client.connect-timeout", "PT5S")),
+                Duration.parse(System.getProperty("starling.client.response-timeout", "PT10S")),
+                //Big feeds take a while to stream
+                parseTimeouts(System.getProperty("starling.client.response-timeouts", "/feed/account/{uid}/settled-transactions-between=PT60S")),
+                Integer.getInteger("starling.client.max-retries", 3),
+                Duration.parse(System.getProperty("starling.client.retry-backoff", "PT0.1S")),
+                Duration.parse(System.getProperty("starling.client.max-retry-backoff", "PT2S")),
+                Double.parseDouble(System.getProperty("starling.client.hedge-percentile", "0")),
+                Duration.parse(System.getProperty("starling.client.hedge-min-delay", "PT0.05S")),
+                Integer.getInteger("starling.client.breaker.failure-threshold", 20),
+                Duration.parse(System.getProperty("starling.client.breaker.open-for", "PT10S")),
+                new Pool(
+                        Integer.getInteger("starling.client.pool.max-connections", 500),
+                        Integer.getInteger("starling.client.pool.pending-acquire-max-count", 1000),
+                        Duration.parse(System.getProperty("starling.client.pool.max-idle-time", "PT30S")),
+                        Duration.parse(System.getProperty("starling.client.pool.max-life-time", "PT5M")),
+                        Duration.parse(System.getProperty("starling.client.pool.evict-in-background", "PT30S"))
+                ),
+                Boolean.getBoolean("starling.client.http2"),
+                Boolean.getBoolean("starling.client.compress")
+        );
+    }
+
+    /**
+     * @param endpoint The endpoint template, e.g. `/accounts`
+     * @return The response timeout for the endpoint
+     */
+    public Duration responseTimeout(String endpoint) {
+        return responseTimeouts.getOrDefault(endpoint, responseTimeout);
+    }
+
+    public ClientSettings withBaseUrl(String baseUrl) {
+        return new ClientSettings(baseUrl, connectTimeout, responseTimeout, responseTimeouts, maxRetries, retryBackoff, maxRetryBackoff,
+                hedgePercentile, hedgeMinDelay, breakerFailureThreshold, breakerOpenFor, pool, http2, compress);
+    }
+
+    public ClientSettings withTimeouts(Duration connectTimeout, Duration responseTimeout, Map<String, Duration> responseTimeouts) {
+        return new ClientSettings(baseUrl, connectTimeout, responseTimeout, responseTimeouts, maxRetries, retryBackoff, maxRetryBackoff,
+                hedgePercentile, hedgeMinDelay, breakerFailureThreshold, breakerOpenFor, pool, http2, compress);
+    }
+
+    public ClientSettings withRetries(int maxRetries, Duration retryBackoff, Duration maxRetryBackoff) {
+        return new ClientSettings(baseUrl, connectTimeout, responseTimeout, responseTimeouts, maxRetries, retryBackoff, maxRetryBackoff,
+                hedgePercentile, hedgeMinDelay, breakerFailureThreshold, breakerOpenFor, pool, http2, compress);
+    }
+
+    public ClientSettings withHedging(double hedgePercentile, Duration hedgeMinDelay) {
+        return new ClientSettings(baseUrl, connectTimeout, responseTimeout, responseTimeouts, maxRetries, retryBackoff, maxRetryBackoff,
+                hedgePercentile, hedgeMinDelay, breakerFailureThreshold, breakerOpenFor, pool, http2, compress);
+    }
+
+    public ClientSettings withCircuitBreaker(int breakerFailureThreshold, Duration breakerOpenFor) {
+        return new ClientSettings(baseUrl, connectTimeout, responseTimeout, responseTimeouts, maxRetries, retryBackoff, maxRetryBackoff,
+                hedgePercentile, hedgeMinDelay, breakerFailureThreshold, breakerOpenFor, pool, http2, compress);
+    }
+
+    public ClientSettings withPool(Pool pool) {
+        return new ClientSettings(baseUrl, connectTimeout, responseTimeout, responseTimeouts, maxRetries, retryBackoff, maxRetryBackoff,
+                hedgePercentile, hedgeMinDelay, breakerFailureThreshold, breakerOpenFor, pool, http2, compress);
+    }
+
+    public ClientSettings withProtocol(boolean http2, boolean compress) {
+        return new ClientSettings(baseUrl, connectTimeout, responseTimeout, responseTimeouts, maxRetries, retryBackoff, maxRetryBackoff,
+                hedgePercentile, hedgeMinDelay, breakerFailureThreshold, breakerOpenFor, pool, http2, compress);
+    }
+
+    //endpoint=duration pairs, separated by ;
+    private static Map<String, Duration> parseTimeouts(String timeouts) {
+        Map<String, Duration> parsed = new HashMap<>();
+        for (String timeout : timeouts.split(";")) {
+            int split = timeout.lastIndexOf('=');
+            if (split > 0) {
+                parsed.put(timeout.substring(0, split).trim(), Duration.parse(timeout.substring(split + 1).trim()));
+            }
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,19 @@
+package dev.onepintwig.starling.roundup.client;
+
+import dev.onepintwig.starling.roundup.model.FeedItem;
+
+/**
+ * Callback for feed items as they are pulled off the wire by the [[FeedItemStreamParser]]
+ * <p>
+ * Only passes through the fields the round-up actually cares about, so we never have to build a [[FeedItem]] per transaction
+ */
+@FunctionalInterface
+public interface FeedItemHandler {
+
+    /**
+     * @param currency   The ISO currency code of the feed item amount
+     * @param minorUnits The feed item amount in minor units
+     * @param direction  Whether the money went in or out of the account
+     */
+    void onFeedItem(String currency, long minorUnits, FeedItem.TransactionDirection direction);
+}
@@ -0,0 +1,185 @@
+package dev.onepintwig.starling.roundup.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import dev.onepintwig.starling.roundup.model.FeedItem;
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Incremental parser for a [[FeedItemList]] payload.
+ * <p>
+ * Wraps a non-blocking jackson parser, so we can push the response body through chunk by chunk as netty hands it to us.
+ * Each feed item is passed to the [[FeedItemHandler]] as soon as its closing brace is read, meaning we never hold
+ * the whole body (or the whole list of items) in memory. Only depth and a couple of field values are tracked.
+ * <p>
+ * Not thread safe - one instance per response body.
+ */
+public final class FeedItemStreamParser {
+
+    //Nesting levels in {"feedItems": [{"amount": {...}}]}
+    private static final int ROOT_DEPTH = 1;
+    private static final int FEED_ITEMS_DEPTH = 2;
+    private static final int ITEM_DEPTH = 3;
+    private static final int AMOUNT_DEPTH = 4;
+
+    private final JsonParser parser;
+    private final ByteBufferFeeder feeder;
+    private final FeedItemHandler handler;
+    //Only set when the handler wants the uid and timestamp too
+    private final IdentifiedFeedItemHandler identifiedHandler;
+
+    private int depth;
+    private boolean inFeedItems;
+    private boolean inAmount;
+    private String rootField;
+    private String itemField;
+    private String amountField;
+
+    //Current item state
+    private String currency;
+    private long minorUnits;
+    private FeedItem.TransactionDirection direction;
+    private UUID feedItemUid;
+    private long transactionTime;
+
+    public FeedItemStreamParser(JsonFactory jsonFactory, FeedItemHandler handler) {
+        try {
+            this.parser = jsonFactory.createNonBlockingByteBufferParser();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+        this.handler = handler;
+        this.identifiedHandler = handler instanceof IdentifiedFeedItemHandler identified ? identified : null;
+    }
+
+    /**
+     * Push the next chunk of the body through the parser. Every complete feed item in the chunk is handed to the handler
+     * before this returns, so the buffer can be released straight afterwards.
+     *
+     * @param chunk The next chunk of the response body
+     */
+    public void feed(ByteBuf chunk) {
+        if (chunk.nioBufferCount() == 1) {
+            feed(chunk.nioBuffer());
+        } else {
+            for (ByteBuffer buffer : chunk.nioBuffers()) {
+                feed(buffer);
+            }
+        }
+    }
+
+    /**
+     * Push the next chunk of the body through the parser
+     *
+     * @param chunk The next chunk of the response body
+     */
+    public void feed(ByteBuffer chunk) {
+        try {
+            feeder.feedInput(chunk);
+            drain();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Signal that the whole body has been fed. Fails if the payload was truncated.
+     */
+    public void endOfInput() {
+        try {
+            feeder.endOfInput();
+            drain();
+            if (depth != 0) {
+                throw new IOException("Unexpected end of feed item payload");
+            }
+            parser.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void drain() throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+            switch (token) {
+                case START_OBJECT -> {
+                    depth++;
+                    if (inFeedItems && depth == ITEM_DEPTH) {
+                        currency = null;
+                        minorUnits = 0;
+                        direction = null;
+                        feedItemUid = null;
+                        transactionTime = Long.MIN_VALUE;
+                    } else if (inFeedItems && depth == AMOUNT_DEPTH && "amount".equals(itemField)) {
+                        inAmount = true;
+                    }
+                }
+                case START_ARRAY -> {
+                    depth++;
+                    if (depth == FEED_ITEMS_DEPTH && "feedItems".equals(rootField)) {
+                        inFeedItems = true;
+                    }
+                }
+                case END_OBJECT -> {
+                    if (inAmount && depth == AMOUNT_DEPTH) {
+                        inAmount = false;
+                    } else if (inFeedItems && depth == ITEM_DEPTH && currency != null && direction != null) {
+                        if (identifiedHandler != null) {
+                            identifiedHandler.onFeedItem(feedItemUid, transactionTime, currency, minorUnits, direction);
+                        } else {
+                            handler.onFeedItem(currency, minorUnits, direction);
+                        }
+                    }
+                    depth--;
+                }
+                case END_ARRAY -> {
+                    if (inFeedItems && depth == FEED_ITEMS_DEPTH) {
+                        inFeedItems = false;
+                    }
+                    depth--;
+                }
+                //Field names are canonicalized by jackson, so these don't allocate per item
+                case FIELD_NAME -> {
+                    if (depth == ROOT_DEPTH) {
+                        rootField = parser.currentName();
+                    } else if (inFeedItems && depth == ITEM_DEPTH) {
+                        itemField = parser.currentName();
+                    } else if (inAmount && depth == AMOUNT_DEPTH) {
+                        amountField = parser.currentName();
+                    }
+                }
+                case VALUE_STRING -> {
+                    if (inAmount && depth == AMOUNT_DEPTH && "currency".equals(amountField)) {
+                        currency = parser.getText();
+                    } else if (inFeedItems && depth == ITEM_DEPTH && "direction".equals(itemField)) {
+                        direction = FeedItem.TransactionDirection.valueOf(parser.getText());
+                    } else if (identifiedHandler != null && inFeedItems && depth == ITEM_DEPTH && "feedItemUid".equals(itemField)) {
+                        feedItemUid = UUID.fromString(parser.getText());
+                    } else if (identifiedHandler != null && inFeedItems && depth == ITEM_DEPTH && "transactionTime".equals(itemField)) {
+                        transactionTime = Instant.parse(parser.getText()).toEpochMilli();
+                    }
+                }
+                case VALUE_NUMBER_INT -> {
+                    if (inAmount && depth == AMOUNT_DEPTH && "minorUnits".equals(amountField)) {
+                        minorUnits = parser.getLongValue();
+                    } else if (identifiedHandler != null && inFeedItems && depth == ITEM_DEPTH && "transactionTime".equals(itemField)) {
+                        //Epoch millis, which is how jackson writes a Date by default. Starling itself sends ISO strings
+                        transactionTime = parser.getLongValue();
+                    }
+                }
+                default -> {
+                    //Anything else is a field we don't care about
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package dev.onepintwig.starling.roundup.client;
+
+import dev.onepintwig.starling.roundup.model.FeedItem;
+
+import java.util.UUID;
+
+/**
+ * A [[FeedItemHandler]] that also wants to know which feed item it is being handed, and when it happened.
+ * <p>
+ * Parsing the uid and timestamp costs an allocation or two per item, so the [[FeedItemStreamParser]] only does it
+ * for handlers that ask for it by implementing this. Plain round-ups don't need them.
+ */
+@FunctionalInterface
+public interface IdentifiedFeedItemHandler extends FeedItemHandler {
+
+    /**
+     * @param feedItemUid           The feed item uid. Null if the payload didn't have one
+     * @param transactionTimeMillis When the transaction happened, in epoch millis. [[Long.MIN_VALUE]] if the payload didn't have one
+     * @param currency              The ISO currency code of the feed item amount
+     * @param minorUnits            The feed item amount in minor units
+     * @param direction             Whether the money went in or out of the account
+     */
+    void onFeedItem(UUID feedItemUid, long transactionTimeMillis, String currency, long minorUnits, FeedItem.TransactionDirection direction);
+
+    @Override
+    default void onFeedItem(String currency, long minorUnits, FeedItem.TransactionDirection direction) {
+        onFeedItem(null, Long.MIN_VALUE, currency, minorUnits, direction);
+    }
+}
@@ -1,39 +1,129 @@
 package dev.onepintwig.starling.roundup.client;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.http.*;
 
+import dev.onepintwig.starling.roundup.metrics.Metrics;
 import reactor.core.publisher.Mono;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import reactor.netty.ByteBufFlux;
 import reactor.netty.NettyPipeline;
+import reactor.netty.http.HttpProtocol;
 import reactor.netty.http.client.HttpClient;
+import reactor.netty.http.client.HttpClientRequest;
+import reactor.netty.resources.ConnectionProvider;
+
+import reactor.util.retry.Retry;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 //Still a slightly indoctrinated Scala developer... So everything has to be lazily evaluated and reactive :D
 public class ReactiveStarlingClient {
 
 
-    private static final HttpClient underlying = HttpClient.create()
-            .baseUrl("https://api-sandbox.starlingbank.com/api/v2");
+    //Swapped as a set by configure. The base url is overridable so we can point at a fake api for benchmarks
+    private static volatile ClientSettings settings = ClientSettings.fromSystemProperties();
+    //Our own pool rather than the reactor-netty global one, so it can be tuned and its stats can go on /metrics
+    private static volatile ConnectionProvider connectionProvider = connectionProvider(settings.pool(), 0);
+    private static int poolGeneration;
+    //Built once per configure. Everything per call (auth, body) goes on the request, so every call shares its pool
+    private static volatile HttpClient underlying = create(settings, connectionProvider);
+    private static volatile CircuitBreaker circuitBreaker = circuitBreaker(settings);
 
-    //I've dumbed down the api a bit to only have the stuff I care about. So let jackson know to drop everything else
-    private static final ObjectMapper objectMapper = new ObjectMapper()
-            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    static {
+        Metrics.gauge("starling_client_circuit_open", "1 while the circuit breaker is open and calls are failing fast", () -> circuitBreaker.isOpen() ? 1 : 0);
+        Metrics.counter("starling_client_short_circuited_total", "Calls failed fast by the circuit breaker, since it was last configured", () -> circuitBreaker.rejected());
+    }
 
-    //Make sure all the requests have the bearer token passed through
-    private static HttpClient withAuth(String authToken) {
-        return underlying
-                .headers(h -> h.add(HttpHeaderNames.AUTHORIZATION, authToken)
-                        .add(HttpHeaderNames.ACCEPT, "application/json")
-                        .add(HttpHeaderNames.CONTENT_TYPE, "application/json"));
+    /**
+     * Swaps the client settings at runtime. Calls already in flight finish on the old settings. Resets the circuit breaker.
+     * The connection pool is only replaced if its settings changed, and the old one is closed once its calls are done
+     *
+     * @param newSettings The settings to use from now on
+     */
+    public static synchronized void configure(ClientSettings newSettings) {
+        ConnectionProvider oldProvider = connectionProvider;
+        ConnectionProvider provider = newSettings.pool().equals(settings.pool())
+                ? oldProvider
+                : connectionProvider(newSettings.pool(), ++poolGeneration);
+        underlying = create(newSettings, provider);
+        connectionProvider = provider;
+        circuitBreaker = circuitBreaker(newSettings);
+        settings = newSettings;
+        if (provider != oldProvider) {
+            oldProvider.disposeLater().subscribe();
+        }
+    }
+
+    /**
+     * @return The settings currently in use
+     */
+    public static ClientSettings settings() {
+        return settings;
+    }
+
+    /**
+     * @return The circuit breaker currently in use. Shared with the [[BlockingStarlingClient]], as it is the same upstream
+     */
+    static CircuitBreaker circuitBreaker() {
+        return circuitBreaker;
+    }
+
+    private static ConnectionProvider connectionProvider(ClientSettings.Pool pool, int generation) {
+        //A new name for each replacement, so the old pool's gauges going away doesn't take the new one's with them
+        return ConnectionProvider.builder(generation == 0 ? "starling" : "starling-" + generation)
+                .maxConnections(pool.maxConnections())
+                .pendingAcquireMaxCount(pool.pendingAcquireMaxCount())
+                .maxIdleTime(pool.maxIdleTime())
+                .maxLifeTime(pool.maxLifeTime())
+                .evictInBackground(pool.evictInBackground())
+                //How long a replaced pool waits for its calls to finish before closing
+                .disposeTimeout(Duration.ofSeconds(30))
+                .metrics(true, () -> ClientMetrics.poolRegistrar)
+                .build();
+    }
+
+    private static HttpClient create(ClientSettings settings, ConnectionProvider provider) {
+        HttpClient client = HttpClient.create(provider)
+                .baseUrl(settings.baseUrl())
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) settings.connectTimeout().toMillis())
+                .headers(h -> h.add(HttpHeaderNames.ACCEPT, "application/json")
+                        .add(HttpHeaderNames.CONTENT_TYPE, "application/json"))
+                .compress(settings.compress())
+                //Once per connection. The pool is keyed on this callback, so it must be the same one for every call -
+                //a new lambda per call got a new pool (and new connections) per call
+                .doOnChannelInit((_, channel, _) -> {
+                    //Not there on h2 connections, which don't have the problem anyway
+                    if (channel.pipeline().get(NettyPipeline.HttpCodec) != null) {
+                        channel.pipeline().addAfter(NettyPipeline.HttpCodec, "strip-get-content-length", StripGetContentLength.INSTANCE);
+                    }
+                });
+        if (settings.http2()) {
+            //h2 is negotiated with ALPN over https, falling back to HTTP/1.1 if the other end won't.
+            //Over plain http (a fake api, say) it is h2c with prior knowledge, so the other end has to speak it
+            client = settings.baseUrl().startsWith("https")
+                    ? client.protocol(HttpProtocol.H2, HttpProtocol.HTTP11)
+                    : client.protocol(HttpProtocol.H2C);
+        }
+        return client;
+    }
+
+    private static CircuitBreaker circuitBreaker(ClientSettings settings) {
+        return new CircuitBreaker(settings.breakerFailureThreshold(), settings.breakerOpenFor().toNanos(), System::nanoTime);
+    }
+
+    //Make sure all the requests have the bearer token passed through. Set on the request itself, so the client isn't rebuilt per call
+    private static HttpClientRequest withAuth(HttpClientRequest request, String authToken) {
+        return request.header(HttpHeaderNames.AUTHORIZATION, authToken);
     }
 
     /**
+     * A put that is never retried, as sending it twice might do the thing twice
      *
      * @param authToken The token to use for request authorization
      * @param endpoint The starling endpoint to hit
@@ -44,13 +134,34 @@ public class ReactiveStarlingClient {
      * @param <T2> The type of the expected result
      */
     public static <T, T2> Mono<T2> put(String authToken, String endpoint, T payload, Class<T2> response) {
-        return handeResponse(withAuth(authToken)
+        return put(authToken, endpoint, payload, response, false);
+    }
+
+    /**
+     *
+     * @param authToken The token to use for request authorization
+     * @param endpoint The starling endpoint to hit
+     * @param payload Payload for the put
+     * @param response Class instance used for deserialization
+     * @param idempotent Whether sending the put again is safe, e.g. it carries a transferUid that Starling dedupes on. Only idempotent puts are retried
+     * @return A [[Mono]] of the expected response type
+     * @param <T> THe type of the payload
+     * @param <T2> The type of the expected result
+     */
+    public static <T, T2> Mono<T2> put(String authToken, String endpoint, T payload, Class<T2> response, boolean idempotent) {
+        ClientMetrics.Endpoint metrics = ClientMetrics.endpoint("PUT", endpoint);
+        Mono<T2> attempt = guarded(metrics, handeResponse(metrics, underlying
                 .put()
                 .uri(endpoint)
-                .send(ByteBufFlux.fromString(serialize(payload))), response);
+                .send((request, outbound) -> {
+                    withAuth(request, authToken);
+                    return outbound.sendString(serialize(payload));
+                }), response));
+        return idempotent ? retried(metrics, attempt, null) : attempt;
     }
 
     /**
+     * GETs are safe to repeat, so they are retried, and hedged if that is turned on
      *
      * @param authToken The token to use for request authorization
      * @param query The starling endpoint to hit
@@ -59,63 +170,201 @@ public class ReactiveStarlingClient {
      * @param <T> The type of the expected result
      */
     public static <T> Mono<T> get(String authToken, String query, Class<T> target) {
-        return handeResponse(withAuth(authToken)
-                //So - I was up until like 2am the evening I wrote this because this was returning 400 for everything...
-                //Not gonna lie... I was pondering a career change at about 1:45am.
-                //Turns out that the starling aws load-balancer rejects any request with Content-Length: 0 as sus
-                //
-                //Classification reasons in: https://docs.aws.amazon.com/elasticloadbalancing/latest/application/load-balancer-access-logs.html
-                //GetHeadZeroContentLength is the one that killed me - and is tripped when desync mitigation is set to "strictest"
-                //
-                //This would be fine, but reactor-netty decide to automatically inject this header at the very end of every Get without documenting that they do!
-                //So this code snippet is a shameless copy+paste that disables that lovely feature for Get Requests only
-                //https://github.com/reactor/reactor-netty/issues/2900
-                .doOnChannelInit((_, ch, _) ->
-                        ch.pipeline().addAfter(NettyPipeline.HttpCodec, "test",
-                                new ChannelOutboundHandlerAdapter() {
-                                    @Override
-                                    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
-                                        if (msg instanceof HttpRequest) {
-                                            // manipulate headers
-                                            ((HttpRequest) msg).headers().remove(HttpHeaderNames.CONTENT_LENGTH);
-                                        }
-                                        ctx.write(msg, promise);
-                                    }
-                                }))
-                //Ok, back to normal code
-                .get()
-                .uri(query), target);
-    }
-
-    //Pretty noddy response handler. Deserialize if 200, else catch the underlying error and propagate back to caller
-    private static <T> Mono<T> handeResponse(HttpClient.ResponseReceiver<?> receiver, Class<T> target){
-        return receiver
-                .responseSingle((headers, response) ->
-                response.asString().flatMap(
-                        json -> {
-                            //TODO: Extended handling of response codes
+        ClientMetrics.Endpoint metrics = ClientMetrics.endpoint("GET", query);
+        Mono<T> attempt = guarded(metrics, handeResponse(metrics, getReceiver(authToken, query), target));
+        return retried(metrics, hedged(metrics, attempt), null);
+    }
+
+    /**
+     * Streams the feed items for a feed query through a [[FeedItemStreamParser]] as the body arrives, rather than
+     * buffering and deserializing the whole [[FeedItemList]]. Lets us keep memory flat regardless of the feed size.
+     * <p>
+     * Retried like a GET, but only until the first item has been handed over - after that a retry would give the handler
+     * the same items twice. Never hedged, for the same reason.
+     *
+     * @param authToken The token to use for request authorization
+     * @param query The starling feed endpoint to hit
+     * @param handler Called with each feed item as it is parsed
+     * @return A [[Mono]] that completes once the whole feed has been handled
+     */
+    public static Mono<Void> streamFeedItems(String authToken, String query, FeedItemHandler handler) {
+        ClientMetrics.Endpoint metrics = ClientMetrics.endpoint("GET", query);
+        return Mono.defer(() -> {
+            AtomicBoolean started = new AtomicBoolean();
+            Mono<Void> attempt = guarded(metrics, Mono.defer(() -> {
+                long start = System.nanoTime();
+                long[] bytes = new long[1];
+                return getReceiver(authToken, query)
+                        .response((headers, body) -> {
+                            metrics.status(headers.status().code());
                             if (headers.status().code() != 200) {
-                                return Mono.error(new Throwable(json));
+                                return body.aggregate().asString().defaultIfEmpty("")
+                                        .flatMap(json -> Mono.<Void>error(StarlingApiException.forStatus(metrics.method(), metrics.template(), headers.status().code(), json)));
                             } else {
-                                return deserialize(json, target);
+                                FeedItemStreamParser parser = new FeedItemStreamParser(StarlingCodec.jsonFactory(), handler);
+                                //Netty releases each buffer once this returns, so it must be parsed synchronously here
+                                return body.doOnNext(chunk -> {
+                                            bytes[0] += chunk.readableBytes();
+                                            started.set(true);
+                                            parser.feed(chunk);
+                                        })
+                                        .then(Mono.fromRunnable(parser::endOfInput))
+                                        .doOnSuccess(_ -> metrics.responseSize(bytes[0]));
                             }
+                        })
+                        .then()
+                        .doOnError(_ -> metrics.error())
+                        .doFinally(_ -> metrics.latency(System.nanoTime() - start));
+            }));
+            return retried(metrics, attempt, started);
+        });
+    }
+
+    private static HttpClient.ResponseReceiver<?> getReceiver(String authToken, String query) {
+        return underlying
+                //Rather than get(), which can't touch the request
+                .request(HttpMethod.GET)
+                .uri(query)
+                //No body, but the outbound still has to be handed back for the request to go
+                .send((request, outbound) -> {
+                    withAuth(request, authToken);
+                    return outbound;
+                });
+    }
+
+    //So - I was up until like 2am the evening I wrote this because this was returning 400 for everything...
+    //Not gonna lie... I was pondering a career change at about 1:45am.
+    //Turns out that the starling aws load-balancer rejects any request with Content-Length: 0 as sus
+    //
+    //Classification reasons in: https://docs.aws.amazon.com/elasticloadbalancing/latest/application/load-balancer-access-logs.html
+    //GetHeadZeroContentLength is the one that killed me - and is tripped when desync mitigation is set to "strictest"
+    //
+    //This would be fine, but reactor-netty decide to automatically inject this header at the very end of every Get without documenting that they do!
+    //So this code snippet is a shameless copy+paste that disables that lovely feature for Get Requests only
+    //https://github.com/reactor/reactor-netty/issues/2900
+    //
+    //Stateless, so one instance goes on every connection
+    @ChannelHandler.Sharable
+    private static final class StripGetContentLength extends ChannelOutboundHandlerAdapter {
+
+        private static final StripGetContentLength INSTANCE = new StripGetContentLength();
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            //Connections are pooled, so a PUT goes out on the same channels. Only touch GETs
+            if (msg instanceof HttpRequest request && request.method() == HttpMethod.GET) {
+                request.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+            }
+            ctx.write(msg, promise);
+        }
+    }
+
+    //Pretty noddy response handler. Deserialize if 200, else type the error by status and propagate back to caller
+    //Timed from subscription until the body is read and deserialized
+    private static <T> Mono<T> handeResponse(ClientMetrics.Endpoint metrics, HttpClient.ResponseReceiver<?> receiver, Class<T> target){
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return receiver
+                    .responseSingle((headers, response) -> {
+                        metrics.status(headers.status().code());
+                        return response.asByteArray().defaultIfEmpty(new byte[0]).flatMap(
+                                json -> {
+                                    metrics.responseSize(json.length);
+                                    if (headers.status().code() != 200) {
+                                        return Mono.error(StarlingApiException.forStatus(metrics.method(), metrics.template(), headers.status().code(), new String(json, StandardCharsets.UTF_8)));
+                                    } else {
+                                        return deserialize(json, target);
+                                    }
+                                }
+                        );
+                    })
+                    .doOnError(_ -> metrics.error())
+                    .doFinally(_ -> metrics.latency(System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * One attempt at a call, behind the circuit breaker and a timeout. Every error comes out as a [[StarlingApiException]]
+     */
+    private static <T> Mono<T> guarded(ClientMetrics.Endpoint metrics, Mono<T> call) {
+        return Mono.defer(() -> {
+            CircuitBreaker breaker = circuitBreaker;
+            long ticket = breaker.tryAcquire();
+            if (ticket == CircuitBreaker.REJECTED) {
+                return Mono.error(new CircuitOpenException(metrics.method(), metrics.template()));
+            }
+            Duration timeout = settings.responseTimeout(metrics.template());
+            return call
+                    .timeout(timeout)
+                    .onErrorMap(error -> StarlingApiException.of(metrics.method(), metrics.template(), error))
+                    .doOnEach(signal -> {
+                        if (signal.isOnComplete() || signal.isOnNext()) {
+                            breaker.onSuccess(ticket);
+                        } else if (signal.isOnError()) {
+                            //Including the pool's pending acquire limit, which never reaches the upstream, so tells the breaker nothing
+                            breaker.onError(ticket, (StarlingApiException) signal.getThrowable());
                         }
-                )
-        );
+                    })
+                    .doOnCancel(() -> breaker.onCancel(ticket));
+        });
+    }
+
+    /**
+     * Retries retryable failures with jittered exponential backoff. Not once the breaker is open though, that is the point of it
+     *
+     * @param started If not null, only retried while this is false
+     */
+    private static <T> Mono<T> retried(ClientMetrics.Endpoint metrics, Mono<T> attempt, AtomicBoolean started) {
+        return Mono.defer(() -> {
+            ClientSettings current = settings;
+            if (current.maxRetries() <= 0) {
+                return attempt;
+            }
+            return attempt.retryWhen(Retry.backoff(current.maxRetries(), current.retryBackoff())
+                    .maxBackoff(current.maxRetryBackoff())
+                    .jitter(0.5)
+                    .filter(error -> error instanceof StarlingApiException apiException && apiException.retryable()
+                            && !(error instanceof CircuitOpenException)
+                            && (started == null || !started.get()))
+                    .doBeforeRetry(_ -> metrics.retry())
+                    //Keep the typed error rather than reactor's retries exhausted wrapper
+                    .onRetryExhaustedThrow((_, signal) -> signal.failure()));
+        });
+    }
+
+    /**
+     * If the first attempt is slower than the endpoint's usual percentile, sends a second one and takes whichever answers
+     * first. The loser is cancelled. Hedges that fail are ignored, so the first attempt's outcome stands
+     */
+    private static <T> Mono<T> hedged(ClientMetrics.Endpoint metrics, Mono<T> attempt) {
+        return Mono.defer(() -> {
+            ClientSettings current = settings;
+            //Need some history before the percentile means anything
+            if (current.hedgePercentile() <= 0 || metrics.latency().count() < 20) {
+                return attempt;
+            }
+            long delay = Math.max(current.hedgeMinDelay().toNanos(), metrics.latency().valueAtQuantile(current.hedgePercentile()));
+            return Mono.firstWithSignal(
+                    attempt,
+                    Mono.delay(Duration.ofNanos(delay))
+                            .doOnNext(_ -> metrics.hedge())
+                            .then(attempt.onErrorResume(_ -> Mono.never()))
+            );
+        });
     }
 
     private static <T> Mono<String> serialize(T object) {
         try {
-            String json = objectMapper.writeValueAsString(object);
+            String json = StarlingCodec.writeAsString(object);
             return Mono.just(json);
         } catch (IOException e) {
             return Mono.error(e);
         }
     }
 
-    private static <T> Mono<T> deserialize(String json, Class<T> target) {
+    private static <T> Mono<T> deserialize(byte[] json, Class<T> target) {
         try {
-            T object = objectMapper.readValue(json, target);
+            T object = StarlingCodec.read(json, target);
             return Mono.just(object);
         } catch (IOException e) {
             return Mono.error(e);
@@ -0,0 +1,77 @@
+package dev.onepintwig.starling.roundup.client;
+
+import com.fasterxml.jackson.core.JacksonException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A failed call to the Starling api. Tells callers whether trying again later could help (throttling, 5xx, timeouts,
+ * dropped connections) or won't (bad requests, auth, not found, payloads we can't read).
+ */
+public class StarlingApiException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    //Longest chunk of an error body to keep in the message
+    private static final int MAX_BODY = 500;
+
+    private final int status;
+    private final boolean retryable;
+
+    /**
+     * @param message   What went wrong
+     * @param status    The http status, or 0 if there was no response
+     * @param retryable Whether the same call might succeed if tried again
+     * @param cause     The underlying error, if any
+     */
+    public StarlingApiException(String message, int status, boolean retryable, Throwable cause) {
+        super(message, cause);
+        this.status = status;
+        this.retryable = retryable;
+    }
+
+    /**
+     * @return The http status, or 0 if there was no response
+     */
+    public int status() {
+        return status;
+    }
+
+    /**
+     * @return Whether the same call might succeed if tried again
+     */
+    public boolean retryable() {
+        return retryable;
+    }
+
+    /**
+     * @return An error for a non-200 response
+     */
+    static StarlingApiException forStatus(String method, String endpoint, int status, String body) {
+        String trimmed = body.length() > MAX_BODY ? body.substring(0, MAX_BODY) + "..." : body;
+        return new StarlingApiException("Starling api returned " + status + " for " + method + " " + endpoint + ": " + trimmed,
+                status, isRetryable(status), null);
+    }
+
+    /**
+     * @return The error as a [[StarlingApiException]], typing anything that isn't one already
+     */
+    static StarlingApiException of(String method, String endpoint, Throwable error) {
+        return switch (error) {
+            case StarlingApiException apiException -> apiException;
+            case TimeoutException _ -> new StarlingApiException("Timed out calling " + method + " " + endpoint, 0, true, error);
+            //Jackson's errors are IOExceptions too, but a payload we can't read won't get any better by asking again
+            case JacksonException _ -> new StarlingApiException("Could not read the response from " + method + " " + endpoint, 200, false, error);
+            case IOException _ -> new StarlingApiException("Connection failed calling " + method + " " + endpoint + ": " + error.getMessage(), 0, true, error);
+            default -> new StarlingApiException("Failed calling " + method + " " + endpoint + ": " + error.getMessage(), 0, false, error);
+        };
+    }
+
+    /**
+     * Throttling, timeouts and server side errors are worth another go. Anything else is our fault
+     */
+    static boolean isRetryable(int status) {
+        return status == 408 || status == 425 || status == 429 || status >= 500;
+    }
+}
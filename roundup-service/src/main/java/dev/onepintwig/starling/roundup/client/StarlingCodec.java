@@ -0,0 +1,66 @@
+package dev.onepintwig.starling.roundup.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The JSON codecs for the Starling api models. Shared by everything that talks to Starling, so there is only one
+ * [[ObjectMapper]] and the per-type readers and writers are only ever built once.
+ */
+public final class StarlingCodec {
+
+    //I've dumbed down the api a bit to only have the stuff I care about. So let jackson know to drop everything else
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static final ConcurrentHashMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    private StarlingCodec() {
+    }
+
+    /**
+     * @param target The type to read
+     * @return A reader bound to the type. Built once and cached
+     */
+    public static ObjectReader reader(Class<?> target) {
+        return readers.computeIfAbsent(target, objectMapper::readerFor);
+    }
+
+    /**
+     * @param source The type to write
+     * @return A writer bound to the type. Built once and cached
+     */
+    public static ObjectWriter writer(Class<?> source) {
+        return writers.computeIfAbsent(source, objectMapper::writerFor);
+    }
+
+    /**
+     * @return The underlying factory, for anything that needs to drive a parser itself
+     */
+    public static JsonFactory jsonFactory() {
+        return objectMapper.getFactory();
+    }
+
+    public static <T> T read(byte[] json, Class<T> target) throws IOException {
+        return reader(target).readValue(json);
+    }
+
+    public static <T> T read(String json, Class<T> target) throws IOException {
+        return reader(target).readValue(json);
+    }
+
+    public static byte[] write(Object value) throws IOException {
+        return writer(value.getClass()).writeValueAsBytes(value);
+    }
+
+    public static String writeAsString(Object value) throws IOException {
+        return writer(value.getClass()).writeValueAsString(value);
+    }
+}
@@ -0,0 +1,130 @@
+package dev.onepintwig.starling.roundup.metrics;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed bucket histogram that is cheap enough to leave on everywhere.
+ * <p>
+ * Recording is a binary search over the bucket bounds, one atomic increment and one [[LongAdder]] add.
+ * No locks and no allocation, so it is fine on netty event loops.
+ */
+public final class Histogram {
+
+    /**
+     * Latency buckets, in nanos. 50us to 10s, so in-memory stages show up as well as network calls
+     */
+    public static final long[] LATENCY_NANOS = {
+            50_000L, 100_000L, 250_000L, 500_000L, 1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L,
+            250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+
+    /**
+     * Payload size buckets, in bytes. 256B to 16MB
+     */
+    public static final long[] SIZE_BYTES = {
+            256L, 1024L, 4096L, 16_384L, 65_536L, 262_144L, 1_048_576L, 4_194_304L, 16_777_216L
+    };
+
+    //Inclusive upper bound of each bucket. Anything bigger goes in the overflow bucket on the end
+    private final long[] bounds;
+    private final AtomicLongArray buckets;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param bounds The inclusive upper bound of each bucket, ascending
+     */
+    public Histogram(long[] bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long value) {
+        int bucket = Arrays.binarySearch(bounds, value);
+        buckets.incrementAndGet(bucket >= 0 ? bucket : -bucket - 1);
+        sum.add(value);
+    }
+
+    /**
+     * Records how long a [[Mono]] takes from subscription until it completes, errors or is cancelled
+     *
+     * @param mono The work to time. Nanos are recorded, so this should be a latency histogram
+     * @return The mono, timed on every subscription
+     */
+    public <T> Mono<T> time(Mono<T> mono) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return mono.doFinally(_ -> record(System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * Records how long a [[Flux]] takes from subscription until it completes, errors or is cancelled
+     *
+     * @param flux The work to time. Nanos are recorded, so this should be a latency histogram
+     * @return The flux, timed on every subscription
+     */
+    public <T> Flux<T> time(Flux<T> flux) {
+        return Flux.defer(() -> {
+            long start = System.nanoTime();
+            return flux.doFinally(_ -> record(System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * Estimates a percentile from the buckets. Only as accurate as the buckets are wide, and rounds up to a bucket bound
+     *
+     * @param quantile The quantile wanted, e.g. 0.95
+     * @return The upper bound of the bucket the quantile falls in. The last bound if it falls in the overflow bucket
+     */
+    public long valueAtQuantile(double quantile) {
+        long[] counts = snapshot();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank) {
+                return bounds[i];
+            }
+        }
+        return bounds[bounds.length - 1];
+    }
+
+    /**
+     * @return The upper bound of each bucket, not counting the overflow bucket
+     */
+    public long[] bounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return How many values landed in each bucket, overflow last. Read bucket by bucket, so only roughly consistent while recording
+     */
+    public long[] snapshot() {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,159 @@
+package dev.onepintwig.starling.roundup.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * The one registry for everything we measure, and its Prometheus text rendering.
+ * <p>
+ * Looking a metric up allocates, so callers should look them up once and hold on to them. Recording on a
+ * [[Histogram]] or [[LongAdder]] from then on is lock-free.
+ * <p>
+ * Labels are passed as name, value pairs, e.g. `counter("requests_total", "Requests", "method", "GET")`.
+ */
+public final class Metrics {
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    //scale converts recorded units to the exported ones, e.g. nanos to seconds
+    private record Family(String name, String help, Type type, double scale, ConcurrentHashMap<List<String>, Object> series) {
+    }
+
+    //Sorted, so the scrape output is stable
+    private static final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @return The counter for the labels, created on first use
+     */
+    public static LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) family(name, help, Type.COUNTER, 1).series().computeIfAbsent(List.of(labels), _ -> new LongAdder());
+    }
+
+    /**
+     * Registers a counter kept by something else, e.g. a cache's hit count, that is read at scrape time
+     *
+     * @param value Read on every scrape, so must be cheap and thread safe. Must only ever go up
+     */
+    public static void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.COUNTER, 1).series().put(List.of(labels), value);
+    }
+
+    /**
+     * Registers a gauge that is read at scrape time. Registering the same name and labels again replaces it
+     *
+     * @param value Read on every scrape, so must be cheap and thread safe
+     */
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.GAUGE, 1).series().put(List.of(labels), value);
+    }
+
+    /**
+     * Removes a gauge, e.g. when the thing it measures goes away
+     */
+    public static void removeGauge(String name, String... labels) {
+        Family family = families.get(name);
+        if (family != null) {
+            family.series().remove(List.of(labels));
+        }
+    }
+
+    /**
+     * @param bounds The bucket bounds, in recorded units
+     * @param scale  Multiplier from recorded units to exported ones. Prometheus wants seconds, so 1e-9 for nanos
+     * @return The histogram for the labels, created on first use
+     */
+    public static Histogram histogram(String name, String help, long[] bounds, double scale, String... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM, scale).series().computeIfAbsent(List.of(labels), _ -> new Histogram(bounds));
+    }
+
+    /**
+     * @return Everything, in the Prometheus text exposition format
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families.values()) {
+            if (family.series().isEmpty()) {
+                continue;
+            }
+            out.append("# HELP ").append(family.name()).append(' ').append(family.help()).append('\n');
+            out.append("# TYPE ").append(family.name()).append(' ').append(family.type().name().toLowerCase(Locale.ROOT)).append('\n');
+            family.series().forEach((labels, metric) -> {
+                switch (family.type()) {
+                    case COUNTER -> sample(out, family.name(), labels, null, metric instanceof LongAdder adder ? adder.sum() : ((LongSupplier) metric).getAsLong());
+                    case GAUGE -> sample(out, family.name(), labels, null, ((DoubleSupplier) metric).getAsDouble());
+                    case HISTOGRAM -> histogram(out, family, labels, (Histogram) metric);
+                }
+            });
+        }
+        return out.toString();
+    }
+
+    private static Family family(String name, String help, Type type, double scale) {
+        Family family = families.computeIfAbsent(name, _ -> new Family(name, help, type, scale, new ConcurrentHashMap<>()));
+        if (family.type() != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type());
+        }
+        return family;
+    }
+
+    private static void histogram(StringBuilder out, Family family, List<String> labels, Histogram histogram) {
+        long[] bounds = histogram.bounds();
+        long[] counts = histogram.snapshot();
+        //Buckets are cumulative, and the count is taken from the same snapshot so +Inf always matches it
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String le = i < bounds.length ? format(bounds[i] * family.scale()) : "+Inf";
+            sample(out, family.name() + "_bucket", labels, le, cumulative);
+        }
+        sample(out, family.name() + "_sum", labels, null, histogram.sum() * family.scale());
+        sample(out, family.name() + "_count", labels, null, cumulative);
+    }
+
+    private static void sample(StringBuilder out, String name, List<String> labels, String le, double value) {
+        out.append(name);
+        if (!labels.isEmpty() || le != null) {
+            out.append('{');
+            for (int i = 0; i + 1 < labels.size(); i += 2) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(labels.get(i)).append("=\"");
+                escape(out, labels.get(i + 1));
+                out.append('"');
+            }
+            if (le != null) {
+                out.append(labels.isEmpty() ? "" : ",").append("le=\"").append(le).append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15
+                ? Long.toString((long) value)
+                : Double.toString(value);
+    }
+
+    private static void escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '"' -> out.append("\\\"");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+    }
+}
@@ -2,6 +2,6 @@ package dev.onepintwig.starling.roundup.model;
 
 public record CurrencyAmount(
         String currency,
-        int minorUnits
+        long minorUnits
 ) {
 }
@@ -1,11 +1,20 @@
 package dev.onepintwig.starling.roundup.model;
 
+import java.util.Date;
+import java.util.UUID;
+
 public record FeedItem(
         CurrencyAmount amount,
         TransactionDirection direction,
-        Status status
+        Status status,
+        UUID feedItemUid, //Needed to dedupe items we've already synced
+        Date transactionTime
 ) {
 
+    public FeedItem(CurrencyAmount amount, TransactionDirection direction, Status status) {
+        this(amount, direction, status, null, null);
+    }
+
     public enum TransactionDirection {
         IN, OUT
     }
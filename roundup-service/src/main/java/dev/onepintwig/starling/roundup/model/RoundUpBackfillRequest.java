@@ -0,0 +1,10 @@
+package dev.onepintwig.starling.roundup.model;
+
+import java.util.Date;
+
+/**
+ * A range of round-up weeks to replay. Weeks start at fromTimestamp and run back to back.
+ * Only whole weeks before toTimestamp are rounded up
+ */
+public record RoundUpBackfillRequest(Date fromTimestamp, Date toTimestamp) {
+}
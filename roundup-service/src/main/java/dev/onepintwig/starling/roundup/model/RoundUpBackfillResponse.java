@@ -0,0 +1,9 @@
+package dev.onepintwig.starling.roundup.model;
+
+import java.util.List;
+
+/**
+ * Every week of a backfill, in order
+ */
+public record RoundUpBackfillResponse(List<RoundUpBackfillWeek> weeks) {
+}
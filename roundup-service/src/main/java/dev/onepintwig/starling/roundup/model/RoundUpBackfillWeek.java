@@ -0,0 +1,10 @@
+package dev.onepintwig.starling.roundup.model;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The transfers made for one week of a backfill
+ */
+public record RoundUpBackfillWeek(Date roundUpWeekStartTimestamp, List<SavingsGoalTransferResponse> savingsGoalTransfers) {
+}
@@ -0,0 +1,15 @@
+package dev.onepintwig.starling.roundup.model;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * One round-up in a batch. The token is optional, and falls back to the Authorization header of the batch request
+ */
+public record RoundUpBatchItem(
+        String token,
+        UUID accountUid,
+        UUID savingsGoalUid,
+        Date roundUpWeekStartTimestamp
+) {
+}
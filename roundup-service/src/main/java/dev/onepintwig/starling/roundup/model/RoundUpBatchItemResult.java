@@ -0,0 +1,17 @@
+package dev.onepintwig.starling.roundup.model;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The outcome of one round-up in a batch. Either the transfers made, or the error that stopped it
+ */
+public record RoundUpBatchItemResult(
+        UUID accountUid,
+        UUID savingsGoalUid,
+        Date roundUpWeekStartTimestamp,
+        List<SavingsGoalTransferResponse> savingsGoalTransfers,
+        String error
+) {
+}
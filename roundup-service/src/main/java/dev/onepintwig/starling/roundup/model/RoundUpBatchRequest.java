@@ -0,0 +1,6 @@
+package dev.onepintwig.starling.roundup.model;
+
+import java.util.List;
+
+public record RoundUpBatchRequest(List<RoundUpBatchItem> roundUps) {
+}
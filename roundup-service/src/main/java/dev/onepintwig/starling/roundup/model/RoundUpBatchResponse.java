@@ -0,0 +1,9 @@
+package dev.onepintwig.starling.roundup.model;
+
+import java.util.List;
+
+/**
+ * Results are in the same order as the items in the [[RoundUpBatchRequest]]
+ */
+public record RoundUpBatchResponse(List<RoundUpBatchItemResult> results) {
+}
@@ -0,0 +1,15 @@
+package dev.onepintwig.starling.roundup.model;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Whether an account and savings goal are enrolled for weekly round-ups, and when the next one is due if so
+ */
+public record RoundUpEnrolmentResponse(
+        UUID accountUid,
+        UUID savingsGoalUid,
+        boolean enrolled,
+        Date nextRoundUp
+) {
+}
@@ -0,0 +1,16 @@
+package dev.onepintwig.starling.roundup.model;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * What an account would have rounded-up over a range of days. Nothing is transferred
+ */
+public record RoundUpReportResponse(
+        UUID accountUid,
+        Date from,
+        Date to,
+        List<CurrencyAmount> roundUps
+) {
+}
@@ -0,0 +1,353 @@
+package dev.onepintwig.starling.roundup.outbox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, memory-mapped write-ahead journal for savings goal transfers.
+ * <p>
+ * Appending is just a copy into a mapped segment file. Durability comes from a single flusher thread that forces
+ * everything appended since its last pass to disk in one go, then completes all the waiting futures together.
+ * So concurrent writers share fsyncs (group commit) rather than queueing behind one each.
+ * <p>
+ * Records are [length][type][body][crc32]. A zero length marks the end of a segment. On open, every segment
+ * is replayed in order, and a torn record at the tail (crash mid-write) is dropped.
+ * <p>
+ * It is also compacted on open, so it doesn't grow with every transfer ever made. What is still needed (plans not yet
+ * confirmed, and confirmations recent enough to answer repeats with) is written to a fresh segment, and the old ones are
+ * deleted once it is on disk. A crash part way just leaves both, and replaying both comes to the same thing.
+ */
+public final class TransferJournal implements AutoCloseable {
+
+    /**
+     * Callback for replaying the journal on open
+     */
+    public interface Listener {
+        void onPlanned(TransferKey key, UUID transferUid, long minorUnits);
+
+        /**
+         * @param completedAtMillis When it was confirmed
+         */
+        void onCompleted(UUID transferUid, boolean success, long completedAtMillis);
+    }
+
+    private static final byte PLANNED = 1;
+    private static final byte COMPLETED = 2;
+    //length + type + crc
+    private static final int OVERHEAD = Integer.BYTES + 1 + Integer.BYTES;
+
+    private record Plan(TransferKey key, UUID transferUid, long minorUnits) {
+    }
+
+    private record Completion(boolean success, long atMillis) {
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+
+    //Guarded by this
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private int position;
+    private List<MappedByteBuffer> dirty = new ArrayList<>();
+    private List<CompletableFuture<Void>> waiting = new ArrayList<>();
+    private boolean closed;
+
+    private final Thread flusher;
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+
+    private TransferJournal(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flusher = Thread.ofPlatform().name("transfer-journal-flusher").daemon().unstarted(this::flushLoop);
+    }
+
+    /**
+     * Opens the journal in a directory, compacting it and replaying what is left through the listener before returning
+     *
+     * @param directory            Where the segment files live. Created if missing
+     * @param segmentSize          The size of each mapped segment file. Must fit the largest record
+     * @param retainCompletedSince Confirmed transfers from before this (epoch millis) are dropped. Unconfirmed ones are always kept
+     * @param listener             Told about every record kept, in order. A plan always comes before its confirmation
+     * @return The journal, ready for appends
+     */
+    public static TransferJournal open(Path directory, int segmentSize, long retainCompletedSince, Listener listener) throws IOException {
+        Files.createDirectories(directory);
+        TransferJournal journal = new TransferJournal(directory, segmentSize);
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files.filter(file -> file.getFileName().toString().matches("journal-\\d+\\.log")).sorted().toList();
+        }
+        Map<UUID, Plan> plans = new LinkedHashMap<>();
+        Map<UUID, Completion> completions = new HashMap<>();
+        Listener collector = new Listener() {
+            @Override
+            public void onPlanned(TransferKey key, UUID transferUid, long minorUnits) {
+                //The first plan for a key wins
+                plans.putIfAbsent(transferUid, new Plan(key, transferUid, minorUnits));
+            }
+
+            @Override
+            public void onCompleted(UUID transferUid, boolean success, long completedAtMillis) {
+                completions.put(transferUid, new Completion(success, completedAtMillis));
+            }
+        };
+        for (Path segment : segments) {
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                //Torn records only ever end the last segment, anything after one is never acknowledged
+                replay(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), collector);
+            }
+        }
+        plans.values().removeIf(plan -> {
+            Completion completion = completions.get(plan.transferUid());
+            return completion != null && completion.atMillis() < retainCompletedSince;
+        });
+
+        //A fresh segment after the last, so nothing is written over until the compacted copy is safely down
+        journal.openSegment(segments.isEmpty() ? 0 : segmentIndex(segments.getLast()) + 1);
+        synchronized (journal) {
+            for (Plan plan : plans.values()) {
+                journal.write(PLANNED, planned(plan.key(), plan.transferUid(), plan.minorUnits()));
+                Completion completion = completions.get(plan.transferUid());
+                if (completion != null) {
+                    journal.write(COMPLETED, completed(plan.transferUid(), completion.success(), completion.atMillis()));
+                }
+            }
+            journal.dirty.forEach(MappedByteBuffer::force);
+            journal.dirty.clear();
+        }
+        for (Path segment : segments) {
+            Files.delete(segment);
+        }
+
+        plans.values().forEach(plan -> {
+            listener.onPlanned(plan.key(), plan.transferUid(), plan.minorUnits());
+            Completion completion = completions.get(plan.transferUid());
+            if (completion != null) {
+                listener.onCompleted(plan.transferUid(), completion.success(), completion.atMillis());
+            }
+        });
+        journal.flusher.start();
+        return journal;
+    }
+
+    /**
+     * Records that a transfer is about to be sent
+     *
+     * @return Completes once the record is durable
+     */
+    public CompletableFuture<Void> appendPlanned(TransferKey key, UUID transferUid, long minorUnits) {
+        return append(PLANNED, planned(key, transferUid, minorUnits));
+    }
+
+    /**
+     * Records that Starling has confirmed a transfer
+     *
+     * @param atMillis When it was confirmed, so it can be dropped once it is too old to matter
+     * @return Completes once the record is durable
+     */
+    public CompletableFuture<Void> appendCompleted(UUID transferUid, boolean success, long atMillis) {
+        return append(COMPLETED, completed(transferUid, success, atMillis));
+    }
+
+    /**
+     * @return Records appended since open
+     */
+    public long appends() {
+        return appends.sum();
+    }
+
+    /**
+     * @return Times the journal has been forced to disk. Lower than appends when writes are being grouped
+     */
+    public long commits() {
+        return commits.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            channel.close();
+        }
+    }
+
+    private CompletableFuture<Void> append(byte type, byte[] body) {
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Journal is closed");
+            }
+            write(type, body);
+            waiting.add(durable);
+            appends.increment();
+            notifyAll();
+        }
+        return durable;
+    }
+
+    //Guarded by this. Durable once the dirty segments are forced
+    private void write(byte type, byte[] body) {
+        int length = OVERHEAD + body.length;
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("Record of " + length + " bytes can't fit in a segment");
+        }
+        //Always leave room for the zero length end marker
+        if (position + length + Integer.BYTES > segmentSize) {
+            try {
+                openSegment(segmentIndex + 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(type);
+        crc.update(body);
+        //Body first and length last, so a half written record always reads as the end of the segment
+        segment.put(position + Integer.BYTES, type);
+        segment.put(position + Integer.BYTES + 1, body);
+        segment.putInt(position + Integer.BYTES + 1 + body.length, (int) crc.getValue());
+        segment.putInt(position, body.length);
+        position += length;
+        if (dirty.isEmpty() || dirty.getLast() != segment) {
+            dirty.add(segment);
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<MappedByteBuffer> toForce;
+            List<CompletableFuture<Void>> toComplete;
+            synchronized (this) {
+                while (waiting.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (waiting.isEmpty()) {
+                    return;
+                }
+                //Take everything written so far. Anything appended while we force goes in the next group
+                toForce = dirty;
+                toComplete = waiting;
+                dirty = new ArrayList<>();
+                waiting = new ArrayList<>();
+            }
+            try {
+                toForce.forEach(MappedByteBuffer::force);
+                commits.increment();
+                toComplete.forEach(future -> future.complete(null));
+            } catch (RuntimeException e) {
+                toComplete.forEach(future -> future.completeExceptionally(e));
+            }
+        }
+    }
+
+    //Guarded by this
+    private void openSegment(int index) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        Path file = directory.resolve(String.format("journal-%08d.log", index));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segmentIndex = index;
+        position = 0;
+    }
+
+    private static void replay(ByteBuffer segment, Listener listener) {
+        int position = 0;
+        while (position + OVERHEAD <= segment.limit()) {
+            int bodyLength = segment.getInt(position);
+            int end = position + OVERHEAD + bodyLength;
+            if (bodyLength <= 0 || end > segment.limit()) {
+                break;
+            }
+            byte type = segment.get(position + Integer.BYTES);
+            byte[] body = new byte[bodyLength];
+            segment.get(position + Integer.BYTES + 1, body);
+            CRC32C crc = new CRC32C();
+            crc.update(type);
+            crc.update(body);
+            if ((int) crc.getValue() != segment.getInt(end - Integer.BYTES)) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.wrap(body);
+            if (type == PLANNED) {
+                UUID accountUid = getUuid(record);
+                UUID savingsGoalUid = getUuid(record);
+                long weekStart = record.getLong();
+                UUID transferUid = getUuid(record);
+                long minorUnits = record.getLong();
+                byte[] currency = new byte[record.get()];
+                record.get(currency);
+                listener.onPlanned(new TransferKey(accountUid, savingsGoalUid, weekStart, new String(currency, StandardCharsets.UTF_8)), transferUid, minorUnits);
+            } else if (type == COMPLETED) {
+                listener.onCompleted(getUuid(record), record.get() == 1, record.getLong());
+            }
+            position = end;
+        }
+    }
+
+    private static byte[] planned(TransferKey key, UUID transferUid, long minorUnits) {
+        byte[] currency = key.currency().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(16 + 16 + Long.BYTES + 16 + Long.BYTES + 1 + currency.length);
+        putUuid(body, key.accountUid());
+        putUuid(body, key.savingsGoalUid());
+        body.putLong(key.weekStartEpochMillis());
+        putUuid(body, transferUid);
+        body.putLong(minorUnits);
+        body.put((byte) currency.length).put(currency);
+        return body.array();
+    }
+
+    private static byte[] completed(UUID transferUid, boolean success, long atMillis) {
+        ByteBuffer body = ByteBuffer.allocate(16 + 1 + Long.BYTES);
+        putUuid(body, transferUid);
+        body.put((byte) (success ? 1 : 0));
+        body.putLong(atMillis);
+        return body.array();
+    }
+
+    private static int segmentIndex(Path segment) {
+        return Integer.parseInt(segment.getFileName().toString().replaceAll("\\D", ""));
+    }
+
+    private static void putUuid(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID getUuid(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+}
@@ -0,0 +1,25 @@
+package dev.onepintwig.starling.roundup.outbox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Identifies one round-up transfer: one currency, for one week, from one account into one savings goal.
+ * Running the same round-up again always lands on the same key, and so the same transferUid
+ */
+public record TransferKey(
+        UUID accountUid,
+        UUID savingsGoalUid,
+        long weekStartEpochMillis,
+        String currency
+) {
+
+    /**
+     * Starling dedupes add-money calls on the transferUid, so deriving it from the key makes resends safe
+     *
+     * @return A name based UUID for the key
+     */
+    public UUID transferUid() {
+        return UUID.nameUUIDFromBytes((accountUid + "|" + savingsGoalUid + "|" + weekStartEpochMillis + "|" + currency).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,330 @@
+package dev.onepintwig.starling.roundup.outbox;
+
+import dev.onepintwig.starling.roundup.model.CurrencyAmount;
+import dev.onepintwig.starling.roundup.model.SavingsGoalTransferResponse;
+import dev.onepintwig.starling.roundup.model.TopUpRequest;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Guarantees each round-up transfer is sent at most once per key, and eventually sent even if we crash mid-way.
+ * <p>
+ * Before a transfer goes out, it is written to the [[TransferJournal]] with its deterministic transferUid, and it
+ * is marked complete once Starling confirms it. So:
+ * - A retry of a round-up that already transferred gets the original result back, and no money moves
+ * - A retry of one that was planned but never confirmed resends the same transferUid, which Starling dedupes
+ * - After a restart, the unconfirmed transfers are recovered from the journal and resent with the customer's
+ * token the next time they round-up. We never store tokens, so they can't go out before then
+ * <p>
+ * The first plan for a key wins. A re-run that calculates a different amount (say, a late settled transaction)
+ * still resends the originally planned amount.
+ * <p>
+ * Confirmed transfers are only remembered for the retention, which just needs to cover repeats of a round-up that
+ * has just run. After that they are forgotten, here and in the journal, and a repeat plans and sends the same
+ * transferUid again, which Starling dedupes. Unconfirmed ones are kept until they are confirmed, indexed by
+ * account, so neither a round-up's resend nor the pending gauge has to look through everything ever transferred.
+ */
+public final class TransferOutbox implements AutoCloseable {
+
+    /**
+     * Sends the add-money request to Starling
+     */
+    @FunctionalInterface
+    public interface Sender {
+        Mono<SavingsGoalTransferResponse> send(String token, UUID accountUid, UUID savingsGoalUid, UUID transferUid, TopUpRequest topUpRequest);
+    }
+
+    /**
+     * As [[Sender]], but blocking until Starling has answered
+     */
+    @FunctionalInterface
+    public interface BlockingSender {
+        SavingsGoalTransferResponse send(String token, UUID accountUid, UUID savingsGoalUid, UUID transferUid, TopUpRequest topUpRequest);
+    }
+
+    //durable completes once the plan is in the journal
+    private record Planned(TransferKey key, UUID transferUid, CurrencyAmount amount, CompletableFuture<Void> durable) {
+    }
+
+    private record Completed(Planned plan, boolean success, long atMillis) {
+    }
+
+    private final TransferJournal journal;
+    private final Sender sender;
+    private final long retentionMillis;
+    private final LongSupplier clock;
+    //Unconfirmed plans, and confirmed ones still within the retention
+    private final ConcurrentHashMap<TransferKey, Planned> planned = new ConcurrentHashMap<>();
+    //Only successful transfers are recorded as complete. Anything else stays pending and gets resent
+    private final ConcurrentHashMap<UUID, Completed> completed = new ConcurrentHashMap<>();
+    //accountUid -> its unconfirmed plans
+    private final ConcurrentHashMap<UUID, Set<Planned>> unconfirmed = new ConcurrentHashMap<>();
+    //Confirmations, oldest first, so they can be forgotten once past the retention
+    private final ConcurrentLinkedQueue<Completed> confirmations = new ConcurrentLinkedQueue<>();
+
+    private TransferOutbox(Path directory, int segmentSize, Duration retention, Sender sender, LongSupplier clock) throws IOException {
+        this.sender = sender;
+        this.retentionMillis = retention.toMillis();
+        this.clock = clock;
+        //Only for matching confirmations to their plans during the replay
+        Map<UUID, Planned> recovered = new HashMap<>();
+        this.journal = TransferJournal.open(directory, segmentSize, clock.getAsLong() - retentionMillis, new TransferJournal.Listener() {
+            @Override
+            public void onPlanned(TransferKey key, UUID transferUid, long minorUnits) {
+                Planned plan = new Planned(key, transferUid, new CurrencyAmount(key.currency(), minorUnits), CompletableFuture.completedFuture(null));
+                planned.put(key, plan);
+                recovered.put(transferUid, plan);
+                addUnconfirmed(plan);
+            }
+
+            @Override
+            public void onCompleted(UUID transferUid, boolean success, long completedAtMillis) {
+                confirmed(recovered.get(transferUid), success, completedAtMillis);
+            }
+        });
+    }
+
+    /**
+     * Opens the outbox, compacting its journal and recovering everything left in it
+     *
+     * @param directory   Where the journal lives
+     * @param segmentSize The size of each journal segment file
+     * @param retention   How long confirmed transfers are remembered, to answer repeats without going to Starling
+     * @param sender      Sends the transfers to Starling
+     */
+    public static TransferOutbox open(Path directory, int segmentSize, Duration retention, Sender sender) throws IOException {
+        return open(directory, segmentSize, retention, sender, System::currentTimeMillis);
+    }
+
+    static TransferOutbox open(Path directory, int segmentSize, Duration retention, Sender sender, LongSupplier clock) throws IOException {
+        return new TransferOutbox(directory, segmentSize, retention, sender, clock);
+    }
+
+    /**
+     * Transfers a round-up into a savings goal, at most once for the account, goal, week and currency
+     *
+     * @param token          The bearer token for the request
+     * @param accountUid     The account the round-up is for
+     * @param savingsGoalUid The savings goal to add the round-up to
+     * @param weekStart      The start of the round-up week
+     * @param roundUp        The amount to transfer
+     * @return The transfer result. The original result if this transfer has already been made
+     */
+    public Mono<SavingsGoalTransferResponse> transfer(String token, UUID accountUid, UUID savingsGoalUid, Date weekStart, CurrencyAmount roundUp) {
+        //A new plan is never complete, so it always goes on to be sent
+        return Mono.defer(() -> resend(token, plan(new TransferKey(accountUid, savingsGoalUid, weekStart.getTime(), roundUp.currency()), roundUp)));
+    }
+
+    /**
+     * As [[transfer]], but blocking, with the add-money request made by a blocking sender on the calling thread. For the
+     * virtual thread engine. Plans go in the same journal as [[transfer]]'s, so the engines can't double-save between them
+     *
+     * @param token          The bearer token for the request
+     * @param accountUid     The account the round-up is for
+     * @param savingsGoalUid The savings goal to add the round-up to
+     * @param weekStart      The start of the round-up week
+     * @param roundUp        The amount to transfer
+     * @param sender         Sends the transfer to Starling, blocking until it answers
+     * @return The transfer result. The original result if this transfer has already been made
+     */
+    public SavingsGoalTransferResponse transferBlocking(String token, UUID accountUid, UUID savingsGoalUid, Date weekStart, CurrencyAmount roundUp,
+                                                        BlockingSender sender) {
+        Planned plan = plan(new TransferKey(accountUid, savingsGoalUid, weekStart.getTime(), roundUp.currency()), roundUp);
+        Completed done = completed.get(plan.transferUid());
+        return done != null
+                ? new SavingsGoalTransferResponse(plan.transferUid(), done.success())
+                : sendBlocking(token, plan, sender);
+    }
+
+    /**
+     * Resends every unconfirmed transfer for an account. Used to finish off transfers from before a restart
+     *
+     * @param token      A bearer token for the account
+     * @param accountUid The account to resend for
+     * @return The results of the resent transfers
+     */
+    public Flux<SavingsGoalTransferResponse> resendPending(String token, UUID accountUid) {
+        return Flux.defer(() -> Flux.fromStream(pendingFor(accountUid)))
+                .concatMap(plan -> send(token, plan));
+    }
+
+    /**
+     * As [[resendPending]], but blocking, one transfer at a time on the calling thread
+     *
+     * @param token      A bearer token for the account
+     * @param accountUid The account to resend for
+     * @param sender     Sends the transfers to Starling, blocking until it answers
+     * @return The results of the resent transfers
+     */
+    public List<SavingsGoalTransferResponse> resendPendingBlocking(String token, UUID accountUid, BlockingSender sender) {
+        List<SavingsGoalTransferResponse> responses = new ArrayList<>();
+        for (Planned plan : pendingFor(accountUid).toList()) {
+            responses.add(sendBlocking(token, plan, sender));
+        }
+        return responses;
+    }
+
+    /**
+     * @return How many planned transfers haven't been confirmed yet
+     */
+    public long pending() {
+        return unconfirmed.values().stream().mapToLong(Set::size).sum();
+    }
+
+    /**
+     * @return How many confirmed transfers are still remembered
+     */
+    public long retained() {
+        return completed.size();
+    }
+
+    public TransferJournal journal() {
+        return journal;
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    //The existing plan for the key, or a new one, which is appended to the journal
+    private Planned plan(TransferKey key, CurrencyAmount roundUp) {
+        expire();
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        Planned plan = new Planned(key, key.transferUid(), roundUp, durable);
+        Planned existing = planned.putIfAbsent(key, plan);
+        if (existing != null) {
+            return existing;
+        }
+        addUnconfirmed(plan);
+        CompletableFuture<Void> appended;
+        try {
+            appended = journal.appendPlanned(key, plan.transferUid(), roundUp.minorUnits());
+        } catch (RuntimeException e) {
+            //Closed, or a new segment couldn't be opened. Don't leave the plan behind for others to wait on forever
+            forget(plan);
+            durable.completeExceptionally(e);
+            return plan;
+        }
+        appended.whenComplete((_, error) -> {
+            if (error != null) {
+                //Never made it to disk, so forget it and let the next attempt plan again
+                forget(plan);
+                durable.completeExceptionally(error);
+            } else {
+                durable.complete(null);
+            }
+        });
+        return plan;
+    }
+
+    private Stream<Planned> pendingFor(UUID accountUid) {
+        Set<Planned> plans = unconfirmed.get(accountUid);
+        return plans == null ? Stream.empty() : List.copyOf(plans).stream();
+    }
+
+    //Inside compute, so a plan can't be added to a set just as it is dropped for being empty
+    private void addUnconfirmed(Planned plan) {
+        unconfirmed.compute(plan.key().accountUid(), (_, plans) -> {
+            Set<Planned> added = plans != null ? plans : ConcurrentHashMap.newKeySet();
+            added.add(plan);
+            return added;
+        });
+    }
+
+    private void removeUnconfirmed(Planned plan) {
+        unconfirmed.computeIfPresent(plan.key().accountUid(), (_, plans) -> plans.remove(plan) && plans.isEmpty() ? null : plans);
+    }
+
+    private void forget(Planned plan) {
+        planned.remove(plan.key(), plan);
+        removeUnconfirmed(plan);
+    }
+
+    private void confirmed(Planned plan, boolean success, long atMillis) {
+        if (plan == null) {
+            return;
+        }
+        Completed done = new Completed(plan, success, atMillis);
+        completed.put(plan.transferUid(), done);
+        confirmations.add(done);
+        removeUnconfirmed(plan);
+    }
+
+    //Forgets confirmations older than the retention. Only ever looks past the oldest when it has expired
+    private void expire() {
+        long cutoff = clock.getAsLong() - retentionMillis;
+        Completed oldest;
+        while ((oldest = confirmations.peek()) != null && oldest.atMillis() < cutoff) {
+            if (confirmations.remove(oldest) && completed.remove(oldest.plan().transferUid(), oldest)) {
+                planned.remove(oldest.plan().key(), oldest.plan());
+            }
+        }
+    }
+
+    private Mono<SavingsGoalTransferResponse> resend(String token, Planned plan) {
+        Completed done = completed.get(plan.transferUid());
+        return done != null
+                ? Mono.just(new SavingsGoalTransferResponse(plan.transferUid(), done.success()))
+                : send(token, plan);
+    }
+
+    private Mono<SavingsGoalTransferResponse> send(String token, Planned plan) {
+        //Write-ahead: nothing goes to Starling until the plan is on disk
+        return Mono.fromFuture(plan.durable(), true)
+                .then(Mono.defer(() -> sender.send(token, plan.key().accountUid(), plan.key().savingsGoalUid(), plan.transferUid(), new TopUpRequest(plan.amount()))))
+                .flatMap(response -> {
+                    if (!Boolean.TRUE.equals(response.success())) {
+                        return Mono.just(response);
+                    }
+                    long now = clock.getAsLong();
+                    return Mono.fromFuture(() -> journal.appendCompleted(plan.transferUid(), true, now))
+                            .doOnSuccess(_ -> confirmed(plan, true, now))
+                            .thenReturn(response);
+                });
+    }
+
+    //Waits on the journal on the calling thread, so the send never runs on the journal's commit thread
+    private SavingsGoalTransferResponse sendBlocking(String token, Planned plan, BlockingSender sender) {
+        //Write-ahead: nothing goes to Starling until the plan is on disk
+        await(plan.durable());
+        SavingsGoalTransferResponse response = sender.send(token, plan.key().accountUid(), plan.key().savingsGoalUid(), plan.transferUid(), new TopUpRequest(plan.amount()));
+        if (Boolean.TRUE.equals(response.success())) {
+            long now = clock.getAsLong();
+            await(journal.appendCompleted(plan.transferUid(), true, now));
+            confirmed(plan, true, now);
+        }
+        return response;
+    }
+
+    //Throws what the journal failed with, rather than join's wrapper
+    private static void await(CompletableFuture<?> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            throw switch (e.getCause()) {
+                case RuntimeException runtime -> runtime;
+                case IOException io -> new UncheckedIOException(io);
+                default -> e;
+            };
+        }
+    }
+}
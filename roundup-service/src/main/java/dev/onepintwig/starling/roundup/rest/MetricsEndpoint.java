@@ -0,0 +1,17 @@
+package dev.onepintwig.starling.roundup.rest;
+
+import dev.onepintwig.starling.roundup.metrics.Metrics;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+
+@Path("/metrics")
+public class MetricsEndpoint {
+
+    //The content type Prometheus expects for the text format
+    @GET
+    @Produces("text/plain; version=0.0.4; charset=utf-8")
+    public String metrics() {
+        return Metrics.scrape();
+    }
+}
@@ -1,17 +1,31 @@
 package dev.onepintwig.starling.roundup.rest;
 
+import dev.onepintwig.starling.roundup.model.RoundUpBackfillRequest;
+import dev.onepintwig.starling.roundup.model.RoundUpBackfillResponse;
+import dev.onepintwig.starling.roundup.model.RoundUpBatchRequest;
+import dev.onepintwig.starling.roundup.model.RoundUpBatchResponse;
 import dev.onepintwig.starling.roundup.model.RoundUpWeekRequest;
 import dev.onepintwig.starling.roundup.model.RoundUpResponse;
+import dev.onepintwig.starling.roundup.service.RoundUpBatchService;
 import dev.onepintwig.starling.roundup.service.RoundUpService;
+import dev.onepintwig.starling.roundup.service.RoundUpWeeks;
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
 
+import java.util.Date;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 
 @Path("/round-up")
 public class RoundUpEndpoint {
 
+    //Keeps one request from tying up the upstream for too long. Longer histories can be backfilled in a few goes
+    private static final int maxBackfillWeeks = Integer.getInteger("roundup.backfill.max-weeks", 104);
+
     @PUT
     @Path("/account/{accountUid}/savings-goal/{savingsGoalUid}")
     @Consumes(MediaType.APPLICATION_JSON)
@@ -20,13 +34,124 @@ public class RoundUpEndpoint {
             @HeaderParam("Authorization") String token,
             @PathParam("accountUid") final UUID accountUid,
             @PathParam("savingsGoalUid") final UUID savingsGoalUid,
+            //REACTOR or VIRTUAL_THREADS, for comparing them side by side. Otherwise roundup.engine decides
+            @QueryParam("engine") final RoundUpService.Engine engine,
             final RoundUpWeekRequest roundUpWeekRequest
     ) {
-        //TODO: Input validation
+        validate(roundUpWeekRequest);
         //TODO: Check authorization token
         //TODO: Error model and response codes for Mono on error. Currently just 500's with the error message as a string.
 
         //Ok, now something that I actually have done! Actually execute the service logic
-        return RoundUpService.doRoundUp(token, accountUid, savingsGoalUid, roundUpWeekRequest.roundUpWeekStartTimestamp()).toFuture();
+        return RoundUpService.doRoundUp(token, accountUid, savingsGoalUid, roundUpWeekRequest.roundUpWeekStartTimestamp(),
+                engine != null ? engine : RoundUpService.defaultEngine()).toFuture();
+    }
+
+    //The same round-up, but each transfer is sent back as soon as it completes, one line of json each
+    @PUT
+    @Path("/account/{accountUid}/savings-goal/{savingsGoalUid}/stream")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(Streams.NDJSON)
+    public StreamingOutput stream(
+            @HeaderParam("Authorization") String token,
+            @PathParam("accountUid") final UUID accountUid,
+            @PathParam("savingsGoalUid") final UUID savingsGoalUid,
+            final RoundUpWeekRequest roundUpWeekRequest
+    ) {
+        validate(roundUpWeekRequest);
+        return Streams.ndjson(RoundUpService.doRoundUpStream(token, accountUid, savingsGoalUid, roundUpWeekRequest.roundUpWeekStartTimestamp()));
+    }
+
+    //Or as server-sent events, one transfer event each, for callers that ask for text/event-stream
+    @PUT
+    @Path("/account/{accountUid}/savings-goal/{savingsGoalUid}/stream")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void streamEvents(
+            @HeaderParam("Authorization") String token,
+            @PathParam("accountUid") final UUID accountUid,
+            @PathParam("savingsGoalUid") final UUID savingsGoalUid,
+            final RoundUpWeekRequest roundUpWeekRequest,
+            @Context SseEventSink sink,
+            @Context Sse sse
+    ) {
+        validate(roundUpWeekRequest);
+        Streams.sse(RoundUpService.doRoundUpStream(token, accountUid, savingsGoalUid, roundUpWeekRequest.roundUpWeekStartTimestamp()), "transfer", sink, sse);
+    }
+
+    @PUT
+    @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public CompletableFuture<RoundUpBatchResponse> batch(
+            @HeaderParam("Authorization") String token,
+            final RoundUpBatchRequest roundUpBatchRequest
+    ) {
+        if (roundUpBatchRequest == null || roundUpBatchRequest.roundUps() == null) {
+            throw new BadRequestException("roundUps must be provided");
+        }
+        //Items can carry their own token, for the nightly job running on behalf of lots of customers
+        return RoundUpBatchService.doRoundUpBatch(token, roundUpBatchRequest.roundUps()).toFuture();
+    }
+
+    @PUT
+    @Path("/account/{accountUid}/savings-goal/{savingsGoalUid}/backfill")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public CompletableFuture<RoundUpBackfillResponse> backfill(
+            @HeaderParam("Authorization") String token,
+            @PathParam("accountUid") final UUID accountUid,
+            @PathParam("savingsGoalUid") final UUID savingsGoalUid,
+            final RoundUpBackfillRequest roundUpBackfillRequest
+    ) {
+        validate(roundUpBackfillRequest);
+        return RoundUpService.doRoundUpBackfill(token, accountUid, savingsGoalUid, roundUpBackfillRequest.fromTimestamp(), roundUpBackfillRequest.toTimestamp())
+                .collectList()
+                .map(RoundUpBackfillResponse::new)
+                .toFuture();
+    }
+
+    //Each week as soon as it's done, so a long backfill shows progress and isn't held in memory
+    @PUT
+    @Path("/account/{accountUid}/savings-goal/{savingsGoalUid}/backfill/stream")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(Streams.NDJSON)
+    public StreamingOutput backfillStream(
+            @HeaderParam("Authorization") String token,
+            @PathParam("accountUid") final UUID accountUid,
+            @PathParam("savingsGoalUid") final UUID savingsGoalUid,
+            final RoundUpBackfillRequest roundUpBackfillRequest
+    ) {
+        validate(roundUpBackfillRequest);
+        return Streams.ndjson(RoundUpService.doRoundUpBackfill(token, accountUid, savingsGoalUid, roundUpBackfillRequest.fromTimestamp(), roundUpBackfillRequest.toTimestamp()));
+    }
+
+    private static void validate(RoundUpWeekRequest roundUpWeekRequest) {
+        if (roundUpWeekRequest == null || roundUpWeekRequest.roundUpWeekStartTimestamp() == null) {
+            throw new BadRequestException("roundUpWeekStartTimestamp must be provided");
+        }
+        //Rather than quietly rounding-up the week it falls in, which would take in days before the one asked for
+        if (!RoundUpWeeks.isWeekStart(roundUpWeekRequest.roundUpWeekStartTimestamp())) {
+            throw new BadRequestException("roundUpWeekStartTimestamp must be a Monday midnight UTC");
+        }
+        //A week still going would have its amount so far saved for good, and the rest of it never
+        if (!RoundUpWeeks.hasEnded(roundUpWeekRequest.roundUpWeekStartTimestamp())) {
+            throw new BadRequestException("The week starting at roundUpWeekStartTimestamp hasn't ended yet");
+        }
+    }
+
+    private static void validate(RoundUpBackfillRequest roundUpBackfillRequest) {
+        if (roundUpBackfillRequest == null || roundUpBackfillRequest.fromTimestamp() == null || roundUpBackfillRequest.toTimestamp() == null) {
+            throw new BadRequestException("fromTimestamp and toTimestamp must be provided");
+        }
+        //Counted the way the backfill runs them: whole Monday to Monday weeks, that have ended
+        Date to = new Date(Math.min(roundUpBackfillRequest.toTimestamp().getTime(), System.currentTimeMillis()));
+        long weeks = RoundUpWeeks.wholeWeeksBetween(roundUpBackfillRequest.fromTimestamp(), to);
+        if (weeks < 1) {
+            throw new BadRequestException("A backfill must cover at least one whole week that has ended, Monday to Monday UTC");
+        }
+        if (weeks > maxBackfillWeeks) {
+            throw new BadRequestException("A backfill can cover at most " + maxBackfillWeeks + " weeks");
+        }
     }
 }
@@ -0,0 +1,51 @@
+package dev.onepintwig.starling.roundup.rest;
+
+import dev.onepintwig.starling.roundup.model.RoundUpReportResponse;
+import dev.onepintwig.starling.roundup.service.RoundUpReportService;
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.MediaType;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+@Path("/round-up/report")
+public class RoundUpReportEndpoint {
+
+    //Keeps one report from tying up the upstream for too long, like the cap on backfills
+    private static final int maxReportDays = Integer.getInteger("roundup.report.max-days", 731);
+
+    @GET
+    @Path("/account/{accountUid}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public CompletableFuture<RoundUpReportResponse> report(
+            @HeaderParam("Authorization") String token,
+            @PathParam("accountUid") final UUID accountUid,
+            @QueryParam("from") final String from,
+            @QueryParam("to") final String to
+    ) {
+        //Whole UTC days, to match the daily index. from inclusive, to exclusive
+        LocalDate fromDay = day("from", from);
+        LocalDate toDay = day("to", to);
+        if (!toDay.isAfter(fromDay)) {
+            throw new BadRequestException("to must be after from");
+        }
+        if (ChronoUnit.DAYS.between(fromDay, toDay) > maxReportDays) {
+            throw new BadRequestException("A report can cover at most " + maxReportDays + " days");
+        }
+        return RoundUpReportService.roundUpsBetween(token, accountUid, fromDay, toDay).toFuture();
+    }
+
+    private static LocalDate day(String name, String value) {
+        if (value == null) {
+            throw new BadRequestException(name + " must be provided");
+        }
+        try {
+            return LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new BadRequestException(name + " must be an ISO date, e.g. 2024-09-14");
+        }
+    }
+}
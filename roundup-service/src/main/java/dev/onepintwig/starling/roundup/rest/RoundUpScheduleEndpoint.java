@@ -0,0 +1,36 @@
+package dev.onepintwig.starling.roundup.rest;
+
+import dev.onepintwig.starling.roundup.model.RoundUpEnrolmentResponse;
+import dev.onepintwig.starling.roundup.service.RoundUpScheduleService;
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.MediaType;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+//Weekly round-ups run by the service itself, rather than a cron calling /round-up for everyone
+@Path("/round-up/schedule")
+public class RoundUpScheduleEndpoint {
+
+    @PUT
+    @Path("/account/{accountUid}/savings-goal/{savingsGoalUid}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public CompletableFuture<RoundUpEnrolmentResponse> enrol(
+            @HeaderParam("Authorization") String token,
+            @PathParam("accountUid") final UUID accountUid,
+            @PathParam("savingsGoalUid") final UUID savingsGoalUid
+    ) {
+        return RoundUpScheduleService.enrol(token, accountUid, savingsGoalUid).toFuture();
+    }
+
+    @DELETE
+    @Path("/account/{accountUid}/savings-goal/{savingsGoalUid}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public CompletableFuture<RoundUpEnrolmentResponse> unenrol(
+            @HeaderParam("Authorization") String token,
+            @PathParam("accountUid") final UUID accountUid,
+            @PathParam("savingsGoalUid") final UUID savingsGoalUid
+    ) {
+        return RoundUpScheduleService.unenrol(token, accountUid, savingsGoalUid).toFuture();
+    }
+}
@@ -0,0 +1,124 @@
+package dev.onepintwig.starling.roundup.rest;
+
+import dev.onepintwig.starling.roundup.client.StarlingCodec;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
+import jakarta.ws.rs.sse.OutboundSseEvent;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Signal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Stream;
+
+/**
+ * Writes a [[Flux]] out to the caller as it goes, rather than collecting it into one response at the end.
+ * <p>
+ * Both ways only ask for the next element once the last one has been handed to the connection. So a slow reader slows
+ * the pipeline down, rather than everything piling up in memory here.
+ */
+final class Streams {
+
+    static final String NDJSON = "application/x-ndjson";
+
+    private Streams() {
+    }
+
+    /**
+     * One line of JSON per element, flushed straight away. If the flux fails part way, the last line is `{"error": ...}`,
+     * as the status has long gone by then
+     *
+     * @param flux The elements to write
+     * @return The body, written on the request thread
+     */
+    static StreamingOutput ndjson(Flux<?> flux) {
+        return output -> {
+            //Materialized, so an error comes after whatever was already done, instead of jumping the queue.
+            //Closing the stream cancels the flux, so a reader hanging up stops the work too
+            try (Stream<? extends Signal<?>> signals = flux.materialize().toStream(1)) {
+                Iterator<? extends Signal<?>> iterator = signals.iterator();
+                while (iterator.hasNext()) {
+                    Signal<?> signal = iterator.next();
+                    if (signal.isOnNext()) {
+                        writeLine(output, signal.get());
+                    } else if (signal.isOnError()) {
+                        writeLine(output, Map.of("error", String.valueOf(signal.getThrowable().getMessage())));
+                    }
+                }
+            }
+        };
+    }
+
+    private static void writeLine(OutputStream output, Object value) throws IOException {
+        output.write(StarlingCodec.write(value));
+        output.write('\n');
+        output.flush();
+    }
+
+    /**
+     * One event per element, with the element as JSON data. If the flux fails part way, the last event is an `error` one
+     *
+     * @param flux      The elements to send
+     * @param eventName The name of each element's event
+     * @param sink      The caller's connection. Closed once the flux is done
+     * @param sse       For building events
+     */
+    static void sse(Flux<?> flux, String eventName, SseEventSink sink, Sse sse) {
+        flux.subscribe(new BaseSubscriber<Object>() {
+            //The send in progress. Only touched from one signal at a time
+            private CompletionStage<?> sending = CompletableFuture.completedFuture(null);
+
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                request(1);
+            }
+
+            @Override
+            protected void hookOnNext(Object value) {
+                sending = sink.send(event(sse, eventName, value)).whenComplete((_, error) -> {
+                    if (error != null) {
+                        //They've gone, so stop the work
+                        cancel();
+                        sink.close();
+                    } else {
+                        request(1);
+                    }
+                });
+            }
+
+            @Override
+            protected void hookOnComplete() {
+                //Completion can come before the last one has gone out
+                sending.whenComplete((_, _) -> sink.close());
+            }
+
+            @Override
+            protected void hookOnError(Throwable error) {
+                sending.whenComplete((_, _) -> sink.send(event(sse, "error", Map.of("error", String.valueOf(error.getMessage()))))
+                        .whenComplete((_, _) -> sink.close()));
+            }
+        });
+    }
+
+    private static OutboundSseEvent event(Sse sse, String name, Object value) {
+        try {
+            //Same json as the ndjson and the rest of our api
+            return sse.newEventBuilder()
+                    .name(name)
+                    .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                    .data(StarlingCodec.writeAsString(value))
+                    .build();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
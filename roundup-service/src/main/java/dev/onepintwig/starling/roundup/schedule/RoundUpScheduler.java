@@ -0,0 +1,459 @@
+package dev.onepintwig.starling.roundup.schedule;
+
+import dev.onepintwig.starling.roundup.client.StarlingApiException;
+import dev.onepintwig.starling.roundup.model.RoundUpResponse;
+import dev.onepintwig.starling.roundup.service.RoundUpWeeks;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Runs the weekly round-up for every enrolled account and savings goal, in-process, rather than an external cron
+ * hitting the endpoint for everyone at midnight on a Monday.
+ * <p>
+ * - Each enrolment is hashed into one of [[SchedulerSettings.slots]] slots across a window after the week ends, so the
+ * round-ups are spread evenly over it. The slots are a timing wheel: each tick only looks at the slots whose time has
+ * come, not every enrolment
+ * - Due round-ups queue oldest first, and are run with at most [[SchedulerSettings.concurrency]] in flight, and at most
+ * [[SchedulerSettings.upstreamConcurrency]] against any one upstream host
+ * - Weeks are [[RoundUpWeeks]] weeks, the same ones a round-up through the endpoint is snapped to, so a scheduled and a
+ * manual round-up of the same week share their transfers rather than both saving it
+ * - Enrolments and every completed week go in the [[ScheduleJournal]]. After a restart, anything whose slot passed
+ * while we were down is run straight away, oldest week first, and nothing already done is run again. A round-up that
+ * finished just before a crash, but wasn't journaled, is run again - which the transfer outbox answers without moving any money
+ * - A round-up that keeps failing is retried at most [[SchedulerSettings.maxRetries]] times. Then (or straight away, if
+ * waiting won't help) its week is journaled as failed and the enrolment moves on, rather than sticking on that week forever
+ * - Enrolments only hold a reference to their token. The token itself lives in the [[TokenVault]]. Round-ups with no
+ * token (forgotten in a restart) are left until the customer enrols again. So are round-ups whose token Starling turned
+ * down (401 or 403, as tokens expire), and the enrolment is journaled as needing re-enrolment
+ */
+public final class RoundUpScheduler implements AutoCloseable {
+
+    /**
+     * Actually runs a round-up
+     */
+    @FunctionalInterface
+    public interface Runner {
+        Mono<RoundUpResponse> run(String token, UUID accountUid, UUID savingsGoalUid, Date roundUpWeekStartTimestamp);
+    }
+
+    private static final long WEEK_MILLIS = RoundUpWeeks.WEEK_MILLIS;
+    private static final System.Logger log = System.getLogger(RoundUpScheduler.class.getName());
+
+    private record Key(UUID accountUid, UUID savingsGoalUid) {
+    }
+
+    private static final class Enrolment {
+        private final Key key;
+        private final String tokenReference;
+        private final long firstWeek;
+        private final int slot;
+        //Only moves forward. Failed weeks that were given up on count
+        private volatile long lastCompletedWeek;
+        //Starling turned the token down. Nothing is scheduled until the customer enrols again
+        private volatile boolean needsReEnrolment;
+
+        private Enrolment(Key key, String tokenReference, long firstWeek, long lastCompletedWeek, boolean needsReEnrolment, int slot) {
+            this.key = key;
+            this.tokenReference = tokenReference;
+            this.firstWeek = firstWeek;
+            this.lastCompletedWeek = lastCompletedWeek;
+            this.needsReEnrolment = needsReEnrolment;
+            this.slot = slot;
+        }
+    }
+
+    //dueAt is when the slot came round, so how late it is can be measured. attempt counts from 0
+    private record Run(Enrolment enrolment, long week, long dueAt, int attempt) {
+        private Run retry() {
+            return new Run(enrolment, week, dueAt, attempt + 1);
+        }
+    }
+
+    private final SchedulerSettings settings;
+    private final ScheduleJournal journal;
+    private final TokenVault vault;
+    private final Runner runner;
+    private final Supplier<String> upstream;
+    private final LongSupplier clock;
+    private final long slotMillis;
+
+    private final ConcurrentHashMap<Key, Enrolment> enrolments = new ConcurrentHashMap<>();
+    //The timing wheel. Each slot holds the enrolments hashed into it
+    private final List<Set<Key>> wheel;
+    private final PriorityBlockingQueue<Run> queue = new PriorityBlockingQueue<>(64, Comparator.comparingLong(Run::dueAt));
+    //Queued, running or waiting to retry. Never more than one run per enrolment at once
+    private final Set<Key> scheduled = ConcurrentHashMap.newKeySet();
+    private final Semaphore permits;
+    private final ConcurrentHashMap<String, Semaphore> upstreamPermits = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    //Ticks, retries and everything after a round-up finishes, so journal writes never land on a netty thread
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("roundup-scheduler-timer").daemon().factory());
+    private final Thread dispatcher = Thread.ofPlatform().name("roundup-scheduler-dispatcher").daemon().unstarted(this::dispatch);
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean closed;
+
+    //Where the wheel has got to. Guarded by this
+    private long cycleStart;
+    private int nextSlot = -1;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder failedWeeks = new LongAdder();
+    private final LongAdder missingTokens = new LongAdder();
+
+    private RoundUpScheduler(SchedulerSettings settings, TokenVault vault, Runner runner, Supplier<String> upstream, LongSupplier clock) throws IOException {
+        this.settings = settings;
+        this.vault = vault;
+        this.runner = runner;
+        this.upstream = upstream;
+        this.clock = clock;
+        this.slotMillis = settings.window().toMillis() / settings.slots();
+        this.permits = new Semaphore(settings.concurrency());
+        this.wheel = new ArrayList<>(settings.slots());
+        for (int i = 0; i < settings.slots(); i++) {
+            wheel.add(ConcurrentHashMap.newKeySet());
+        }
+        this.journal = ScheduleJournal.open(settings.directory(), (accountUid, savingsGoalUid, tokenReference, firstWeek, lastCompletedWeek, needsReEnrolment) ->
+                add(new Key(accountUid, savingsGoalUid), tokenReference, firstWeek, lastCompletedWeek, needsReEnrolment));
+    }
+
+    /**
+     * Opens the scheduler, recovering its enrolments and progress. Nothing runs until it is started
+     *
+     * @param settings How to spread and pace the round-ups
+     * @param vault    Where the tokens are
+     * @param runner   Runs each round-up
+     * @param upstream The upstream host round-ups are currently going to, for the per-upstream cap
+     */
+    public static RoundUpScheduler open(SchedulerSettings settings, TokenVault vault, Runner runner, Supplier<String> upstream) throws IOException {
+        return open(settings, vault, runner, upstream, System::currentTimeMillis);
+    }
+
+    static RoundUpScheduler open(SchedulerSettings settings, TokenVault vault, Runner runner, Supplier<String> upstream, LongSupplier clock) throws IOException {
+        return new RoundUpScheduler(settings, vault, runner, upstream, clock);
+    }
+
+    /**
+     * Starts ticking. Anything that came due while we were down is queued on the first tick. Only the first call does
+     * anything, so a second deployment of the application in the same jvm doesn't turn the wheel twice
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        dispatcher.start();
+        timer.scheduleWithFixedDelay(this::tick, 0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Enrols an account and savings goal for a weekly round-up, from the week in progress. Enrolling again just swaps
+     * in the new token, and runs anything that was waiting on it (including after Starling turned the old one down)
+     *
+     * @param token          The bearer token to run the round-ups with. Must already be known to see the account
+     * @param accountUid     The account to round-up
+     * @param savingsGoalUid The savings goal to add the round-ups to
+     * @return When the next round-up for the enrolment is due
+     */
+    public synchronized Date enrol(String token, UUID accountUid, UUID savingsGoalUid) throws IOException {
+        Key key = new Key(accountUid, savingsGoalUid);
+        Enrolment enrolment = enrolments.get(key);
+        if (enrolment != null) {
+            vault.put(enrolment.tokenReference, token);
+            if (enrolment.needsReEnrolment) {
+                //Enrolling again clears it in the journal too
+                journal.appendEnrolled(accountUid, savingsGoalUid, enrolment.tokenReference, enrolment.firstWeek);
+                enrolment.needsReEnrolment = false;
+            }
+        } else {
+            String tokenReference = UUID.randomUUID().toString();
+            long firstWeek = RoundUpWeeks.weekStart(clock.getAsLong());
+            vault.put(tokenReference, token);
+            journal.appendEnrolled(accountUid, savingsGoalUid, tokenReference, firstWeek);
+            enrolment = add(key, tokenReference, firstWeek, firstWeek - WEEK_MILLIS, false);
+        }
+        schedule(enrolment, clock.getAsLong());
+        return new Date(slotTime(enrolment, enrolment.lastCompletedWeek + WEEK_MILLIS));
+    }
+
+    /**
+     * Stops the weekly round-ups for an account and savings goal, and forgets its token. A round-up already running finishes
+     *
+     * @return Whether it was enrolled
+     */
+    public synchronized boolean unenrol(UUID accountUid, UUID savingsGoalUid) throws IOException {
+        Key key = new Key(accountUid, savingsGoalUid);
+        Enrolment enrolment = enrolments.remove(key);
+        if (enrolment == null) {
+            return false;
+        }
+        wheel.get(enrolment.slot).remove(key);
+        journal.appendUnenrolled(accountUid, savingsGoalUid);
+        vault.remove(enrolment.tokenReference);
+        return true;
+    }
+
+    public int enrolments() {
+        return enrolments.size();
+    }
+
+    /**
+     * @return Round-ups that are due and waiting to start
+     */
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return How long the oldest round-up still waiting to start has been due, in millis. 0 if none are waiting
+     */
+    public long lagMillis() {
+        Run oldest = queue.peek();
+        return oldest == null ? 0 : Math.max(0, clock.getAsLong() - oldest.dueAt());
+    }
+
+    public long completed() {
+        return completed.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return Weeks given up on, after running out of retries or with a failure waiting wouldn't fix
+     */
+    public long failedWeeks() {
+        return failedWeeks.sum();
+    }
+
+    /**
+     * @return Enrolments whose token Starling turned down, waiting for the customer to enrol again
+     */
+    public long needsReEnrolment() {
+        return enrolments.values().stream().filter(enrolment -> enrolment.needsReEnrolment).count();
+    }
+
+    /**
+     * @return Whether the enrolments' tokens survive a restart. Without, every enrolment recovered on open waits for the
+     * customer to enrol again
+     */
+    public boolean tokensPersistent() {
+        return vault.persistent();
+    }
+
+    /**
+     * @return Round-ups that couldn't run for want of a token, and are waiting for the customer to enrol again
+     */
+    public long missingTokens() {
+        return missingTokens.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        timer.shutdownNow();
+        dispatcher.interrupt();
+        journal.close();
+    }
+
+    /**
+     * Turns the wheel to now, queueing the round-ups in every slot that has come round since the last tick
+     */
+    synchronized void tick() {
+        long now = clock.getAsLong();
+        //The first tick, or asleep for more than a whole week: look at everyone, then pick the wheel up from now
+        if (nextSlot < 0 || now - (cycleStart + (long) nextSlot * slotMillis) >= WEEK_MILLIS) {
+            enrolments.values().forEach(enrolment -> schedule(enrolment, now));
+            cycleStart = RoundUpWeeks.weekStart(now - settings.windowStart().toMillis()) + settings.windowStart().toMillis();
+            long sinceCycleStart = now - cycleStart;
+            nextSlot = (int) Math.min(sinceCycleStart / slotMillis + 1, settings.slots());
+        }
+        while (true) {
+            if (nextSlot == settings.slots()) {
+                nextSlot = 0;
+                cycleStart += WEEK_MILLIS;
+            }
+            if (cycleStart + (long) nextSlot * slotMillis > now) {
+                return;
+            }
+            for (Key key : wheel.get(nextSlot)) {
+                Enrolment enrolment = enrolments.get(key);
+                if (enrolment != null) {
+                    schedule(enrolment, now);
+                }
+            }
+            nextSlot++;
+        }
+    }
+
+    private Enrolment add(Key key, String tokenReference, long firstWeek, long lastCompletedWeek, boolean needsReEnrolment) {
+        Enrolment enrolment = new Enrolment(key, tokenReference, firstWeek, lastCompletedWeek, needsReEnrolment, slot(key, settings.slots()));
+        enrolments.put(key, enrolment);
+        wheel.get(enrolment.slot).add(key);
+        return enrolment;
+    }
+
+    //When the round-up for the week starting then is due: once the week is over, at the enrolment's slot in the window
+    private long slotTime(Enrolment enrolment, long week) {
+        return week + WEEK_MILLIS + settings.windowStart().toMillis() + enrolment.slot * slotMillis;
+    }
+
+    //Queues the oldest week not yet rounded-up, if its slot has come round and it isn't queued already
+    private void schedule(Enrolment enrolment, long now) {
+        if (enrolment.needsReEnrolment) {
+            return;
+        }
+        long week = enrolment.lastCompletedWeek + WEEK_MILLIS;
+        long dueAt = slotTime(enrolment, week);
+        if (dueAt <= now && scheduled.add(enrolment.key)) {
+            queue.add(new Run(enrolment, week, dueAt, 0));
+        }
+    }
+
+    private void dispatch() {
+        while (!closed) {
+            Run run;
+            Semaphore upstreamPermit;
+            try {
+                //A permit first, so the queue only holds round-ups that are actually waiting
+                permits.acquire();
+                run = queue.take();
+                upstreamPermit = upstreamPermits.computeIfAbsent(upstream.get(), _ -> new Semaphore(settings.upstreamConcurrency()));
+                upstreamPermit.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Enrolment enrolment = run.enrolment();
+            String token = enrolments.get(enrolment.key) == enrolment ? vault.get(enrolment.tokenReference) : null;
+            if (token == null) {
+                //Unenrolled since it was queued, or the token went in a restart
+                if (enrolments.get(enrolment.key) == enrolment) {
+                    missingTokens.increment();
+                }
+                scheduled.remove(enrolment.key);
+                upstreamPermit.release();
+                permits.release();
+                continue;
+            }
+            inFlight.incrementAndGet();
+            Mono.defer(() -> runner.run(token, enrolment.key.accountUid(), enrolment.key.savingsGoalUid(), new Date(run.week())))
+                    .toFuture()
+                    .whenCompleteAsync((_, error) -> {
+                        inFlight.decrementAndGet();
+                        upstreamPermit.release();
+                        permits.release();
+                        if (error == null) {
+                            onCompleted(run);
+                        } else {
+                            onFailed(run, token, error);
+                        }
+                    }, timer);
+        }
+    }
+
+    private void onCompleted(Run run) {
+        Enrolment enrolment = run.enrolment();
+        try {
+            journal.appendCompleted(enrolment.key.accountUid(), enrolment.key.savingsGoalUid(), run.week());
+        } catch (IOException e) {
+            //Still done. A restart before the next week is journaled just runs this one again
+            log.log(System.Logger.Level.WARNING, "Could not journal a completed round-up", e);
+        }
+        enrolment.lastCompletedWeek = run.week();
+        completed.increment();
+        scheduled.remove(enrolment.key);
+        //Catching up after some downtime, there may be another week already due
+        schedule(enrolment, clock.getAsLong());
+    }
+
+    private void onFailed(Run run, String token, Throwable error) {
+        failed.increment();
+        Enrolment enrolment = run.enrolment();
+        Throwable cause = error instanceof java.util.concurrent.CompletionException ? error.getCause() : error;
+        if (closed) {
+            scheduled.remove(enrolment.key);
+            return;
+        }
+        if (cause instanceof StarlingApiException apiException && (apiException.status() == 401 || apiException.status() == 403)) {
+            //The token expired or was revoked. The week isn't given up on: it runs once the customer enrols again
+            onTokenRejected(enrolment, token);
+            return;
+        }
+        //Not found (the token can't see the account any more) and bad requests won't get better by waiting
+        boolean retryable = cause instanceof StarlingApiException apiException ? apiException.retryable() : !(cause instanceof IllegalArgumentException);
+        if (retryable && run.attempt() < settings.maxRetries()) {
+            timer.schedule(() -> queue.add(run.retry()), settings.retryBackoff().toMillis(), TimeUnit.MILLISECONDS);
+            return;
+        }
+        log.log(System.Logger.Level.WARNING, "Giving up on the round-up for the week starting " + Instant.ofEpochMilli(run.week())
+                + " after " + (run.attempt() + 1) + " attempts", cause);
+        try {
+            journal.appendFailed(enrolment.key.accountUid(), enrolment.key.savingsGoalUid(), run.week());
+        } catch (IOException e) {
+            //Still given up on. A restart before the next week is journaled just tries this one again
+            log.log(System.Logger.Level.WARNING, "Could not journal a failed round-up", e);
+        }
+        enrolment.lastCompletedWeek = run.week();
+        failedWeeks.increment();
+        scheduled.remove(enrolment.key);
+        schedule(enrolment, clock.getAsLong());
+    }
+
+    //Synchronized with enrol, so a token swapped in while the old one was being turned down isn't lost
+    private synchronized void onTokenRejected(Enrolment enrolment, String token) {
+        scheduled.remove(enrolment.key);
+        if (enrolments.get(enrolment.key) != enrolment) {
+            return;
+        }
+        if (!token.equals(vault.get(enrolment.tokenReference))) {
+            //The customer already enrolled again with a new one
+            schedule(enrolment, clock.getAsLong());
+            return;
+        }
+        enrolment.needsReEnrolment = true;
+        try {
+            journal.appendNeedsReEnrolment(enrolment.key.accountUid(), enrolment.key.savingsGoalUid());
+        } catch (IOException e) {
+            //Still waits in memory. After a restart it tries the token once more, and is turned down again
+            log.log(System.Logger.Level.WARNING, "Could not journal a round-up needing re-enrolment", e);
+        }
+    }
+
+    //Stable across restarts, so an enrolment keeps its slot
+    private static int slot(Key key, int slots) {
+        long hash = key.accountUid().getMostSignificantBits() ^ key.accountUid().getLeastSignificantBits()
+                ^ Long.rotateLeft(key.savingsGoalUid().getMostSignificantBits() ^ key.savingsGoalUid().getLeastSignificantBits(), 32);
+        //The murmur3 finalizer, so similar uids still spread out
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) Math.floorMod(hash, (long) slots);
+    }
+}
@@ -0,0 +1,177 @@
+package dev.onepintwig.starling.roundup.schedule;
+
+import dev.onepintwig.starling.roundup.service.RoundUpWeeks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Append-only log of the [[RoundUpScheduler]]'s enrolments and progress, so a restart picks up where it stopped.
+ * <p>
+ * One line per record, forced to disk before the append returns:
+ * - `E,accountUid,savingsGoalUid,tokenReference,firstWeek` - enrolled, with round-ups from the week starting firstWeek
+ * - `U,accountUid,savingsGoalUid` - unenrolled
+ * - `C,accountUid,savingsGoalUid,week` - the round-up for the week starting then is done
+ * - `F,accountUid,savingsGoalUid,week` - the round-up for the week starting then was given up on. Progress moves past it the same
+ * - `R,accountUid,savingsGoalUid` - Starling turned the token down, so nothing runs until the customer enrols again
+ * <p>
+ * Much quieter than the [[dev.onepintwig.starling.roundup.outbox.TransferJournal]] (a few lines per enrolment a week), so
+ * there is no group commit. It is compacted on open instead, down to a line or two per enrolment. A torn line at the
+ * end (crash mid-write) is dropped. At worst that redoes one round-up, which the transfer outbox makes harmless.
+ */
+final class ScheduleJournal implements AutoCloseable {
+
+    /**
+     * Callback for the state recovered on open
+     */
+    interface Listener {
+        /**
+         * @param lastCompletedWeek The start of the last week rounded-up (or given up on), or the week before firstWeek if none have been
+         * @param needsReEnrolment  Whether the token was turned down, and it is waiting for the customer to enrol again
+         */
+        void onEnrolment(UUID accountUid, UUID savingsGoalUid, String tokenReference, long firstWeek, long lastCompletedWeek, boolean needsReEnrolment);
+    }
+
+    private static final String FILE = "schedule.log";
+
+    private record Key(UUID accountUid, UUID savingsGoalUid) {
+    }
+
+    private record State(String tokenReference, long firstWeek, long lastCompletedWeek, boolean needsReEnrolment) {
+    }
+
+    //Guarded by this
+    private final FileChannel channel;
+
+    private ScheduleJournal(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the journal in a directory, compacting it and replaying what is left through the listener before returning
+     *
+     * @param directory Where the journal lives. Created if missing
+     * @param listener  Told about every enrolment still current
+     * @return The journal, ready for appends
+     */
+    static ScheduleJournal open(Path directory, Listener listener) throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve(FILE);
+        Map<Key, State> state = new LinkedHashMap<>();
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                replay(line, state);
+            }
+        }
+        //Write the compacted log alongside, then swap it in, so a crash part way leaves the old one whole
+        StringBuilder compacted = new StringBuilder();
+        state.forEach((key, enrolment) -> {
+            compacted.append(enrolled(key.accountUid(), key.savingsGoalUid(), enrolment.tokenReference(), enrolment.firstWeek()));
+            if (enrolment.lastCompletedWeek() >= enrolment.firstWeek()) {
+                compacted.append(completed(key.accountUid(), key.savingsGoalUid(), enrolment.lastCompletedWeek()));
+            }
+            if (enrolment.needsReEnrolment()) {
+                compacted.append(needsReEnrolment(key.accountUid(), key.savingsGoalUid()));
+            }
+        });
+        Path temporary = directory.resolve(FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(out, compacted.toString());
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        state.forEach((key, enrolment) ->
+                listener.onEnrolment(key.accountUid(), key.savingsGoalUid(), enrolment.tokenReference(), enrolment.firstWeek(), enrolment.lastCompletedWeek(), enrolment.needsReEnrolment()));
+        return new ScheduleJournal(FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    synchronized void appendEnrolled(UUID accountUid, UUID savingsGoalUid, String tokenReference, long firstWeek) throws IOException {
+        write(channel, enrolled(accountUid, savingsGoalUid, tokenReference, firstWeek));
+    }
+
+    synchronized void appendUnenrolled(UUID accountUid, UUID savingsGoalUid) throws IOException {
+        write(channel, "U," + accountUid + "," + savingsGoalUid + "\n");
+    }
+
+    synchronized void appendCompleted(UUID accountUid, UUID savingsGoalUid, long week) throws IOException {
+        write(channel, completed(accountUid, savingsGoalUid, week));
+    }
+
+    synchronized void appendFailed(UUID accountUid, UUID savingsGoalUid, long week) throws IOException {
+        write(channel, "F," + accountUid + "," + savingsGoalUid + "," + week + "\n");
+    }
+
+    synchronized void appendNeedsReEnrolment(UUID accountUid, UUID savingsGoalUid) throws IOException {
+        write(channel, needsReEnrolment(accountUid, savingsGoalUid));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private static String enrolled(UUID accountUid, UUID savingsGoalUid, String tokenReference, long firstWeek) {
+        return "E," + accountUid + "," + savingsGoalUid + "," + tokenReference + "," + firstWeek + "\n";
+    }
+
+    private static String completed(UUID accountUid, UUID savingsGoalUid, long week) {
+        return "C," + accountUid + "," + savingsGoalUid + "," + week + "\n";
+    }
+
+    private static String needsReEnrolment(UUID accountUid, UUID savingsGoalUid) {
+        return "R," + accountUid + "," + savingsGoalUid + "\n";
+    }
+
+    private static void write(FileChannel channel, String lines) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    private static void replay(String line, Map<Key, State> state) {
+        List<String> fields = List.of(line.split(","));
+        try {
+            Key key = new Key(UUID.fromString(fields.get(1)), UUID.fromString(fields.get(2)));
+            switch (fields.getFirst()) {
+                case "E" -> {
+                    long firstWeek = Long.parseLong(fields.get(4));
+                    //Enrolling again only swaps the token reference (and clears a turned down token). Progress carries on
+                    State existing = state.get(key);
+                    state.put(key, existing == null
+                            ? new State(fields.get(3), firstWeek, firstWeek - RoundUpWeeks.WEEK_MILLIS, false)
+                            : new State(fields.get(3), existing.firstWeek(), existing.lastCompletedWeek(), false));
+                }
+                case "U" -> state.remove(key);
+                case "C", "F" -> {
+                    State existing = state.get(key);
+                    long week = Long.parseLong(fields.get(3));
+                    if (existing != null && week > existing.lastCompletedWeek()) {
+                        state.put(key, new State(existing.tokenReference(), existing.firstWeek(), week, existing.needsReEnrolment()));
+                    }
+                }
+                case "R" -> {
+                    State existing = state.get(key);
+                    if (existing != null) {
+                        state.put(key, new State(existing.tokenReference(), existing.firstWeek(), existing.lastCompletedWeek(), true));
+                    }
+                }
+                default -> {
+                }
+            }
+        } catch (RuntimeException _) {
+            //A torn line, from a crash mid-append. Nothing after it was acknowledged
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package dev.onepintwig.starling.roundup.schedule;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * How the [[RoundUpScheduler]] spreads out and paces the weekly round-ups.
+ * <p>
+ * Defaults come from system properties (see the README).
+ *
+ * @param windowStart         How long after a week ends (Monday midnight UTC) its round-ups can start
+ * @param window              How long the round-ups are spread over from then. Each enrolment gets its own slot in it
+ * @param slots               How many slots the window is cut into. Enrolments are hashed into them
+ * @param concurrency         Most scheduled round-ups in flight at once, in total
+ * @param upstreamConcurrency Most scheduled round-ups in flight at once against any one upstream host
+ * @param maxRetries          How many times a round-up is run again after a failure the upstream might get over, before its week is given up on
+ * @param retryBackoff        How long to wait before running a round-up again after a failure the upstream might get over
+ * @param directory           Where the enrolments and progress are kept. Must survive restarts to resume
+ */
+public record SchedulerSettings(
+        Duration windowStart,
+        Duration window,
+        int slots,
+        int concurrency,
+        int upstreamConcurrency,
+        int maxRetries,
+        Duration retryBackoff,
+        Path directory
+) {
+
+    public SchedulerSettings {
+        if (slots <= 0 || window.toMillis() < slots) {
+            throw new IllegalArgumentException("Need at least one slot, and at least a millisecond per slot: " + slots + " in " + window);
+        }
+        //Otherwise one week's round-ups could still be going when the next week's start
+        if (windowStart.isNegative() || windowStart.plus(window).compareTo(Duration.ofDays(7)) > 0) {
+            throw new IllegalArgumentException("The window has to fit in a week: " + windowStart + " + " + window);
+        }
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Max retries can't be negative: " + maxRetries);
+        }
+    }
+
+    /**
+     * @return The settings from system properties, falling back to the defaults
+     */
+    public static SchedulerSettings fromSystemProperties() {
+        return new SchedulerSettings(
+                Duration.parse(System.getProperty("roundup.scheduler.window-start", "PT1H")),
+                Duration.parse(System.getProperty("roundup.scheduler.window", "PT12H")),
+                Integer.getInteger("roundup.scheduler.slots", 720),
+                Integer.getInteger("roundup.scheduler.concurrency", 32),
+                Integer.getInteger("roundup.scheduler.upstream-concurrency", 16),
+                Integer.getInteger("roundup.scheduler.max-retries", 5),
+                Duration.parse(System.getProperty("roundup.scheduler.retry-backoff", "PT5M")),
+                Path.of(System.getProperty("roundup.scheduler.dir",
+                        System.getProperty("jboss.server.data.dir", System.getProperty("java.io.tmpdir")) + "/roundup-scheduler"))
+        );
+    }
+
+    public SchedulerSettings withWindow(Duration windowStart, Duration window, int slots) {
+        return new SchedulerSettings(windowStart, window, slots, concurrency, upstreamConcurrency, maxRetries, retryBackoff, directory);
+    }
+
+    public SchedulerSettings withConcurrency(int concurrency, int upstreamConcurrency) {
+        return new SchedulerSettings(windowStart, window, slots, concurrency, upstreamConcurrency, maxRetries, retryBackoff, directory);
+    }
+
+    public SchedulerSettings withRetries(int maxRetries, Duration retryBackoff) {
+        return new SchedulerSettings(windowStart, window, slots, concurrency, upstreamConcurrency, maxRetries, retryBackoff, directory);
+    }
+
+    public SchedulerSettings withDirectory(Path directory) {
+        return new SchedulerSettings(windowStart, window, slots, concurrency, upstreamConcurrency, maxRetries, retryBackoff, directory);
+    }
+}
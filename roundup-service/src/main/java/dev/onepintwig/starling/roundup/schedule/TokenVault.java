@@ -0,0 +1,130 @@
+package dev.onepintwig.starling.roundup.schedule;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the bearer tokens scheduled round-ups run with, so the rest of the scheduler only ever sees a reference to one.
+ * <p>
+ * Like everything else, tokens are never written down in the clear. Without a key the vault is memory only, and a
+ * restart forgets every token: each customer's scheduled round-ups then wait until they enrol again with a fresh one.
+ * With a key (AES, 16, 24 or 32 bytes), the vault is also kept in a file encrypted with AES-GCM, and survives restarts.
+ * <p>
+ * Small, and only touched on enrolment and once per scheduled round-up, so the whole file is rewritten on every change.
+ */
+public final class TokenVault {
+
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final SecureRandom random = new SecureRandom();
+
+    //Both null when memory only
+    private final Path file;
+    private final SecretKeySpec key;
+    //reference -> token. Guarded by this
+    private final Map<String, String> tokens = new HashMap<>();
+
+    private TokenVault(Path file, SecretKeySpec key) {
+        this.file = file;
+        this.key = key;
+    }
+
+    /**
+     * @return A vault that forgets everything on restart
+     */
+    public static TokenVault inMemory() {
+        return new TokenVault(null, null);
+    }
+
+    /**
+     * Opens the vault file, decrypting whatever is already in it
+     *
+     * @param file Where the encrypted tokens live. Created on the first change if missing
+     * @param key  The AES key to encrypt them with
+     * @return The vault, holding every token in the file
+     */
+    public static TokenVault open(Path file, byte[] key) throws IOException {
+        TokenVault vault = new TokenVault(file, new SecretKeySpec(key, "AES"));
+        if (Files.exists(file)) {
+            byte[] sealed = Files.readAllBytes(file);
+            String contents;
+            try {
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, vault.key, new GCMParameterSpec(TAG_BITS, sealed, 0, IV_BYTES));
+                contents = new String(cipher.doFinal(sealed, IV_BYTES, sealed.length - IV_BYTES), StandardCharsets.UTF_8);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not decrypt the token vault " + file + ". Has the key changed?", e);
+            }
+            for (String line : contents.split("\n")) {
+                int split = line.indexOf('\t');
+                if (split > 0) {
+                    vault.tokens.put(line.substring(0, split), line.substring(split + 1));
+                }
+            }
+        }
+        return vault;
+    }
+
+    /**
+     * @return Whether the tokens survive a restart
+     */
+    public boolean persistent() {
+        return file != null;
+    }
+
+    /**
+     * Stores a token, replacing whatever the reference held before
+     */
+    public synchronized void put(String reference, String token) throws IOException {
+        if (!token.equals(tokens.put(reference, token))) {
+            save();
+        }
+    }
+
+    /**
+     * @return The token for the reference, or null if there isn't one (or it was forgotten in a restart)
+     */
+    public synchronized String get(String reference) {
+        return tokens.get(reference);
+    }
+
+    public synchronized void remove(String reference) throws IOException {
+        if (tokens.remove(reference) != null) {
+            save();
+        }
+    }
+
+    //Written alongside then swapped in, so a crash mid-write leaves the old vault whole
+    private void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        StringBuilder contents = new StringBuilder();
+        tokens.forEach((reference, token) -> contents.append(reference).append('\t').append(token).append('\n'));
+        byte[] iv = new byte[IV_BYTES];
+        random.nextBytes(iv);
+        byte[] encrypted;
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            encrypted = cipher.doFinal(contents.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt the token vault", e);
+        }
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temporary, ByteBuffer.allocate(iv.length + encrypted.length).put(iv).put(encrypted).array());
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,195 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.model.Account;
+import dev.onepintwig.starling.roundup.model.AccountList;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of customer accounts, so we don't have to hit /accounts before every feed request.
+ * Accounts basically never change, so a few minutes of staleness is fine.
+ * <p>
+ * - Entries are keyed on the hashed token plus the accountUid. A token only ever sees the accounts it loaded itself
+ * - Entries expire after the TTL, and the least recently used are evicted once full
+ * - Loads are single-flight per token. A burst of round-ups for the same customer shares one /accounts call,
+ * and that one call fills in every account the customer has
+ */
+public final class AccountCache {
+
+    private record Key(String tokenHash, UUID accountUid) {
+    }
+
+    private record Entry(Account account, long expiresAt) {
+    }
+
+    private final Function<String, Mono<AccountList>> loader;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+
+    //Access ordered, so iteration order is least recently used first. Guarded by itself
+    private final LinkedHashMap<Key, Entry> entries;
+    //The in-progress /accounts call for each token hash
+    private final ConcurrentHashMap<String, Mono<Map<UUID, Account>>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param ttl     How long an account is trusted for after loading
+     * @param maxSize The most accounts to hold before evicting the least recently used
+     * @param loader  Loads all the accounts for a bearer token
+     */
+    public AccountCache(Duration ttl, int maxSize, Function<String, Mono<AccountList>> loader) {
+        this(ttl, maxSize, loader, System::nanoTime);
+    }
+
+    AccountCache(Duration ttl, int maxSize, Function<String, Mono<AccountList>> loader, LongSupplier clock) {
+        this.loader = loader;
+        this.ttlNanos = ttl.toNanos();
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() > maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets an account, loading all the accounts for the token if it isn't cached. Returns an error if the account is not found
+     *
+     * @param token      The bearer token for the request
+     * @param accountUid The account to get
+     * @return The account
+     */
+    public Mono<Account> get(String token, UUID accountUid) {
+        return Mono.defer(() -> {
+            String tokenHash = TokenHash.of(token);
+            Account cached = lookup(new Key(tokenHash, accountUid));
+            if (cached != null) {
+                hits.increment();
+                return Mono.just(cached);
+            }
+            misses.increment();
+            return load(token, tokenHash, loader).map(accounts -> found(accounts, accountUid));
+        });
+    }
+
+    /**
+     * As [[get]], but blocking, with the /accounts call made by a blocking loader on the calling thread. For the virtual
+     * thread engine. Shares the entries and the single-flight loads with [[get]], so either engine can fill the cache for the other
+     *
+     * @param token      The bearer token for the request
+     * @param accountUid The account to get
+     * @param loader     Loads all the accounts for a bearer token, blocking until they are in
+     * @return The account
+     */
+    public Account getBlocking(String token, UUID accountUid, Function<String, AccountList> loader) {
+        String tokenHash = TokenHash.of(token);
+        Account cached = lookup(new Key(tokenHash, accountUid));
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        //Whoever starts the load runs the loader, everyone else waits on it
+        return found(load(token, tokenHash, blockingToken -> Mono.fromCallable(() -> loader.apply(blockingToken))).block(), accountUid);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Entries dropped, either for being least recently used or for expiring
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private Account lookup(Key key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (clock.getAsLong() - entry.expiresAt() >= 0) {
+                entries.remove(key);
+                evictions.increment();
+                return null;
+            }
+            return entry.account();
+        }
+    }
+
+    //No way to filter on the server side, so filter in here and handle missing account logic
+    private static Account found(Map<UUID, Account> accounts, UUID accountUid) {
+        Account account = accounts.get(accountUid);
+        if (account == null) {
+            throw new IllegalArgumentException("Account: " + accountUid + " not found");
+        }
+        return account;
+    }
+
+    private Mono<Map<UUID, Account>> load(String token, String tokenHash, Function<String, Mono<AccountList>> loader) {
+        return inFlight.computeIfAbsent(tokenHash, hash -> {
+            //Only ever remove this load. Once it has stopped being shared, a newer one for the token can take its place
+            //before it finishes, and that one has to stay
+            AtomicReference<Mono<Map<UUID, Account>>> self = new AtomicReference<>();
+            Mono<Map<UUID, Account>> load = loader.apply(token)
+                    .map(AccountCache::index)
+                    //Stop sharing the load as soon as its result is cached, before anyone is handed it.
+                    //Waiting for doFinally leaves a window where a finished load gets reused after its entries expire
+                    .doOnNext(accounts -> {
+                        store(hash, accounts);
+                        inFlight.remove(hash, self.get());
+                    })
+                    //Failures aren't cached, the next caller gets a fresh try
+                    .doFinally(_ -> inFlight.remove(hash, self.get()))
+                    .cache();
+            self.set(load);
+            return load;
+        });
+    }
+
+    private void store(String tokenHash, Map<UUID, Account> accounts) {
+        long expiresAt = clock.getAsLong() + ttlNanos;
+        synchronized (entries) {
+            accounts.forEach((accountUid, account) -> entries.put(new Key(tokenHash, accountUid), new Entry(account, expiresAt)));
+        }
+    }
+
+    //Index by uid once, rather than scanning the list on every lookup
+    private static Map<UUID, Account> index(AccountList accountList) {
+        Map<UUID, Account> accounts = HashMap.newHashMap(accountList.accounts().size());
+        for (Account account : accountList.accounts()) {
+            accounts.put(account.accountUid(), account);
+        }
+        return accounts;
+    }
+}
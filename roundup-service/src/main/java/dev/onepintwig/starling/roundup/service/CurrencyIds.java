@@ -0,0 +1,95 @@
+package dev.onepintwig.starling.roundup.service;
+
+import java.util.Arrays;
+
+/**
+ * Maps ISO currency codes to small, dense int ids, so per-currency totals can live in a plain array
+ * instead of a map keyed on strings.
+ * <p>
+ * There are only ever a couple of hundred currencies, so ids are handed out on first sight and never reclaimed.
+ * Lookups go against an immutable open-addressed snapshot with no locking. Only registering a new currency takes the lock.
+ */
+public final class CurrencyIds {
+
+    private static final int EMPTY = -1;
+
+    //Swapped wholesale on every new currency, so readers always see a consistent table
+    private static volatile Table table = new Table(new String[0], emptySlots(64));
+
+    private CurrencyIds() {
+    }
+
+    /**
+     * @param currency The ISO currency code
+     * @return The id for the currency, registering it if this is the first time we have seen it
+     */
+    public static int idOf(String currency) {
+        int id = table.find(currency);
+        return id != EMPTY ? id : register(currency);
+    }
+
+    /**
+     * @param id A currency id handed out by [[idOf]]
+     * @return The ISO currency code for the id
+     */
+    public static String code(int id) {
+        return table.codes[id];
+    }
+
+    /**
+     * @return How many currencies have been given ids so far. All ids are below this
+     */
+    public static int size() {
+        return table.codes.length;
+    }
+
+    private static synchronized int register(String currency) {
+        Table current = table;
+        int id = current.find(currency);
+        if (id != EMPTY) {
+            return id;
+        }
+        id = current.codes.length;
+        String[] codes = Arrays.copyOf(current.codes, id + 1);
+        codes[id] = currency;
+        //Keep the table at most half full so probes stay short
+        int[] slots = current.slots.length < codes.length * 2 ? emptySlots(current.slots.length * 2) : current.slots.clone();
+        Table next = new Table(codes, slots);
+        if (slots.length != current.slots.length) {
+            for (int existing = 0; existing < id; existing++) {
+                next.insert(existing);
+            }
+        }
+        next.insert(id);
+        table = next;
+        return id;
+    }
+
+    private static int[] emptySlots(int size) {
+        int[] slots = new int[size];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+
+    private record Table(String[] codes, int[] slots) {
+
+        int find(String currency) {
+            int mask = slots.length - 1;
+            for (int slot = currency.hashCode() & mask; ; slot = (slot + 1) & mask) {
+                int id = slots[slot];
+                if (id == EMPTY || codes[id].equals(currency)) {
+                    return id;
+                }
+            }
+        }
+
+        void insert(int id) {
+            int mask = slots.length - 1;
+            int slot = codes[id].hashCode() & mask;
+            while (slots[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+    }
+}
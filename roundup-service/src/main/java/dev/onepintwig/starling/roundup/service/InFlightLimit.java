@@ -0,0 +1,134 @@
+package dev.onepintwig.starling.roundup.service;
+
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cap on how many Monos run at once, shared by everyone who runs through it. A reactive semaphore, more or less.
+ * <p>
+ * - Nothing blocks. Work over the cap queues, first in first out, and starts as soon as a slot frees up
+ * - A slot is given back however the work ends: success, error or cancel
+ * - Work cancelled while it is queued just leaves the queue, without ever starting
+ */
+final class InFlightLimit {
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int CANCELLED = 2;
+
+    private final int max;
+    //Both guarded by this
+    private int inFlight;
+    private final ArrayDeque<Slot<?>> queued = new ArrayDeque<>();
+    //Releases that arrive while one is already handing on a slot, so work that finishes straight away starts the next
+    //in a loop rather than further and further down the stack
+    private final AtomicInteger releases = new AtomicInteger();
+
+    /**
+     * @param max The most work running at once
+     */
+    InFlightLimit(int max) {
+        this.max = max;
+    }
+
+    /**
+     * @param work What to run once there's a slot for it. Subscribed to at most once
+     * @return The work's result, once it has had a slot and run
+     */
+    <T> Mono<T> run(Mono<T> work) {
+        return Mono.create(sink -> {
+            Slot<T> slot = new Slot<>(work, sink);
+            sink.onCancel(slot::cancel);
+            boolean start;
+            synchronized (this) {
+                start = inFlight < max;
+                if (start) {
+                    inFlight++;
+                } else {
+                    queued.add(slot);
+                }
+            }
+            if (start && !slot.start()) {
+                release();
+            }
+        });
+    }
+
+    int max() {
+        return max;
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    synchronized int queued() {
+        return queued.size();
+    }
+
+    private void release() {
+        if (releases.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            handOn();
+        } while (releases.decrementAndGet() != 0);
+    }
+
+    //Hands the freed slot straight to the next queued work, so inFlight only goes down when nothing is waiting
+    private void handOn() {
+        while (true) {
+            Slot<?> next;
+            synchronized (this) {
+                next = queued.poll();
+                if (next == null) {
+                    inFlight--;
+                    return;
+                }
+            }
+            if (next.start()) {
+                return;
+            }
+            //Cancelled while it was queued, so on to the one after
+        }
+    }
+
+    private final class Slot<T> {
+
+        private final Mono<T> work;
+        private final MonoSink<T> sink;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private final Disposable.Swap running = Disposables.swap();
+
+        private Slot(Mono<T> work, MonoSink<T> sink) {
+            this.work = work;
+            this.sink = sink;
+        }
+
+        //Only called while holding a slot. False if cancelled first, and then the slot is still the caller's
+        private boolean start() {
+            if (!state.compareAndSet(QUEUED, RUNNING)) {
+                return false;
+            }
+            running.update(work
+                    .doFinally(_ -> release())
+                    .subscribe(sink::success, sink::error, sink::success));
+            return true;
+        }
+
+        private void cancel() {
+            if (state.compareAndSet(QUEUED, CANCELLED)) {
+                synchronized (InFlightLimit.this) {
+                    queued.remove(this);
+                }
+            } else {
+                running.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.client.FeedItemHandler;
+import dev.onepintwig.starling.roundup.model.CurrencyAmount;
+import dev.onepintwig.starling.roundup.model.FeedItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental version of [[RoundUpCalculator]]. Feed items are added one at a time as they are parsed,
+ * and only the running round-up total per currency is kept.
+ * <p>
+ * Totals are primitive longs indexed by [[CurrencyIds]], so adding an item never boxes or allocates,
+ * and a big backfill can't overflow. Can be [[reset]] and reused across feeds.
+ * <p>
+ * Not thread safe - one instance per feed.
+ */
+public final class RoundUpAccumulator implements FeedItemHandler {
+
+    private long[] totals = new long[8];
+    //Currency ids in the order they were first seen, so output order is stable
+    private int[] seen = new int[8];
+    private int seenCount;
+    private boolean[] isSeen = new boolean[8];
+
+    @Override
+    public void onFeedItem(String currency, long minorUnits, FeedItem.TransactionDirection direction) {
+        //Same rules as the calculator. Only round-up outbound transactions
+        if (direction == FeedItem.TransactionDirection.OUT) {
+            add(CurrencyIds.idOf(currency), minorUnits);
+        }
+    }
+
+    /**
+     * @param feedItem The feed item to add to the running totals
+     */
+    public void add(FeedItem feedItem) {
+        onFeedItem(feedItem.amount().currency(), feedItem.amount().minorUnits(), feedItem.direction());
+    }
+
+    /**
+     * Adds an outbound transaction for an already resolved currency
+     *
+     * @param currencyId The [[CurrencyIds]] id of the transaction currency
+     * @param minorUnits The transaction amount
+     */
+    public void add(int currencyId, long minorUnits) {
+        if (currencyId >= totals.length) {
+            int size = Math.max(currencyId + 1, totals.length * 2);
+            totals = Arrays.copyOf(totals, size);
+            isSeen = Arrays.copyOf(isSeen, size);
+        }
+        if (!isSeen[currencyId]) {
+            isSeen[currencyId] = true;
+            if (seenCount == seen.length) {
+                seen = Arrays.copyOf(seen, seenCount * 2);
+            }
+            seen[seenCount++] = currencyId;
+        }
+        totals[currencyId] += RoundUpCalculator.roundUp(minorUnits);
+    }
+
+    /**
+     * @return The round-up total for each currency seen so far
+     */
+    public List<CurrencyAmount> roundUps() {
+        List<CurrencyAmount> roundUps = new ArrayList<>(seenCount);
+        for (int i = 0; i < seenCount; i++) {
+            int currencyId = seen[i];
+            roundUps.add(new CurrencyAmount(CurrencyIds.code(currencyId), totals[currencyId]));
+        }
+        return roundUps;
+    }
+
+    /**
+     * Clears the running totals, keeping the backing arrays so the accumulator can be reused without allocating
+     */
+    public void reset() {
+        for (int i = 0; i < seenCount; i++) {
+            totals[seen[i]] = 0;
+            isSeen[seen[i]] = false;
+        }
+        seenCount = 0;
+    }
+}
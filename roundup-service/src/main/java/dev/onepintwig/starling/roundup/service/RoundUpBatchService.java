@@ -0,0 +1,94 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.model.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.*;
+import java.util.function.BiFunction;
+
+/**
+ * Runs many round-ups in one go, for the nightly job.
+ * <p>
+ * Two things keep this from flattening the Starling api or a single customer hogging it:
+ * - Only a fixed number of round-ups run at once, across every batch in flight, not just within each one. Each round-up
+ * runs its transfers one at a time, so that is also the cap on upstream requests in flight
+ * - Items are started round-robin across tokens, so a customer with thousands of items queues behind everyone else's first item,
+ * not in front of them
+ */
+public final class RoundUpBatchService {
+
+    //Max round-ups (and so upstream requests) in flight across all batches. Shared, so running several batches at
+    //once doesn't multiply it
+    private static final InFlightLimit inFlight = new InFlightLimit(Integer.getInteger("roundup.batch.max-in-flight", 64));
+
+    record Indexed(int index, String token, RoundUpBatchItem item) {
+    }
+
+    /**
+     * Executes every round-up in the batch. A failure only fails that item, the rest carry on
+     *
+     * @param defaultToken The bearer token for items that don't carry their own
+     * @param items        The round-ups to execute
+     * @return A result for every item, in the same order as the items
+     */
+    public static Mono<RoundUpBatchResponse> doRoundUpBatch(String defaultToken, List<RoundUpBatchItem> items) {
+        return doRoundUpBatch(defaultToken, items, inFlight, (token, item) -> RoundUpService.doRoundUp(
+                token, item.accountUid(), item.savingsGoalUid(), item.roundUpWeekStartTimestamp(), 1
+        ));
+    }
+
+    static Mono<RoundUpBatchResponse> doRoundUpBatch(String defaultToken, List<RoundUpBatchItem> items, InFlightLimit inFlight,
+                                                     BiFunction<String, RoundUpBatchItem, Mono<RoundUpResponse>> roundUp) {
+        return Flux.fromIterable(fairOrder(defaultToken, items))
+                //flatMap subscribes in fair order, and the limit starts them in the order they were subscribed.
+                //Subscribing no more than fit in the limit means one big batch queues at most that many ahead of the next
+                .flatMap(indexed -> inFlight.run(run(indexed, roundUp)), inFlight.max())
+                .collectList()
+                .map(results -> {
+                    //Put back in request order
+                    RoundUpBatchItemResult[] ordered = new RoundUpBatchItemResult[items.size()];
+                    results.forEach(result -> ordered[result.index()] = result.result());
+                    return new RoundUpBatchResponse(Arrays.asList(ordered));
+                });
+    }
+
+    private record IndexedResult(int index, RoundUpBatchItemResult result) {
+    }
+
+    private static Mono<IndexedResult> run(Indexed indexed, BiFunction<String, RoundUpBatchItem, Mono<RoundUpResponse>> roundUp) {
+        RoundUpBatchItem item = indexed.item();
+        Mono<RoundUpResponse> response = indexed.token() == null
+                ? Mono.error(new IllegalArgumentException("No Authorization token for account: " + item.accountUid()))
+                : Mono.defer(() -> roundUp.apply(indexed.token(), item));
+        return response
+                .map(success -> new RoundUpBatchItemResult(item.accountUid(), item.savingsGoalUid(), item.roundUpWeekStartTimestamp(), success.savingsGoalTransfers(), null))
+                .onErrorResume(error -> Mono.just(new RoundUpBatchItemResult(item.accountUid(), item.savingsGoalUid(), item.roundUpWeekStartTimestamp(), List.of(), String.valueOf(error.getMessage()))))
+                .map(result -> new IndexedResult(indexed.index(), result));
+    }
+
+    /**
+     * Orders the items round-robin across tokens: the first item for every token, then the second for every token, and so on.
+     * flatMap subscribes in order, so this is the order items get a slot in
+     */
+    static List<Indexed> fairOrder(String defaultToken, List<RoundUpBatchItem> items) {
+        Map<String, ArrayDeque<Indexed>> queues = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            RoundUpBatchItem item = items.get(i);
+            String token = item.token() != null ? item.token() : defaultToken;
+            queues.computeIfAbsent(String.valueOf(token), _ -> new ArrayDeque<>()).add(new Indexed(i, token, item));
+        }
+        List<Indexed> ordered = new ArrayList<>(items.size());
+        while (!queues.isEmpty()) {
+            Iterator<ArrayDeque<Indexed>> iterator = queues.values().iterator();
+            while (iterator.hasNext()) {
+                ArrayDeque<Indexed> queue = iterator.next();
+                ordered.add(queue.poll());
+                if (queue.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+        return ordered;
+    }
+}
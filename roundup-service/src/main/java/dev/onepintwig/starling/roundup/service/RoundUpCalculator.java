@@ -2,12 +2,28 @@ package dev.onepintwig.starling.roundup.service;
 
 import dev.onepintwig.starling.roundup.model.CurrencyAmount;
 import dev.onepintwig.starling.roundup.model.FeedItem;
+import dev.onepintwig.starling.roundup.store.AccountFeed;
 
+import java.time.Instant;
 import java.util.List;
 import java.util.stream.Collectors;
 
 public class RoundUpCalculator {
 
+    /**
+     * The implementations of the round-up reduction. Both give the same totals, they just get there differently
+     */
+    public enum Engine {
+        /**
+         * The original stream pipeline. Groups by currency string and sums boxed values
+         */
+        COLLECTOR,
+        /**
+         * Plain loop into a [[RoundUpAccumulator]]. Primitive long totals indexed by currency id, no boxing
+         */
+        PRIMITIVE
+    }
+
     /**
      * Gets a list of all the round up amounts for the currencies in a given [[FeedItem]] set
      * A valid transaction for rounding-up is an outbound transaction
@@ -18,6 +34,53 @@ public class RoundUpCalculator {
      * @return The round-up total for each currency in the feed-items
      */
     public static List<CurrencyAmount> roundUpsForFeedItems(List<FeedItem> feedItems) {
+        return roundUpsForFeedItems(feedItems, Engine.PRIMITIVE);
+    }
+
+    /**
+     * Gets a list of all the round up amounts for the currencies in a given [[FeedItem]] set, using the given engine
+     *
+     * @param feedItems The feed-item list to determine round-ups from
+     * @param engine    The implementation to use for the reduction
+     * @return The round-up total for each currency in the feed-items
+     */
+    public static List<CurrencyAmount> roundUpsForFeedItems(List<FeedItem> feedItems, Engine engine) {
+        return switch (engine) {
+            case COLLECTOR -> collectorRoundUps(feedItems);
+            case PRIMITIVE -> accumulate(feedItems, new RoundUpAccumulator()).roundUps();
+        };
+    }
+
+    /**
+     * Adds a chunk of feed items to a running [[RoundUpAccumulator]]. Lets callers feed items through in batches,
+     * and reuse the accumulator between feeds
+     *
+     * @param feedItems   The next chunk of feed-items
+     * @param accumulator The running totals to add to
+     * @return The accumulator, for chaining
+     */
+    public static RoundUpAccumulator accumulate(List<FeedItem> feedItems, RoundUpAccumulator accumulator) {
+        //Indexed loop rather than an iterator. These lists are nearly always array backed
+        for (int i = 0, size = feedItems.size(); i < size; i++) {
+            accumulator.add(feedItems.get(i));
+        }
+        return accumulator;
+    }
+
+    /**
+     * Gets the round up amounts for every transaction in a time range of a locally synced feed. No network involved,
+     * so any range can be asked for as often as you like, as long as it has been synced
+     *
+     * @param feed The synced feed for the account
+     * @param from The start of the range, inclusive
+     * @param to   The end of the range, exclusive
+     * @return The round-up total for each currency in the range
+     */
+    public static List<CurrencyAmount> roundUpsBetween(AccountFeed feed, Instant from, Instant to) {
+        return feed.accumulate(from.toEpochMilli(), to.toEpochMilli(), new RoundUpAccumulator()).roundUps();
+    }
+
+    private static List<CurrencyAmount> collectorRoundUps(List<FeedItem> feedItems) {
         //Filter down to only relevant transactions. Settled and outbound. Admitting here that my banking domain knowledge is a bit weak.
         //Already filtered on server side for settled. So just need to check direction now.
         return feedItems.stream()
@@ -27,12 +90,9 @@ public class RoundUpCalculator {
                         Collectors.groupingBy(
                                 fi -> fi.amount().currency(),
                                 Collectors.reducing(
-                                        0,
-                                        //In the interests of time, assuming 100 here for the "round-up" target.
-                                        //Would likely need an additional lookup table or service call for prod
-                                        //as some currencies have different decimalisation
-                                        fi -> 100 - (fi.amount().minorUnits() % 100),
-                                        Integer::sum
+                                        0L,
+                                        fi -> roundUp(fi.amount().minorUnits()),
+                                        Long::sum
                                 )
                         )
                 ).entrySet().stream().map(
@@ -40,4 +100,17 @@ public class RoundUpCalculator {
                         group -> new CurrencyAmount(group.getKey(), group.getValue())
                 ).toList();
     }
+
+    /**
+     * The amount needed to round a single transaction up to the next whole unit
+     *
+     * @param minorUnits The transaction amount
+     * @return The round-up for the transaction
+     */
+    public static long roundUp(long minorUnits) {
+        //In the interests of time, assuming 100 here for the "round-up" target.
+        //Would likely need an additional lookup table or service call for prod
+        //as some currencies have different decimalisation
+        return 100 - (minorUnits % 100);
+    }
 }
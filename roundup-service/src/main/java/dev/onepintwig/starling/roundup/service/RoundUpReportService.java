@@ -0,0 +1,44 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.model.RoundUpReportResponse;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Read-only round-up reporting, for questions like "what would last quarter have saved".
+ * <p>
+ * Shares the [[AccountCache]] and [[FeedStore]] with the round-ups, so a report only goes upstream for whatever part of
+ * the range hasn't already been synced. That part is fetched like a backfill's, in windows several at a time, rather
+ * than as one long request. The totals then come straight out of the feed's daily index, so a year costs about the same
+ * as a week.
+ */
+public final class RoundUpReportService {
+
+    /**
+     * Gets the round-up totals for an account over a range of UTC days
+     *
+     * @param token      The bearer token for the request
+     * @param accountUid The account to report on
+     * @param from       The first day, inclusive
+     * @param to         The last day, exclusive
+     * @return The round-up total for each currency over the range
+     */
+    public static Mono<RoundUpReportResponse> roundUpsBetween(String token, UUID accountUid, LocalDate from, LocalDate to) {
+        Instant start = from.atStartOfDay(ZoneOffset.UTC).toInstant();
+        Instant end = to.atStartOfDay(ZoneOffset.UTC).toInstant();
+        //The account cache only returns accounts the token can see, so it is safe to hand out the stored feed after this
+        return RoundUpService.accountCache().get(token, accountUid)
+                .flatMap(account -> RoundUpService.syncRange(token, account, start, end))
+                .map(feed -> new RoundUpReportResponse(
+                        accountUid,
+                        Date.from(start),
+                        Date.from(end),
+                        feed.roundUpsForDays(from.toEpochDay(), to.toEpochDay())
+                ));
+    }
+}
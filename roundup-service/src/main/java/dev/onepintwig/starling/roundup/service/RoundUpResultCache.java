@@ -0,0 +1,182 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.model.RoundUpResponse;
+import dev.onepintwig.starling.roundup.model.SavingsGoalTransferResponse;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Sits in front of round-ups, as the mobile apps and the gateway love sending the same one several times in a row.
+ * <p>
+ * - Identical round-ups (same token, account, savings goal and week) that arrive together share one run
+ * - A finished round-up is remembered for a while, so repeats get its response straight back without going upstream
+ * - Only round-ups where every transfer went through are remembered. Failures, and responses with a failed transfer,
+ * are left for the next call to try again. The [[TransferOutbox]] stops that from transferring twice anyway
+ * - Bounded, with the least recently used evicted once full
+ * <p>
+ * Keyed on the hashed token, like the [[AccountCache]], so one customer can never be handed another's response.
+ */
+public final class RoundUpResultCache {
+
+    /**
+     * Actually runs a round-up
+     */
+    @FunctionalInterface
+    public interface RoundUp {
+        Mono<RoundUpResponse> run(String token, UUID accountUid, UUID savingsGoalUid, Date roundUpWeekStartTimestamp);
+    }
+
+    private record Key(String tokenHash, UUID accountUid, UUID savingsGoalUid, long weekStartMillis) {
+    }
+
+    private record Entry(RoundUpResponse response, long expiresAt) {
+    }
+
+    private final long ttlNanos;
+    private final LongSupplier clock;
+
+    //Access ordered, so iteration order is least recently used first. Guarded by itself
+    private final LinkedHashMap<Key, Entry> entries;
+    private final ConcurrentHashMap<Key, Mono<RoundUpResponse>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param ttl     How long a finished round-up is handed back to repeats for
+     * @param maxSize The most round-ups to remember before evicting the least recently used
+     */
+    public RoundUpResultCache(Duration ttl, int maxSize) {
+        this(ttl, maxSize, System::nanoTime);
+    }
+
+    RoundUpResultCache(Duration ttl, int maxSize, LongSupplier clock) {
+        this.ttlNanos = ttl.toNanos();
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() > maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Runs the round-up, unless an identical one is already running or has just finished
+     *
+     * @param token                     The bearer token for the request
+     * @param accountUid                The account to round-up
+     * @param savingsGoalUid            The savings goal to add the round-up to
+     * @param roundUpWeekStartTimestamp The start of the round-up week
+     * @param roundUp                   Runs the round-up if it has to be
+     * @return The round-up's response. Possibly one made earlier
+     */
+    public Mono<RoundUpResponse> get(String token, UUID accountUid, UUID savingsGoalUid, Date roundUpWeekStartTimestamp, RoundUp roundUp) {
+        return Mono.defer(() -> {
+            Key key = new Key(TokenHash.of(token), accountUid, savingsGoalUid, roundUpWeekStartTimestamp.getTime());
+            RoundUpResponse cached = lookup(key);
+            if (cached != null) {
+                hits.increment();
+                return Mono.just(cached);
+            }
+            boolean[] started = new boolean[1];
+            Mono<RoundUpResponse> run = inFlight.computeIfAbsent(key, _ -> {
+                started[0] = true;
+                //Only ever remove this run, never a newer one that took its place once this one stopped being shared
+                AtomicReference<Mono<RoundUpResponse>> self = new AtomicReference<>();
+                Mono<RoundUpResponse> thisRun = roundUp.run(token, accountUid, savingsGoalUid, roundUpWeekStartTimestamp)
+                        //As in the AccountCache, stop sharing the run as soon as its result is cached
+                        .doOnNext(response -> {
+                            store(key, response);
+                            inFlight.remove(key, self.get());
+                        })
+                        .doFinally(_ -> inFlight.remove(key, self.get()))
+                        .cache();
+                self.set(thisRun);
+                return thisRun;
+            });
+            if (started[0]) {
+                misses.increment();
+            } else {
+                coalesced.increment();
+            }
+            return run;
+        });
+    }
+
+    /**
+     * @return Repeats answered with a finished round-up
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Repeats that joined a round-up already running
+     */
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return Round-ups that had to actually run
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Entries dropped, either for being least recently used or for expiring
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private RoundUpResponse lookup(Key key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (clock.getAsLong() - entry.expiresAt() >= 0) {
+                entries.remove(key);
+                evictions.increment();
+                return null;
+            }
+            return entry.response();
+        }
+    }
+
+    private void store(Key key, RoundUpResponse response) {
+        for (SavingsGoalTransferResponse transfer : response.savingsGoalTransfers()) {
+            if (!Boolean.TRUE.equals(transfer.success())) {
+                return;
+            }
+        }
+        long expiresAt = clock.getAsLong() + ttlNanos;
+        synchronized (entries) {
+            entries.put(key, new Entry(response, expiresAt));
+        }
+    }
+}
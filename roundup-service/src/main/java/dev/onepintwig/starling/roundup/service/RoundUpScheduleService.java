@@ -0,0 +1,100 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.client.ReactiveStarlingClient;
+import dev.onepintwig.starling.roundup.metrics.Metrics;
+import dev.onepintwig.starling.roundup.model.RoundUpEnrolmentResponse;
+import dev.onepintwig.starling.roundup.schedule.RoundUpScheduler;
+import dev.onepintwig.starling.roundup.schedule.SchedulerSettings;
+import dev.onepintwig.starling.roundup.schedule.TokenVault;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Enrols accounts for weekly round-ups, run in-process by the [[RoundUpScheduler]] with the same service as the endpoint.
+ */
+public final class RoundUpScheduleService {
+
+    private static final RoundUpScheduler scheduler = openScheduler();
+
+    static {
+        Metrics.gauge("roundup_scheduler_enrolments", "Accounts and savings goals enrolled for weekly round-ups", scheduler::enrolments);
+        Metrics.gauge("roundup_scheduler_queue_depth", "Scheduled round-ups due and waiting to start", scheduler::queueDepth);
+        Metrics.gauge("roundup_scheduler_in_flight", "Scheduled round-ups running", scheduler::inFlight);
+        Metrics.gauge("roundup_scheduler_lag_seconds", "How long the oldest waiting scheduled round-up has been due", () -> scheduler.lagMillis() / 1000.0);
+        Metrics.counter("roundup_scheduler_runs_total", "Scheduled round-ups completed", scheduler::completed);
+        Metrics.counter("roundup_scheduler_failures_total", "Scheduled round-ups that failed", scheduler::failed);
+        Metrics.counter("roundup_scheduler_failed_weeks_total", "Scheduled weeks given up on after running out of retries, or with a failure waiting wouldn't fix", scheduler::failedWeeks);
+        Metrics.gauge("roundup_scheduler_needs_reenrolment", "Enrolments whose token Starling turned down, waiting for the customer to enrol again", scheduler::needsReEnrolment);
+        Metrics.counter("roundup_scheduler_missing_tokens_total", "Scheduled round-ups skipped for want of a token, until the customer enrols again", scheduler::missingTokens);
+    }
+
+    /**
+     * Enrols an account and savings goal for weekly round-ups, from the week in progress
+     *
+     * @param token          The bearer token to run the round-ups with. Checked against the account first
+     * @param accountUid     The account to round-up
+     * @param savingsGoalUid The savings goal to add the round-ups to
+     * @return The enrolment, with when its next round-up is due
+     */
+    public static Mono<RoundUpEnrolmentResponse> enrol(String token, UUID accountUid, UUID savingsGoalUid) {
+        //Only keep tokens that can actually see the account
+        return RoundUpService.accountCache().get(token, accountUid)
+                //The journal and vault are files, so not on a netty thread
+                .publishOn(Schedulers.boundedElastic())
+                .map(_ -> {
+                    try {
+                        return new RoundUpEnrolmentResponse(accountUid, savingsGoalUid, true, scheduler.enrol(token, accountUid, savingsGoalUid));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not enrol " + accountUid, e);
+                    }
+                });
+    }
+
+    /**
+     * Stops the weekly round-ups for an account and savings goal
+     *
+     * @param token The bearer token. Checked against the account first, so only its owner can unenrol it
+     */
+    public static Mono<RoundUpEnrolmentResponse> unenrol(String token, UUID accountUid, UUID savingsGoalUid) {
+        return RoundUpService.accountCache().get(token, accountUid)
+                .publishOn(Schedulers.boundedElastic())
+                .map(_ -> {
+                    try {
+                        scheduler.unenrol(accountUid, savingsGoalUid);
+                        return new RoundUpEnrolmentResponse(accountUid, savingsGoalUid, false, null);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not unenrol " + accountUid, e);
+                    }
+                });
+    }
+
+    /**
+     * @return The scheduler, so it can be started eagerly at startup
+     */
+    public static RoundUpScheduler scheduler() {
+        return scheduler;
+    }
+
+    private static RoundUpScheduler openScheduler() {
+        SchedulerSettings settings = SchedulerSettings.fromSystemProperties();
+        try {
+            //Kept out of the settings, so it never ends up in a log line
+            String vaultKey = System.getProperty("roundup.scheduler.vault-key");
+            TokenVault vault = vaultKey == null || vaultKey.isBlank()
+                    ? TokenVault.inMemory()
+                    : TokenVault.open(settings.directory().resolve("tokens.vault"), Base64.getDecoder().decode(vaultKey));
+            return RoundUpScheduler.open(settings, vault,
+                    (token, accountUid, savingsGoalUid, weekStart) -> RoundUpService.doRoundUp(token, accountUid, savingsGoalUid, weekStart, RoundUpService.defaultEngine()),
+                    //Read each time, so the caps follow the client if it is pointed somewhere else
+                    () -> URI.create(ReactiveStarlingClient.settings().baseUrl()).getHost());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the round-up scheduler in " + settings.directory(), e);
+        }
+    }
+}
@@ -1,10 +1,19 @@
 package dev.onepintwig.starling.roundup.service;
 
 import dev.onepintwig.starling.roundup.client.ReactiveStarlingClient;
+import dev.onepintwig.starling.roundup.metrics.Histogram;
+import dev.onepintwig.starling.roundup.metrics.Metrics;
 import dev.onepintwig.starling.roundup.model.*;
+import dev.onepintwig.starling.roundup.outbox.TransferOutbox;
+import dev.onepintwig.starling.roundup.store.AccountFeed;
+import dev.onepintwig.starling.roundup.store.FeedStore;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Date;
@@ -13,13 +22,89 @@ import java.util.UUID;
 
 public final class RoundUpService {
 
+    /**
+     * How a round-up is run. Both share the caches, the feed store, the outbox and the client settings, so they can be
+     * swapped per request and compared like for like
+     */
+    public enum Engine {
+        //A reactor pipeline on the netty event loops. Every step is an operator, and nothing blocks
+        REACTOR,
+        //Plain blocking code on a virtual thread per round-up, with a thread per transfer. See [[VirtualThreadRoundUps]]
+        VIRTUAL_THREADS
+    }
+
+    //Which engine round-ups use unless the request asks for one
+    private static final Engine defaultEngine = Engine.valueOf(System.getProperty("roundup.engine", Engine.REACTOR.name()));
+
+    //Accounts barely ever change, so don't look them up before every feed request
+    private static final AccountCache accountCache = new AccountCache(
+            Duration.parse(System.getProperty("roundup.accounts-cache.ttl", "PT5M")),
+            Integer.getInteger("roundup.accounts-cache.max-size", 10_000),
+            token -> ReactiveStarlingClient.get(token, "/accounts", AccountList.class)
+    );
+
+    //Local copy of the feeds, so each round-up only downloads what has changed since the last one
+    private static final FeedStore feedStore = new FeedStore(
+            Duration.parse(System.getProperty("roundup.feed-store.overlap", "P3D")),
+            Integer.getInteger("roundup.feed-store.max-accounts", 10_000),
+            (token, accountUid, from, to, handler) -> ReactiveStarlingClient.streamFeedItems(token, feedQuery(accountUid, from, to), handler)
+    );
+
+    //How many savings goal transfers a single round-up can have in flight at once. One per currency, so rarely many
+    private static final int transferConcurrency = Integer.getInteger("roundup.transfer.concurrency", 4);
+
+    //The mobile apps and the gateway retry a lot, so identical round-ups close together are only run once
+    private static final RoundUpResultCache resultCache = new RoundUpResultCache(
+            Duration.parse(System.getProperty("roundup.result-cache.ttl", "PT1M")),
+            Integer.getInteger("roundup.result-cache.max-size", 10_000)
+    );
+
+    //Backfills fetch this many weeks per upstream request, with up to this many requests in flight
+    private static final int backfillWindowWeeks = Integer.getInteger("roundup.backfill.window-weeks", 4);
+    private static final int backfillConcurrency = Integer.getInteger("roundup.backfill.concurrency", 4);
+
+    //Journals every transfer before it is sent, so retries and restarts never double-save or lose money
+    private static final TransferOutbox outbox = openOutbox();
+
+    //How long each stage of a round-up takes, so we can tell which one to blame when it's slow
+    private static final Histogram accountsStage = stage("accounts");
+    private static final Histogram feedStage = stage("feed");
+    private static final Histogram calculateStage = stage("calculate");
+    private static final Histogram resendStage = stage("resend");
+    private static final Histogram transfersStage = stage("transfers");
+    private static final Histogram totalStage = stage("total");
+
+    static {
+        //Read at scrape time, so nothing extra on the request path
+        Metrics.counter("roundup_accounts_cache_hits_total", "Accounts served from the cache", accountCache::hits);
+        Metrics.counter("roundup_accounts_cache_misses_total", "Accounts that had to be loaded", accountCache::misses);
+        Metrics.counter("roundup_accounts_cache_evictions_total", "Accounts dropped from the cache, expired or least recently used", accountCache::evictions);
+        Metrics.gauge("roundup_accounts_cache_size", "Accounts in the cache", accountCache::size);
+        Metrics.counter("roundup_feed_store_syncs_total", "Feed syncs asked for", feedStore::syncs);
+        Metrics.counter("roundup_feed_store_fetches_total", "Feed windows fetched from upstream", feedStore::fetches);
+        Metrics.gauge("roundup_feed_store_accounts", "Account feeds held locally", feedStore::size);
+        Metrics.counter("roundup_result_cache_hits_total", "Round-ups answered with the response of an identical one that had just finished", resultCache::hits);
+        Metrics.counter("roundup_result_cache_coalesced_total", "Round-ups that joined an identical one already running", resultCache::coalesced);
+        Metrics.counter("roundup_result_cache_misses_total", "Round-ups that had to actually run", resultCache::misses);
+        Metrics.counter("roundup_result_cache_evictions_total", "Round-up responses dropped, expired or least recently used", resultCache::evictions);
+        Metrics.gauge("roundup_result_cache_size", "Round-up responses remembered", resultCache::size);
+        Metrics.gauge("roundup_outbox_pending_transfers", "Planned transfers not yet confirmed by Starling", outbox::pending);
+        Metrics.counter("roundup_outbox_journal_appends_total", "Records appended to the transfer journal", outbox.journal()::appends);
+        Metrics.counter("roundup_outbox_journal_commits_total", "Times the transfer journal was forced to disk", outbox.journal()::commits);
+    }
+
     /**
      * Gets all the feed items for a given account, and calculates the round-up amounts for each currency
      * These are then added to the given savings goal
      * <p>
      * Each currency is added in a separate request to the savings goal.
      * NOTE: This is not atomic, so if one fails, the others will still be added.
-     * Would need to be wrapped in a transaction for the real world (or use a some sort of queue to guarantee delivery)
+     * Each transfer goes through the [[TransferOutbox]] though, so re-running the round-up for the same week is safe:
+     * transfers that went through are not repeated, and ones that didn't are resent under the same transferUid.
+     * Transfers left unconfirmed for the account by an earlier run (or a crash) are resent first.
+     * Identical round-ups arriving together, or soon after one finished, go through the [[RoundUpResultCache]] and share its response.
+     * Only weeks that have ended can be rounded-up. The outbox would pin a week still going at its amount so far, and the
+     * rest of the week would never be saved, so those fail with an IllegalArgumentException instead.
      * Regretting my choice of rounding all currencies now...
      *
      * @param token          The bearer token for the request
@@ -28,57 +113,284 @@ public final class RoundUpService {
      * @return A list of all the completed savings goals
      */
     public static Mono<RoundUpResponse> doRoundUp(String token, UUID accountUid, UUID savingsGoalUid, Date roundUpWeekStartTimestamp) {
-        //Get feed items
-        return Flux.from(getFeedItems(token, accountUid, roundUpWeekStartTimestamp)
-                        //Get the roundup for the feed items
-                        .map(RoundUpCalculator::roundUpsForFeedItems)).flatMap(
-                        roundUps ->
-                                //For each calculated round up currency, execute the savings goal transfer
-                                Flux.fromIterable(roundUps).flatMap(
-                                        roundUp -> {
-                                            UUID transferUid = UUID.randomUUID();
-                                            return ReactiveStarlingClient.put(
-                                                    token,
-                                                    "/account/" + accountUid + "/savings-goals/" + savingsGoalUid + "/add-money/" + transferUid,
-                                                    new TopUpRequest(roundUp),
-                                                    SavingsGoalTransferResponse.class
-                                            );
-                                        }
-                                )
-                ).collectList()
+        return doRoundUp(token, accountUid, savingsGoalUid, roundUpWeekStartTimestamp, defaultEngine);
+    }
+
+    /**
+     * As [[doRoundUp]], but run by the given engine. Identical round-ups are still shared whichever engine they asked for
+     *
+     * @param token          The bearer token for the request
+     * @param accountUid     The account to get the feed items for
+     * @param savingsGoalUid The savings goal to add the round-up amounts to
+     * @param engine         What runs the round-up
+     * @return A list of all the completed savings goals
+     */
+    public static Mono<RoundUpResponse> doRoundUp(String token, UUID accountUid, UUID savingsGoalUid, Date roundUpWeekStartTimestamp, Engine engine) {
+        if (engine == Engine.REACTOR) {
+            return doRoundUp(token, accountUid, savingsGoalUid, roundUpWeekStartTimestamp, transferConcurrency);
+        }
+        return Mono.defer(() -> {
+            requireEnded(roundUpWeekStartTimestamp);
+            return resultCache.get(token, accountUid, savingsGoalUid, roundUpWeekStartTimestamp,
+                    (runToken, runAccountUid, runSavingsGoalUid, runWeekStart) -> Mono.fromFuture(() ->
+                            VirtualThreadRoundUps.doRoundUp(runToken, runAccountUid, runSavingsGoalUid, runWeekStart, transferConcurrency)));
+        });
+    }
+
+    /**
+     * @return The engine round-ups use unless they ask for another, from `roundup.engine`
+     */
+    public static Engine defaultEngine() {
+        return defaultEngine;
+    }
+
+    /**
+     * As [[doRoundUp]], but with an explicit cap on the savings goal transfers in flight at once.
+     * A concurrency of 1 means the round-up never has more than one upstream request open, which is what the batch relies on
+     *
+     * @param token               The bearer token for the request
+     * @param accountUid          The account to get the feed items for
+     * @param savingsGoalUid      The savings goal to add the round-up amounts to
+     * @param transferConcurrency The most transfers to have in flight at once
+     * @return A list of all the completed savings goals
+     */
+    public static Mono<RoundUpResponse> doRoundUp(String token, UUID accountUid, UUID savingsGoalUid, Date roundUpWeekStartTimestamp, int transferConcurrency) {
+        return Mono.defer(() -> {
+            requireEnded(roundUpWeekStartTimestamp);
+            //Repeats of the same round-up share the one run, or get its response if it has just finished
+            return resultCache.get(token, accountUid, savingsGoalUid, roundUpWeekStartTimestamp,
+                    (runToken, runAccountUid, runSavingsGoalUid, runWeekStart) -> runRoundUp(runToken, runAccountUid, runSavingsGoalUid, runWeekStart, transferConcurrency));
+        });
+    }
+
+    /**
+     * As [[doRoundUp]], but each transfer is emitted as soon as it completes, rather than all of them at the end.
+     * Not shared with identical round-ups like [[doRoundUp]] is, but the [[TransferOutbox]] still stops a repeat transferring twice
+     *
+     * @param token          The bearer token for the request
+     * @param accountUid     The account to get the feed items for
+     * @param savingsGoalUid The savings goal to add the round-up amounts to
+     * @param roundUpWeekStartTimestamp The start of the round-up week
+     * @return Each savings goal transfer, in the order they complete
+     */
+    public static Flux<SavingsGoalTransferResponse> doRoundUpStream(String token, UUID accountUid, UUID savingsGoalUid, Date roundUpWeekStartTimestamp) {
+        return Flux.defer(() -> {
+            requireEnded(roundUpWeekStartTimestamp);
+            return roundUpTransfers(token, accountUid, savingsGoalUid, roundUpWeekStartTimestamp, transferConcurrency);
+        });
+    }
+
+    //The outbox keys transfers on the week, and the first plan for a key wins. A week still going would be saved at its
+    //amount so far, and re-running it once it's over would just hand back the same short transfers
+    private static void requireEnded(Date roundUpWeekStartTimestamp) {
+        if (!RoundUpWeeks.hasEnded(roundUpWeekStartTimestamp)) {
+            throw new IllegalArgumentException("The week starting " + roundUpWeekStartTimestamp.toInstant() + " hasn't ended yet");
+        }
+    }
+
+    private static Mono<RoundUpResponse> runRoundUp(String token, UUID accountUid, UUID savingsGoalUid, Date roundUpWeekStartTimestamp, int transferConcurrency) {
+        return roundUpTransfers(token, accountUid, savingsGoalUid, roundUpWeekStartTimestamp, transferConcurrency)
+                .collectList()
                 //Map to our api
                 .map(RoundUpResponse::new);
     }
 
+    private static Flux<SavingsGoalTransferResponse> roundUpTransfers(String token, UUID accountUid, UUID savingsGoalUid, Date roundUpWeekStartTimestamp, int transferConcurrency) {
+        //Get the roundup for the feed items. This also checks the token can see the account
+        return totalStage.time(getRoundUps(token, accountUid, roundUpWeekStartTimestamp)
+                //Finish off anything left over for the account first. If that fails, it just stays pending for next time
+                .flatMap(roundUps -> resendStage.time(outbox.resendPending(token, accountUid).onErrorResume(_ -> Mono.empty()).then()).then(Mono.just(roundUps)))
+                .flatMapMany(roundUps -> transfers(token, accountUid, savingsGoalUid, roundUpWeekStartTimestamp, roundUps, transferConcurrency)));
+    }
 
     /**
-     * Gets all the feed items for a given account, using the accounts default categoryId
+     * Replays the round-ups for every whole week from `from` up to `to`, for onboarding a customer with months of history.
      * <p>
-     * No API for getting an account by id - so get the list and filter from there. Returns an error if the account is not found
+     * The week boundaries are worked out once, up front, and everything else is cut on them: the feed is fetched in
+     * windows of several weeks, several windows at once, and each week is summed from its own boundary to the next. So
+     * every transaction lands in exactly one week, however the windows are fetched.
+     * Weeks come out in order, as soon as their window (and every window before it) is in, while later windows are still
+     * downloading. Each week is transferred through the [[TransferOutbox]] just like [[doRoundUp]], so a backfill that
+     * fails half way can be re-run. The weeks are [[RoundUpWeeks]] weeks, the same ones the endpoint holds
+     * [[doRoundUp]] to, so a backfill and a normal round-up of the same week share their transfers rather than both saving it.
+     *
+     * @param token          The bearer token for the request
+     * @param accountUid     The account to backfill
+     * @param savingsGoalUid The savings goal to add the round-up amounts to
+     * @param from           From the first whole week starting at or after this. A part week before it is left for a normal round-up
+     * @param to             The end of the backfill. A part week at the end, or a week that hasn't ended yet, is left for a normal round-up
+     * @return The transfers for each week, in order
+     */
+    public static Flux<RoundUpBackfillWeek> doRoundUpBackfill(String token, UUID accountUid, UUID savingsGoalUid, Date from, Date to) {
+        //Only weeks that are over, for the same reason as [[doRoundUp]]
+        long[] weeks = weekBoundaries(from, new Date(Math.min(to.getTime(), System.currentTimeMillis())));
+        if (weeks.length < 2) {
+            return Flux.empty();
+        }
+        int windowWeeks = backfillWindowWeeks;
+        long[] windows = windowBoundaries(weeks, windowWeeks);
+        return accountsStage.time(accountCache.get(token, accountUid))
+                .flatMapMany(account -> resendStage.time(outbox.resendPending(token, accountUid).onErrorResume(_ -> Mono.empty()).then())
+                        .thenMany(feedStore.syncWindows(token, account, windows, backfillConcurrency).index()))
+                //One window at a time, and one week at a time within it, so the weeks stay in order
+                .concatMap(window -> {
+                    int firstWeek = (int) (window.getT1() * windowWeeks);
+                    int lastWeek = Math.min(firstWeek + windowWeeks, weeks.length - 1);
+                    return Flux.range(firstWeek, lastWeek - firstWeek).concatMap(week -> {
+                        Date weekStart = new Date(weeks[week]);
+                        long calculateStart = System.nanoTime();
+                        List<CurrencyAmount> roundUps = RoundUpCalculator.roundUpsBetween(window.getT2(), Instant.ofEpochMilli(weeks[week]), Instant.ofEpochMilli(weeks[week + 1]));
+                        calculateStage.record(System.nanoTime() - calculateStart);
+                        return transfers(token, accountUid, savingsGoalUid, weekStart, roundUps, transferConcurrency)
+                                .collectList()
+                                .map(transfers -> new RoundUpBackfillWeek(weekStart, transfers));
+                    });
+                });
+    }
+
+    /**
+     * @return The start of every whole week from `from` before `to`, then the end of the last one
+     */
+    static long[] weekBoundaries(Date from, Date to) {
+        long first = RoundUpWeeks.nextWeekStart(from.getTime());
+        long[] boundaries = new long[(int) RoundUpWeeks.wholeWeeksBetween(from, to) + 1];
+        for (int i = 0; i < boundaries.length; i++) {
+            boundaries[i] = first + i * RoundUpWeeks.WEEK_MILLIS;
+        }
+        return boundaries;
+    }
+
+    /**
+     * @return Every windowWeeks-th week boundary, and always the last one, so fetch windows never split a week
+     */
+    static long[] windowBoundaries(long[] weeks, int windowWeeks) {
+        int windows = (weeks.length - 1 + windowWeeks - 1) / windowWeeks;
+        long[] boundaries = new long[windows + 1];
+        for (int i = 0; i < windows; i++) {
+            boundaries[i] = weeks[i * windowWeeks];
+        }
+        boundaries[windows] = weeks[weeks.length - 1];
+        return boundaries;
+    }
+
+    /**
+     * Syncs an account's feed over a long range the way a backfill does: cut into windows of `roundup.backfill.window-weeks`,
+     * with up to `roundup.backfill.concurrency` of them fetched at once. For reports, which can cover as much as a backfill
+     *
+     * @param token   The bearer token for the request. Must already be known to see the account
+     * @param account The account to sync, and its default category
+     * @param from    The start of the range, inclusive
+     * @param to      The end of the range, exclusive
+     * @return The account's feed, once the whole range is in
+     */
+    static Mono<AccountFeed> syncRange(String token, Account account, Instant from, Instant to) {
+        long windowMillis = backfillWindowWeeks * RoundUpWeeks.WEEK_MILLIS;
+        int windows = (int) Math.max(1, Math.ceilDiv(to.toEpochMilli() - from.toEpochMilli(), windowMillis));
+        long[] boundaries = new long[windows + 1];
+        for (int i = 0; i < windows; i++) {
+            boundaries[i] = from.toEpochMilli() + i * windowMillis;
+        }
+        boundaries[windows] = to.toEpochMilli();
+        return feedStore.syncWindows(token, account, boundaries, backfillConcurrency).last();
+    }
+
+    //For each calculated round up currency, execute the savings goal transfer
+    private static Flux<SavingsGoalTransferResponse> transfers(String token, UUID accountUid, UUID savingsGoalUid, Date weekStart,
+                                                              List<CurrencyAmount> roundUps, int transferConcurrency) {
+        return transfersStage.time(Flux.fromIterable(roundUps).flatMap(
+                roundUp -> outbox.transfer(token, accountUid, savingsGoalUid, weekStart, roundUp),
+                transferConcurrency
+        ));
+    }
+
+    /**
+     * @return The transfer outbox, so it can be opened eagerly at startup
+     */
+    public static TransferOutbox outbox() {
+        return outbox;
+    }
+
+    /**
+     * @return The local feed store, so its counters can be reported
+     */
+    public static FeedStore feedStore() {
+        return feedStore;
+    }
+
+    /**
+     * @return The round-up result cache, so its counters can be reported
+     */
+    public static RoundUpResultCache resultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @return The accounts cache used for round-ups, so its counters can be reported
+     */
+    public static AccountCache accountCache() {
+        return accountCache;
+    }
+
+    /**
+     * Gets the round-ups for all the feed items for a given account, using the accounts default categoryId
+     * <p>
+     * No API for getting an account by id - so the account comes from the [[AccountCache]], which only goes to
+     * /accounts on a miss. Returns an error if the account is not found
+     * <p>
+     * The feed comes from the [[FeedStore]], which only goes upstream for the part of the week it hasn't already synced.
+     * A re-run of the same week, or the week after, is mostly answered from memory
      *
      * @param token      The bearer token for the request
      * @param accountUid The account to get the feed items for
-     * @return The FeedItems for the account
+     * @return The round-up total for each currency in the feed items for the account
      */
-    private static Mono<List<FeedItem>> getFeedItems(String token, UUID accountUid, Date roundUpWeekStartTimestamp) {
-        //Get all customers accounts
-        return ReactiveStarlingClient.get(token, "/accounts", AccountList.class)
-                .map(accountList -> accountList.accounts().stream().filter(account -> account.accountUid().equals(accountUid)).findFirst())
-                .flatMap(maybeAccount ->
-                {
-                    //No way to filter on the server side, so filter in here and handle missing account logic
-                    if (maybeAccount.isEmpty()) {
-                        return Mono.error(new IllegalArgumentException("Account: " + accountUid + " not found"));
-                    } else {
-                        Account account = maybeAccount.get();
-                        //For the spdcified account, get transactions for the week after the specified week start
-                        Instant start = roundUpWeekStartTimestamp.toInstant();
-                        Instant end = start.plus(7, ChronoUnit.DAYS);
-                        String query = "/feed/account/" + account.accountUid().toString() + "/settled-transactions-between" + "?minTransactionTimestamp=" + start + "&maxTransactionTimestamp=" + end;
-                        return ReactiveStarlingClient.get(token, query, FeedItemList.class).map(FeedItemList::feedItems);
-                    }
+    private static Mono<List<CurrencyAmount>> getRoundUps(String token, UUID accountUid, Date roundUpWeekStartTimestamp) {
+        //The account cache only returns accounts the token can see, so it is safe to hand out the stored feed after this
+        return accountsStage.time(accountCache.get(token, accountUid))
+                .flatMap(account -> {
+                    //For the spdcified account, get transactions for the week after the specified week start
+                    Instant start = roundUpWeekStartTimestamp.toInstant();
+                    Instant end = start.plus(7, ChronoUnit.DAYS);
+                    return feedStage.time(feedStore.sync(token, account, start, end))
+                            .map(feed -> {
+                                long calculateStart = System.nanoTime();
+                                List<CurrencyAmount> roundUps = RoundUpCalculator.roundUpsBetween(feed, start, end);
+                                calculateStage.record(System.nanoTime() - calculateStart);
+                                return roundUps;
+                            });
                 });
     }
 
+    //The relative uri of a window of an account's settled feed
+    static String feedQuery(UUID accountUid, Instant from, Instant to) {
+        return "/feed/account/" + accountUid + "/settled-transactions-between" + "?minTransactionTimestamp=" + from + "&maxTransactionTimestamp=" + to;
+    }
 
+    //The relative uri of an add-money transfer into a savings goal
+    static String transferEndpoint(UUID accountUid, UUID savingsGoalUid, UUID transferUid) {
+        return "/account/" + accountUid + "/savings-goals/" + savingsGoalUid + "/add-money/" + transferUid;
+    }
+
+    static Histogram stage(String stage) {
+        return Metrics.histogram("roundup_stage_seconds", "Time spent in each stage of a round-up", Histogram.LATENCY_NANOS, 1e-9, "stage", stage);
+    }
+
+    private static TransferOutbox openOutbox() {
+        Path directory = Path.of(System.getProperty("roundup.outbox.dir",
+                System.getProperty("jboss.server.data.dir", System.getProperty("java.io.tmpdir")) + "/roundup-outbox"));
+        try {
+            return TransferOutbox.open(directory, Integer.getInteger("roundup.outbox.segment-size", 16 * 1024 * 1024),
+                    Duration.parse(System.getProperty("roundup.outbox.retention", "PT1H")),
+                    (token, accountUid, savingsGoalUid, transferUid, topUpRequest) -> ReactiveStarlingClient.put(
+                            token,
+                            transferEndpoint(accountUid, savingsGoalUid, transferUid),
+                            topUpRequest,
+                            SavingsGoalTransferResponse.class,
+                            //Starling dedupes on the transferUid, so this is safe to retry
+                            true
+                    ));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the transfer outbox in " + directory, e);
+        }
+    }
 }
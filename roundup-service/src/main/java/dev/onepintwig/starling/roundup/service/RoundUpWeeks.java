@@ -0,0 +1,63 @@
+package dev.onepintwig.starling.roundup.service;
+
+import java.util.Date;
+
+/**
+ * The one definition of a round-up week: Monday midnight UTC to the next.
+ * <p>
+ * The transfer outbox keys each transfer on its week's start, so two round-ups only share (and dedupe) transfers if
+ * they agree on it to the millisecond. Every way in (round-ups, backfills and the scheduler) uses these weeks, so a
+ * backfill and a round-up that cover the same days land on the same transfers, rather than saving the overlap twice.
+ */
+public final class RoundUpWeeks {
+
+    public static final long WEEK_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+    //The epoch was a Thursday, so weeks start four days in
+    private static final long FIRST_MONDAY = 4 * 24 * 60 * 60 * 1000L;
+
+    private RoundUpWeeks() {
+    }
+
+    /**
+     * @return The start of the week the time is in
+     */
+    public static long weekStart(long epochMillis) {
+        return Math.floorDiv(epochMillis - FIRST_MONDAY, WEEK_MILLIS) * WEEK_MILLIS + FIRST_MONDAY;
+    }
+
+    /**
+     * @return The start of the week the date is in
+     */
+    public static Date weekStart(Date date) {
+        return new Date(weekStart(date.getTime()));
+    }
+
+    /**
+     * @return Whether the date is the start of a week
+     */
+    public static boolean isWeekStart(Date date) {
+        return weekStart(date.getTime()) == date.getTime();
+    }
+
+    /**
+     * @return The start of the first whole week at or after the time
+     */
+    public static long nextWeekStart(long epochMillis) {
+        long start = weekStart(epochMillis);
+        return start == epochMillis ? start : start + WEEK_MILLIS;
+    }
+
+    /**
+     * @return Whether the week starting then is over, so every transaction in it is in
+     */
+    public static boolean hasEnded(Date weekStart) {
+        return weekStart.getTime() + WEEK_MILLIS <= System.currentTimeMillis();
+    }
+
+    /**
+     * @return How many whole weeks fit between the two dates
+     */
+    public static long wholeWeeksBetween(Date from, Date to) {
+        return Math.max(0, Math.floorDiv(to.getTime() - nextWeekStart(from.getTime()), WEEK_MILLIS));
+    }
+}
@@ -0,0 +1,31 @@
+package dev.onepintwig.starling.roundup.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Anything we keep around per customer is keyed by a hash of their bearer token, never the token itself.
+ * That way a heap dump or a log line of a cache key doesn't leak credentials
+ */
+public final class TokenHash {
+
+    private TokenHash() {
+    }
+
+    /**
+     * @param token The bearer token
+     * @return Hex SHA-256 of the token
+     */
+    public static String of(String token) {
+        try {
+            //MessageDigest isn't thread safe, and is cheap enough to make per call
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            //Every JVM has to ship SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.client.BlockingStarlingClient;
+import dev.onepintwig.starling.roundup.metrics.Histogram;
+import dev.onepintwig.starling.roundup.model.Account;
+import dev.onepintwig.starling.roundup.model.AccountList;
+import dev.onepintwig.starling.roundup.model.CurrencyAmount;
+import dev.onepintwig.starling.roundup.model.RoundUpResponse;
+import dev.onepintwig.starling.roundup.model.SavingsGoalTransferResponse;
+import dev.onepintwig.starling.roundup.outbox.TransferOutbox;
+import dev.onepintwig.starling.roundup.store.AccountFeed;
+import dev.onepintwig.starling.roundup.store.FeedStore;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The [[RoundUpService.Engine.VIRTUAL_THREADS]] engine. The same round-up as the reactor pipeline, step for step, but
+ * written as plain blocking code, with each round-up on a virtual thread of its own.
+ * <p>
+ * Every step blocks its thread rather than building an operator chain, so a round-up costs a thread stack instead of
+ * a few dozen reactor objects, and a stack trace reads top to bottom. The thread parks while it waits on the upstream,
+ * so thousands in flight is fine.
+ * <p>
+ * The transfers, one per currency, are each forked onto a thread of their own, inside a scope that is closed before
+ * the round-up returns. So none outlive it, and the first one to fail cancels the rest. The accounts cache, feed store,
+ * outbox, stage timings and calculator are all the ones the reactor engine uses, through their blocking methods.
+ */
+final class VirtualThreadRoundUps {
+
+    //One virtual thread per round-up. Not pooled, they are cheaper to make than to share
+    private static final ExecutorService roundUps = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("roundup-", 0).factory());
+
+    private static final Histogram accountsStage = RoundUpService.stage("accounts");
+    private static final Histogram feedStage = RoundUpService.stage("feed");
+    private static final Histogram calculateStage = RoundUpService.stage("calculate");
+    private static final Histogram resendStage = RoundUpService.stage("resend");
+    private static final Histogram transfersStage = RoundUpService.stage("transfers");
+    private static final Histogram totalStage = RoundUpService.stage("total");
+
+    private static final FeedStore.BlockingFetcher fetcher = (token, accountUid, from, to, handler) ->
+            BlockingStarlingClient.streamFeedItems(token, RoundUpService.feedQuery(accountUid, from, to), handler);
+
+    private static final TransferOutbox.BlockingSender sender = (token, accountUid, savingsGoalUid, transferUid, topUpRequest) ->
+            BlockingStarlingClient.put(
+                    token,
+                    RoundUpService.transferEndpoint(accountUid, savingsGoalUid, transferUid),
+                    topUpRequest,
+                    SavingsGoalTransferResponse.class,
+                    //Starling dedupes on the transferUid, so this is safe to retry
+                    true
+            );
+
+    private VirtualThreadRoundUps() {
+    }
+
+    /**
+     * Runs a round-up on a new virtual thread. See [[RoundUpService.doRoundUp]] for what it does
+     *
+     * @param token               The bearer token for the request
+     * @param accountUid          The account to get the feed items for
+     * @param savingsGoalUid      The savings goal to add the round-up amounts to
+     * @param weekStart           The start of the round-up week
+     * @param transferConcurrency The most transfers to have in flight at once
+     * @return The completed savings goal transfers, once they are all done
+     */
+    static CompletableFuture<RoundUpResponse> doRoundUp(String token, UUID accountUid, UUID savingsGoalUid, Date weekStart, int transferConcurrency) {
+        CompletableFuture<RoundUpResponse> response = new CompletableFuture<>();
+        roundUps.execute(() -> {
+            try {
+                response.complete(roundUp(token, accountUid, savingsGoalUid, weekStart, transferConcurrency));
+            } catch (Throwable e) {
+                response.completeExceptionally(e);
+            }
+        });
+        return response;
+    }
+
+    private static RoundUpResponse roundUp(String token, UUID accountUid, UUID savingsGoalUid, Date weekStart, int transferConcurrency) throws Exception {
+        long start = System.nanoTime();
+        try {
+            //This also checks the token can see the account, so it is safe to hand out the stored feed after this
+            long stageStart = System.nanoTime();
+            Account account = RoundUpService.accountCache().getBlocking(token, accountUid,
+                    blockingToken -> BlockingStarlingClient.get(blockingToken, "/accounts", AccountList.class));
+            accountsStage.record(System.nanoTime() - stageStart);
+
+            Instant from = weekStart.toInstant();
+            Instant to = from.plus(7, ChronoUnit.DAYS);
+            stageStart = System.nanoTime();
+            AccountFeed feed = RoundUpService.feedStore().syncBlocking(token, account, from, to, fetcher);
+            feedStage.record(System.nanoTime() - stageStart);
+
+            stageStart = System.nanoTime();
+            List<CurrencyAmount> roundUps = RoundUpCalculator.roundUpsBetween(feed, from, to);
+            calculateStage.record(System.nanoTime() - stageStart);
+
+            //Finish off anything left over for the account first. If that fails, it just stays pending for next time
+            stageStart = System.nanoTime();
+            try {
+                RoundUpService.outbox().resendPendingBlocking(token, accountUid, sender);
+            } catch (RuntimeException _) {
+            }
+            resendStage.record(System.nanoTime() - stageStart);
+
+            return new RoundUpResponse(transfers(token, accountUid, savingsGoalUid, weekStart, roundUps, transferConcurrency));
+        } finally {
+            totalStage.record(System.nanoTime() - start);
+        }
+    }
+
+    //For each calculated round up currency, execute the savings goal transfer, in the order they complete
+    private static List<SavingsGoalTransferResponse> transfers(String token, UUID accountUid, UUID savingsGoalUid, Date weekStart,
+                                                               List<CurrencyAmount> roundUps, int transferConcurrency) throws Exception {
+        long start = System.nanoTime();
+        Semaphore inFlight = new Semaphore(transferConcurrency);
+        //Our structured scope. Closing it waits for every transfer forked in it, so none can outlive the round-up
+        try (ExecutorService scope = Executors.newVirtualThreadPerTaskExecutor()) {
+            ExecutorCompletionService<SavingsGoalTransferResponse> forked = new ExecutorCompletionService<>(scope);
+            for (CurrencyAmount roundUp : roundUps) {
+                forked.submit(() -> {
+                    inFlight.acquire();
+                    try {
+                        return RoundUpService.outbox().transferBlocking(token, accountUid, savingsGoalUid, weekStart, roundUp, sender);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            List<SavingsGoalTransferResponse> transfers = new ArrayList<>(roundUps.size());
+            for (int i = 0; i < roundUps.size(); i++) {
+                try {
+                    transfers.add(forked.take().get());
+                } catch (ExecutionException e) {
+                    //The first failure fails the round-up, and interrupts the transfers still going
+                    scope.shutdownNow();
+                    throw e.getCause() instanceof Exception cause ? cause : e;
+                } catch (InterruptedException e) {
+                    scope.shutdownNow();
+                    throw e;
+                }
+            }
+            return transfers;
+        } finally {
+            transfersStage.record(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package dev.onepintwig.starling.roundup.store;
+
+import dev.onepintwig.starling.roundup.client.IdentifiedFeedItemHandler;
+import dev.onepintwig.starling.roundup.model.CurrencyAmount;
+import dev.onepintwig.starling.roundup.model.FeedItem;
+import dev.onepintwig.starling.roundup.service.CurrencyIds;
+import dev.onepintwig.starling.roundup.service.RoundUpAccumulator;
+import dev.onepintwig.starling.roundup.service.RoundUpCalculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The locally synced feed for one account and category.
+ * <p>
+ * Items are stored column by column in primitive arrays rather than as [[FeedItem]] records, so each one costs
+ * about 45 bytes (amount, currency id, direction, timestamp, uid and its index slot) instead of a few hundred
+ * spread over half a dozen objects. A year of a busy account's spending fits in well under a megabyte.
+ * <p>
+ * Items are deduped on their feedItemUid, so syncing the same window twice is harmless. Rows are kept sorted by
+ * transaction time (lazily, the feed doesn't come back in order), so a range query is two binary searches and a scan.
+ * <p>
+ * Every outbound item is also added to a [[RoundUpIndex]] of daily totals as it arrives, so reports over long ranges
+ * don't have to scan the items at all.
+ * <p>
+ * Also tracks the window that has been synced and settled, so the [[FeedStore]] only fetches what it is missing.
+ * Thread safe - everything is guarded by this.
+ */
+public final class AccountFeed implements IdentifiedFeedItemHandler {
+
+    /**
+     * A window of transaction time, from inclusive, to exclusive, in epoch millis
+     */
+    record Window(long from, long to) {
+    }
+
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    private long[] times = new long[16];
+    private long[] minorUnits = new long[16];
+    private int[] currencyIds = new int[16];
+    private boolean[] outbound = new boolean[16];
+    private long[] uidMost = new long[16];
+    private long[] uidLeast = new long[16];
+    private int size;
+    private boolean sorted = true;
+
+    //Open addressed uid -> row + 1. Zero is an empty slot
+    private int[] slots = new int[32];
+
+    private final RoundUpIndex roundUpIndex = new RoundUpIndex();
+
+    //The window synced so far that is old enough to be final. Always one contiguous range
+    private boolean synced;
+    private long syncedFrom;
+    private long settledTo;
+
+    @Override
+    public synchronized void onFeedItem(UUID feedItemUid, long transactionTimeMillis, String currency, long minorUnits, FeedItem.TransactionDirection direction) {
+        int row = feedItemUid == null ? -1 : find(feedItemUid.getMostSignificantBits(), feedItemUid.getLeastSignificantBits());
+        if (row < 0) {
+            if (size == times.length) {
+                grow();
+            }
+            row = size++;
+            if (feedItemUid != null) {
+                uidMost[row] = feedItemUid.getMostSignificantBits();
+                uidLeast[row] = feedItemUid.getLeastSignificantBits();
+                index(row);
+            }
+        } else {
+            //An item we've seen before just gets overwritten, in case it changed. So take the old version out of the index
+            indexRoundUp(row, -1);
+        }
+        times[row] = transactionTimeMillis;
+        this.minorUnits[row] = minorUnits;
+        currencyIds[row] = CurrencyIds.idOf(currency);
+        outbound[row] = direction == FeedItem.TransactionDirection.OUT;
+        indexRoundUp(row, 1);
+        if (row > 0 && times[row - 1] > transactionTimeMillis || row < size - 1 && times[row + 1] < transactionTimeMillis) {
+            sorted = false;
+        }
+    }
+
+    /**
+     * Adds every item with a transaction time in the window to a round-up
+     *
+     * @param fromMillis  The start of the window, inclusive
+     * @param toMillis    The end of the window, exclusive
+     * @param accumulator The running totals to add to
+     * @return The accumulator, for chaining
+     */
+    public synchronized RoundUpAccumulator accumulate(long fromMillis, long toMillis, RoundUpAccumulator accumulator) {
+        if (!sorted) {
+            sort();
+        }
+        for (int row = lowerBound(fromMillis), end = lowerBound(toMillis); row < end; row++) {
+            if (outbound[row]) {
+                accumulator.add(currencyIds[row], minorUnits[row]);
+            }
+        }
+        return accumulator;
+    }
+
+    /**
+     * Gets the round-up totals for a range of whole days from the daily index. O(log days) per currency,
+     * however many items are in the range
+     *
+     * @param fromEpochDay The first UTC day, inclusive
+     * @param toEpochDay   The last UTC day, exclusive
+     * @return The round-up total for each currency with any round-ups in the range
+     */
+    public synchronized List<CurrencyAmount> roundUpsForDays(long fromEpochDay, long toEpochDay) {
+        List<CurrencyAmount> roundUps = new ArrayList<>();
+        for (int currencyId = 0; currencyId < roundUpIndex.currencies(); currencyId++) {
+            long total = roundUpIndex.sum(currencyId, fromEpochDay, toEpochDay);
+            if (total != 0) {
+                roundUps.add(new CurrencyAmount(CurrencyIds.code(currencyId), total));
+            }
+        }
+        return roundUps;
+    }
+
+    /**
+     * @return How many items are held
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Works out what needs fetching to be able to answer for a window.
+     * <p>
+     * Transactions can take a few days to settle, so only items that were already older than that when they were
+     * fetched are trusted as final. Anything newer is fetched again whenever a query reaches into it. Gaps between the
+     * synced window and the query are fetched too, so the synced window stays contiguous and two marks describe it.
+     *
+     * @param fromMillis The start of the query, inclusive
+     * @param toMillis   The end of the query, exclusive
+     * @return The windows to fetch. Empty if everything is already here
+     */
+    synchronized List<Window> missing(long fromMillis, long toMillis) {
+        if (!synced) {
+            return List.of(new Window(fromMillis, toMillis));
+        }
+        List<Window> missing = new ArrayList<>(2);
+        if (fromMillis < syncedFrom) {
+            missing.add(new Window(fromMillis, syncedFrom));
+        }
+        if (toMillis > settledTo) {
+            missing.add(new Window(settledTo, toMillis));
+        }
+        return missing;
+    }
+
+    /**
+     * Records that a window has been fetched
+     *
+     * @param window        The window that was fetched
+     * @param settledMillis Items before this had had long enough to settle when the fetch started
+     */
+    synchronized void synced(Window window, long settledMillis) {
+        long to = Math.min(window.to(), settledMillis);
+        if (to <= window.from()) {
+            return;
+        }
+        if (!synced) {
+            synced = true;
+            syncedFrom = window.from();
+            settledTo = to;
+        } else if (window.from() <= settledTo && to >= syncedFrom) {
+            syncedFrom = Math.min(syncedFrom, window.from());
+            settledTo = Math.max(settledTo, to);
+        }
+        //Otherwise it doesn't touch what we have. The items are still kept, the window just gets fetched again next time
+    }
+
+    synchronized Window syncedWindow() {
+        return synced ? new Window(syncedFrom, settledTo) : null;
+    }
+
+    //Items without a timestamp can't be put on a day, so they never make it into the index
+    private void indexRoundUp(int row, int sign) {
+        if (outbound[row] && times[row] != Long.MIN_VALUE) {
+            roundUpIndex.add(currencyIds[row], Math.floorDiv(times[row], MILLIS_PER_DAY), sign * RoundUpCalculator.roundUp(minorUnits[row]));
+        }
+    }
+
+    private int lowerBound(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void grow() {
+        int capacity = times.length * 2;
+        times = Arrays.copyOf(times, capacity);
+        minorUnits = Arrays.copyOf(minorUnits, capacity);
+        currencyIds = Arrays.copyOf(currencyIds, capacity);
+        outbound = Arrays.copyOf(outbound, capacity);
+        uidMost = Arrays.copyOf(uidMost, capacity);
+        uidLeast = Arrays.copyOf(uidLeast, capacity);
+        //Keep the index at most half full
+        slots = new int[capacity * 2];
+        reindex();
+    }
+
+    //Stable merge sort of the row order by time, then every column is permuted to match
+    private void sort() {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[size], 0, size);
+        times = permute(times, order);
+        minorUnits = permute(minorUnits, order);
+        uidMost = permute(uidMost, order);
+        uidLeast = permute(uidLeast, order);
+        int[] sortedCurrencyIds = new int[currencyIds.length];
+        boolean[] sortedOutbound = new boolean[outbound.length];
+        for (int i = 0; i < size; i++) {
+            sortedCurrencyIds[i] = currencyIds[order[i]];
+            sortedOutbound[i] = outbound[order[i]];
+        }
+        currencyIds = sortedCurrencyIds;
+        outbound = sortedOutbound;
+        Arrays.fill(slots, 0);
+        reindex();
+        sorted = true;
+    }
+
+    private void mergeSort(int[] order, int[] scratch, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(order, scratch, from, mid);
+        mergeSort(order, scratch, mid, to);
+        if (times[order[mid - 1]] <= times[order[mid]]) {
+            return;
+        }
+        System.arraycopy(order, from, scratch, from, to - from);
+        for (int i = from, left = from, right = mid; i < to; i++) {
+            if (right >= to || left < mid && times[scratch[left]] <= times[scratch[right]]) {
+                order[i] = scratch[left++];
+            } else {
+                order[i] = scratch[right++];
+            }
+        }
+    }
+
+    private long[] permute(long[] column, int[] order) {
+        long[] permuted = new long[column.length];
+        for (int i = 0; i < size; i++) {
+            permuted[i] = column[order[i]];
+        }
+        return permuted;
+    }
+
+    private void reindex() {
+        for (int row = 0; row < size; row++) {
+            if (uidMost[row] != 0 || uidLeast[row] != 0) {
+                index(row);
+            }
+        }
+    }
+
+    private void index(int row) {
+        int mask = slots.length - 1;
+        int slot = hash(uidMost[row], uidLeast[row]) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = row + 1;
+    }
+
+    private int find(long most, long least) {
+        int mask = slots.length - 1;
+        int slot = hash(most, least) & mask;
+        int entry;
+        while ((entry = slots[slot]) != 0) {
+            if (uidMost[entry - 1] == most && uidLeast[entry - 1] == least) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(long most, long least) {
+        long hash = (most ^ least) * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
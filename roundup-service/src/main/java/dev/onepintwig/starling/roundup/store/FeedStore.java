@@ -0,0 +1,197 @@
+package dev.onepintwig.starling.roundup.store;
+
+import dev.onepintwig.starling.roundup.client.FeedItemHandler;
+import dev.onepintwig.starling.roundup.model.Account;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Local copy of customers' settled feeds, so repeated and overlapping round-ups don't download the same week again and again.
+ * <p>
+ * Each account and category gets an [[AccountFeed]], which remembers the window it has synced. A sync only fetches
+ * the parts of the requested window it doesn't already have. Recent items (inside the overlap, for late settlements)
+ * are fetched again until they are old enough to be final, and everything else is answered from memory.
+ * <p>
+ * Feeds are evicted least recently used once there are too many. Nothing here checks tokens - callers must have
+ * already checked the token can see the account before asking for its feed.
+ */
+public final class FeedStore {
+
+    /**
+     * Streams the settled feed items for a window into a handler
+     */
+    @FunctionalInterface
+    public interface Fetcher {
+        Mono<Void> fetch(String token, UUID accountUid, Instant from, Instant to, FeedItemHandler handler);
+    }
+
+    /**
+     * As [[Fetcher]], but blocking until the whole window has been handed over
+     */
+    @FunctionalInterface
+    public interface BlockingFetcher {
+        void fetch(String token, UUID accountUid, Instant from, Instant to, FeedItemHandler handler);
+    }
+
+    private record Key(UUID accountUid, UUID categoryUid) {
+    }
+
+    private final Fetcher fetcher;
+    private final long overlapMillis;
+    private final LongSupplier clock;
+
+    //Access ordered, so iteration order is least recently used first. Guarded by itself
+    private final LinkedHashMap<Key, AccountFeed> feeds;
+
+    private final LongAdder fetches = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    /**
+     * @param overlap     How long a transaction can take to settle. Items younger than this are fetched again next time
+     * @param maxAccounts The most account feeds to hold before evicting the least recently used
+     * @param fetcher     Fetches a window of the feed from Starling
+     */
+    public FeedStore(Duration overlap, int maxAccounts, Fetcher fetcher) {
+        this(overlap, maxAccounts, fetcher, System::currentTimeMillis);
+    }
+
+    FeedStore(Duration overlap, int maxAccounts, Fetcher fetcher, LongSupplier clock) {
+        this.fetcher = fetcher;
+        this.overlapMillis = overlap.toMillis();
+        this.clock = clock;
+        this.feeds = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, AccountFeed> eldest) {
+                return size() > maxAccounts;
+            }
+        };
+    }
+
+    /**
+     * Brings the account's feed up to date for a window, fetching only what isn't already held
+     *
+     * @param token   The bearer token for the request. Must already be known to see the account
+     * @param account The account to sync, and its default category
+     * @param from    The start of the window, inclusive
+     * @param to      The end of the window, exclusive
+     * @return The account's feed, ready to be queried for the window
+     */
+    public Mono<AccountFeed> sync(String token, Account account, Instant from, Instant to) {
+        return Mono.defer(() -> {
+            syncs.increment();
+            AccountFeed feed = feed(new Key(account.accountUid(), account.defaultCategory()));
+            //Anything older than the overlap by the time we fetch it has settled, and won't change
+            long settled = clock.getAsLong() - overlapMillis;
+            return Flux.fromIterable(feed.missing(from.toEpochMilli(), to.toEpochMilli()))
+                    //One window at a time. There are never more than two, and the upstream is the bottleneck anyway
+                    .concatMap(window -> {
+                        fetches.increment();
+                        return fetcher.fetch(token, account.accountUid(), Instant.ofEpochMilli(window.from()), Instant.ofEpochMilli(window.to()), feed)
+                                //Only marked synced once the whole window is in. A failure half way just gets fetched again
+                                .then(Mono.fromRunnable(() -> feed.synced(window, settled)));
+                    })
+                    .then(Mono.just(feed));
+        });
+    }
+
+    /**
+     * As [[sync]], but blocking, with the windows fetched by a blocking fetcher on the calling thread. For the virtual
+     * thread engine. Works on the same feeds as [[sync]], so either engine can sync for the other
+     *
+     * @param token   The bearer token for the request. Must already be known to see the account
+     * @param account The account to sync, and its default category
+     * @param from    The start of the window, inclusive
+     * @param to      The end of the window, exclusive
+     * @param fetcher Fetches a window of the feed from Starling, blocking until it is all in
+     * @return The account's feed, ready to be queried for the window
+     */
+    public AccountFeed syncBlocking(String token, Account account, Instant from, Instant to, BlockingFetcher fetcher) {
+        syncs.increment();
+        AccountFeed feed = feed(new Key(account.accountUid(), account.defaultCategory()));
+        long settled = clock.getAsLong() - overlapMillis;
+        for (AccountFeed.Window window : feed.missing(from.toEpochMilli(), to.toEpochMilli())) {
+            fetches.increment();
+            fetcher.fetch(token, account.accountUid(), Instant.ofEpochMilli(window.from()), Instant.ofEpochMilli(window.to()), feed);
+            feed.synced(window, settled);
+        }
+        return feed;
+    }
+
+    /**
+     * As [[sync]], but for a long range cut into windows, with several windows fetched at once. For backfills.
+     * <p>
+     * Emits the feed once per window, in window order, as soon as that window and every one before it is in. So the
+     * caller can start on the first windows while later ones are still downloading. Only the parts of each window that
+     * aren't already held are fetched, and the range is only marked synced once every window is in.
+     *
+     * @param token       The bearer token for the request. Must already be known to see the account
+     * @param account     The account to sync, and its default category
+     * @param boundaries  Strictly increasing epoch millis. Window i is from boundaries[i] inclusive to boundaries[i + 1] exclusive
+     * @param concurrency The most windows to fetch at once
+     * @return The account's feed, once for each window as it becomes ready to be queried
+     */
+    public Flux<AccountFeed> syncWindows(String token, Account account, long[] boundaries, int concurrency) {
+        return Flux.defer(() -> {
+            syncs.increment();
+            AccountFeed feed = feed(new Key(account.accountUid(), account.defaultCategory()));
+            long settled = clock.getAsLong() - overlapMillis;
+            //Worked out once for the whole range, as nothing is marked synced until the end. Kept inside the range, so
+            //only what was actually fetched gets marked
+            long start = boundaries[0];
+            long end = boundaries[boundaries.length - 1];
+            List<AccountFeed.Window> missing = feed.missing(start, end).stream()
+                    .map(gap -> new AccountFeed.Window(Math.max(gap.from(), start), Math.min(gap.to(), end)))
+                    .filter(gap -> gap.from() < gap.to())
+                    .toList();
+            return Flux.range(0, boundaries.length - 1)
+                    //Subscribed to in parallel, but emitted in order
+                    .flatMapSequential(window -> Flux.fromIterable(missing)
+                            .concatMap(gap -> {
+                                long from = Math.max(gap.from(), boundaries[window]);
+                                long to = Math.min(gap.to(), boundaries[window + 1]);
+                                if (from >= to) {
+                                    return Mono.empty();
+                                }
+                                fetches.increment();
+                                return fetcher.fetch(token, account.accountUid(), Instant.ofEpochMilli(from), Instant.ofEpochMilli(to), feed);
+                            })
+                            .then(Mono.just(feed)), concurrency)
+                    .concatWith(Mono.fromRunnable(() -> missing.forEach(gap -> feed.synced(gap, settled))));
+        });
+    }
+
+    /**
+     * @return Windows fetched from upstream
+     */
+    public long fetches() {
+        return fetches.sum();
+    }
+
+    /**
+     * @return Syncs asked for. Those that didn't lead to a fetch were answered locally
+     */
+    public long syncs() {
+        return syncs.sum();
+    }
+
+    public int size() {
+        synchronized (feeds) {
+            return feeds.size();
+        }
+    }
+
+    private AccountFeed feed(Key key) {
+        synchronized (feeds) {
+            return feeds.computeIfAbsent(key, _ -> new AccountFeed());
+        }
+    }
+}
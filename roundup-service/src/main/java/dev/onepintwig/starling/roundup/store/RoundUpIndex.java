@@ -0,0 +1,113 @@
+package dev.onepintwig.starling.roundup.store;
+
+import java.util.Arrays;
+
+/**
+ * Round-up totals per currency per day, kept in a Fenwick tree per currency, so the total for any range of days
+ * is two prefix sums - O(log days) - rather than a rescan of every transaction in the range.
+ * <p>
+ * Days are UTC epoch days. Each tree covers a growable window of days, re-based whenever an item lands before
+ * or after it. Updates are incremental, negative deltas included, so an item that changes can be taken back out.
+ * <p>
+ * Not thread safe - guarded by the owning [[AccountFeed]].
+ */
+final class RoundUpIndex {
+
+    private static final int INITIAL_DAYS = 64;
+
+    //Indexed by currency id. Null for currencies never seen
+    private DayTree[] trees = new DayTree[8];
+
+    /**
+     * @param currencyId The [[CurrencyIds]] id of the round-up currency
+     * @param epochDay   The day of the transaction
+     * @param delta      The round-up to add. Negative to take one back out
+     */
+    void add(int currencyId, long epochDay, long delta) {
+        if (currencyId >= trees.length) {
+            trees = Arrays.copyOf(trees, Math.max(currencyId + 1, trees.length * 2));
+        }
+        DayTree tree = trees[currencyId];
+        if (tree == null) {
+            tree = trees[currencyId] = new DayTree(epochDay - INITIAL_DAYS / 2, INITIAL_DAYS);
+        }
+        tree.add(epochDay, delta);
+    }
+
+    /**
+     * @param currencyId The [[CurrencyIds]] id of the round-up currency
+     * @param fromDay    The first day, inclusive
+     * @param toDay      The last day, exclusive
+     * @return The round-up total for the currency over the days
+     */
+    long sum(int currencyId, long fromDay, long toDay) {
+        if (currencyId >= trees.length || trees[currencyId] == null || toDay <= fromDay) {
+            return 0;
+        }
+        DayTree tree = trees[currencyId];
+        return tree.prefix(toDay) - tree.prefix(fromDay);
+    }
+
+    /**
+     * @return One past the highest currency id in the index
+     */
+    int currencies() {
+        return trees.length;
+    }
+
+    private static final class DayTree {
+
+        private long origin;
+        //Raw per-day totals, kept so the tree can be rebuilt when the window grows
+        private long[] daily;
+        //1-based Fenwick tree over daily
+        private long[] tree;
+
+        private DayTree(long origin, int days) {
+            this.origin = origin;
+            this.daily = new long[days];
+            this.tree = new long[days + 1];
+        }
+
+        void add(long epochDay, long delta) {
+            if (epochDay < origin || epochDay >= origin + daily.length) {
+                grow(epochDay);
+            }
+            int day = (int) (epochDay - origin);
+            daily[day] += delta;
+            for (int i = day + 1; i < tree.length; i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+
+        //The total of every day before the given one
+        long prefix(long epochDay) {
+            long days = Math.min(Math.max(epochDay - origin, 0), daily.length);
+            long sum = 0;
+            for (int i = (int) days; i > 0; i -= i & -i) {
+                sum += tree[i];
+            }
+            return sum;
+        }
+
+        //Doubles the window towards the new day (or further, if it's a long way out) and rebuilds the tree in O(days)
+        private void grow(long epochDay) {
+            long from = Math.min(origin, epochDay);
+            long to = Math.max(origin + daily.length, epochDay + 1);
+            int size = (int) Math.max(to - from, daily.length * 2L);
+            long newOrigin = epochDay < origin ? to - size : from;
+            long[] grown = new long[size];
+            System.arraycopy(daily, 0, grown, (int) (origin - newOrigin), daily.length);
+            origin = newOrigin;
+            daily = grown;
+            tree = new long[size + 1];
+            for (int i = 1; i <= size; i++) {
+                tree[i] += daily[i - 1];
+                int parent = i + (i & -i);
+                if (parent <= size) {
+                    tree[parent] += tree[i];
+                }
+            }
+        }
+    }
+}
@@ -1,34 +1,87 @@
-//TODO: Implement integration test
-//Take in auth token as env variable and do account/savings-goal set up
-//
-//
-//package dev.onepintwig.starling.roundup;
-//
-//import jakarta.ws.rs.client.Client;
-//import jakarta.ws.rs.client.ClientBuilder;
-//import jakarta.ws.rs.client.WebTarget;
-//import jakarta.ws.rs.core.Response;
-//
-//import org.junit.jupiter.api.Assertions;
-//import org.junit.jupiter.api.Test;
-//
-//public class RoundUpTestIT {
-//    @Test
-//    public void testResponse() {
-//        try (Client client = ClientBuilder.newClient()) {
-//            final WebTarget target = client.target("http://localhost:8080/starling/products");
-//            try (Response response = target.request().get()) {
-//                Assertions.assertEquals(200, response.getStatus());
-//                final Product[] products = response.readEntity(Product[].class);
-//                Assertions.assertEquals(3, products.length);
-//                checkProduct(products[0], 111);
-//                checkProduct(products[1], 222);
-//                checkProduct(products[2], 333);
-//            }
-//        }
-//    }
-//
-//    private void checkProduct(final Product product, final int expectedId) {
-//        Assertions.assertEquals(expectedId, product.id(), () -> String.format("Expected %d got %s", expectedId, product));
-//    }
-//}
+package dev.onepintwig.starling.roundup;
+
+import dev.onepintwig.starling.roundup.client.StarlingCodec;
+import dev.onepintwig.starling.roundup.model.RoundUpResponse;
+import dev.onepintwig.starling.roundup.model.SavingsGoalTransferResponse;
+import dev.onepintwig.starling.roundup.simulator.LoadDriver;
+import dev.onepintwig.starling.roundup.simulator.LoadReport;
+import dev.onepintwig.starling.roundup.simulator.LoadSettings;
+import dev.onepintwig.starling.roundup.simulator.SimulatorSettings;
+import dev.onepintwig.starling.roundup.simulator.StarlingSimulator;
+import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.client.ClientBuilder;
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.core.Response;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+//Runs against the bootable jar, which the build starts pointed at a simulator on simulator.port, so this never touches the sandbox
+public class RoundUpTestIT {
+
+    private static final String SERVICE = "http://localhost:8080/starling";
+
+    private static StarlingSimulator simulator;
+
+    @BeforeAll
+    public static void startSimulator() {
+        simulator = new StarlingSimulator(SimulatorSettings.fromSystemProperties()
+                .withFeed(500, SimulatorSettings.parseCurrencyMix("GBP=0.8,EUR=0.2")),
+                Integer.getInteger("simulator.port", 9099));
+    }
+
+    @AfterAll
+    public static void stopSimulator() {
+        simulator.close();
+    }
+
+    private static RoundUpResponse roundUp(Client client, String token, UUID accountUid, UUID savingsGoalUid) throws IOException {
+        try (Response response = client.target(SERVICE + "/round-up/account/" + accountUid + "/savings-goal/" + savingsGoalUid)
+                .request()
+                .header("Authorization", token)
+                .put(Entity.json("{\"roundUpWeekStartTimestamp\":\"2024-09-02T00:00:00.000Z\"}"))) {
+            Assertions.assertEquals(200, response.getStatus());
+            return StarlingCodec.read(response.readEntity(String.class), RoundUpResponse.class);
+        }
+    }
+
+    @Test
+    public void roundUpTransfersEachCurrencyOnce() throws IOException {
+        String token = "Bearer it-customer";
+        UUID accountUid = StarlingSimulator.customer(token).accountUid();
+        UUID savingsGoalUid = UUID.randomUUID();
+        long transfers = simulator.transfers();
+        try (Client client = ClientBuilder.newClient()) {
+            RoundUpResponse first = roundUp(client, token, accountUid, savingsGoalUid);
+            Assertions.assertEquals(2, first.savingsGoalTransfers().size());
+            Assertions.assertTrue(first.savingsGoalTransfers().stream().allMatch(SavingsGoalTransferResponse::success));
+            Assertions.assertEquals(transfers + 2, simulator.transfers());
+
+            //Running it again doesn't move any more money
+            RoundUpResponse again = roundUp(client, token, accountUid, savingsGoalUid);
+            Assertions.assertEquals(
+                    first.savingsGoalTransfers().stream().map(SavingsGoalTransferResponse::transferUid).sorted().toList(),
+                    again.savingsGoalTransfers().stream().map(SavingsGoalTransferResponse::transferUid).sorted().toList());
+            Assertions.assertEquals(transfers + 2, simulator.transfers());
+        }
+    }
+
+    @Test
+    public void holdsUpUnderLoad() {
+        LoadReport report = LoadDriver.run(LoadSettings.fromSystemProperties()
+                .withTarget(SERVICE)
+                .withLoad(200, 0)
+                .withCustomers(1000, 4)
+                .withDuration(Duration.ofSeconds(2), Duration.ofSeconds(5)));
+        System.out.println(report);
+        Assertions.assertTrue(report.requests() > 0);
+        Assertions.assertEquals(0, report.errors(), report.toString());
+        Assertions.assertEquals(List.of(200), List.copyOf(report.statuses().keySet()));
+    }
+}
@@ -0,0 +1,178 @@
+package dev.onepintwig.starling.roundup.client;
+
+import dev.onepintwig.starling.roundup.model.AccountList;
+import dev.onepintwig.starling.roundup.model.SavingsGoalTransferResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BlockingStarlingClientSpec {
+
+    private static final String ACCOUNTS = "{\"accounts\":[]}";
+
+    private static DisposableServer server;
+    //Swapped by each test. Given the call number, starting at 1
+    private static volatile Route route;
+    private static final AtomicInteger calls = new AtomicInteger();
+
+    private interface Route {
+        Publisher<Void> handle(int call, HttpServerRequest request, HttpServerResponse response);
+    }
+
+    @BeforeAll
+    public static void startStub() {
+        server = HttpServer.create()
+                .port(0)
+                .handle((request, response) -> route.handle(calls.incrementAndGet(), request, response))
+                .bindNow();
+    }
+
+    @AfterAll
+    public static void stopStub() {
+        server.disposeNow();
+    }
+
+    @BeforeEach
+    public void configure() {
+        calls.set(0);
+        ReactiveStarlingClient.configure(ClientSettings.fromSystemProperties()
+                .withBaseUrl("http://localhost:" + server.port())
+                .withRetries(3, Duration.ofMillis(5), Duration.ofMillis(20))
+                .withCircuitBreaker(0, Duration.ofSeconds(10)));
+    }
+
+    @AfterEach
+    public void reset() {
+        ReactiveStarlingClient.configure(ClientSettings.fromSystemProperties());
+    }
+
+    private static Publisher<Void> respond(HttpServerResponse response, HttpResponseStatus status, String body) {
+        return response.status(status).sendString(Mono.just(body));
+    }
+
+    private static Route failing(int failures, HttpResponseStatus status, String body) {
+        return (call, _, response) -> call <= failures
+                ? respond(response, status, "{\"error\":\"nope\"}")
+                : respond(response, HttpResponseStatus.OK, body);
+    }
+
+    @Test
+    public void retriesLikeTheReactiveClient() {
+        route = failing(2, HttpResponseStatus.SERVICE_UNAVAILABLE, ACCOUNTS);
+        Assertions.assertNotNull(BlockingStarlingClient.get("Bearer token", "/accounts", AccountList.class));
+        Assertions.assertEquals(3, calls.get());
+
+        calls.set(0);
+        route = failing(Integer.MAX_VALUE, HttpResponseStatus.NOT_FOUND, ACCOUNTS);
+        StarlingApiException error = Assertions.assertThrows(StarlingApiException.class,
+                () -> BlockingStarlingClient.get("Bearer token", "/accounts", AccountList.class));
+        Assertions.assertEquals(404, error.status());
+        Assertions.assertEquals(1, calls.get());
+
+        //Only idempotent puts are retried
+        calls.set(0);
+        String body = "{\"transferUid\":\"" + UUID.randomUUID() + "\",\"success\":true}";
+        route = failing(1, HttpResponseStatus.BAD_GATEWAY, body);
+        Assertions.assertThrows(StarlingApiException.class,
+                () -> BlockingStarlingClient.put("Bearer token", "/transfer", Map.of(), SavingsGoalTransferResponse.class, false));
+        Assertions.assertEquals(1, calls.get());
+        calls.set(0);
+        Assertions.assertTrue(BlockingStarlingClient.put("Bearer token", "/transfer", Map.of(), SavingsGoalTransferResponse.class, true).success());
+        Assertions.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void slowResponsesTimeOut() {
+        ReactiveStarlingClient.configure(ReactiveStarlingClient.settings()
+                .withTimeouts(Duration.ofSeconds(1), Duration.ofSeconds(10), Map.of("/slow", Duration.ofMillis(100)))
+                .withRetries(0, Duration.ofMillis(5), Duration.ofMillis(20)));
+        route = (_, _, response) -> Mono.delay(Duration.ofSeconds(1)).then(Mono.from(respond(response, HttpResponseStatus.OK, ACCOUNTS)));
+        long start = System.nanoTime();
+        StarlingApiException error = Assertions.assertThrows(StarlingApiException.class,
+                () -> BlockingStarlingClient.get("Bearer token", "/slow", AccountList.class));
+        Assertions.assertTrue(System.nanoTime() - start < Duration.ofMillis(800).toNanos());
+        Assertions.assertInstanceOf(TimeoutException.class, error.getCause());
+        Assertions.assertTrue(error.retryable());
+    }
+
+    @Test
+    public void feedItemsAreStreamedWithTheToken() throws InterruptedException {
+        StringBuilder feed = new StringBuilder("{\"feedItems\":[");
+        for (int i = 0; i < 5000; i++) {
+            feed.append(i == 0 ? "" : ",").append("{\"amount\":{\"currency\":\"GBP\",\"minorUnits\":").append(i).append("},\"direction\":\"OUT\"}");
+        }
+        feed.append("]}");
+        List<String> tokens = new ArrayList<>();
+        route = (_, request, response) -> {
+            tokens.add(request.requestHeaders().get("Authorization"));
+            return respond(response, HttpResponseStatus.OK, feed.toString());
+        };
+        long[] total = new long[2];
+        //On a virtual thread, as the engine calls it
+        Thread.ofVirtual().start(() -> BlockingStarlingClient.streamFeedItems("Bearer token-1", "/feed", (_, minorUnits, _) -> {
+            total[0]++;
+            total[1] += minorUnits;
+        })).join();
+        Assertions.assertEquals(5000, total[0]);
+        Assertions.assertEquals(4999L * 5000 / 2, total[1]);
+        Assertions.assertEquals(List.of("Bearer token-1"), tokens);
+
+        //Errors are typed by status, with the body in the message
+        route = (_, _, response) -> respond(response, HttpResponseStatus.FORBIDDEN, "{\"error\":\"forbidden\"}");
+        StarlingApiException error = Assertions.assertThrows(StarlingApiException.class,
+                () -> BlockingStarlingClient.streamFeedItems("Bearer token-2", "/feed", (_, _, _) -> {
+                }));
+        Assertions.assertEquals(403, error.status());
+        Assertions.assertTrue(error.getMessage().contains("forbidden"));
+    }
+
+    @Test
+    public void feedsThatStopPartWayTimeOutAndFreeTheirConnection() throws InterruptedException {
+        ClientSettings.Pool pool = ReactiveStarlingClient.settings().pool();
+        ReactiveStarlingClient.configure(ReactiveStarlingClient.settings()
+                .withTimeouts(Duration.ofSeconds(1), Duration.ofSeconds(10), Map.of("/stalled", Duration.ofMillis(300)))
+                .withPool(new ClientSettings.Pool(1, pool.pendingAcquireMaxCount(), pool.maxIdleTime(), pool.maxLifeTime(), pool.evictInBackground())));
+        //The headers and the first item, then nothing
+        route = (_, _, response) -> response.status(HttpResponseStatus.OK)
+                .sendString(Flux.concat(Mono.just("{\"feedItems\":[{\"amount\":{\"currency\":\"GBP\",\"minorUnits\":1},\"direction\":\"OUT\"}"), Mono.never()));
+        StarlingApiException[] error = new StarlingApiException[1];
+        boolean[] interrupted = new boolean[1];
+        long start = System.nanoTime();
+        Thread.ofVirtual().start(() -> {
+            try {
+                BlockingStarlingClient.streamFeedItems("Bearer token", "/stalled", (_, _, _) -> {
+                });
+            } catch (StarlingApiException e) {
+                error[0] = e;
+            }
+            interrupted[0] = Thread.currentThread().isInterrupted();
+        }).join(Duration.ofSeconds(5));
+        Assertions.assertNotNull(error[0], "Still reading a body that stopped");
+        Assertions.assertTrue(System.nanoTime() - start < Duration.ofSeconds(2).toNanos());
+        Assertions.assertInstanceOf(TimeoutException.class, error[0].getCause());
+        Assertions.assertFalse(interrupted[0]);
+
+        //The only connection is free again
+        route = (_, _, response) -> respond(response, HttpResponseStatus.OK, ACCOUNTS);
+        Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () -> BlockingStarlingClient.get("Bearer token", "/accounts", AccountList.class));
+    }
+}
@@ -0,0 +1,79 @@
+package dev.onepintwig.starling.roundup.client;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CircuitBreakerSpec {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final CircuitBreaker breaker = new CircuitBreaker(3, 100, clock::get);
+
+    private static final StarlingApiException unavailable = new StarlingApiException("Unavailable", 503, true, null);
+    private static final StarlingApiException notFound = new StarlingApiException("Not found", 404, false, null);
+    //Never left the building, like the pool's pending acquire limit
+    private static final StarlingApiException local = new StarlingApiException("Too many calls waiting", 0, false, null);
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) {
+            breaker.onError(breaker.tryAcquire(), unavailable);
+        }
+    }
+
+    @Test
+    public void onlyAnswersFromTheUpstreamResetTheCount() {
+        fail(2);
+        breaker.onError(breaker.tryAcquire(), local);
+        fail(1);
+        Assertions.assertTrue(breaker.isOpen());
+
+        CircuitBreaker other = new CircuitBreaker(3, 100, clock::get);
+        other.onError(other.tryAcquire(), unavailable);
+        other.onError(other.tryAcquire(), unavailable);
+        //A 404 is still an answer
+        other.onError(other.tryAcquire(), notFound);
+        other.onError(other.tryAcquire(), unavailable);
+        Assertions.assertFalse(other.isOpen());
+    }
+
+    @Test
+    public void onlyTheProbeCanCloseItOrFreeTheProbe() {
+        long startedBeforeOpening = breaker.tryAcquire();
+        fail(3);
+        Assertions.assertTrue(breaker.isOpen());
+        Assertions.assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+
+        clock.addAndGet(100);
+        long probe = breaker.tryAcquire();
+        Assertions.assertNotEquals(CircuitBreaker.REJECTED, probe);
+        Assertions.assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+        //Finishing late, or being cancelled, doesn't close it or let a second probe out
+        breaker.onSuccess(startedBeforeOpening);
+        breaker.onCancel(startedBeforeOpening);
+        Assertions.assertTrue(breaker.isOpen());
+        Assertions.assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+
+        //A probe that never reached the upstream frees the probe, but doesn't close it
+        breaker.onError(probe, local);
+        Assertions.assertTrue(breaker.isOpen());
+        long next = breaker.tryAcquire();
+        Assertions.assertNotEquals(CircuitBreaker.REJECTED, next);
+        //The old probe's late report is ignored too
+        breaker.onSuccess(probe);
+        Assertions.assertTrue(breaker.isOpen());
+        breaker.onSuccess(next);
+        Assertions.assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void aFailedProbeOpensItForAnotherPeriod() {
+        fail(3);
+        clock.addAndGet(100);
+        breaker.onError(breaker.tryAcquire(), unavailable);
+        Assertions.assertTrue(breaker.isOpen());
+        Assertions.assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+        clock.addAndGet(100);
+        Assertions.assertNotEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+    }
+}
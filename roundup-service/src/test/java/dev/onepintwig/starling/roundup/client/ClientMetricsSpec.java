@@ -0,0 +1,25 @@
+package dev.onepintwig.starling.roundup.client;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ClientMetricsSpec {
+
+    @Test
+    public void uidsAndQueriesAreTemplated() {
+        Assertions.assertEquals("/accounts", ClientMetrics.template("/accounts"));
+        Assertions.assertEquals("/feed/account/{uid}/settled-transactions-between", ClientMetrics.template(
+                "/feed/account/b8b7c4b1-7d2e-4f8a-9c3e-1a2b3c4d5e6f/settled-transactions-between?minTransactionTimestamp=2024-09-14T12:34:56Z"));
+        Assertions.assertEquals("/account/{uid}/savings-goals/{uid}/add-money/{uid}", ClientMetrics.template(
+                "/account/b8b7c4b1-7d2e-4f8a-9c3e-1a2b3c4d5e6f/savings-goals/c0ffee00-1234-4cde-8f00-123456789abc/add-money/11221122-1122-1122-1122-112211221122"));
+        //Not quite uids
+        Assertions.assertEquals("/account/b8b7c4b1x7d2e-4f8a-9c3e-1a2b3c4d5e6f/", ClientMetrics.template("/account/b8b7c4b1x7d2e-4f8a-9c3e-1a2b3c4d5e6f/"));
+    }
+
+    @Test
+    public void endpointsAreShared() {
+        Assertions.assertSame(
+                ClientMetrics.endpoint("GET", "/feed/account/b8b7c4b1-7d2e-4f8a-9c3e-1a2b3c4d5e6f/settled-transactions-between?a=b"),
+                ClientMetrics.endpoint("GET", "/feed/account/c0ffee00-1234-4cde-8f00-123456789abc/settled-transactions-between?c=d"));
+    }
+}
@@ -0,0 +1,146 @@
+package dev.onepintwig.starling.roundup.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.onepintwig.starling.roundup.model.CurrencyAmount;
+import dev.onepintwig.starling.roundup.model.FeedItem;
+import dev.onepintwig.starling.roundup.model.FeedItemList;
+import dev.onepintwig.starling.roundup.service.RoundUpAccumulator;
+import dev.onepintwig.starling.roundup.service.RoundUpCalculator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+public class FeedItemStreamParserSpec {
+
+    private static final String FEED = """
+            {
+              "feedItems": [
+                {
+                  "feedItemUid": "11221122-1122-1122-1122-112211221122",
+                  "transactionTime": "2024-09-14T12:34:56.000Z",
+                  "amount": {"currency": "GBP", "minorUnits": 435},
+                  "sourceAmount": {"currency": "EUR", "minorUnits": 999},
+                  "direction": "OUT",
+                  "status": "SETTLED",
+                  "roundUp": {"goalCategoryUid": "68e16af4-c2c3-413b-bf93-1056b90097fa", "amount": {"currency": "GBP", "minorUnits": 65}},
+                  "tags": [{"amount": {"currency": "JPY", "minorUnits": 1}}]
+                },
+                {"direction": "IN", "amount": {"currency": "GBP", "minorUnits": 1}, "status": "SETTLED"},
+                {"direction": "OUT", "amount": {"minorUnits": 87, "currency": "USD"}, "status": "SETTLED"},
+                {"status": "SETTLED", "amount": {"currency": "USD", "minorUnits": 520}, "direction": "OUT"}
+              ],
+              "somethingElse": {"feedItems": [{"amount": {"currency": "GBP", "minorUnits": 1}, "direction": "OUT"}]}
+            }
+            """;
+
+    @Test
+    public void matchesFullDeserialization() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        List<CurrencyAmount> expected = RoundUpCalculator.roundUpsForFeedItems(objectMapper.readValue(FEED, FeedItemList.class).feedItems());
+
+        //Split the payload up at every possible point, so tokens get chopped across chunks
+        byte[] bytes = FEED.getBytes(StandardCharsets.UTF_8);
+        for (int split = 1; split < bytes.length; split++) {
+            RoundUpAccumulator accumulator = new RoundUpAccumulator();
+            FeedItemStreamParser parser = new FeedItemStreamParser(new JsonFactory(), accumulator);
+            parser.feed(Unpooled.wrappedBuffer(bytes, 0, split));
+            parser.feed(Unpooled.wrappedBuffer(bytes, split, bytes.length - split));
+            parser.endOfInput();
+            Assertions.assertEquals(asMap(expected), asMap(accumulator.roundUps()));
+        }
+    }
+
+    @Test
+    public void identifiedHandlersGetUidAndTime() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        FeedItem expected = objectMapper.readValue(FEED, FeedItemList.class).feedItems().getFirst();
+
+        List<FeedItem> items = new ArrayList<>();
+        FeedItemStreamParser parser = new FeedItemStreamParser(new JsonFactory(), (IdentifiedFeedItemHandler) (feedItemUid, transactionTime, currency, minorUnits, direction) ->
+                items.add(new FeedItem(new CurrencyAmount(currency, minorUnits), direction, FeedItem.Status.SETTLED, feedItemUid, transactionTime == Long.MIN_VALUE ? null : new Date(transactionTime))));
+        parser.feed(Unpooled.copiedBuffer(FEED, StandardCharsets.UTF_8));
+        parser.endOfInput();
+
+        Assertions.assertEquals(expected, items.getFirst());
+        //The rest don't have them
+        Assertions.assertNull(items.getLast().feedItemUid());
+        Assertions.assertNull(items.getLast().transactionTime());
+
+        //Timestamps written by jackson itself come through as epoch millis
+        List<Long> times = new ArrayList<>();
+        FeedItemStreamParser roundTrip = new FeedItemStreamParser(new JsonFactory(), (IdentifiedFeedItemHandler) (feedItemUid, transactionTime, currency, minorUnits, direction) -> times.add(transactionTime));
+        roundTrip.feed(Unpooled.wrappedBuffer(objectMapper.writeValueAsBytes(new FeedItemList(List.of(expected)))));
+        roundTrip.endOfInput();
+        Assertions.assertEquals(List.of(expected.transactionTime().getTime()), times);
+    }
+
+    @Test
+    public void veryLargeFeed() {
+        //Way too big to want as a String or a list of records. Generated lazily, in random sized chunks
+        int items = 2_000_000;
+        String[] currencies = {"GBP", "USD", "EUR", "JPY"};
+        long[] expected = new long[currencies.length];
+        Random random = new Random(42);
+
+        Flux<ByteBuf> body = Flux.concat(
+                Flux.just(Unpooled.copiedBuffer("{\"feedItems\":[", StandardCharsets.UTF_8)),
+                Flux.range(0, items / 1000).map(chunk -> {
+                    StringBuilder json = new StringBuilder();
+                    for (int i = chunk * 1000; i < (chunk + 1) * 1000; i++) {
+                        int currency = i % currencies.length;
+                        int minorUnits = random.nextInt(100_000);
+                        boolean out = random.nextBoolean();
+                        if (out) {
+                            expected[currency] += 100 - (minorUnits % 100);
+                        }
+                        json.append(i == 0 ? "" : ",")
+                                .append("{\"feedItemUid\":\"").append(i).append("\",\"amount\":{\"currency\":\"").append(currencies[currency])
+                                .append("\",\"minorUnits\":").append(minorUnits).append("},\"direction\":\"").append(out ? "OUT" : "IN")
+                                .append("\",\"status\":\"SETTLED\"}");
+                    }
+                    return Unpooled.copiedBuffer(json, StandardCharsets.UTF_8);
+                }),
+                Flux.just(Unpooled.copiedBuffer("]}", StandardCharsets.UTF_8))
+        );
+
+        RoundUpAccumulator accumulator = new RoundUpAccumulator();
+        FeedItemStreamParser parser = new FeedItemStreamParser(new JsonFactory(), accumulator);
+        body.doOnNext(buffer -> {
+            //Re-chop each chunk at a random point so tokens span buffers
+            int split = random.nextInt(buffer.readableBytes());
+            parser.feed(buffer.slice(0, split));
+            parser.feed(buffer.slice(split, buffer.readableBytes() - split));
+            buffer.release();
+        }).blockLast();
+        parser.endOfInput();
+
+        Map<String, Long> result = asMap(accumulator.roundUps());
+        Assertions.assertEquals(currencies.length, result.size());
+        for (int i = 0; i < currencies.length; i++) {
+            Assertions.assertEquals(expected[i], result.get(currencies[i]));
+        }
+    }
+
+    @Test
+    public void truncatedFeedFails() {
+        FeedItemStreamParser parser = new FeedItemStreamParser(new JsonFactory(), new RoundUpAccumulator());
+        parser.feed(Unpooled.copiedBuffer("{\"feedItems\":[{\"amount\":", StandardCharsets.UTF_8));
+        Assertions.assertThrows(RuntimeException.class, parser::endOfInput);
+    }
+
+    private static Map<String, Long> asMap(List<CurrencyAmount> amounts) {
+        return amounts.stream().collect(Collectors.toMap(CurrencyAmount::currency, CurrencyAmount::minorUnits));
+    }
+}
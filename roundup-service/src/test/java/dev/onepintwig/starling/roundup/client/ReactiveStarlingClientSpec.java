@@ -0,0 +1,216 @@
+package dev.onepintwig.starling.roundup.client;
+
+import dev.onepintwig.starling.roundup.model.AccountList;
+import dev.onepintwig.starling.roundup.model.SavingsGoalTransferResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ReactiveStarlingClientSpec {
+
+    private static final String ACCOUNTS = "{\"accounts\":[]}";
+
+    private static DisposableServer server;
+    //Swapped by each test. Given the call number, starting at 1
+    private static volatile Route route;
+    private static final AtomicInteger calls = new AtomicInteger();
+    private static final AtomicInteger connections = new AtomicInteger();
+
+    private interface Route {
+        Publisher<Void> handle(int call, HttpServerRequest request, HttpServerResponse response);
+    }
+
+    @BeforeAll
+    public static void startStub() {
+        server = HttpServer.create()
+                .port(0)
+                .protocol(HttpProtocol.HTTP11, HttpProtocol.H2C)
+                .compress(true)
+                .doOnChannelInit((_, _, _) -> connections.incrementAndGet())
+                .handle((request, response) -> route.handle(calls.incrementAndGet(), request, response))
+                .bindNow();
+    }
+
+    @AfterAll
+    public static void stopStub() {
+        server.disposeNow();
+    }
+
+    @BeforeEach
+    public void configure() {
+        calls.set(0);
+        ReactiveStarlingClient.configure(ClientSettings.fromSystemProperties()
+                .withBaseUrl("http://localhost:" + server.port())
+                .withRetries(3, Duration.ofMillis(5), Duration.ofMillis(20))
+                .withHedging(0, Duration.ofMillis(50))
+                .withCircuitBreaker(0, Duration.ofSeconds(10)));
+    }
+
+    @AfterEach
+    public void reset() {
+        ReactiveStarlingClient.configure(ClientSettings.fromSystemProperties());
+    }
+
+    private static Publisher<Void> respond(HttpServerResponse response, HttpResponseStatus status, String body) {
+        return response.status(status).sendString(Mono.just(body));
+    }
+
+    private static Route failing(int failures, HttpResponseStatus status, String body) {
+        return (call, _, response) -> call <= failures
+                ? respond(response, status, "{\"error\":\"nope\"}")
+                : respond(response, HttpResponseStatus.OK, body);
+    }
+
+    @Test
+    public void retryableFailuresAreRetried() {
+        route = failing(2, HttpResponseStatus.SERVICE_UNAVAILABLE, ACCOUNTS);
+        Assertions.assertNotNull(ReactiveStarlingClient.get("Bearer token", "/accounts", AccountList.class).block());
+        Assertions.assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void clientErrorsFailFast() {
+        route = failing(Integer.MAX_VALUE, HttpResponseStatus.NOT_FOUND, ACCOUNTS);
+        StarlingApiException error = Assertions.assertThrows(StarlingApiException.class,
+                () -> ReactiveStarlingClient.get("Bearer token", "/accounts", AccountList.class).block());
+        Assertions.assertEquals(404, error.status());
+        Assertions.assertFalse(error.retryable());
+        Assertions.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void retriesRunOut() {
+        route = failing(Integer.MAX_VALUE, HttpResponseStatus.TOO_MANY_REQUESTS, ACCOUNTS);
+        StarlingApiException error = Assertions.assertThrows(StarlingApiException.class,
+                () -> ReactiveStarlingClient.get("Bearer token", "/accounts", AccountList.class).block());
+        Assertions.assertEquals(429, error.status());
+        Assertions.assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void slowResponsesTimeOut() {
+        ReactiveStarlingClient.configure(ReactiveStarlingClient.settings()
+                .withTimeouts(Duration.ofSeconds(1), Duration.ofSeconds(10), Map.of("/slow", Duration.ofMillis(100)))
+                .withRetries(0, Duration.ofMillis(5), Duration.ofMillis(20)));
+        route = (_, _, response) -> Mono.delay(Duration.ofSeconds(1)).then(Mono.from(respond(response, HttpResponseStatus.OK, ACCOUNTS)));
+        long start = System.nanoTime();
+        StarlingApiException error = Assertions.assertThrows(StarlingApiException.class,
+                () -> ReactiveStarlingClient.get("Bearer token", "/slow", AccountList.class).block());
+        Assertions.assertTrue(System.nanoTime() - start < Duration.ofMillis(800).toNanos());
+        Assertions.assertInstanceOf(TimeoutException.class, error.getCause());
+        Assertions.assertTrue(error.retryable());
+    }
+
+    @Test
+    public void onlyIdempotentPutsAreRetried() {
+        String body = "{\"transferUid\":\"" + UUID.randomUUID() + "\",\"success\":true}";
+        route = failing(1, HttpResponseStatus.BAD_GATEWAY, body);
+        Assertions.assertThrows(StarlingApiException.class,
+                () -> ReactiveStarlingClient.put("Bearer token", "/transfer", Map.of(), SavingsGoalTransferResponse.class).block());
+        Assertions.assertEquals(1, calls.get());
+
+        calls.set(0);
+        Assertions.assertTrue(ReactiveStarlingClient.put("Bearer token", "/transfer", Map.of(), SavingsGoalTransferResponse.class, true).block().success());
+        Assertions.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void slowCallsAreHedged() {
+        ReactiveStarlingClient.configure(ReactiveStarlingClient.settings().withHedging(0.9, Duration.ofMillis(50)));
+        //Warm up the latency histogram, so there is a percentile to hedge at
+        route = (_, _, response) -> respond(response, HttpResponseStatus.OK, ACCOUNTS);
+        for (int i = 0; i < 25; i++) {
+            ReactiveStarlingClient.get("Bearer token", "/hedged", AccountList.class).block();
+        }
+        //Then the next call stalls, but a second go at it doesn't
+        int stalled = calls.get() + 1;
+        route = (call, _, response) -> call == stalled
+                ? Mono.delay(Duration.ofSeconds(5)).then(Mono.from(respond(response, HttpResponseStatus.OK, ACCOUNTS)))
+                : respond(response, HttpResponseStatus.OK, ACCOUNTS);
+        long start = System.nanoTime();
+        Assertions.assertNotNull(ReactiveStarlingClient.get("Bearer token", "/hedged", AccountList.class).block());
+        Assertions.assertTrue(System.nanoTime() - start < Duration.ofSeconds(2).toNanos());
+        Assertions.assertEquals(stalled + 1, calls.get());
+    }
+
+    @Test
+    public void breakerOpensThenProbes() throws InterruptedException {
+        ReactiveStarlingClient.configure(ReactiveStarlingClient.settings()
+                .withRetries(0, Duration.ofMillis(5), Duration.ofMillis(20))
+                .withCircuitBreaker(3, Duration.ofMillis(200)));
+        route = failing(3, HttpResponseStatus.INTERNAL_SERVER_ERROR, ACCOUNTS);
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertThrows(StarlingApiException.class, () -> ReactiveStarlingClient.get("Bearer token", "/accounts", AccountList.class).block());
+        }
+        //Open, so this never reaches the stub
+        Assertions.assertThrows(CircuitOpenException.class, () -> ReactiveStarlingClient.get("Bearer token", "/accounts", AccountList.class).block());
+        Assertions.assertEquals(3, calls.get());
+
+        Thread.sleep(250);
+        Assertions.assertNotNull(ReactiveStarlingClient.get("Bearer token", "/accounts", AccountList.class).block());
+        Assertions.assertNotNull(ReactiveStarlingClient.get("Bearer token", "/accounts", AccountList.class).block());
+        Assertions.assertEquals(5, calls.get());
+    }
+
+    @Test
+    public void callsShareConnectionsAndCarryTheirOwnToken() {
+        ConcurrentLinkedQueue<HttpServerRequest> requests = new ConcurrentLinkedQueue<>();
+        route = (_, request, response) -> {
+            requests.add(request);
+            return respond(response, HttpResponseStatus.OK, ACCOUNTS);
+        };
+        int opened = connections.get();
+        for (int i = 0; i < 20; i++) {
+            ReactiveStarlingClient.get("Bearer " + i, "/accounts", AccountList.class).block();
+        }
+        Assertions.assertTrue(connections.get() - opened <= 1);
+        int i = 0;
+        for (HttpServerRequest request : requests) {
+            Assertions.assertEquals(List.of("Bearer " + i++), request.requestHeaders().getAll("Authorization"));
+            //The load balancer rejects GETs with a Content-Length
+            Assertions.assertFalse(request.requestHeaders().contains("Content-Length"));
+            Assertions.assertEquals("application/json", request.requestHeaders().get("Accept"));
+        }
+    }
+
+    @Test
+    public void http2AndCompressionCanBeTurnedOn() {
+        ReactiveStarlingClient.configure(ReactiveStarlingClient.settings().withProtocol(true, true));
+        ConcurrentLinkedQueue<HttpServerRequest> requests = new ConcurrentLinkedQueue<>();
+        route = (_, request, response) -> {
+            requests.add(request);
+            return respond(response, HttpResponseStatus.OK, ACCOUNTS);
+        };
+        Assertions.assertNotNull(ReactiveStarlingClient.get("Bearer token", "/accounts", AccountList.class).block());
+        String body = "{\"transferUid\":\"" + UUID.randomUUID() + "\",\"success\":true}";
+        route = (_, request, response) -> {
+            requests.add(request);
+            return respond(response, HttpResponseStatus.OK, body);
+        };
+        Assertions.assertTrue(ReactiveStarlingClient.put("Bearer token", "/transfer", Map.of(), SavingsGoalTransferResponse.class).block().success());
+        for (HttpServerRequest request : requests) {
+            //reactor-netty hands h2 requests over as HTTP/1.1 ones, this is how to tell
+            Assertions.assertTrue(request.requestHeaders().contains("x-http2-stream-id"));
+            Assertions.assertTrue(request.requestHeaders().get("Accept-Encoding").contains("gzip"));
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package dev.onepintwig.starling.roundup.metrics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+public class HistogramSpec {
+
+    @Test
+    public void bucketsAreInclusiveUpperBounds() {
+        Histogram histogram = new Histogram(new long[]{10, 100});
+        histogram.record(0);
+        histogram.record(10);
+        histogram.record(11);
+        histogram.record(100);
+        histogram.record(101);
+        Assertions.assertArrayEquals(new long[]{2, 2, 1}, histogram.snapshot());
+        Assertions.assertEquals(5, histogram.count());
+        Assertions.assertEquals(222, histogram.sum());
+    }
+
+    @Test
+    public void concurrentRecordsAreNotLost() {
+        Histogram histogram = new Histogram(Histogram.LATENCY_NANOS);
+        IntStream.range(0, 1_000_000).parallel().forEach(i -> histogram.record(i * 10_000L));
+        Assertions.assertEquals(1_000_000, histogram.count());
+        Assertions.assertEquals(10_000L * (999_999L * 1_000_000L / 2), histogram.sum());
+    }
+}
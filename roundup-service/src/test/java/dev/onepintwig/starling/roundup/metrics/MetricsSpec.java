@@ -0,0 +1,40 @@
+package dev.onepintwig.starling.roundup.metrics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class MetricsSpec {
+
+    @Test
+    public void scrapesInPrometheusFormat() {
+        Metrics.counter("spec_requests_total", "Requests", "path", "/a\"b").add(3);
+        Metrics.counter("spec_requests_total", "Requests", "path", "/c").increment();
+        Metrics.gauge("spec_queue_depth", "Queue depth", () -> 2.5);
+        Histogram histogram = Metrics.histogram("spec_latency_seconds", "Latency", new long[]{1_000_000, 1_000_000_000}, 1e-9, "stage", "feed");
+        histogram.record(500_000);
+        histogram.record(2_000_000);
+
+        String scrape = Metrics.scrape();
+        Assertions.assertTrue(scrape.contains("""
+                # HELP spec_requests_total Requests
+                # TYPE spec_requests_total counter
+                """), scrape);
+        Assertions.assertTrue(scrape.contains("spec_requests_total{path=\"/a\\\"b\"} 3\n"), scrape);
+        Assertions.assertTrue(scrape.contains("spec_requests_total{path=\"/c\"} 1\n"), scrape);
+        Assertions.assertTrue(scrape.contains("spec_queue_depth 2.5\n"), scrape);
+        Assertions.assertTrue(scrape.contains("""
+                # TYPE spec_latency_seconds histogram
+                spec_latency_seconds_bucket{stage="feed",le="0.001"} 1
+                spec_latency_seconds_bucket{stage="feed",le="1"} 2
+                spec_latency_seconds_bucket{stage="feed",le="+Inf"} 2
+                spec_latency_seconds_sum{stage="feed"} 0.0025
+                spec_latency_seconds_count{stage="feed"} 2
+                """), scrape);
+    }
+
+    @Test
+    public void namesCanOnlyHaveOneType() {
+        Metrics.counter("spec_typed", "Typed");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Metrics.gauge("spec_typed", "Typed", () -> 1));
+    }
+}
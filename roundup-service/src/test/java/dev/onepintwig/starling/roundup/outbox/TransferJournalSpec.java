@@ -0,0 +1,153 @@
+package dev.onepintwig.starling.roundup.outbox;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+public class TransferJournalSpec {
+
+    @TempDir
+    Path directory;
+
+    private static final long KEEP_ALL = Long.MIN_VALUE;
+
+    //Collects everything replayed on open
+    private static final class Recorder implements TransferJournal.Listener {
+        final Map<TransferKey, UUID> planned = new LinkedHashMap<>();
+        final Map<TransferKey, Long> amounts = new HashMap<>();
+        final Set<UUID> completed = new HashSet<>();
+
+        @Override
+        public void onPlanned(TransferKey key, UUID transferUid, long minorUnits) {
+            planned.put(key, transferUid);
+            amounts.put(key, minorUnits);
+        }
+
+        @Override
+        public void onCompleted(UUID transferUid, boolean success, long completedAtMillis) {
+            completed.add(transferUid);
+        }
+    }
+
+    private static TransferKey key(String currency) {
+        return new TransferKey(UUID.randomUUID(), UUID.randomUUID(), 1_726_317_296_000L, currency);
+    }
+
+    @Test
+    public void replaysAfterReopen() throws IOException {
+        TransferKey gbp = key("GBP");
+        TransferKey usd = key("USD");
+        try (TransferJournal journal = TransferJournal.open(directory, 4096, KEEP_ALL, new Recorder())) {
+            journal.appendPlanned(gbp, gbp.transferUid(), 158).join();
+            journal.appendPlanned(usd, usd.transferUid(), 42).join();
+            journal.appendCompleted(gbp.transferUid(), true, 1).join();
+        }
+
+        Recorder recorder = new Recorder();
+        try (TransferJournal journal = TransferJournal.open(directory, 4096, KEEP_ALL, recorder)) {
+            Assertions.assertEquals(List.of(gbp, usd), List.copyOf(recorder.planned.keySet()));
+            Assertions.assertEquals(158L, recorder.amounts.get(gbp));
+            Assertions.assertEquals(Set.of(gbp.transferUid()), recorder.completed);
+            //And carries on appending after what was already there
+            journal.appendCompleted(usd.transferUid(), true, 1).join();
+        }
+
+        Recorder again = new Recorder();
+        TransferJournal.open(directory, 4096, KEEP_ALL, again).close();
+        Assertions.assertEquals(Set.of(gbp.transferUid(), usd.transferUid()), again.completed);
+    }
+
+    @Test
+    public void rollsOverSegments() throws IOException {
+        List<TransferKey> keys = IntStream.range(0, 200).mapToObj(_ -> key("GBP")).toList();
+        try (TransferJournal journal = TransferJournal.open(directory, 1024, KEEP_ALL, new Recorder())) {
+            keys.forEach(key -> journal.appendPlanned(key, key.transferUid(), 1).join());
+        }
+        try (var files = Files.list(directory)) {
+            Assertions.assertTrue(files.count() > 1);
+        }
+        Recorder recorder = new Recorder();
+        TransferJournal.open(directory, 1024, KEEP_ALL, recorder).close();
+        Assertions.assertEquals(keys, List.copyOf(recorder.planned.keySet()));
+    }
+
+    @Test
+    public void tornTailIsDropped() throws IOException {
+        TransferKey gbp = key("GBP");
+        TransferKey usd = key("USD");
+        try (TransferJournal journal = TransferJournal.open(directory, 4096, KEEP_ALL, new Recorder())) {
+            journal.appendPlanned(gbp, gbp.transferUid(), 158).join();
+            journal.appendPlanned(usd, usd.transferUid(), 42).join();
+        }
+        //Corrupt the last byte of the second record, as if we crashed half way through writing it
+        Path segment = directory.resolve("journal-00000000.log");
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            int first = 4 + 1 + 16 + 16 + 8 + 16 + 8 + 1 + 3 + 4;
+            file.seek(2L * first - 1);
+            int last = file.read();
+            file.seek(2L * first - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        Recorder recorder = new Recorder();
+        TransferKey eur = key("EUR");
+        try (TransferJournal journal = TransferJournal.open(directory, 4096, KEEP_ALL, recorder)) {
+            Assertions.assertEquals(List.of(gbp), List.copyOf(recorder.planned.keySet()));
+            journal.appendPlanned(eur, eur.transferUid(), 7).join();
+        }
+        Recorder after = new Recorder();
+        TransferJournal.open(directory, 4096, KEEP_ALL, after).close();
+        Assertions.assertEquals(List.of(gbp, eur), List.copyOf(after.planned.keySet()));
+    }
+
+    @Test
+    public void concurrentAppendsShareCommits() throws IOException {
+        try (TransferJournal journal = TransferJournal.open(directory, 1024 * 1024, KEEP_ALL, new Recorder())) {
+            List<CompletableFuture<Void>> writes = IntStream.range(0, 2000).parallel()
+                    .mapToObj(_ -> {
+                        TransferKey key = key("GBP");
+                        return journal.appendPlanned(key, key.transferUid(), 1);
+                    })
+                    .toList();
+            CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)).join();
+            Assertions.assertEquals(2000, journal.appends());
+            Assertions.assertTrue(journal.commits() < journal.appends(), "Expected grouped commits, got " + journal.commits());
+        }
+    }
+
+    @Test
+    public void compactsOnOpen() throws IOException {
+        List<TransferKey> old = IntStream.range(0, 100).mapToObj(_ -> key("GBP")).toList();
+        TransferKey recent = key("GBP");
+        TransferKey unconfirmed = key("GBP");
+        try (TransferJournal journal = TransferJournal.open(directory, 1024, KEEP_ALL, new Recorder())) {
+            old.forEach(key -> {
+                journal.appendPlanned(key, key.transferUid(), 1).join();
+                journal.appendCompleted(key.transferUid(), true, 100).join();
+            });
+            journal.appendPlanned(recent, recent.transferUid(), 1).join();
+            journal.appendCompleted(recent.transferUid(), true, 1000).join();
+            journal.appendPlanned(unconfirmed, unconfirmed.transferUid(), 1).join();
+        }
+
+        Recorder recorder = new Recorder();
+        TransferJournal.open(directory, 1024, 500, recorder).close();
+        Assertions.assertEquals(List.of(recent, unconfirmed), List.copyOf(recorder.planned.keySet()));
+        Assertions.assertEquals(Set.of(recent.transferUid()), recorder.completed);
+        //The old segments are gone
+        try (var files = Files.list(directory)) {
+            Assertions.assertEquals(1, files.count());
+        }
+        Recorder again = new Recorder();
+        TransferJournal.open(directory, 1024, 500, again).close();
+        Assertions.assertEquals(List.of(recent, unconfirmed), List.copyOf(again.planned.keySet()));
+    }
+}
@@ -0,0 +1,116 @@
+package dev.onepintwig.starling.roundup.outbox;
+
+import dev.onepintwig.starling.roundup.model.CurrencyAmount;
+import dev.onepintwig.starling.roundup.model.SavingsGoalTransferResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TransferOutboxSpec {
+
+    @TempDir
+    Path directory;
+
+    private final UUID accountUid = UUID.randomUUID();
+    private final UUID savingsGoalUid = UUID.randomUUID();
+    private final Date weekStart = new Date(1_726_317_296_000L);
+    private final Duration retention = Duration.ofHours(1);
+    private final List<UUID> sent = Collections.synchronizedList(new ArrayList<>());
+
+    private TransferOutbox.Sender succeeding() {
+        return (token, accountUid, savingsGoalUid, transferUid, topUpRequest) -> {
+            sent.add(transferUid);
+            return Mono.just(new SavingsGoalTransferResponse(transferUid, true));
+        };
+    }
+
+    @Test
+    public void repeatsDoNotTransferAgain() throws IOException {
+        try (TransferOutbox outbox = TransferOutbox.open(directory, 4096, retention, succeeding())) {
+            SavingsGoalTransferResponse first = outbox.transfer("token", accountUid, savingsGoalUid, weekStart, new CurrencyAmount("GBP", 158)).block();
+            SavingsGoalTransferResponse second = outbox.transfer("token", accountUid, savingsGoalUid, weekStart, new CurrencyAmount("GBP", 158)).block();
+            Assertions.assertEquals(first, second);
+            Assertions.assertEquals(1, sent.size());
+
+            //A different currency or week is a different transfer
+            outbox.transfer("token", accountUid, savingsGoalUid, weekStart, new CurrencyAmount("USD", 158)).block();
+            outbox.transfer("token", accountUid, savingsGoalUid, new Date(weekStart.getTime() + 1), new CurrencyAmount("GBP", 158)).block();
+            Assertions.assertEquals(3, new HashSet<>(sent).size());
+        }
+        //Survives a restart
+        try (TransferOutbox outbox = TransferOutbox.open(directory, 4096, retention, succeeding())) {
+            outbox.transfer("token", accountUid, savingsGoalUid, weekStart, new CurrencyAmount("GBP", 158)).block();
+            Assertions.assertEquals(3, sent.size());
+            Assertions.assertEquals(0, outbox.pending());
+        }
+    }
+
+    @Test
+    public void unconfirmedTransfersAreResentWithTheSameUid() throws IOException {
+        //Upstream times out, so the transfer is planned but never confirmed
+        try (TransferOutbox outbox = TransferOutbox.open(directory, 4096, retention, (token, accountUid, savingsGoalUid, transferUid, topUpRequest) -> {
+            sent.add(transferUid);
+            return Mono.error(new IllegalStateException("Timed out"));
+        })) {
+            Assertions.assertThrows(IllegalStateException.class, () ->
+                    outbox.transfer("token", accountUid, savingsGoalUid, weekStart, new CurrencyAmount("GBP", 158)).block());
+            Assertions.assertEquals(1, outbox.pending());
+        }
+
+        try (TransferOutbox outbox = TransferOutbox.open(directory, 4096, retention, succeeding())) {
+            Assertions.assertEquals(1, outbox.pending());
+            List<SavingsGoalTransferResponse> resent = outbox.resendPending("token", accountUid).collectList().block();
+            Assertions.assertEquals(1, resent.size());
+            Assertions.assertEquals(0, outbox.pending());
+            Assertions.assertEquals(sent.getFirst(), sent.getLast());
+            //Nothing left for another account to pick up
+            Assertions.assertEquals(0, outbox.resendPending("token", UUID.randomUUID()).count().block());
+        }
+    }
+
+    @Test
+    public void aPlanThatCannotBeJournaledIsNotLeftBehind() throws IOException {
+        TransferOutbox outbox = TransferOutbox.open(directory, 4096, retention, succeeding());
+        outbox.close();
+        //Fails straight away rather than hanging on a plan that never became durable
+        Assertions.assertThrows(IllegalStateException.class, () ->
+                outbox.transfer("token", accountUid, savingsGoalUid, weekStart, new CurrencyAmount("GBP", 158)).block(Duration.ofSeconds(5)));
+        Assertions.assertThrows(IllegalStateException.class, () ->
+                outbox.transferBlocking("token", accountUid, savingsGoalUid, weekStart, new CurrencyAmount("GBP", 158),
+                        (token, accountUid, savingsGoalUid, transferUid, topUpRequest) -> new SavingsGoalTransferResponse(transferUid, true)));
+        Assertions.assertEquals(0, outbox.pending());
+        Assertions.assertEquals(0, outbox.resendPending("token", accountUid).count().block(Duration.ofSeconds(5)));
+        Assertions.assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void confirmedTransfersAreOnlyRememberedForTheRetention() throws IOException {
+        AtomicLong clock = new AtomicLong(1_726_317_296_000L);
+        try (TransferOutbox outbox = TransferOutbox.open(directory, 4096, retention, succeeding(), clock::get)) {
+            outbox.transfer("token", accountUid, savingsGoalUid, weekStart, new CurrencyAmount("GBP", 158)).block();
+            outbox.transfer("token", accountUid, savingsGoalUid, weekStart, new CurrencyAmount("GBP", 158)).block();
+            Assertions.assertEquals(1, sent.size());
+            Assertions.assertEquals(1, outbox.retained());
+            Assertions.assertEquals(0, outbox.pending());
+
+            //Forgotten, so a repeat goes to Starling again, with the same transferUid for it to dedupe
+            clock.addAndGet(retention.toMillis() + 1);
+            outbox.transfer("token", accountUid, savingsGoalUid, weekStart, new CurrencyAmount("GBP", 158)).block();
+            Assertions.assertEquals(2, sent.size());
+            Assertions.assertEquals(sent.getFirst(), sent.getLast());
+        }
+        //And dropped from the journal once past the retention
+        clock.addAndGet(retention.toMillis() + 1);
+        try (TransferOutbox outbox = TransferOutbox.open(directory, 4096, retention, succeeding(), clock::get)) {
+            Assertions.assertEquals(0, outbox.retained());
+            Assertions.assertEquals(0, outbox.pending());
+        }
+    }
+}
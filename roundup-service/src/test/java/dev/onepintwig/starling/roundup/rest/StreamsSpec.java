@@ -0,0 +1,135 @@
+package dev.onepintwig.starling.roundup.rest;
+
+import dev.onepintwig.starling.roundup.model.SavingsGoalTransferResponse;
+import jakarta.ws.rs.sse.OutboundSseEvent;
+import jakarta.ws.rs.sse.SseEventSink;
+import org.jboss.resteasy.plugins.providers.sse.SseImpl;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StreamsSpec {
+
+    private static SavingsGoalTransferResponse transfer(long millis) {
+        return new SavingsGoalTransferResponse(new UUID(0, millis), true);
+    }
+
+    @Test
+    public void eachTransferIsWrittenAsSoonAsItCompletes() throws IOException {
+        Flux<SavingsGoalTransferResponse> transfers = Flux.just(50L, 300L, 600L)
+                .flatMap(millis -> Flux.just(transfer(millis)).delayElements(Duration.ofMillis(millis)));
+        long start = System.nanoTime();
+        List<Long> flushedAt = new ArrayList<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Streams.ndjson(transfers).write(new OutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public void flush() {
+                flushedAt.add((System.nanoTime() - start) / 1_000_000);
+            }
+        });
+
+        String[] lines = body.toString(StandardCharsets.UTF_8).split("\n");
+        Assertions.assertEquals(3, lines.length);
+        Assertions.assertTrue(lines[0].contains(new UUID(0, 50).toString()));
+        Assertions.assertTrue(lines[0].contains("\"success\":true"));
+        //The first one went out long before the last one was done, rather than all of them at the end
+        Assertions.assertEquals(3, flushedAt.size());
+        Assertions.assertTrue(flushedAt.get(0) < 250, "First flushed at " + flushedAt.get(0) + "ms");
+        Assertions.assertTrue(flushedAt.get(2) >= 550, "Last flushed at " + flushedAt.get(2) + "ms");
+    }
+
+    @Test
+    public void aSlowReaderHoldsBackTheWork() throws IOException {
+        AtomicInteger emitted = new AtomicInteger();
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger mostAhead = new AtomicInteger();
+        Flux<SavingsGoalTransferResponse> transfers = Flux.range(0, 20)
+                .map(i -> transfer(i))
+                .doOnNext(_ -> emitted.incrementAndGet());
+        Streams.ndjson(transfers).write(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void flush() throws IOException {
+                written.incrementAndGet();
+                mostAhead.accumulateAndGet(emitted.get() - written.get(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        Assertions.assertEquals(20, written.get());
+        Assertions.assertTrue(mostAhead.get() <= 2, "Got " + mostAhead.get() + " ahead of the reader");
+    }
+
+    @Test
+    public void failuresEndTheStreamWithAnError() throws IOException {
+        Flux<SavingsGoalTransferResponse> transfers = Flux.just(transfer(1))
+                .concatWith(Flux.error(new IllegalStateException("Upstream down")));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Streams.ndjson(transfers).write(body);
+        String[] lines = body.toString(StandardCharsets.UTF_8).split("\n");
+        Assertions.assertEquals(2, lines.length);
+        Assertions.assertEquals("{\"error\":\"Upstream down\"}", lines[1]);
+    }
+
+    @Test
+    public void eventsWaitForTheLastToBeSent() {
+        List<OutboundSseEvent> events = new ArrayList<>();
+        List<CompletableFuture<Object>> sends = new ArrayList<>();
+        AtomicInteger emitted = new AtomicInteger();
+        boolean[] closed = new boolean[1];
+        SseEventSink sink = new SseEventSink() {
+            @Override
+            public boolean isClosed() {
+                return closed[0];
+            }
+
+            @Override
+            public CompletionStage<?> send(OutboundSseEvent event) {
+                events.add(event);
+                CompletableFuture<Object> sent = new CompletableFuture<>();
+                sends.add(sent);
+                return sent;
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        Streams.sse(Flux.range(0, 3).map(i -> transfer(i)).doOnNext(_ -> emitted.incrementAndGet()), "transfer", sink, new SseImpl());
+
+        //Nothing more is asked for until the connection has taken the last one
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals(i + 1, emitted.get());
+            Assertions.assertEquals(i + 1, events.size());
+            Assertions.assertEquals("transfer", events.get(i).getName());
+            Assertions.assertTrue(events.get(i).getData().toString().contains(new UUID(0, i).toString()));
+            Assertions.assertFalse(closed[0]);
+            sends.get(i).complete(null);
+        }
+        Assertions.assertTrue(closed[0]);
+    }
+}
@@ -0,0 +1,267 @@
+package dev.onepintwig.starling.roundup.schedule;
+
+import dev.onepintwig.starling.roundup.client.StarlingApiException;
+import dev.onepintwig.starling.roundup.model.RoundUpResponse;
+import dev.onepintwig.starling.roundup.service.RoundUpWeeks;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+public class RoundUpSchedulerSpec {
+
+    @TempDir
+    Path directory;
+
+    //Wednesday, part way through the week the enrolments start in
+    private final long week = RoundUpWeeks.weekStart(1_726_317_296_000L);
+    private final AtomicLong clock = new AtomicLong(week + Duration.ofDays(2).toMillis());
+    private final byte[] key = new byte[32];
+    private final Queue<String> runs = new ConcurrentLinkedQueue<>();
+
+    //Rounds-up an hour after the week ends, spread over 12 hourly slots
+    private SchedulerSettings settings() {
+        return new SchedulerSettings(Duration.ofHours(1), Duration.ofHours(12), 12, 32, 16, 5, Duration.ofMinutes(5), directory);
+    }
+
+    private RoundUpScheduler open(SchedulerSettings settings, TokenVault vault, RoundUpScheduler.Runner runner) throws IOException {
+        RoundUpScheduler scheduler = RoundUpScheduler.open(settings, vault, runner, () -> "api-sandbox.starlingbank.com", clock::get);
+        scheduler.start();
+        return scheduler;
+    }
+
+    private RoundUpScheduler.Runner recording() {
+        return (token, accountUid, savingsGoalUid, weekStart) -> {
+            runs.add(token + " " + accountUid + " " + weekStart.getTime());
+            return Mono.just(new RoundUpResponse(List.of()));
+        };
+    }
+
+    private static long hours(double hours) {
+        return (long) (hours * 60 * 60 * 1000);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.nanoTime() < deadline, "Timed out waiting");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void startingAgainDoesNothing() throws IOException, InterruptedException {
+        try (RoundUpScheduler scheduler = open(settings(), TokenVault.inMemory(), recording())) {
+            //Already started by open. A second dispatcher would throw, and a second timer turn the wheel twice
+            scheduler.start();
+            scheduler.enrol("token", UUID.randomUUID(), UUID.randomUUID());
+            clock.set(week + RoundUpWeeks.WEEK_MILLIS + hours(13));
+            scheduler.tick();
+            await(() -> scheduler.completed() == 1);
+            Assertions.assertEquals(1, runs.size());
+        }
+    }
+
+    @Test
+    public void roundUpsAreSpreadOverTheWindow() throws IOException, InterruptedException {
+        try (RoundUpScheduler scheduler = open(settings(), TokenVault.inMemory(), recording())) {
+            for (int i = 0; i < 240; i++) {
+                Date next = scheduler.enrol("token", UUID.randomUUID(), UUID.randomUUID());
+                long sinceWeekEnd = next.getTime() - week - RoundUpWeeks.WEEK_MILLIS;
+                Assertions.assertTrue(sinceWeekEnd >= hours(1) && sinceWeekEnd < hours(13), "Outside the window: " + next);
+            }
+            //Nothing until the week is over and the window opens
+            clock.set(week + RoundUpWeeks.WEEK_MILLIS + hours(0.5));
+            scheduler.tick();
+            Assertions.assertEquals(0, scheduler.queueDepth() + scheduler.inFlight() + scheduler.completed());
+
+            //Half way through the window, about half are done
+            clock.set(week + RoundUpWeeks.WEEK_MILLIS + hours(6.5));
+            scheduler.tick();
+            await(() -> scheduler.queueDepth() == 0 && scheduler.inFlight() == 0);
+            long halfWay = scheduler.completed();
+            Assertions.assertTrue(halfWay > 60 && halfWay < 180, "Not spread out: " + halfWay + " of 240 at half way");
+
+            clock.set(week + RoundUpWeeks.WEEK_MILLIS + hours(13));
+            scheduler.tick();
+            await(() -> scheduler.completed() == 240);
+            //All for the week that just ended
+            Assertions.assertTrue(runs.stream().allMatch(run -> run.endsWith(" " + week)));
+        }
+    }
+
+    @Test
+    public void restartsResumeWithoutRedoingOrSkippingAWeek() throws IOException, InterruptedException {
+        UUID accountUid = UUID.randomUUID();
+        Path vaultFile = directory.resolve("tokens.vault");
+        try (RoundUpScheduler scheduler = open(settings(), TokenVault.open(vaultFile, key), recording())) {
+            scheduler.enrol("token", accountUid, UUID.randomUUID());
+            clock.set(week + RoundUpWeeks.WEEK_MILLIS + hours(13));
+            scheduler.tick();
+            await(() -> scheduler.completed() == 1);
+        }
+
+        //Down for the next three weeks. Each is run once, oldest first, and with the token from the vault
+        clock.set(week + 4 * RoundUpWeeks.WEEK_MILLIS + hours(13));
+        try (RoundUpScheduler scheduler = open(settings(), TokenVault.open(vaultFile, key), recording())) {
+            Assertions.assertEquals(1, scheduler.enrolments());
+            scheduler.tick();
+            await(() -> scheduler.completed() == 3);
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            expected.add("token " + accountUid + " " + (week + i * RoundUpWeeks.WEEK_MILLIS));
+        }
+        Assertions.assertEquals(expected, new ArrayList<>(runs));
+
+        //And nothing again on the next restart
+        try (RoundUpScheduler scheduler = open(settings(), TokenVault.open(vaultFile, key), recording())) {
+            scheduler.tick();
+            Thread.sleep(100);
+            Assertions.assertEquals(0, scheduler.completed());
+        }
+    }
+
+    @Test
+    public void concurrencyIsCappedAndQueueingIsReported() throws IOException, InterruptedException {
+        List<Sinks.One<RoundUpResponse>> running = Collections.synchronizedList(new ArrayList<>());
+        RoundUpScheduler.Runner held = (token, accountUid, savingsGoalUid, weekStart) -> {
+            Sinks.One<RoundUpResponse> sink = Sinks.one();
+            running.add(sink);
+            return sink.asMono();
+        };
+        try (RoundUpScheduler scheduler = open(settings().withConcurrency(4, 2), TokenVault.inMemory(), held)) {
+            for (int i = 0; i < 10; i++) {
+                scheduler.enrol("token", UUID.randomUUID(), UUID.randomUUID());
+            }
+            clock.set(week + RoundUpWeeks.WEEK_MILLIS + hours(13));
+            scheduler.tick();
+            //The upstream cap is the tighter. One more is taken off the queue, waiting on the upstream
+            await(() -> scheduler.inFlight() == 2 && scheduler.queueDepth() == 7);
+            Thread.sleep(50);
+            Assertions.assertEquals(2, running.size());
+            Assertions.assertTrue(scheduler.lagMillis() >= hours(0.5), "Lag " + scheduler.lagMillis());
+
+            //Each one finishing lets another go
+            for (int i = 0; i < 10; i++) {
+                await(() -> !running.isEmpty());
+                running.removeFirst().tryEmitValue(new RoundUpResponse(List.of()));
+            }
+            await(() -> scheduler.completed() == 10);
+            Assertions.assertEquals(0, scheduler.queueDepth());
+            Assertions.assertEquals(0, scheduler.lagMillis());
+        }
+    }
+
+    @Test
+    public void failuresAreRetriedOnlyIfTheUpstreamMightGetOverThem() throws IOException, InterruptedException {
+        Map<UUID, Integer> attempts = Collections.synchronizedMap(new HashMap<>());
+        UUID unavailable = UUID.randomUUID();
+        UUID notFound = UUID.randomUUID();
+        RoundUpScheduler.Runner failing = (token, accountUid, savingsGoalUid, weekStart) -> {
+            int attempt = attempts.merge(accountUid, 1, Integer::sum);
+            if (accountUid.equals(unavailable) && attempt == 1) {
+                return Mono.error(new StarlingApiException("Unavailable", 503, true, null));
+            }
+            return accountUid.equals(notFound) ? Mono.error(new StarlingApiException("Not found", 404, false, null)) : Mono.just(new RoundUpResponse(List.of()));
+        };
+        try (RoundUpScheduler scheduler = open(settings().withRetries(5, Duration.ofMillis(50)), TokenVault.inMemory(), failing)) {
+            scheduler.enrol("token", unavailable, UUID.randomUUID());
+            scheduler.enrol("token", notFound, UUID.randomUUID());
+            clock.set(week + RoundUpWeeks.WEEK_MILLIS + hours(13));
+            scheduler.tick();
+            await(() -> scheduler.completed() == 1 && scheduler.failed() == 2);
+            Thread.sleep(200);
+            Assertions.assertEquals(2, attempts.get(unavailable));
+            Assertions.assertEquals(1, attempts.get(notFound));
+        }
+    }
+
+    @Test
+    public void weeksThatKeepFailingAreGivenUpOnAndSkipped() throws IOException, InterruptedException {
+        UUID accountUid = UUID.randomUUID();
+        UUID savingsGoalUid = UUID.randomUUID();
+        AtomicLong attempts = new AtomicLong();
+        RoundUpScheduler.Runner firstWeekDown = (token, runAccountUid, runSavingsGoalUid, weekStart) -> {
+            if (weekStart.getTime() == week) {
+                attempts.incrementAndGet();
+                return Mono.error(new StarlingApiException("Unavailable", 503, true, null));
+            }
+            return recording().run(token, runAccountUid, runSavingsGoalUid, weekStart);
+        };
+        try (RoundUpScheduler scheduler = open(settings().withRetries(2, Duration.ofMillis(10)), TokenVault.inMemory(), firstWeekDown)) {
+            scheduler.enrol("token", accountUid, savingsGoalUid);
+            clock.set(week + 2 * RoundUpWeeks.WEEK_MILLIS + hours(13));
+            scheduler.tick();
+            await(() -> scheduler.completed() == 1);
+            Assertions.assertEquals(3, attempts.get());
+            Assertions.assertEquals(1, scheduler.failedWeeks());
+            Assertions.assertEquals(List.of("token " + accountUid + " " + (week + RoundUpWeeks.WEEK_MILLIS)), new ArrayList<>(runs));
+        }
+        //Given up on for good, not tried again after a restart
+        try (RoundUpScheduler scheduler = open(settings(), TokenVault.inMemory(), firstWeekDown)) {
+            scheduler.enrol("token", accountUid, savingsGoalUid);
+            scheduler.tick();
+            Thread.sleep(200);
+            Assertions.assertEquals(3, attempts.get());
+            Assertions.assertEquals(1, runs.size());
+        }
+    }
+
+    @Test
+    public void rejectedTokensWaitForTheCustomerToEnrolAgain() throws IOException, InterruptedException {
+        UUID accountUid = UUID.randomUUID();
+        UUID savingsGoalUid = UUID.randomUUID();
+        RoundUpScheduler.Runner expiring = (token, runAccountUid, runSavingsGoalUid, weekStart) -> token.equals("expired-token")
+                ? Mono.error(new StarlingApiException("Unauthorized", 401, false, null))
+                : recording().run(token, runAccountUid, runSavingsGoalUid, weekStart);
+        try (RoundUpScheduler scheduler = open(settings(), TokenVault.inMemory(), expiring)) {
+            scheduler.enrol("expired-token", accountUid, savingsGoalUid);
+            clock.set(week + RoundUpWeeks.WEEK_MILLIS + hours(13));
+            scheduler.tick();
+            await(() -> scheduler.needsReEnrolment() == 1);
+            Assertions.assertEquals(0, scheduler.failedWeeks());
+        }
+        //Still waiting after a restart, and the week wasn't given up on
+        clock.set(week + 2 * RoundUpWeeks.WEEK_MILLIS + hours(13));
+        try (RoundUpScheduler scheduler = open(settings(), TokenVault.inMemory(), expiring)) {
+            scheduler.tick();
+            Assertions.assertEquals(1, scheduler.needsReEnrolment());
+            Assertions.assertEquals(0, scheduler.queueDepth() + scheduler.inFlight());
+
+            scheduler.enrol("fresh-token", accountUid, savingsGoalUid);
+            await(() -> scheduler.completed() == 2);
+            Assertions.assertEquals(0, scheduler.needsReEnrolment());
+            Assertions.assertEquals(List.of("fresh-token " + accountUid + " " + week, "fresh-token " + accountUid + " " + (week + RoundUpWeeks.WEEK_MILLIS)), new ArrayList<>(runs));
+        }
+    }
+
+    @Test
+    public void roundUpsWithoutATokenWaitForTheCustomerToEnrolAgain() throws IOException, InterruptedException {
+        UUID accountUid = UUID.randomUUID();
+        UUID savingsGoalUid = UUID.randomUUID();
+        try (RoundUpScheduler scheduler = open(settings(), TokenVault.inMemory(), recording())) {
+            scheduler.enrol("token", accountUid, savingsGoalUid);
+        }
+        //The memory only vault forgot the token
+        clock.set(week + RoundUpWeeks.WEEK_MILLIS + hours(13));
+        try (RoundUpScheduler scheduler = open(settings(), TokenVault.inMemory(), recording())) {
+            scheduler.tick();
+            await(() -> scheduler.missingTokens() == 1);
+            Assertions.assertEquals(0, scheduler.completed());
+
+            scheduler.enrol("fresh-token", accountUid, savingsGoalUid);
+            await(() -> scheduler.completed() == 1);
+            Assertions.assertEquals(List.of("fresh-token " + accountUid + " " + week), new ArrayList<>(runs));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package dev.onepintwig.starling.roundup.schedule;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class TokenVaultSpec {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void tokensSurviveARestartButAreNeverWrittenInTheClear() throws IOException {
+        Path file = directory.resolve("tokens.vault");
+        byte[] key = new byte[16];
+        TokenVault vault = TokenVault.open(file, key);
+        vault.put("reference", "Bearer secret-token");
+        vault.put("removed", "Bearer removed-token");
+        vault.remove("removed");
+
+        Assertions.assertFalse(new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1).contains("secret-token"));
+        TokenVault reopened = TokenVault.open(file, key);
+        Assertions.assertEquals("Bearer secret-token", reopened.get("reference"));
+        Assertions.assertNull(reopened.get("removed"));
+
+        //Not with the wrong key though
+        byte[] wrongKey = new byte[16];
+        wrongKey[0] = 1;
+        Assertions.assertThrows(IOException.class, () -> TokenVault.open(file, wrongKey));
+    }
+}
@@ -0,0 +1,120 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.model.Account;
+import dev.onepintwig.starling.roundup.model.AccountList;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AccountCacheSpec {
+
+    private final Account first = new Account(UUID.randomUUID(), UUID.randomUUID());
+    private final Account second = new Account(UUID.randomUUID(), UUID.randomUUID());
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AtomicLong now = new AtomicLong();
+
+    private AccountCache cache(Duration ttl, int maxSize, Duration loadLatency) {
+        return new AccountCache(ttl, maxSize, token -> Mono.fromCallable(() -> {
+            loads.incrementAndGet();
+            return new AccountList(List.of(first, second));
+        }).delayElement(loadLatency), now::get);
+    }
+
+    @Test
+    public void concurrentMissesShareOneLoad() {
+        AccountCache cache = cache(Duration.ofMinutes(5), 100, Duration.ofMillis(100));
+        List<Account> accounts = Flux.range(0, 50)
+                .flatMap(i -> cache.get("Bearer token", i % 2 == 0 ? first.accountUid() : second.accountUid()))
+                .collectList()
+                .block();
+        Assertions.assertEquals(50, accounts.size());
+        Assertions.assertEquals(1, loads.get());
+        Assertions.assertEquals(50, cache.misses());
+
+        //Both accounts came back from the one load, so they are now both hits
+        Assertions.assertEquals(first, cache.get("Bearer token", first.accountUid()).block());
+        Assertions.assertEquals(second, cache.get("Bearer token", second.accountUid()).block());
+        Assertions.assertEquals(2, cache.hits());
+        Assertions.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void tokensDoNotShareEntries() {
+        AccountCache cache = cache(Duration.ofMinutes(5), 100, Duration.ZERO);
+        cache.get("Bearer one", first.accountUid()).block();
+        cache.get("Bearer two", first.accountUid()).block();
+        Assertions.assertEquals(2, loads.get());
+        Assertions.assertEquals(0, cache.hits());
+    }
+
+    @Test
+    public void entriesExpire() {
+        AccountCache cache = cache(Duration.ofSeconds(10), 100, Duration.ZERO);
+        cache.get("Bearer token", first.accountUid()).block();
+        now.addAndGet(Duration.ofSeconds(9).toNanos());
+        cache.get("Bearer token", first.accountUid()).block();
+        Assertions.assertEquals(1, loads.get());
+
+        now.addAndGet(Duration.ofSeconds(1).toNanos());
+        cache.get("Bearer token", first.accountUid()).block();
+        Assertions.assertEquals(2, loads.get());
+        Assertions.assertEquals(1, cache.evictions());
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() {
+        AccountCache cache = cache(Duration.ofMinutes(5), 2, Duration.ZERO);
+        cache.get("Bearer one", first.accountUid()).block();
+        cache.get("Bearer two", first.accountUid()).block();
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertEquals(2, cache.evictions());
+        //Only token two's accounts are left
+        cache.get("Bearer two", second.accountUid()).block();
+        Assertions.assertEquals(2, loads.get());
+        cache.get("Bearer one", first.accountUid()).block();
+        Assertions.assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void missingAccountErrorsAndFailuresAreNotCached() {
+        AtomicInteger attempts = new AtomicInteger();
+        AccountCache cache = new AccountCache(Duration.ofMinutes(5), 100, token -> attempts.incrementAndGet() == 1
+                ? Mono.error(new IllegalStateException("Upstream down"))
+                : Mono.just(new AccountList(List.of(first))));
+
+        Assertions.assertThrows(IllegalStateException.class, () -> cache.get("Bearer token", first.accountUid()).block());
+        Assertions.assertEquals(first, cache.get("Bearer token", first.accountUid()).block());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> cache.get("Bearer token", UUID.randomUUID()).block());
+    }
+
+    @Test
+    public void aFinishedLoadDoesNotStopTheNextBeingShared() {
+        List<Sinks.One<AccountList>> started = new ArrayList<>();
+        //Expires straight away, so every get after a load has finished starts another
+        AccountCache cache = new AccountCache(Duration.ZERO, 100, token -> {
+            Sinks.One<AccountList> load = Sinks.one();
+            started.add(load);
+            return load.asMono();
+        }, now::get);
+
+        //The second load starts while the first is finishing, before it has tidied up after itself
+        cache.get("Bearer token", first.accountUid())
+                .doOnNext(_ -> cache.get("Bearer token", first.accountUid()).subscribe())
+                .subscribe();
+        started.getFirst().tryEmitValue(new AccountList(List.of(first)));
+        Assertions.assertEquals(2, started.size());
+
+        //So it is the one a third get has to share, rather than starting one of its own
+        cache.get("Bearer token", first.accountUid()).subscribe();
+        Assertions.assertEquals(2, started.size());
+    }
+}
@@ -0,0 +1,109 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.model.RoundUpBatchItem;
+import dev.onepintwig.starling.roundup.model.RoundUpBatchItemResult;
+import dev.onepintwig.starling.roundup.model.RoundUpBatchResponse;
+import dev.onepintwig.starling.roundup.model.RoundUpResponse;
+import dev.onepintwig.starling.roundup.model.SavingsGoalTransferResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RoundUpBatchServiceSpec {
+
+    private static RoundUpBatchItem item(String token) {
+        return new RoundUpBatchItem(token, UUID.randomUUID(), UUID.randomUUID(), new Date());
+    }
+
+    @Test
+    public void itemsAreStartedRoundRobinAcrossTokens() {
+        List<RoundUpBatchItem> items = List.of(item("big"), item("big"), item("big"), item("big"), item("small"), item(null), item("small"));
+        List<String> order = RoundUpBatchService.fairOrder("header", items).stream().map(RoundUpBatchService.Indexed::token).toList();
+        Assertions.assertEquals(List.of("big", "small", "header", "big", "small", "big", "big"), order);
+    }
+
+    @Test
+    public void concurrencyIsCappedAndResultsKeepRequestOrder() {
+        List<RoundUpBatchItem> items = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            items.add(item("token-" + (i % 3)));
+        }
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxSeen = new AtomicInteger();
+        RoundUpBatchResponse response = RoundUpBatchService.doRoundUpBatch("header", items, new InFlightLimit(5), (token, item) ->
+                Mono.delay(Duration.ofMillis(10))
+                        .doOnSubscribe(_ -> maxSeen.accumulateAndGet(inFlight.incrementAndGet(), Math::max))
+                        .doOnTerminate(inFlight::decrementAndGet)
+                        .map(_ -> new RoundUpResponse(List.of(new SavingsGoalTransferResponse(item.accountUid(), true))))
+        ).block();
+
+        Assertions.assertTrue(maxSeen.get() <= 5, "Saw " + maxSeen.get() + " in flight");
+        Assertions.assertEquals(items.size(), response.results().size());
+        for (int i = 0; i < items.size(); i++) {
+            RoundUpBatchItemResult result = response.results().get(i);
+            Assertions.assertEquals(items.get(i).accountUid(), result.accountUid());
+            Assertions.assertEquals(items.get(i).accountUid(), result.savingsGoalTransfers().getFirst().transferUid());
+        }
+    }
+
+    @Test
+    public void failuresOnlyFailTheirItem() {
+        List<RoundUpBatchItem> items = List.of(item("good"), item("bad"), item(null));
+        RoundUpBatchResponse response = RoundUpBatchService.doRoundUpBatch(null, items, new InFlightLimit(2), (token, item) -> token.equals("bad")
+                ? Mono.error(new IllegalArgumentException("Account: " + item.accountUid() + " not found"))
+                : Mono.just(new RoundUpResponse(List.of()))
+        ).block();
+
+        Assertions.assertNull(response.results().get(0).error());
+        Assertions.assertTrue(response.results().get(1).error().contains("not found"));
+        Assertions.assertTrue(response.results().get(2).error().contains("No Authorization token"));
+    }
+
+    @Test
+    public void batchesRunningAtOnceShareTheCap() {
+        InFlightLimit limit = new InFlightLimit(5);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxSeen = new AtomicInteger();
+        List<RoundUpBatchResponse> responses = Flux.range(0, 4)
+                .flatMap(batch -> {
+                    List<RoundUpBatchItem> items = new ArrayList<>();
+                    for (int i = 0; i < 10; i++) {
+                        items.add(item("token-" + batch));
+                    }
+                    return RoundUpBatchService.doRoundUpBatch("header", items, limit, (token, item) ->
+                            Mono.delay(Duration.ofMillis(10))
+                                    .doOnSubscribe(_ -> maxSeen.accumulateAndGet(inFlight.incrementAndGet(), Math::max))
+                                    .doOnTerminate(inFlight::decrementAndGet)
+                                    .map(_ -> new RoundUpResponse(List.of())));
+                })
+                .collectList()
+                .block();
+
+        Assertions.assertTrue(maxSeen.get() <= 5, "Saw " + maxSeen.get() + " in flight");
+        Assertions.assertEquals(4, responses.size());
+        Assertions.assertEquals(0, limit.inFlight());
+    }
+
+    @Test
+    public void cancelledRoundUpsGiveTheirSlotBack() {
+        InFlightLimit limit = new InFlightLimit(1);
+        Sinks.One<RoundUpResponse> first = Sinks.one();
+        Disposable running = limit.run(first.asMono()).subscribe();
+        Disposable queued = limit.run(Mono.just(new RoundUpResponse(List.of()))).subscribe();
+        Assertions.assertEquals(1, limit.queued());
+
+        //Cancelled while queued, it never starts. Cancelled while running, its slot goes to whatever is next
+        queued.dispose();
+        Assertions.assertEquals(0, limit.queued());
+        running.dispose();
+        Assertions.assertEquals(0, limit.inFlight());
+        Assertions.assertNotNull(limit.run(Mono.just(new RoundUpResponse(List.of()))).block());
+    }
+}
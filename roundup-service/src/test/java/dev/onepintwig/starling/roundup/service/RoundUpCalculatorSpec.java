@@ -5,7 +5,11 @@ import dev.onepintwig.starling.roundup.model.FeedItem;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
 
 public class RoundUpCalculatorSpec {
 
@@ -56,7 +60,51 @@ public class RoundUpCalculatorSpec {
         Assertions.assertEquals(0, result.size());
     }
 
+    @Test
+    public void enginesAgree() {
+        Random random = new Random(7);
+        String[] currencies = {"GBP", "USD", "EUR", "JPY", "CHF"};
+        List<FeedItem> feedItems = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            feedItems.add(new FeedItem(
+                    new CurrencyAmount(currencies[random.nextInt(currencies.length)], random.nextInt(100_000)),
+                    random.nextBoolean() ? FeedItem.TransactionDirection.OUT : FeedItem.TransactionDirection.IN,
+                    FeedItem.Status.SETTLED
+            ));
+        }
+        Assertions.assertEquals(
+                asMap(RoundUpCalculator.roundUpsForFeedItems(feedItems, RoundUpCalculator.Engine.COLLECTOR)),
+                asMap(RoundUpCalculator.roundUpsForFeedItems(feedItems, RoundUpCalculator.Engine.PRIMITIVE))
+        );
+    }
 
+    @Test
+    public void chunkedAccumulatorRoundUp() {
+        FeedItem gbp = new FeedItem(new CurrencyAmount("GBP", 435), FeedItem.TransactionDirection.OUT, FeedItem.Status.SETTLED);
+        FeedItem usd = new FeedItem(new CurrencyAmount("USD", 520), FeedItem.TransactionDirection.OUT, FeedItem.Status.SETTLED);
+        RoundUpAccumulator accumulator = new RoundUpAccumulator();
+        RoundUpCalculator.accumulate(List.of(gbp, usd), accumulator);
+        RoundUpCalculator.accumulate(List.of(gbp), accumulator);
+        Assertions.assertEquals(Map.of("GBP", 130L, "USD", 80L), asMap(accumulator.roundUps()));
 
+        //Reused accumulator starts from nothing
+        accumulator.reset();
+        RoundUpCalculator.accumulate(List.of(usd), accumulator);
+        Assertions.assertEquals(Map.of("USD", 80L), asMap(accumulator.roundUps()));
+    }
 
+    @Test
+    public void largeTotalsDoNotOverflow() {
+        //Each of these rounds up by 99. Enough of them to go past Integer.MAX_VALUE
+        RoundUpAccumulator accumulator = new RoundUpAccumulator();
+        int transactions = 25_000_000;
+        for (int i = 0; i < transactions; i++) {
+            accumulator.onFeedItem("GBP", 1, FeedItem.TransactionDirection.OUT);
+        }
+        Assertions.assertEquals(99L * transactions, accumulator.roundUps().getFirst().minorUnits());
+    }
+
+    private static Map<String, Long> asMap(List<CurrencyAmount> amounts) {
+        return amounts.stream().collect(Collectors.toMap(CurrencyAmount::currency, CurrencyAmount::minorUnits));
+    }
 }
@@ -0,0 +1,92 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.client.ClientSettings;
+import dev.onepintwig.starling.roundup.client.ReactiveStarlingClient;
+import dev.onepintwig.starling.roundup.model.RoundUpResponse;
+import dev.onepintwig.starling.roundup.model.SavingsGoalTransferResponse;
+import dev.onepintwig.starling.roundup.simulator.StarlingSimulator;
+import dev.onepintwig.starling.roundup.simulator.SimulatorSettings;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+public class RoundUpEnginesSpec {
+
+    private static StarlingSimulator simulator;
+
+    private final Date week = Date.from(Instant.parse("2024-09-02T00:00:00Z"));
+
+    @BeforeAll
+    public static void startSimulator() {
+        simulator = new StarlingSimulator(SimulatorSettings.fromSystemProperties().withFeed(500, Map.of("GBP", 0.8, "EUR", 0.2)));
+    }
+
+    @AfterAll
+    public static void stopSimulator() {
+        simulator.close();
+    }
+
+    @BeforeEach
+    public void configure() {
+        ReactiveStarlingClient.configure(ClientSettings.fromSystemProperties().withBaseUrl(simulator.baseUrl()));
+    }
+
+    @AfterEach
+    public void reset() {
+        ReactiveStarlingClient.configure(ClientSettings.fromSystemProperties());
+    }
+
+    @Test
+    public void bothEnginesTransferTheSame() {
+        //A new customer each run, as the outbox outlives the test
+        String token = "Bearer engines-" + UUID.randomUUID();
+        UUID accountUid = StarlingSimulator.customer(token).accountUid();
+
+        long before = simulator.transferredMinorUnits();
+        RoundUpResponse reactor = RoundUpService.doRoundUp(token, accountUid, UUID.randomUUID(), week, RoundUpService.Engine.REACTOR).block();
+        long reactorUnits = simulator.transferredMinorUnits() - before;
+
+        UUID savingsGoalUid = UUID.randomUUID();
+        RoundUpResponse virtual = RoundUpService.doRoundUp(token, accountUid, savingsGoalUid, week, RoundUpService.Engine.VIRTUAL_THREADS).block();
+        long virtualUnits = simulator.transferredMinorUnits() - before - reactorUnits;
+
+        //One transfer per currency either way, moving the same amounts
+        Assertions.assertEquals(2, reactor.savingsGoalTransfers().size());
+        Assertions.assertEquals(2, virtual.savingsGoalTransfers().size());
+        Assertions.assertTrue(virtual.savingsGoalTransfers().stream().allMatch(SavingsGoalTransferResponse::success));
+        Assertions.assertTrue(reactorUnits > 0);
+        Assertions.assertEquals(reactorUnits, virtualUnits);
+
+        //The outbox is shared, so the other engine re-running the same round-up doesn't transfer again.
+        //Streamed, as that skips the result cache
+        long transfers = simulator.transfers();
+        Set<UUID> again = RoundUpService.doRoundUpStream(token, accountUid, savingsGoalUid, week)
+                .map(SavingsGoalTransferResponse::transferUid)
+                .collect(Collectors.toSet())
+                .block();
+        Assertions.assertEquals(transferUids(virtual), again);
+        Assertions.assertEquals(transfers, simulator.transfers());
+    }
+
+    @Test
+    public void failuresComeBackAsErrors() {
+        //The token can't see the account
+        IllegalArgumentException error = Assertions.assertThrows(IllegalArgumentException.class, () ->
+                RoundUpService.doRoundUp("Bearer engines-" + UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), week, RoundUpService.Engine.VIRTUAL_THREADS).block());
+        Assertions.assertTrue(error.getMessage().contains("not found"));
+    }
+
+    private static Set<UUID> transferUids(RoundUpResponse response) {
+        return response.savingsGoalTransfers().stream().map(SavingsGoalTransferResponse::transferUid).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,87 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.client.ClientSettings;
+import dev.onepintwig.starling.roundup.client.ReactiveStarlingClient;
+import dev.onepintwig.starling.roundup.model.CurrencyAmount;
+import dev.onepintwig.starling.roundup.model.FeedItem;
+import dev.onepintwig.starling.roundup.model.FeedItemList;
+import dev.onepintwig.starling.roundup.model.RoundUpReportResponse;
+import dev.onepintwig.starling.roundup.simulator.SimulatorSettings;
+import dev.onepintwig.starling.roundup.simulator.StarlingSimulator;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+public class RoundUpReportServiceSpec {
+
+    private static StarlingSimulator simulator;
+
+    @BeforeAll
+    public static void startSimulator() {
+        simulator = new StarlingSimulator(SimulatorSettings.fromSystemProperties().withFeed(200, Map.of("GBP", 0.7, "EUR", 0.3)));
+    }
+
+    @AfterAll
+    public static void stopSimulator() {
+        simulator.close();
+    }
+
+    @BeforeEach
+    public void configure() {
+        ReactiveStarlingClient.configure(ClientSettings.fromSystemProperties().withBaseUrl(simulator.baseUrl()));
+    }
+
+    @AfterEach
+    public void reset() {
+        ReactiveStarlingClient.configure(ClientSettings.fromSystemProperties());
+    }
+
+    @Test
+    public void totalsMatchTheCalculatorAndTheRangeIsFetchedInWindows() {
+        //A new customer each run, as the feed store outlives the test
+        String token = "Bearer report-" + UUID.randomUUID();
+        UUID accountUid = StarlingSimulator.customer(token).accountUid();
+        //Nine weeks, so three windows of the default four weeks
+        LocalDate from = LocalDate.parse("2024-06-03");
+        LocalDate to = LocalDate.parse("2024-08-05");
+
+        long feedCalls = simulator.feedCalls();
+        RoundUpReportResponse report = RoundUpReportService.roundUpsBetween(token, accountUid, from, to).block();
+        Assertions.assertEquals(3, simulator.feedCalls() - feedCalls);
+        Assertions.assertEquals(roundUps(token, accountUid, from, to), totals(report.roundUps()));
+        Assertions.assertEquals(2, report.roundUps().size());
+
+        //Part of a range already synced is answered locally, from the daily index
+        LocalDate july = LocalDate.parse("2024-07-01");
+        feedCalls = simulator.feedCalls();
+        RoundUpReportResponse part = RoundUpReportService.roundUpsBetween(token, accountUid, july, to).block();
+        Assertions.assertEquals(0, simulator.feedCalls() - feedCalls);
+        Assertions.assertEquals(roundUps(token, accountUid, july, to), totals(part.roundUps()));
+    }
+
+    //What the calculator makes of the feed over the days, straight from the upstream
+    private static Map<String, Long> roundUps(String token, UUID accountUid, LocalDate from, LocalDate to) {
+        Instant start = from.atStartOfDay(ZoneOffset.UTC).toInstant();
+        Instant end = to.atStartOfDay(ZoneOffset.UTC).toInstant();
+        FeedItemList feed = ReactiveStarlingClient.get(token, RoundUpService.feedQuery(accountUid, start, end), FeedItemList.class).block();
+        List<FeedItem> between = feed.feedItems().stream()
+                .filter(item -> !item.transactionTime().toInstant().isBefore(start) && item.transactionTime().toInstant().isBefore(end))
+                .toList();
+        return totals(RoundUpCalculator.roundUpsForFeedItems(between));
+    }
+
+    private static Map<String, Long> totals(List<CurrencyAmount> roundUps) {
+        return roundUps.stream().collect(Collectors.toMap(CurrencyAmount::currency, CurrencyAmount::minorUnits));
+    }
+}
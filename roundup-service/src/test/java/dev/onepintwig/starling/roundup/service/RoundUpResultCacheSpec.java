@@ -0,0 +1,128 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.model.RoundUpResponse;
+import dev.onepintwig.starling.roundup.model.SavingsGoalTransferResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RoundUpResultCacheSpec {
+
+    private final UUID accountUid = UUID.randomUUID();
+    private final UUID savingsGoalUid = UUID.randomUUID();
+    private final Date week = new Date(1_725_235_200_000L);
+    private final AtomicInteger runs = new AtomicInteger();
+    private final AtomicLong now = new AtomicLong();
+
+    private RoundUpResultCache.RoundUp roundUp(Duration latency, boolean success) {
+        return (token, accountUid, savingsGoalUid, weekStart) -> Mono.fromCallable(() -> {
+            runs.incrementAndGet();
+            return new RoundUpResponse(List.of(new SavingsGoalTransferResponse(UUID.randomUUID(), success)));
+        }).delayElement(latency);
+    }
+
+    @Test
+    public void concurrentRepeatsShareOneRun() {
+        RoundUpResultCache cache = new RoundUpResultCache(Duration.ofMinutes(1), 100, now::get);
+        RoundUpResultCache.RoundUp roundUp = roundUp(Duration.ofMillis(100), true);
+        List<RoundUpResponse> responses = Flux.range(0, 20)
+                .flatMap(_ -> cache.get("Bearer token", accountUid, savingsGoalUid, week, roundUp))
+                .collectList()
+                .block();
+        Assertions.assertEquals(1, runs.get());
+        Assertions.assertEquals(1, responses.stream().distinct().count());
+        Assertions.assertEquals(1, cache.misses());
+        Assertions.assertEquals(19, cache.coalesced());
+
+        //And repeats after it finished get the same response back
+        Assertions.assertSame(responses.getFirst(), cache.get("Bearer token", accountUid, savingsGoalUid, week, roundUp).block());
+        Assertions.assertEquals(1, cache.hits());
+        Assertions.assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void onlyIdenticalRoundUpsAreShared() {
+        RoundUpResultCache cache = new RoundUpResultCache(Duration.ofMinutes(1), 100, now::get);
+        RoundUpResultCache.RoundUp roundUp = roundUp(Duration.ZERO, true);
+        cache.get("Bearer token", accountUid, savingsGoalUid, week, roundUp).block();
+        cache.get("Bearer other", accountUid, savingsGoalUid, week, roundUp).block();
+        cache.get("Bearer token", accountUid, UUID.randomUUID(), week, roundUp).block();
+        cache.get("Bearer token", accountUid, savingsGoalUid, new Date(week.getTime() + 1), roundUp).block();
+        Assertions.assertEquals(4, runs.get());
+        Assertions.assertEquals(0, cache.hits());
+    }
+
+    @Test
+    public void responsesExpireAndAreBounded() {
+        RoundUpResultCache cache = new RoundUpResultCache(Duration.ofSeconds(10), 1, now::get);
+        RoundUpResultCache.RoundUp roundUp = roundUp(Duration.ZERO, true);
+        cache.get("Bearer token", accountUid, savingsGoalUid, week, roundUp).block();
+        now.addAndGet(Duration.ofSeconds(9).toNanos());
+        cache.get("Bearer token", accountUid, savingsGoalUid, week, roundUp).block();
+        Assertions.assertEquals(1, runs.get());
+
+        now.addAndGet(Duration.ofSeconds(1).toNanos());
+        cache.get("Bearer token", accountUid, savingsGoalUid, week, roundUp).block();
+        Assertions.assertEquals(2, runs.get());
+
+        //Only room for one, so the other week pushes this one out
+        cache.get("Bearer token", accountUid, savingsGoalUid, new Date(week.getTime() + 1), roundUp).block();
+        cache.get("Bearer token", accountUid, savingsGoalUid, week, roundUp).block();
+        Assertions.assertEquals(4, runs.get());
+        Assertions.assertEquals(1, cache.size());
+        Assertions.assertEquals(3, cache.evictions());
+    }
+
+    @Test
+    public void failuresAreNotRemembered() {
+        RoundUpResultCache cache = new RoundUpResultCache(Duration.ofMinutes(1), 100, now::get);
+        AtomicInteger attempts = new AtomicInteger();
+        RoundUpResultCache.RoundUp failing = (token, accountUid, savingsGoalUid, weekStart) -> attempts.incrementAndGet() == 1
+                ? Mono.error(new IllegalStateException("Upstream down"))
+                : Mono.just(new RoundUpResponse(List.of()));
+        Assertions.assertThrows(IllegalStateException.class, () -> cache.get("Bearer token", accountUid, savingsGoalUid, week, failing).block());
+        cache.get("Bearer token", accountUid, savingsGoalUid, week, failing).block();
+        Assertions.assertEquals(2, attempts.get());
+
+        //A transfer that didn't go through gets another go next time
+        RoundUpResultCache.RoundUp unsuccessful = roundUp(Duration.ZERO, false);
+        UUID otherGoal = UUID.randomUUID();
+        cache.get("Bearer token", accountUid, otherGoal, week, unsuccessful).block();
+        cache.get("Bearer token", accountUid, otherGoal, week, unsuccessful).block();
+        Assertions.assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void aRunFinishingDoesNotStopALaterOneBeingShared() {
+        RoundUpResultCache cache = new RoundUpResultCache(Duration.ofMinutes(1), 100, now::get);
+        List<Sinks.One<RoundUpResponse>> started = new ArrayList<>();
+        RoundUpResultCache.RoundUp roundUp = (token, accountUid, savingsGoalUid, weekStart) -> {
+            Sinks.One<RoundUpResponse> run = Sinks.one();
+            started.add(run);
+            return run.asMono();
+        };
+
+        //The second run starts as the first finishes, once the first has stopped being shared but before it has tidied up
+        cache.get("Bearer token", accountUid, savingsGoalUid, week, roundUp)
+                .doOnNext(_ -> cache.get("Bearer token", accountUid, savingsGoalUid, week, roundUp).subscribe())
+                .subscribe();
+        //A failed transfer, so the response isn't remembered and the second get has to run again
+        started.getFirst().tryEmitValue(new RoundUpResponse(List.of(new SavingsGoalTransferResponse(UUID.randomUUID(), false))));
+        Assertions.assertEquals(2, started.size());
+
+        //While it is still in flight, a repeat joins it rather than starting a third
+        cache.get("Bearer token", accountUid, savingsGoalUid, week, roundUp).subscribe();
+        Assertions.assertEquals(2, started.size());
+        Assertions.assertEquals(1, cache.coalesced());
+    }
+}
@@ -0,0 +1,126 @@
+package dev.onepintwig.starling.roundup.service;
+
+import dev.onepintwig.starling.roundup.client.ClientSettings;
+import dev.onepintwig.starling.roundup.client.ReactiveStarlingClient;
+import dev.onepintwig.starling.roundup.model.CurrencyAmount;
+import dev.onepintwig.starling.roundup.model.FeedItem;
+import dev.onepintwig.starling.roundup.model.FeedItemList;
+import dev.onepintwig.starling.roundup.model.RoundUpBackfillWeek;
+import dev.onepintwig.starling.roundup.model.RoundUpResponse;
+import dev.onepintwig.starling.roundup.model.SavingsGoalTransferResponse;
+import dev.onepintwig.starling.roundup.simulator.SimulatorSettings;
+import dev.onepintwig.starling.roundup.simulator.StarlingSimulator;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+public class RoundUpServiceSpec {
+
+    private static StarlingSimulator simulator;
+
+    private final long thisWeek = RoundUpWeeks.weekStart(System.currentTimeMillis());
+    private final long lastWeek = thisWeek - RoundUpWeeks.WEEK_MILLIS;
+
+    @BeforeAll
+    public static void startSimulator() {
+        simulator = new StarlingSimulator(SimulatorSettings.fromSystemProperties().withFeed(200, Map.of("GBP", 0.8, "EUR", 0.2)));
+    }
+
+    @AfterAll
+    public static void stopSimulator() {
+        simulator.close();
+    }
+
+    @BeforeEach
+    public void configure() {
+        ReactiveStarlingClient.configure(ClientSettings.fromSystemProperties().withBaseUrl(simulator.baseUrl()));
+    }
+
+    @AfterEach
+    public void reset() {
+        ReactiveStarlingClient.configure(ClientSettings.fromSystemProperties());
+    }
+
+    @Test
+    public void aWeekStillGoingIsTurnedDownSoTheWholeWeekIsSavedOnceItIsOver() {
+        //A new customer each run, as the outbox outlives the test
+        String token = "Bearer service-" + UUID.randomUUID();
+        UUID accountUid = StarlingSimulator.customer(token).accountUid();
+        UUID savingsGoalUid = UUID.randomUUID();
+
+        //Every way in turns this week down before going upstream, so nothing is planned for it
+        long transferCalls = simulator.transferCalls();
+        long retained = RoundUpService.outbox().retained();
+        Date weekStillGoing = new Date(thisWeek);
+        Assertions.assertThrows(IllegalArgumentException.class, () ->
+                RoundUpService.doRoundUp(token, accountUid, savingsGoalUid, weekStillGoing, RoundUpService.Engine.REACTOR).block());
+        Assertions.assertThrows(IllegalArgumentException.class, () ->
+                RoundUpService.doRoundUp(token, accountUid, savingsGoalUid, weekStillGoing, RoundUpService.Engine.VIRTUAL_THREADS).block());
+        Assertions.assertThrows(IllegalArgumentException.class, () ->
+                RoundUpService.doRoundUpStream(token, accountUid, savingsGoalUid, weekStillGoing).blockLast());
+        Assertions.assertEquals(transferCalls, simulator.transferCalls());
+        Assertions.assertEquals(retained, RoundUpService.outbox().retained());
+
+        //Last week is over, so all of it is saved, not just what had happened by the time it was asked for
+        long before = simulator.transferredMinorUnits();
+        RoundUpResponse response = RoundUpService.doRoundUp(token, accountUid, savingsGoalUid, new Date(lastWeek)).block();
+        Assertions.assertTrue(response.savingsGoalTransfers().stream().allMatch(SavingsGoalTransferResponse::success));
+        long saved = simulator.transferredMinorUnits() - before;
+        Assertions.assertTrue(saved > 0);
+        Assertions.assertEquals(roundUps(token, accountUid, lastWeek, thisWeek), saved);
+    }
+
+    @Test
+    public void backfillsRunWholeWeeksInOrderAndShareTheirTransfersWithRoundUps() {
+        String token = "Bearer service-" + UUID.randomUUID();
+        UUID accountUid = StarlingSimulator.customer(token).accountUid();
+        UUID savingsGoalUid = UUID.randomUUID();
+        //A Wednesday to a Friday, so there's a part week at either end
+        Date from = Date.from(Instant.parse("2024-06-05T09:00:00Z"));
+        Date to = Date.from(Instant.parse("2024-07-19T17:00:00Z"));
+        long firstMonday = Instant.parse("2024-06-10T00:00:00Z").toEpochMilli();
+
+        long before = simulator.transferredMinorUnits();
+        List<RoundUpBackfillWeek> weeks = RoundUpService.doRoundUpBackfill(token, accountUid, savingsGoalUid, from, to).collectList().block();
+
+        //The five whole weeks, in order. Neither part week is in them
+        List<Long> starts = weeks.stream().map(week -> week.roundUpWeekStartTimestamp().getTime()).toList();
+        Assertions.assertEquals(LongStream.range(0, 5).mapToObj(i -> firstMonday + i * RoundUpWeeks.WEEK_MILLIS).toList(), starts);
+        long lastMonday = starts.getLast() + RoundUpWeeks.WEEK_MILLIS;
+        Assertions.assertEquals(roundUps(token, accountUid, firstMonday, lastMonday), simulator.transferredMinorUnits() - before);
+
+        //A normal round-up of one of those weeks hands back the backfill's transfers, rather than saving it again
+        long transfers = simulator.transfers();
+        long units = simulator.transferredMinorUnits();
+        RoundUpBackfillWeek third = weeks.get(2);
+        RoundUpResponse again = RoundUpService.doRoundUp(token, accountUid, savingsGoalUid, third.roundUpWeekStartTimestamp()).block();
+        Assertions.assertEquals(transferUids(third.savingsGoalTransfers()), transferUids(again.savingsGoalTransfers()));
+        Assertions.assertEquals(transfers, simulator.transfers());
+        Assertions.assertEquals(units, simulator.transferredMinorUnits());
+    }
+
+    private static Set<UUID> transferUids(List<SavingsGoalTransferResponse> transfers) {
+        return transfers.stream().map(SavingsGoalTransferResponse::transferUid).collect(Collectors.toSet());
+    }
+
+    //What the calculator makes of the feed between the two times, straight from the upstream
+    private static long roundUps(String token, UUID accountUid, long from, long to) {
+        FeedItemList feed = ReactiveStarlingClient.get(token, RoundUpService.feedQuery(accountUid, Instant.ofEpochMilli(from), Instant.ofEpochMilli(to)), FeedItemList.class).block();
+        List<FeedItem> between = feed.feedItems().stream()
+                .filter(item -> item.transactionTime().getTime() >= from && item.transactionTime().getTime() < to)
+                .toList();
+        return RoundUpCalculator.roundUpsForFeedItems(between).stream().mapToLong(CurrencyAmount::minorUnits).sum();
+    }
+}
@@ -0,0 +1,43 @@
+package dev.onepintwig.starling.roundup.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Date;
+
+public class RoundUpWeeksSpec {
+
+    private static final long MONDAY = Instant.parse("2024-09-09T00:00:00Z").toEpochMilli();
+    private static final long NEXT_MONDAY = Instant.parse("2024-09-16T00:00:00Z").toEpochMilli();
+
+    @Test
+    public void anyTimeInAWeekIsThatWeek() {
+        Assertions.assertEquals(MONDAY, RoundUpWeeks.weekStart(MONDAY));
+        Assertions.assertEquals(MONDAY, RoundUpWeeks.weekStart(Instant.parse("2024-09-11T09:30:00Z").toEpochMilli()));
+        Assertions.assertEquals(MONDAY, RoundUpWeeks.weekStart(NEXT_MONDAY - 1));
+        Assertions.assertEquals(NEXT_MONDAY, RoundUpWeeks.weekStart(NEXT_MONDAY));
+        Assertions.assertTrue(RoundUpWeeks.isWeekStart(new Date(MONDAY)));
+        Assertions.assertFalse(RoundUpWeeks.isWeekStart(new Date(MONDAY + 1)));
+        //Before the epoch too
+        Assertions.assertEquals(Instant.parse("1969-12-29T00:00:00Z").toEpochMilli(), RoundUpWeeks.weekStart(-1));
+    }
+
+    @Test
+    public void aPartWeekStartsAtTheNextMonday() {
+        Assertions.assertEquals(MONDAY, RoundUpWeeks.nextWeekStart(MONDAY));
+        Assertions.assertEquals(NEXT_MONDAY, RoundUpWeeks.nextWeekStart(MONDAY + 1));
+        Assertions.assertEquals(0, RoundUpWeeks.wholeWeeksBetween(new Date(MONDAY + 1), new Date(NEXT_MONDAY + RoundUpWeeks.WEEK_MILLIS - 1)));
+        Assertions.assertEquals(1, RoundUpWeeks.wholeWeeksBetween(new Date(MONDAY), new Date(NEXT_MONDAY + 1)));
+    }
+
+    @Test
+    public void backfillWeeksAreTheWeeksARoundUpUses() {
+        //A backfill from a Wednesday lines up with the round-up anyone would get for the weeks it covers
+        long[] boundaries = RoundUpService.weekBoundaries(new Date(MONDAY + 2 * 24 * 60 * 60 * 1000L), new Date(NEXT_MONDAY + 2 * RoundUpWeeks.WEEK_MILLIS + 1));
+        Assertions.assertArrayEquals(new long[]{NEXT_MONDAY, NEXT_MONDAY + RoundUpWeeks.WEEK_MILLIS, NEXT_MONDAY + 2 * RoundUpWeeks.WEEK_MILLIS}, boundaries);
+        for (int i = 0; i < boundaries.length - 1; i++) {
+            Assertions.assertEquals(boundaries[i], RoundUpWeeks.weekStart(boundaries[i] + 12345));
+        }
+    }
+}
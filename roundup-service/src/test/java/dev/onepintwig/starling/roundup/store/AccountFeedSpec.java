@@ -0,0 +1,111 @@
+package dev.onepintwig.starling.roundup.store;
+
+import dev.onepintwig.starling.roundup.model.CurrencyAmount;
+import dev.onepintwig.starling.roundup.model.FeedItem;
+import dev.onepintwig.starling.roundup.service.RoundUpAccumulator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+public class AccountFeedSpec {
+
+    private static final FeedItem.TransactionDirection OUT = FeedItem.TransactionDirection.OUT;
+    private static final FeedItem.TransactionDirection IN = FeedItem.TransactionDirection.IN;
+
+    private static List<CurrencyAmount> roundUps(AccountFeed feed, long from, long to) {
+        return feed.accumulate(from, to, new RoundUpAccumulator()).roundUps();
+    }
+
+    @Test
+    public void rangesQueryOutOfOrderItems() {
+        AccountFeed feed = new AccountFeed();
+        //The feed comes back newest first
+        feed.onFeedItem(UUID.randomUUID(), 300, "GBP", 1, OUT);
+        feed.onFeedItem(UUID.randomUUID(), 200, "GBP", 10, OUT);
+        feed.onFeedItem(UUID.randomUUID(), 200, "GBP", 5, IN);
+        feed.onFeedItem(UUID.randomUUID(), 100, "GBP", 50, OUT);
+
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 50 + 90 + 99)), roundUps(feed, 0, 1000));
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 90)), roundUps(feed, 200, 300));
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 90 + 99)), roundUps(feed, 101, 301));
+        Assertions.assertEquals(List.of(), roundUps(feed, 301, 1000));
+    }
+
+    @Test
+    public void itemsAreDedupedOnUid() {
+        AccountFeed feed = new AccountFeed();
+        UUID uid = UUID.randomUUID();
+        feed.onFeedItem(uid, 100, "GBP", 435, OUT);
+        feed.onFeedItem(UUID.randomUUID(), 50, "GBP", 1, IN);
+        //Sorts and reindexes before the repeat comes in
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 65)), roundUps(feed, 0, 1000));
+        feed.onFeedItem(uid, 100, "GBP", 435, OUT);
+        Assertions.assertEquals(2, feed.size());
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 65)), roundUps(feed, 0, 1000));
+    }
+
+    @Test
+    public void matchesTheCalculatorOnLargeFeeds() {
+        AccountFeed feed = new AccountFeed();
+        Random random = new Random(42);
+        String[] currencies = {"GBP", "USD", "EUR"};
+        List<UUID> uids = new ArrayList<>();
+        Map<String, Long> expected = new HashMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            UUID uid = UUID.randomUUID();
+            uids.add(uid);
+            long time = random.nextInt(1_000_000);
+            String currency = currencies[random.nextInt(currencies.length)];
+            long minorUnits = random.nextInt(100_000);
+            boolean out = random.nextBoolean();
+            feed.onFeedItem(uid, time, currency, minorUnits, out ? OUT : IN);
+            if (out && time >= 250_000 && time < 750_000) {
+                expected.merge(currency, 100 - minorUnits % 100, Long::sum);
+            }
+        }
+        //Sync it all again, nothing changes
+        Collections.shuffle(uids, random);
+        Map<String, Long> actual = new HashMap<>();
+        roundUps(feed, 250_000, 750_000).forEach(amount -> actual.put(amount.currency(), amount.minorUnits()));
+        Assertions.assertEquals(expected, actual);
+        Assertions.assertEquals(50_000, feed.size());
+    }
+
+    @Test
+    public void dailyIndexFollowsChangedItems() {
+        AccountFeed feed = new AccountFeed();
+        long day = 86_400_000L;
+        UUID uid = UUID.randomUUID();
+        feed.onFeedItem(uid, 10 * day + 5, "GBP", 435, OUT);
+        feed.onFeedItem(UUID.randomUUID(), 11 * day, "USD", 1, OUT);
+        feed.onFeedItem(UUID.randomUUID(), 12 * day, "GBP", 1, IN);
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 65), new CurrencyAmount("USD", 99)), feed.roundUpsForDays(0, 100));
+
+        //Same item comes back on a different day with a different amount
+        feed.onFeedItem(uid, 20 * day, "GBP", 410, OUT);
+        Assertions.assertEquals(List.of(new CurrencyAmount("USD", 99)), feed.roundUpsForDays(10, 20));
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 90)), feed.roundUpsForDays(20, 21));
+        Assertions.assertEquals(Set.copyOf(roundUps(feed, 0, 100 * day)), Set.copyOf(feed.roundUpsForDays(0, 100)));
+    }
+
+    @Test
+    public void syncedWindowStaysContiguous() {
+        AccountFeed feed = new AccountFeed();
+        Assertions.assertEquals(List.of(new AccountFeed.Window(100, 200)), feed.missing(100, 200));
+        feed.synced(new AccountFeed.Window(100, 200), 1000);
+
+        Assertions.assertEquals(List.of(), feed.missing(100, 200));
+        //Later windows are fetched from where the synced window ends, earlier ones up to where it starts
+        Assertions.assertEquals(List.of(new AccountFeed.Window(200, 300)), feed.missing(250, 300));
+        Assertions.assertEquals(List.of(new AccountFeed.Window(20, 100)), feed.missing(20, 50));
+
+        //Only what had settled counts as synced
+        feed.synced(new AccountFeed.Window(200, 300), 250);
+        Assertions.assertEquals(new AccountFeed.Window(100, 250), feed.syncedWindow());
+        Assertions.assertEquals(List.of(new AccountFeed.Window(250, 300)), feed.missing(200, 300));
+        //Disjoint windows don't extend it
+        feed.synced(new AccountFeed.Window(0, 50), 1000);
+        Assertions.assertEquals(new AccountFeed.Window(100, 250), feed.syncedWindow());
+    }
+}
@@ -0,0 +1,144 @@
+package dev.onepintwig.starling.roundup.store;
+
+import dev.onepintwig.starling.roundup.model.Account;
+import dev.onepintwig.starling.roundup.model.CurrencyAmount;
+import dev.onepintwig.starling.roundup.model.FeedItem;
+import dev.onepintwig.starling.roundup.service.RoundUpCalculator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FeedStoreSpec {
+
+    private final Instant weekOne = Instant.parse("2024-09-02T00:00:00Z");
+    private final Instant weekTwo = weekOne.plus(7, ChronoUnit.DAYS);
+    private final Instant weekThree = weekTwo.plus(7, ChronoUnit.DAYS);
+    private final Account account = new Account(UUID.randomUUID(), UUID.randomUUID());
+    private final AtomicLong now = new AtomicLong(weekThree.plus(30, ChronoUnit.DAYS).toEpochMilli());
+
+    //Upstream has one outbound 0.99 transaction every hour, each rounding up by 1
+    private final List<Instant[]> fetched = new ArrayList<>();
+    private final AtomicBoolean failing = new AtomicBoolean();
+    private final FeedStore store = new FeedStore(Duration.ofDays(3), 100, (token, accountUid, from, to, handler) -> Mono.fromRunnable(() -> {
+        if (failing.get()) {
+            throw new IllegalStateException("Upstream down");
+        }
+        fetched.add(new Instant[]{from, to});
+        for (Instant time = from.truncatedTo(ChronoUnit.HOURS); time.isBefore(to); time = time.plus(1, ChronoUnit.HOURS)) {
+            if (!time.isBefore(from) && time.toEpochMilli() < now.get()) {
+                UUID uid = UUID.nameUUIDFromBytes(time.toString().getBytes());
+                ((AccountFeed) handler).onFeedItem(uid, time.toEpochMilli(), "GBP", 99, FeedItem.TransactionDirection.OUT);
+            }
+        }
+    }), now::get);
+
+    private List<CurrencyAmount> roundUps(Instant from, Instant to) {
+        return store.sync("Bearer token", account, from, to)
+                .map(feed -> RoundUpCalculator.roundUpsBetween(feed, from, to))
+                .block();
+    }
+
+    @Test
+    public void onlyFetchesWhatIsMissing() {
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 7 * 24)), roundUps(weekTwo, weekThree));
+        Assertions.assertEquals(1, fetched.size());
+
+        //Again, all local
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 7 * 24)), roundUps(weekTwo, weekThree));
+        Assertions.assertEquals(1, fetched.size());
+
+        //The week before only fetches the week before
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 7 * 24)), roundUps(weekOne, weekTwo));
+        Assertions.assertArrayEquals(new Instant[]{weekOne, weekTwo}, fetched.getLast());
+
+        Instant weekFour = weekThree.plus(7, ChronoUnit.DAYS);
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 7 * 24)), roundUps(weekThree, weekFour));
+        Assertions.assertArrayEquals(new Instant[]{weekThree, weekFour}, fetched.getLast());
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 21 * 24)), roundUps(weekOne, weekFour));
+        Assertions.assertEquals(3, store.fetches());
+        Assertions.assertEquals(5, store.syncs());
+    }
+
+    @Test
+    public void currentWeekOnlyFetchesTheDelta() {
+        now.set(weekOne.plus(2, ChronoUnit.DAYS).toEpochMilli());
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 2 * 24)), roundUps(weekOne, weekTwo));
+
+        now.set(weekOne.plus(6, ChronoUnit.DAYS).toEpochMilli());
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 6 * 24)), roundUps(weekOne, weekTwo));
+        //Nothing had settled last time, so all again
+        Assertions.assertArrayEquals(new Instant[]{weekOne, weekTwo}, fetched.getLast());
+
+        //But the first three days had this time, so only from there on. The repeats in there aren't counted twice
+        now.set(weekTwo.plus(7, ChronoUnit.DAYS).toEpochMilli());
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 7 * 24)), roundUps(weekOne, weekTwo));
+        Assertions.assertArrayEquals(new Instant[]{weekOne.plus(3, ChronoUnit.DAYS), weekTwo}, fetched.getLast());
+        roundUps(weekOne, weekTwo);
+        Assertions.assertEquals(3, fetched.size());
+    }
+
+    @Test
+    public void failedFetchesAreRetried() {
+        failing.set(true);
+        Assertions.assertThrows(IllegalStateException.class, () -> roundUps(weekOne, weekTwo));
+        failing.set(false);
+        Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 7 * 24)), roundUps(weekOne, weekTwo));
+        Assertions.assertEquals(1, fetched.size());
+    }
+
+    @Test
+    public void windowsAreFetchedInParallelAndEmittedInOrder() {
+        now.set(weekOne.plus(70, ChronoUnit.DAYS).toEpochMilli());
+        //Later windows answer first, so they finish out of order
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<Long> finished = new CopyOnWriteArrayList<>();
+        FeedStore slow = new FeedStore(Duration.ofDays(3), 100, (token, accountUid, from, to, handler) -> Mono.defer(() -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    return Mono.delay(Duration.ofMillis(200 - ChronoUnit.DAYS.between(weekOne, from) * 5));
+                })
+                .then(Mono.fromRunnable(() -> {
+                    inFlight.decrementAndGet();
+                    for (Instant time = from; time.isBefore(to); time = time.plus(1, ChronoUnit.HOURS)) {
+                        ((AccountFeed) handler).onFeedItem(UUID.nameUUIDFromBytes(time.toString().getBytes()), time.toEpochMilli(), "GBP", 99, FeedItem.TransactionDirection.OUT);
+                    }
+                    finished.add(from.toEpochMilli());
+                })), now::get);
+
+        long[] boundaries = new long[9];
+        for (int i = 0; i < boundaries.length; i++) {
+            boundaries[i] = weekOne.plus(7L * i, ChronoUnit.DAYS).toEpochMilli();
+        }
+        List<Integer> ready = slow.syncWindows("Bearer token", account, boundaries, 4)
+                .index()
+                .map(window -> {
+                    //Everything up to and including this window is in by now, and it holds exactly its own week
+                    int index = window.getT1().intValue();
+                    Assertions.assertTrue(finished.contains(boundaries[index]));
+                    Assertions.assertEquals(List.of(new CurrencyAmount("GBP", 7 * 24)), RoundUpCalculator.roundUpsBetween(window.getT2(),
+                            Instant.ofEpochMilli(boundaries[index]), Instant.ofEpochMilli(boundaries[index + 1])));
+                    return index;
+                })
+                .collectList()
+                .block();
+        Assertions.assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7), ready);
+        Assertions.assertEquals(4, maxInFlight.get());
+        Assertions.assertNotEquals(finished.stream().sorted().toList(), finished);
+
+        //All marked synced at the end, so none of it is fetched again
+        long fetches = slow.fetches();
+        slow.sync("Bearer token", account, weekOne, Instant.ofEpochMilli(boundaries[8])).block();
+        Assertions.assertEquals(fetches, slow.fetches());
+    }
+}
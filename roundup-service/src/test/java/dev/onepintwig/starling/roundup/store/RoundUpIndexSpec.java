@@ -0,0 +1,48 @@
+package dev.onepintwig.starling.roundup.store;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+public class RoundUpIndexSpec {
+
+    @Test
+    public void matchesBruteForceSums() {
+        //Days either side of the first one, so the window has to grow both ways, and a few currencies
+        int days = 2000;
+        long firstDay = 19_000;
+        long[][] expected = new long[3][days];
+        RoundUpIndex index = new RoundUpIndex();
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            int currency = random.nextInt(3);
+            int day = i == 0 ? days / 2 : random.nextInt(days);
+            long delta = random.nextInt(100) - (random.nextInt(10) == 0 ? 100 : 0);
+            expected[currency][day] += delta;
+            index.add(currency, firstDay - days / 2 + day, delta);
+        }
+
+        for (int i = 0; i < 2000; i++) {
+            int currency = random.nextInt(3);
+            int from = random.nextInt(days);
+            int to = from + random.nextInt(days - from + 1);
+            long sum = 0;
+            for (int day = from; day < to; day++) {
+                sum += expected[currency][day];
+            }
+            Assertions.assertEquals(sum, index.sum(currency, firstDay - days / 2 + from, firstDay - days / 2 + to));
+        }
+    }
+
+    @Test
+    public void rangesOutsideTheWindowAreClamped() {
+        RoundUpIndex index = new RoundUpIndex();
+        index.add(0, 100, 5);
+        index.add(0, 101, 7);
+        Assertions.assertEquals(12, index.sum(0, Long.MIN_VALUE / 2, Long.MAX_VALUE / 2));
+        Assertions.assertEquals(7, index.sum(0, 101, 1_000_000));
+        Assertions.assertEquals(0, index.sum(0, 102, 1_000_000));
+        Assertions.assertEquals(0, index.sum(1, 0, 1_000_000));
+    }
+}
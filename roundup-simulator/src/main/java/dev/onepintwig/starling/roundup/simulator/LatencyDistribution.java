@@ -0,0 +1,90 @@
+package dev.onepintwig.starling.roundup.simulator;
+
+import java.time.Duration;
+import java.util.random.RandomGenerator;
+
+/**
+ * How long the simulator takes to answer. Written as `kind:duration[,duration]`, with ISO-8601 durations:
+ * <p>
+ * - `constant:PT0.02S` - always 20ms
+ * - `uniform:PT0.01S,PT0.05S` - anywhere from 10ms to 50ms
+ * - `lognormal:PT0.02S,PT0.2S` - a median of 20ms, with a long tail reaching 200ms at the 99th percentile. Closest to
+ * what the sandbox actually looks like
+ *
+ * @param kind   The shape of the distribution
+ * @param first  The constant, the uniform minimum or the lognormal median
+ * @param second The uniform maximum or the lognormal 99th percentile. Same as first for a constant
+ */
+public record LatencyDistribution(Kind kind, Duration first, Duration second) {
+
+    public static final LatencyDistribution NONE = new LatencyDistribution(Kind.CONSTANT, Duration.ZERO, Duration.ZERO);
+
+    //The 99th percentile of a standard normal
+    private static final double Z_99 = 2.3263478740408408;
+
+    public enum Kind {
+        CONSTANT, UNIFORM, LOGNORMAL
+    }
+
+    public LatencyDistribution {
+        if (first.isNegative() || second.compareTo(first) < 0) {
+            throw new IllegalArgumentException("Latency bounds must be positive and in order: " + first + ", " + second);
+        }
+    }
+
+    public static LatencyDistribution constant(Duration latency) {
+        return new LatencyDistribution(Kind.CONSTANT, latency, latency);
+    }
+
+    public static LatencyDistribution uniform(Duration min, Duration max) {
+        return new LatencyDistribution(Kind.UNIFORM, min, max);
+    }
+
+    public static LatencyDistribution logNormal(Duration median, Duration p99) {
+        return new LatencyDistribution(Kind.LOGNORMAL, median, p99);
+    }
+
+    /**
+     * @param spec e.g. `lognormal:PT0.02S,PT0.2S`. A bare duration is a constant
+     */
+    public static LatencyDistribution parse(String spec) {
+        int colon = spec.indexOf(':');
+        if (colon < 0) {
+            return constant(Duration.parse(spec.trim()));
+        }
+        Kind kind = Kind.valueOf(spec.substring(0, colon).trim().toUpperCase());
+        String[] durations = spec.substring(colon + 1).split(",");
+        Duration first = Duration.parse(durations[0].trim());
+        Duration second = durations.length > 1 ? Duration.parse(durations[1].trim()) : first;
+        return new LatencyDistribution(kind, first, second);
+    }
+
+    /**
+     * @param random Where the randomness comes from
+     * @return One latency, in nanos
+     */
+    public long sample(RandomGenerator random) {
+        long first = this.first.toNanos();
+        long second = this.second.toNanos();
+        return switch (kind) {
+            case CONSTANT -> first;
+            case UNIFORM -> first == second ? first : random.nextLong(first, second + 1);
+            case LOGNORMAL -> {
+                if (first == 0 || first == second) {
+                    yield first;
+                }
+                //Pick sigma so the 99th percentile lands on second
+                double sigma = Math.log((double) second / first) / Z_99;
+                yield (long) (first * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return switch (kind) {
+            case CONSTANT -> "constant:" + first;
+            case UNIFORM, LOGNORMAL -> kind.name().toLowerCase() + ":" + first + "," + second;
+        };
+    }
+}
@@ -0,0 +1,141 @@
+package dev.onepintwig.starling.roundup.simulator;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes round-ups at a running service (the bootable jar, pointed at a [[StarlingSimulator]]) and reports the throughput
+ * and latency percentiles it saw, for capacity planning.
+ * <p>
+ * Each round-up is for one of [[LoadSettings.customers]] tokens, which the simulator turns into accounts of their own.
+ * Latency is timed from when a round-up was meant to start, so with a fixed rate, time spent queueing behind a slow
+ * service counts too, rather than the driver quietly slowing down to match it.
+ */
+public final class LoadDriver {
+
+    private LoadDriver() {
+    }
+
+    /**
+     * Runs once, configured from system properties (see the README), and prints the report
+     */
+    public static void main(String[] args) {
+        LoadSettings settings = LoadSettings.fromSystemProperties();
+        System.out.println("Driving " + settings);
+        System.out.println(run(settings));
+    }
+
+    /**
+     * @param settings What to send, and for how long
+     * @return What was measured, once every round-up started has finished
+     */
+    public static LoadReport run(LoadSettings settings) {
+        ConnectionProvider provider = ConnectionProvider.builder("load-driver")
+                .maxConnections(settings.concurrency())
+                .pendingAcquireMaxCount(-1)
+                .build();
+        HttpClient client = HttpClient.create(provider)
+                .baseUrl(settings.target())
+                .headers(headers -> headers
+                        .set(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                        .set(HttpHeaderNames.ACCEPT, "application/json"))
+                .responseTimeout(settings.timeout());
+        try {
+            Recorder recorder = new Recorder();
+            long start = System.nanoTime();
+            long measureFrom = start + settings.warmup().toNanos();
+            long end = measureFrom + settings.duration().toNanos();
+            AtomicLong sequence = new AtomicLong();
+            if (settings.rate() > 0) {
+                //Open loop: start on schedule, and let anything the service can't keep up with queue
+                long period = (long) (1e9 / settings.rate());
+                Flux.interval(Duration.ofNanos(period))
+                        .onBackpressureBuffer()
+                        .map(tick -> start + tick * period)
+                        .takeWhile(intended -> intended < end)
+                        .flatMap(intended -> roundUp(client, settings, sequence.getAndIncrement(), intended, measureFrom, recorder), settings.concurrency())
+                        .blockLast();
+            } else {
+                //Closed loop: each of concurrency callers starts its next round-up as soon as the last finishes
+                Flux.range(0, settings.concurrency())
+                        .flatMap(_ -> Mono.defer(() -> roundUp(client, settings, sequence.getAndIncrement(), System.nanoTime(), measureFrom, recorder))
+                                .repeat(() -> System.nanoTime() < end), settings.concurrency())
+                        .blockLast();
+            }
+            return recorder.report(settings.duration());
+        } finally {
+            provider.disposeLater().block();
+        }
+    }
+
+    private static Mono<Void> roundUp(HttpClient client, LoadSettings settings, long sequence, long intendedStart, long measureFrom, Recorder recorder) {
+        String token = "Bearer load-" + (sequence % settings.customers());
+        StarlingSimulator.Customer customer = StarlingSimulator.customer(token);
+        UUID savingsGoalUid = UUID.nameUUIDFromBytes(("savings-goal:" + token).getBytes(StandardCharsets.UTF_8));
+        Instant week = settings.weekStart().minus(7 * ((sequence / settings.customers()) % settings.weeks()), ChronoUnit.DAYS);
+        String body = "{\"roundUpWeekStartTimestamp\":\"" + week + "\"}";
+        return client.put()
+                .uri("/round-up/account/" + customer.accountUid() + "/savings-goal/" + savingsGoalUid)
+                //The token goes on the request, not the client, so every round-up shares the one connection pool
+                .send((request, outbound) -> {
+                    request.header(HttpHeaderNames.AUTHORIZATION, token);
+                    return outbound.sendString(Mono.just(body));
+                })
+                .responseSingle((response, content) -> content.asByteArray()
+                        .defaultIfEmpty(new byte[0])
+                        .map(_ -> response.status().code()))
+                //No response at all
+                .onErrorReturn(Recorder.NO_RESPONSE)
+                .doOnNext(status -> {
+                    if (intendedStart >= measureFrom) {
+                        recorder.record(status, System.nanoTime() - intendedStart);
+                    }
+                })
+                .then();
+    }
+
+    private static final class Recorder {
+        static final int NO_RESPONSE = -1;
+
+        private final ConcurrentHashMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        private final LongAdder failures = new LongAdder();
+        //Guarded by this. Every latency is kept, so the percentiles are exact
+        private long[] latencies = new long[1 << 16];
+        private int count;
+
+        void record(int status, long latency) {
+            if (status == NO_RESPONSE) {
+                failures.increment();
+            } else {
+                statuses.computeIfAbsent(status, _ -> new LongAdder()).increment();
+            }
+            synchronized (this) {
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = latency;
+            }
+        }
+
+        synchronized LoadReport report(Duration measuredFor) {
+            Map<Integer, Long> counts = new HashMap<>();
+            statuses.forEach((status, adder) -> counts.put(status, adder.sum()));
+            return new LoadReport(measuredFor, counts, failures.sum(), Arrays.copyOf(latencies, count));
+        }
+    }
+}
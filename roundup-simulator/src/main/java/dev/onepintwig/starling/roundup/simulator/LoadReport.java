@@ -0,0 +1,95 @@
+package dev.onepintwig.starling.roundup.simulator;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What a [[LoadDriver]] run measured. Only round-ups started after the warm up count
+ */
+public final class LoadReport {
+
+    private final Duration measuredFor;
+    private final Map<Integer, Long> statuses;
+    private final long failures;
+    private final long[] latencies;
+
+    /**
+     * @param measuredFor How long round-ups were being started for
+     * @param statuses    How many responses got each status
+     * @param failures    Round-ups that got no response at all: refused connections, resets and timeouts
+     * @param latencies   Every round-up's latency in nanos, in any order. Sorted in place
+     */
+    LoadReport(Duration measuredFor, Map<Integer, Long> statuses, long failures, long[] latencies) {
+        this.measuredFor = measuredFor;
+        this.statuses = new TreeMap<>(statuses);
+        this.failures = failures;
+        this.latencies = latencies;
+        Arrays.sort(this.latencies);
+    }
+
+    /**
+     * @return Round-ups finished, whatever the outcome
+     */
+    public long requests() {
+        return latencies.length;
+    }
+
+    /**
+     * @return Round-ups a second, whatever the outcome
+     */
+    public double throughput() {
+        return latencies.length / (measuredFor.toNanos() / 1e9);
+    }
+
+    /**
+     * @return Responses by status, lowest first
+     */
+    public Map<Integer, Long> statuses() {
+        return statuses;
+    }
+
+    /**
+     * @return Round-ups that didn't get a 2xx, including those that got no response at all
+     */
+    public long errors() {
+        long errors = failures;
+        for (Map.Entry<Integer, Long> status : statuses.entrySet()) {
+            if (status.getKey() < 200 || status.getKey() >= 300) {
+                errors += status.getValue();
+            }
+        }
+        return errors;
+    }
+
+    public long failures() {
+        return failures;
+    }
+
+    /**
+     * @param quantile e.g. 0.99
+     * @return The latency at the quantile. Exact, as every latency is kept
+     */
+    public Duration latency(double quantile) {
+        if (latencies.length == 0) {
+            return Duration.ZERO;
+        }
+        int index = (int) Math.min(latencies.length - 1, Math.ceil(quantile * latencies.length) - 1);
+        return Duration.ofNanos(latencies[Math.max(0, index)]);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("""
+                        Requests:   %d in %s (%.1f/s)
+                        Statuses:   %s, no response: %d
+                        Latency:    p50 %s, p90 %s, p99 %s, p99.9 %s, max %s""",
+                requests(), measuredFor, throughput(), statuses, failures,
+                millis(latency(0.5)), millis(latency(0.9)), millis(latency(0.99)), millis(latency(0.999)), millis(latency(1)));
+    }
+
+    private static String millis(Duration latency) {
+        return String.format("%.1fms", latency.toNanos() / 1e6);
+    }
+}
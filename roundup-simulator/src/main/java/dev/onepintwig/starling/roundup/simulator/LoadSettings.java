@@ -0,0 +1,80 @@
+package dev.onepintwig.starling.roundup.simulator;
+
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * What the [[LoadDriver]] sends at the round-up service, and for how long.
+ * <p>
+ * Defaults come from system properties (see the README).
+ *
+ * @param target      The service's base url, e.g. `http://localhost:8080/starling`
+ * @param concurrency Most round-ups in flight at once
+ * @param rate        Round-ups started a second. 0 starts the next as soon as one finishes (closed loop), otherwise they
+ *                    are started on schedule however slow the service is (open loop), and queue behind concurrency
+ * @param warmup      How long to run before measuring
+ * @param duration    How long to measure for
+ * @param customers   How many different tokens to spread the round-ups over. Each is its own account on the [[StarlingSimulator]]
+ * @param weeks       How many different weeks each customer rounds-up, going back from weekStart. More weeks means fewer
+ *                    repeats answered by the service's result cache
+ * @param weekStart   The latest week to round-up
+ * @param timeout     Give up on a round-up after this long, and count it as an error
+ */
+public record LoadSettings(
+        String target,
+        int concurrency,
+        double rate,
+        Duration warmup,
+        Duration duration,
+        int customers,
+        int weeks,
+        Instant weekStart,
+        Duration timeout
+) {
+
+    /**
+     * @return The settings from system properties, falling back to the defaults
+     */
+    public static LoadSettings fromSystemProperties() {
+        return new LoadSettings(
+                System.getProperty("load.target", "http://localhost:8080/starling"),
+                Integer.getInteger("load.concurrency", 1000),
+                Double.parseDouble(System.getProperty("load.rate", "0")),
+                Duration.parse(System.getProperty("load.warmup", "PT10S")),
+                Duration.parse(System.getProperty("load.duration", "PT60S")),
+                Integer.getInteger("load.customers", 10_000),
+                Integer.getInteger("load.weeks", 1),
+                Instant.parse(System.getProperty("load.week-start", lastWeek().toString())),
+                Duration.parse(System.getProperty("load.timeout", "PT30S"))
+        );
+    }
+
+    public LoadSettings withTarget(String target) {
+        return new LoadSettings(target, concurrency, rate, warmup, duration, customers, weeks, weekStart, timeout);
+    }
+
+    public LoadSettings withLoad(int concurrency, double rate) {
+        return new LoadSettings(target, concurrency, rate, warmup, duration, customers, weeks, weekStart, timeout);
+    }
+
+    public LoadSettings withDuration(Duration warmup, Duration duration) {
+        return new LoadSettings(target, concurrency, rate, warmup, duration, customers, weeks, weekStart, timeout);
+    }
+
+    public LoadSettings withCustomers(int customers, int weeks) {
+        return new LoadSettings(target, concurrency, rate, warmup, duration, customers, weeks, weekStart, timeout);
+    }
+
+    //The start of last week, Monday midnight UTC. A whole week that has already happened
+    private static Instant lastWeek() {
+        return LocalDate.now(ZoneOffset.UTC)
+                .with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY))
+                .minusWeeks(1)
+                .atStartOfDay(ZoneOffset.UTC)
+                .toInstant();
+    }
+}
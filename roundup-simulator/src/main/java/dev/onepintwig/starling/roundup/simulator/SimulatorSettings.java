@@ -0,0 +1,98 @@
+package dev.onepintwig.starling.roundup.simulator;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What the [[StarlingSimulator]]'s customers look like, and how badly behaved the api is.
+ * <p>
+ * Defaults come from system properties (see the README).
+ *
+ * @param feedItemsPerWeek How many transactions each account makes a week, spread evenly through it
+ * @param currencyMix      The share of transactions in each currency, e.g. GBP=0.9, EUR=0.1. Needn't add up to 1
+ * @param outboundShare    The share of transactions that are spending, rather than money coming in
+ * @param maxMinorUnits    The largest transaction, in minor units. Amounts are uniform from 1 up to this
+ * @param accountsLatency  How long `/accounts` takes to answer
+ * @param feedLatency      How long the feed takes to start answering
+ * @param transferLatency  How long a savings goal transfer takes to answer
+ * @param errorRate        The share of calls, to any endpoint, that fail with errorStatus instead
+ * @param errorStatus      The status failed calls get, e.g. 503 or 429
+ */
+public record SimulatorSettings(
+        int feedItemsPerWeek,
+        Map<String, Double> currencyMix,
+        double outboundShare,
+        long maxMinorUnits,
+        LatencyDistribution accountsLatency,
+        LatencyDistribution feedLatency,
+        LatencyDistribution transferLatency,
+        double errorRate,
+        int errorStatus
+) {
+
+    public SimulatorSettings {
+        if (currencyMix.isEmpty()) {
+            throw new IllegalArgumentException("At least one currency is needed");
+        }
+        //Kept in the order given, so the same settings always make the same feed
+        currencyMix = Collections.unmodifiableMap(new LinkedHashMap<>(currencyMix));
+    }
+
+    /**
+     * @return The settings from system properties, falling back to the defaults
+     */
+    public static SimulatorSettings fromSystemProperties() {
+        LatencyDistribution latency = LatencyDistribution.parse(System.getProperty("simulator.latency", "PT0S"));
+        return new SimulatorSettings(
+                Integer.getInteger("simulator.feed.items-per-week", 100),
+                parseCurrencyMix(System.getProperty("simulator.feed.currencies", "GBP=1")),
+                Double.parseDouble(System.getProperty("simulator.feed.outbound-share", "0.8")),
+                Long.getLong("simulator.feed.max-minor-units", 10_000),
+                latencyProperty("simulator.latency.accounts", latency),
+                latencyProperty("simulator.latency.feed", latency),
+                latencyProperty("simulator.latency.transfer", latency),
+                Double.parseDouble(System.getProperty("simulator.error-rate", "0")),
+                Integer.getInteger("simulator.error-status", 503)
+        );
+    }
+
+    public SimulatorSettings withFeed(int feedItemsPerWeek, Map<String, Double> currencyMix) {
+        return new SimulatorSettings(feedItemsPerWeek, currencyMix, outboundShare, maxMinorUnits,
+                accountsLatency, feedLatency, transferLatency, errorRate, errorStatus);
+    }
+
+    public SimulatorSettings withLatency(LatencyDistribution latency) {
+        return withLatency(latency, latency, latency);
+    }
+
+    public SimulatorSettings withLatency(LatencyDistribution accountsLatency, LatencyDistribution feedLatency, LatencyDistribution transferLatency) {
+        return new SimulatorSettings(feedItemsPerWeek, currencyMix, outboundShare, maxMinorUnits,
+                accountsLatency, feedLatency, transferLatency, errorRate, errorStatus);
+    }
+
+    public SimulatorSettings withErrors(double errorRate, int errorStatus) {
+        return new SimulatorSettings(feedItemsPerWeek, currencyMix, outboundShare, maxMinorUnits,
+                accountsLatency, feedLatency, transferLatency, errorRate, errorStatus);
+    }
+
+    /**
+     * @param mix e.g. `GBP=0.9,EUR=0.08,USD=0.02`
+     */
+    public static Map<String, Double> parseCurrencyMix(String mix) {
+        Map<String, Double> currencyMix = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            currencyMix.put(entry.substring(0, equals).trim(), Double.parseDouble(entry.substring(equals + 1).trim()));
+        }
+        return currencyMix;
+    }
+
+    private static LatencyDistribution latencyProperty(String name, LatencyDistribution fallback) {
+        String spec = System.getProperty(name);
+        return spec == null ? fallback : LatencyDistribution.parse(spec);
+    }
+}
@@ -0,0 +1,272 @@
+package dev.onepintwig.starling.roundup.simulator;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A local stand in for the bits of the Starling api the round-up service calls, for load testing and capacity planning
+ * without going anywhere near the sandbox:
+ * <p>
+ * - `GET /accounts`
+ * - `GET /feed/account/{accountUid}/settled-transactions-between`
+ * - `PUT /account/{accountUid}/savings-goals/{savingsGoalUid}/add-money/{transferUid}`
+ * <p>
+ * Every bearer token is a customer, with one account made up from the token. So a load test can have as many customers
+ * as it likes without setting any up, and a token can only see its own account. What the feeds look like, how slow the
+ * api is and how often it fails are all set by [[SimulatorSettings]], and can be changed while it is running.
+ */
+public final class StarlingSimulator implements AutoCloseable {
+
+    public static final String BASE_PATH = "/api/v2";
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * The one account a token can see
+     */
+    public record Customer(UUID accountUid, UUID defaultCategory) {
+    }
+
+    private final DisposableServer server;
+    private volatile SimulatorSettings settings;
+    private volatile SyntheticFeed feed;
+
+    private final LongAdder accountsCalls = new LongAdder();
+    private final LongAdder feedCalls = new LongAdder();
+    private final LongAdder transferCalls = new LongAdder();
+    private final LongAdder injectedErrors = new LongAdder();
+    private final LongAdder duplicateTransfers = new LongAdder();
+    private final LongAdder transferredMinorUnits = new LongAdder();
+    private final Set<UUID> transfers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Starts on a random port
+     */
+    public StarlingSimulator(SimulatorSettings settings) {
+        this(settings, 0);
+    }
+
+    /**
+     * @param settings How the api behaves
+     * @param port     The port to listen on. 0 for any free one
+     */
+    public StarlingSimulator(SimulatorSettings settings, int port) {
+        configure(settings);
+        server = HttpServer.create()
+                .host("localhost")
+                .port(port)
+                //h2c for clients that ask for it with prior knowledge
+                .protocol(HttpProtocol.HTTP11, HttpProtocol.H2C)
+                .route(routes -> routes
+                        .get(BASE_PATH + "/accounts", (request, response) ->
+                                call(accountsCalls, settings().accountsLatency(), request, response, this::accounts))
+                        .get(BASE_PATH + "/feed/account/{accountUid}/settled-transactions-between", (request, response) ->
+                                call(feedCalls, settings().feedLatency(), request, response, this::feed))
+                        .put(BASE_PATH + "/account/{accountUid}/savings-goals/{savingsGoalUid}/add-money/{transferUid}", (request, response) ->
+                                call(transferCalls, settings().transferLatency(), request, response, this::transfer)))
+                .bindNow();
+    }
+
+    /**
+     * Runs the simulator until it is killed, configured from system properties (see the README)
+     */
+    public static void main(String[] args) {
+        StarlingSimulator simulator = new StarlingSimulator(SimulatorSettings.fromSystemProperties(), Integer.getInteger("simulator.port", 9099));
+        System.out.println("Starling simulator listening on " + simulator.baseUrl() + " with " + simulator.settings());
+        simulator.server.onDispose().block();
+    }
+
+    /**
+     * @param token The whole Authorization header, e.g. `Bearer customer-1`
+     * @return The customer the simulator makes up for the token
+     */
+    public static Customer customer(String token) {
+        return new Customer(
+                UUID.nameUUIDFromBytes(("account:" + token).getBytes(StandardCharsets.UTF_8)),
+                UUID.nameUUIDFromBytes(("category:" + token).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public void configure(SimulatorSettings settings) {
+        this.feed = new SyntheticFeed(settings);
+        this.settings = settings;
+    }
+
+    public SimulatorSettings settings() {
+        return settings;
+    }
+
+    /**
+     * @return The base url to point the round-up service at, i.e. `starling.api.base-url`
+     */
+    public String baseUrl() {
+        return "http://localhost:" + server.port() + BASE_PATH;
+    }
+
+    public long accountsCalls() {
+        return accountsCalls.sum();
+    }
+
+    public long feedCalls() {
+        return feedCalls.sum();
+    }
+
+    public long transferCalls() {
+        return transferCalls.sum();
+    }
+
+    /**
+     * @return Calls failed on purpose, for the error rate
+     */
+    public long injectedErrors() {
+        return injectedErrors.sum();
+    }
+
+    /**
+     * @return Distinct transfers made. A transfer uid sent again doesn't move any more money, as with the real api
+     */
+    public long transfers() {
+        return transfers.size();
+    }
+
+    /**
+     * @return Transfers sent again with a uid that had already gone through
+     */
+    public long duplicateTransfers() {
+        return duplicateTransfers.sum();
+    }
+
+    /**
+     * @return The minor units moved by all the distinct transfers, whatever their currency
+     */
+    public long transferredMinorUnits() {
+        return transferredMinorUnits.sum();
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Publisher<Void> handle(Customer customer, HttpServerRequest request, HttpServerResponse response);
+    }
+
+    //Everything every endpoint does first: count it, wait a while, maybe fail, then check who is asking
+    private Publisher<Void> call(LongAdder calls, LatencyDistribution latency, HttpServerRequest request, HttpServerResponse response, Handler handler) {
+        calls.increment();
+        SimulatorSettings settings = settings();
+        long delay = latency.sample(ThreadLocalRandom.current());
+        Mono<Void> wait = delay > 0 ? Mono.delay(Duration.ofNanos(delay)).then() : Mono.empty();
+        return wait.then(Mono.defer(() -> {
+            if (settings.errorRate() > 0 && ThreadLocalRandom.current().nextDouble() < settings.errorRate()) {
+                injectedErrors.increment();
+                return Mono.from(json(response, HttpResponseStatus.valueOf(settings.errorStatus()), "{\"error\":\"simulated\"}"));
+            }
+            String token = request.requestHeaders().get(HttpHeaderNames.AUTHORIZATION);
+            if (token == null || token.isBlank()) {
+                return Mono.from(json(response, HttpResponseStatus.UNAUTHORIZED, "{\"error\":\"invalid_token\"}"));
+            }
+            return Mono.from(handler.handle(customer(token), request, response));
+        }));
+    }
+
+    private Publisher<Void> accounts(Customer customer, HttpServerRequest request, HttpServerResponse response) {
+        return json(response, HttpResponseStatus.OK,
+                "{\"accounts\":[{\"accountUid\":\"" + customer.accountUid() + "\",\"defaultCategory\":\"" + customer.defaultCategory()
+                        + "\",\"currency\":\"GBP\",\"accountType\":\"PRIMARY\"}]}");
+    }
+
+    private Publisher<Void> feed(Customer customer, HttpServerRequest request, HttpServerResponse response) {
+        if (!customer.accountUid().toString().equals(request.param("accountUid"))) {
+            return forbidden(response);
+        }
+        Instant from;
+        Instant to;
+        try {
+            //The query string isn't split out by the router
+            String query = request.uri().substring(request.uri().indexOf('?') + 1);
+            from = Instant.parse(queryParam(query, "minTransactionTimestamp"));
+            to = Instant.parse(queryParam(query, "maxTransactionTimestamp"));
+        } catch (RuntimeException e) {
+            return json(response, HttpResponseStatus.BAD_REQUEST, "{\"error\":\"minTransactionTimestamp and maxTransactionTimestamp are needed\"}");
+        }
+        return response.header(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                .send(feed.body(customer.accountUid(), from.toEpochMilli(), to.toEpochMilli(), System.currentTimeMillis(), response.alloc()));
+    }
+
+    private Publisher<Void> transfer(Customer customer, HttpServerRequest request, HttpServerResponse response) {
+        if (!customer.accountUid().toString().equals(request.param("accountUid"))) {
+            return forbidden(response);
+        }
+        UUID transferUid = UUID.fromString(request.param("transferUid"));
+        return request.receive().aggregate().asByteArray().defaultIfEmpty(new byte[0]).flatMap(body -> {
+            long minorUnits;
+            try {
+                minorUnits = minorUnits(body);
+            } catch (IOException | RuntimeException e) {
+                return Mono.from(json(response, HttpResponseStatus.BAD_REQUEST, "{\"error\":\"amount.minorUnits is needed\"}"));
+            }
+            if (transfers.add(transferUid)) {
+                transferredMinorUnits.add(minorUnits);
+            } else {
+                duplicateTransfers.increment();
+            }
+            return Mono.from(json(response, HttpResponseStatus.OK, "{\"transferUid\":\"" + transferUid + "\",\"success\":true}"));
+        });
+    }
+
+    private static Publisher<Void> forbidden(HttpServerResponse response) {
+        return json(response, HttpResponseStatus.FORBIDDEN, "{\"error\":\"forbidden\"}");
+    }
+
+    private static Publisher<Void> json(HttpServerResponse response, HttpResponseStatus status, String body) {
+        return response.status(status)
+                .header(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                .sendString(Mono.just(body), StandardCharsets.UTF_8);
+    }
+
+    private static String queryParam(String query, String name) {
+        for (String pair : query.split("&")) {
+            if (pair.startsWith(name + "=")) {
+                return URLDecoder.decode(pair.substring(name.length() + 1), StandardCharsets.UTF_8);
+            }
+        }
+        throw new IllegalArgumentException("Missing " + name);
+    }
+
+    //{"amount": {"currency": "GBP", "minorUnits": 123}}
+    private static long minorUnits(byte[] body) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(body)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.FIELD_NAME && "minorUnits".equals(parser.currentName())) {
+                    parser.nextToken();
+                    return parser.getLongValue();
+                }
+            }
+        }
+        throw new IOException("No minorUnits");
+    }
+}
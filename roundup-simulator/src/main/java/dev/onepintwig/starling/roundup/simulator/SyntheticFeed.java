@@ -0,0 +1,189 @@
+package dev.onepintwig.starling.roundup.simulator;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Makes up an account's settled transactions, the same every time they are asked for.
+ * <p>
+ * Each hour of each account's feed is generated from its own seed, and always in full before being cut down to the
+ * window asked for. So overlapping windows, or one window and the same range in pieces, see the same transactions with
+ * the same uids, which is what the service's feed store relies on to dedupe.
+ */
+final class SyntheticFeed {
+
+    private static final long HOUR = 3_600_000L;
+    private static final long HOURS_PER_WEEK = 168;
+    //Each chunk of the body is a day of transactions, so a year of a busy account is never all in memory at once
+    private static final long HOURS_PER_CHUNK = 24;
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final double itemsPerHour;
+    private final double outboundShare;
+    private final long maxMinorUnits;
+    private final String[] currencies;
+    private final double[] cumulativeShares;
+
+    SyntheticFeed(SimulatorSettings settings) {
+        this.itemsPerHour = (double) settings.feedItemsPerWeek() / HOURS_PER_WEEK;
+        this.outboundShare = settings.outboundShare();
+        this.maxMinorUnits = Math.max(1, settings.maxMinorUnits());
+        this.currencies = new String[settings.currencyMix().size()];
+        this.cumulativeShares = new double[currencies.length];
+        double total = settings.currencyMix().values().stream().mapToDouble(Double::doubleValue).sum();
+        double cumulative = 0;
+        int i = 0;
+        for (Map.Entry<String, Double> share : settings.currencyMix().entrySet()) {
+            currencies[i] = share.getKey();
+            cumulative += share.getValue() / total;
+            cumulativeShares[i++] = cumulative;
+        }
+    }
+
+    /**
+     * @param accountUid The account the feed is for
+     * @param from       The earliest transaction time, inclusive, in epoch millis
+     * @param to         The latest transaction time, exclusive, in epoch millis
+     * @param now        Nothing after this has happened yet
+     * @param allocator  For the chunks
+     * @return A `{"feedItems": [...]}` body, a day at a time
+     */
+    Flux<ByteBuf> body(UUID accountUid, long from, long to, long now, ByteBufAllocator allocator) {
+        long end = Math.min(to, now);
+        return Flux.generate(
+                () -> new Writer(accountUid, from, end),
+                (writer, sink) -> {
+                    ByteBuf chunk = allocator.buffer();
+                    try {
+                        if (writer.writeChunk(chunk)) {
+                            sink.next(chunk);
+                        } else {
+                            chunk.release();
+                            sink.complete();
+                        }
+                    } catch (IOException e) {
+                        chunk.release();
+                        sink.error(e);
+                    }
+                    return writer;
+                },
+                Writer::close
+        );
+    }
+
+    //Writes one chunk at a time into whichever buffer it is handed, through the one generator
+    private final class Writer extends OutputStream {
+        private final UUID accountUid;
+        private final long from;
+        private final long to;
+        private final JsonGenerator json;
+        private long hour;
+        private boolean started;
+        private boolean finished;
+        private ByteBuf target;
+
+        Writer(UUID accountUid, long from, long to) {
+            this.accountUid = accountUid;
+            this.from = from;
+            this.to = to;
+            this.hour = Math.floorDiv(from, HOUR);
+            try {
+                this.json = jsonFactory.createGenerator(this);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        boolean writeChunk(ByteBuf chunk) throws IOException {
+            if (finished) {
+                return false;
+            }
+            target = chunk;
+            if (!started) {
+                json.writeStartObject();
+                json.writeArrayFieldStart("feedItems");
+                started = true;
+            }
+            long lastHour = Math.min(hour + HOURS_PER_CHUNK, Math.ceilDiv(to, HOUR));
+            for (; hour < lastHour; hour++) {
+                writeHour(hour);
+            }
+            if (hour >= Math.ceilDiv(to, HOUR)) {
+                json.writeEndArray();
+                json.writeEndObject();
+                finished = true;
+            }
+            json.flush();
+            return true;
+        }
+
+        private void writeHour(long hour) throws IOException {
+            SplittableRandom random = new SplittableRandom(mix(accountUid.getMostSignificantBits() ^ mix(hour)));
+            int items = (int) itemsPerHour + (random.nextDouble() < itemsPerHour - (int) itemsPerHour ? 1 : 0);
+            long idHigh = mix(accountUid.getLeastSignificantBits() ^ hour);
+            for (int item = 0; item < items; item++) {
+                //Draw everything, even for items that get left out, so the rest come out the same whatever the window
+                long time = hour * HOUR + random.nextLong(HOUR);
+                double currency = random.nextDouble();
+                boolean outbound = random.nextDouble() < outboundShare;
+                long minorUnits = random.nextLong(1, maxMinorUnits + 1);
+                if (time < from || time >= to) {
+                    continue;
+                }
+                json.writeStartObject();
+                json.writeStringField("feedItemUid", new UUID(idHigh, accountUid.getMostSignificantBits() ^ item).toString());
+                json.writeObjectFieldStart("amount");
+                json.writeStringField("currency", currency(currency));
+                json.writeNumberField("minorUnits", minorUnits);
+                json.writeEndObject();
+                json.writeStringField("direction", outbound ? "OUT" : "IN");
+                json.writeStringField("status", "SETTLED");
+                json.writeStringField("transactionTime", Instant.ofEpochMilli(time).toString());
+                json.writeEndObject();
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            target.writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            target.writeBytes(bytes, offset, length);
+        }
+
+        @Override
+        public void close() {
+            //Nothing left to flush into, so just let the generator go
+            target = null;
+        }
+    }
+
+    private String currency(double draw) {
+        for (int i = 0; i < cumulativeShares.length - 1; i++) {
+            if (draw < cumulativeShares[i]) {
+                return currencies[i];
+            }
+        }
+        return currencies[currencies.length - 1];
+    }
+
+    //The splitmix64 finalizer. One to one, so different hours never share an id
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,32 @@
+package dev.onepintwig.starling.roundup.simulator;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+
+public class LatencyDistributionSpec {
+
+    @Test
+    public void latencyDistributionsHaveTheirShape() {
+        Random random = new Random(42);
+        LatencyDistribution logNormal = LatencyDistribution.parse("lognormal:PT0.02S,PT0.2S");
+        long[] samples = new long[100_000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = logNormal.sample(random);
+        }
+        Arrays.sort(samples);
+        Assertions.assertEquals(20, samples[samples.length / 2] / 1_000_000.0, 1);
+        Assertions.assertEquals(200, samples[(int) (samples.length * 0.99)] / 1_000_000.0, 15);
+
+        LatencyDistribution uniform = LatencyDistribution.parse("uniform:PT0.01S,PT0.05S");
+        for (int i = 0; i < 1000; i++) {
+            long sample = uniform.sample(random);
+            Assertions.assertTrue(sample >= 10_000_000 && sample <= 50_000_000);
+        }
+        Assertions.assertEquals(Duration.ofMillis(5).toNanos(), LatencyDistribution.parse("PT0.005S").sample(random));
+        Assertions.assertEquals("uniform:PT0.01S,PT0.05S", uniform.toString());
+    }
+}
@@ -0,0 +1,72 @@
+package dev.onepintwig.starling.roundup.simulator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LoadDriverSpec {
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final Set<String> tokens = ConcurrentHashMap.newKeySet();
+    private DisposableServer service;
+
+    @AfterEach
+    public void stop() {
+        service.disposeNow();
+    }
+
+    //Stands in for the round-up service. Takes 20ms, and every 4th call fails
+    private LoadSettings settings() {
+        service = HttpServer.create()
+                .port(0)
+                .route(routes -> routes.put("/starling/round-up/account/{accountUid}/savings-goal/{savingsGoalUid}", (request, response) -> {
+                    tokens.add(request.requestHeaders().get("Authorization"));
+                    int call = calls.incrementAndGet();
+                    return request.receive().then()
+                            .then(Mono.delay(Duration.ofMillis(20)))
+                            .then(Mono.from(response.status(call % 4 == 0 ? 503 : 200).sendString(Mono.just("{\"savingsGoalTransfers\":[]}"))));
+                }))
+                .bindNow();
+        return LoadSettings.fromSystemProperties()
+                .withTarget("http://localhost:" + service.port() + "/starling")
+                .withCustomers(50, 1)
+                .withDuration(Duration.ofMillis(200), Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void closedLoopKeepsConcurrencyInFlight() {
+        LoadReport report = LoadDriver.run(settings().withLoad(40, 0));
+        //40 at a time, each taking a little over 20ms
+        Assertions.assertTrue(report.throughput() > 200 && report.throughput() < 2000, report.toString());
+        Assertions.assertTrue(report.latency(0.5).compareTo(Duration.ofMillis(20)) >= 0, report.toString());
+        Assertions.assertEquals(report.requests(), report.statuses().get(200) + report.statuses().get(503));
+        Assertions.assertEquals(report.statuses().get(503), report.errors());
+        Assertions.assertEquals(0.25, report.errors() / (double) report.requests(), 0.05);
+        Assertions.assertEquals(50, tokens.size());
+    }
+
+    @Test
+    public void openLoopStartsOnSchedule() {
+        LoadReport report = LoadDriver.run(settings().withLoad(100, 200));
+        Assertions.assertEquals(200, report.requests(), 10);
+        Assertions.assertTrue(report.latency(0.99).compareTo(Duration.ofMillis(20)) >= 0, report.toString());
+        Assertions.assertTrue(report.latency(0.99).compareTo(Duration.ofSeconds(1)) < 0, report.toString());
+    }
+
+    @Test
+    public void unreachableServicesAreFailures() {
+        LoadSettings settings = settings().withTarget("http://localhost:1/starling").withLoad(4, 50);
+        LoadReport report = LoadDriver.run(settings);
+        Assertions.assertTrue(report.requests() > 0);
+        Assertions.assertEquals(report.requests(), report.failures());
+        Assertions.assertEquals(report.requests(), report.errors());
+    }
+}
@@ -0,0 +1,160 @@
+package dev.onepintwig.starling.roundup.simulator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.client.HttpClient;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class StarlingSimulatorSpec {
+
+    private static final Pattern FEED_ITEM_UID = Pattern.compile("\"feedItemUid\":\"([^\"]+)\"");
+    private static final Pattern CURRENCY = Pattern.compile("\"currency\":\"([A-Z]+)\"");
+
+    private final Instant week = Instant.parse("2024-09-02T00:00:00Z");
+    private final String token = "Bearer customer-1";
+    private final UUID accountUid = StarlingSimulator.customer(token).accountUid();
+    private StarlingSimulator simulator;
+
+    @AfterEach
+    public void stop() {
+        simulator.close();
+    }
+
+    private record Response(int status, String body) {
+    }
+
+    private Response get(String token, String path) {
+        return HttpClient.create()
+                .baseUrl(simulator.baseUrl())
+                .headers(headers -> headers.set("Authorization", token))
+                .get()
+                .uri(path)
+                .responseSingle((response, body) -> body.asString().defaultIfEmpty("").map(content -> new Response(response.status().code(), content)))
+                .block();
+    }
+
+    private Response put(String token, String path, String body) {
+        return HttpClient.create()
+                .baseUrl(simulator.baseUrl())
+                .headers(headers -> headers.set("Authorization", token))
+                .put()
+                .uri(path)
+                .send((_, outbound) -> outbound.sendString(Mono.just(body)))
+                .responseSingle((response, content) -> content.asString().defaultIfEmpty("").map(text -> new Response(response.status().code(), text)))
+                .block();
+    }
+
+    private List<String> feed(Instant from, Instant to) {
+        Response response = get(token, "/feed/account/" + accountUid + "/settled-transactions-between?minTransactionTimestamp=" + from + "&maxTransactionTimestamp=" + to);
+        Assertions.assertEquals(200, response.status());
+        return matches(FEED_ITEM_UID, response.body());
+    }
+
+    private static List<String> matches(Pattern pattern, String body) {
+        List<String> matches = new ArrayList<>();
+        Matcher matcher = pattern.matcher(body);
+        while (matcher.find()) {
+            matches.add(matcher.group(1));
+        }
+        return matches;
+    }
+
+    @Test
+    public void feedsAreTheSameHoweverTheyAreFetched() {
+        simulator = new StarlingSimulator(SimulatorSettings.fromSystemProperties().withFeed(1000, Map.of("GBP", 1.0)));
+        List<String> whole = feed(week, week.plus(7, ChronoUnit.DAYS));
+        Assertions.assertTrue(Math.abs(whole.size() - 1000) < 50, "Got " + whole.size());
+        Assertions.assertEquals(whole.size(), new HashSet<>(whole).size());
+
+        //The same week in awkward pieces, that split hours and days
+        List<String> pieces = new ArrayList<>();
+        Instant from = week;
+        Random random = new Random(7);
+        while (from.isBefore(week.plus(7, ChronoUnit.DAYS))) {
+            Instant to = from.plus(random.nextInt(1, 60 * 30), ChronoUnit.MINUTES);
+            to = to.isAfter(week.plus(7, ChronoUnit.DAYS)) ? week.plus(7, ChronoUnit.DAYS) : to;
+            pieces.addAll(feed(from, to));
+            from = to;
+        }
+        Assertions.assertEquals(new HashSet<>(whole), new HashSet<>(pieces));
+        Assertions.assertEquals(whole.size(), pieces.size());
+
+        //Nothing from the future
+        Instant now = Instant.now();
+        Assertions.assertTrue(feed(now.minus(1, ChronoUnit.HOURS), now.plus(7, ChronoUnit.DAYS)).size() < 20);
+    }
+
+    @Test
+    public void currenciesFollowTheMix() {
+        simulator = new StarlingSimulator(SimulatorSettings.fromSystemProperties()
+                .withFeed(10_000, SimulatorSettings.parseCurrencyMix("GBP=0.7,EUR=0.2,USD=0.1")));
+        Response response = get(token, "/feed/account/" + accountUid + "/settled-transactions-between?minTransactionTimestamp=" + week + "&maxTransactionTimestamp=" + week.plus(7, ChronoUnit.DAYS));
+        List<String> currencies = matches(CURRENCY, response.body());
+        double gbp = currencies.stream().filter("GBP"::equals).count() / (double) currencies.size();
+        double usd = currencies.stream().filter("USD"::equals).count() / (double) currencies.size();
+        Assertions.assertEquals(0.7, gbp, 0.03);
+        Assertions.assertEquals(0.1, usd, 0.03);
+    }
+
+    @Test
+    public void tokensOnlySeeTheirOwnAccount() {
+        simulator = new StarlingSimulator(SimulatorSettings.fromSystemProperties());
+        Response accounts = get(token, "/accounts");
+        Assertions.assertEquals(200, accounts.status());
+        Assertions.assertTrue(accounts.body().contains(accountUid.toString()));
+        Assertions.assertEquals(401, get("", "/accounts").status());
+        Assertions.assertEquals(403, get("Bearer customer-2", "/feed/account/" + accountUid
+                + "/settled-transactions-between?minTransactionTimestamp=" + week + "&maxTransactionTimestamp=" + week.plus(1, ChronoUnit.DAYS)).status());
+
+        //Transfers are idempotent on their uid, like the real thing
+        String transfer = "/account/" + accountUid + "/savings-goals/" + UUID.randomUUID() + "/add-money/" + UUID.randomUUID();
+        String body = "{\"amount\":{\"currency\":\"GBP\",\"minorUnits\":158}}";
+        Assertions.assertTrue(put(token, transfer, body).body().contains("\"success\":true"));
+        Assertions.assertEquals(200, put(token, transfer, body).status());
+        Assertions.assertEquals(403, put("Bearer customer-2", transfer, body).status());
+        Assertions.assertEquals(1, simulator.transfers());
+        Assertions.assertEquals(1, simulator.duplicateTransfers());
+        Assertions.assertEquals(158, simulator.transferredMinorUnits());
+    }
+
+    @Test
+    public void latencyAndErrorsAreInjected() {
+        simulator = new StarlingSimulator(SimulatorSettings.fromSystemProperties()
+                .withLatency(LatencyDistribution.constant(Duration.ofMillis(100)))
+                .withErrors(0.5, 429));
+        long start = System.nanoTime();
+        List<Response> responses = Flux.range(0, 200)
+                .flatMap(_ -> Mono.fromCallable(() -> get(token, "/accounts")).subscribeOn(Schedulers.boundedElastic()), 50)
+                .collectList()
+                .block();
+        Assertions.assertTrue(System.nanoTime() - start >= Duration.ofMillis(400).toNanos());
+        long throttled = responses.stream().filter(response -> response.status() == 429).count();
+        Assertions.assertTrue(throttled > 60 && throttled < 140, "Got " + throttled);
+        Assertions.assertEquals(throttled, simulator.injectedErrors());
+        Assertions.assertEquals(200, simulator.accountsCalls());
+
+        //And turned off again, without a restart
+        simulator.configure(simulator.settings().withLatency(LatencyDistribution.NONE).withErrors(0, 503));
+        Set<Integer> statuses = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            statuses.add(get(token, "/accounts").status());
+        }
+        Assertions.assertEquals(Set.of(200), statuses);
+    }
+}